@@ -18,6 +18,9 @@ import org.eclipse.ecf.core.util.LogHelper;
 import org.eclipse.ecf.core.util.SystemLogService;
 import org.eclipse.ecf.discovery.IDiscoveryAdvertiser;
 import org.eclipse.ecf.discovery.IDiscoveryLocator;
+import org.eclipse.ecf.internal.provider.etcd.protocol.EtcdHeartbeatScheduler;
+import org.eclipse.ecf.internal.provider.etcd.protocol.EtcdRequest;
+import org.eclipse.ecf.internal.provider.etcd.protocol.EtcdRequestExecutor;
 import org.eclipse.ecf.provider.etcd.EtcdDiscoveryContainer;
 import org.eclipse.ecf.provider.etcd.EtcdDiscoveryContainerConfig;
 import org.eclipse.ecf.provider.etcd.EtcdDiscoveryContainerInstantiator;
@@ -118,6 +121,11 @@ public class Activator implements BundleActivator {
 			logServiceTracker = null;
 			logService = null;
 		}
+		// stop async request and heartbeat threads and close any pooled etcd
+		// connections
+		EtcdRequestExecutor.shutdownDefault();
+		EtcdHeartbeatScheduler.shutdownDefault();
+		EtcdRequest.setDefaultTransport(null);
 		context = null;
 		plugin = null;
 	}
@@ -0,0 +1,225 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Composent, Inc. All rights reserved. This
+ * program and the accompanying materials are made available under the terms of
+ * the Eclipse Public License v1.0 which accompanies this distribution, and is
+ * available at http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors: Scott Lewis - initial API and implementation
+ ******************************************************************************/
+package org.eclipse.ecf.internal.provider.etcd.protocol;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.MalformedURLException;
+import java.net.NoRouteToHostException;
+import java.net.URL;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * {@link IEtcdTransport} for a cluster of etcd members. Each request is sent
+ * to the healthiest member, based upon a moving average of its round trip
+ * time and error rate. The protocol, host and port of the request url are
+ * replaced by those of the chosen member. A member that fails is not used
+ * again until a backoff has passed, and idempotent requests are retried on
+ * the next healthiest member. Members whose score is close to the best are
+ * considered equal, and ties are broken by a per-transport random order, so
+ * that clients spread over the cluster instead of all using the same member.
+ */
+public class EtcdClusterTransport implements IEtcdTransport {
+
+	public static final long MIN_BACKOFF = Long.parseLong(System.getProperty(
+			"org.eclipse.ecf.provider.etcd.cluster.minbackoff", "1000")); //$NON-NLS-1$ //$NON-NLS-2$
+	public static final long MAX_BACKOFF = Long.parseLong(System.getProperty(
+			"org.eclipse.ecf.provider.etcd.cluster.maxbackoff", "30000")); //$NON-NLS-1$ //$NON-NLS-2$
+
+	// weight of newest sample in moving averages
+	private static final double ALPHA = 0.2;
+	// members with score within this factor of the best are considered equal
+	private static final double TOLERANCE = 1.5;
+	// rtt (ms) below which members are always considered equal
+	private static final double MIN_RTT = 2.0;
+
+	public static class Member {
+
+		private final URL url;
+		private double rtt;
+		private double errorRate;
+		private int consecutiveFailures;
+		private long retryAt;
+
+		Member(URL url) {
+			this.url = url;
+		}
+
+		public URL getUrl() {
+			return url;
+		}
+
+		/**
+		 * @return moving average of round trip time in ms. 0 if not yet
+		 *         measured.
+		 */
+		public synchronized double getRtt() {
+			return rtt;
+		}
+
+		/**
+		 * @return moving average of error rate, between 0 and 1
+		 */
+		public synchronized double getErrorRate() {
+			return errorRate;
+		}
+
+		public synchronized boolean isAvailable(long now) {
+			return retryAt <= now;
+		}
+
+		synchronized long getRetryAt() {
+			return retryAt;
+		}
+
+		synchronized double getScore() {
+			return Math.max(rtt, MIN_RTT) * (1 + 10 * errorRate);
+		}
+
+		synchronized void success(long rttMillis, boolean measureRtt) {
+			if (measureRtt)
+				rtt = (rtt == 0) ? rttMillis : (1 - ALPHA) * rtt + ALPHA * rttMillis;
+			errorRate = (1 - ALPHA) * errorRate;
+			consecutiveFailures = 0;
+			retryAt = 0;
+		}
+
+		synchronized void failure() {
+			errorRate = (1 - ALPHA) * errorRate + ALPHA;
+			long backoff = MIN_BACKOFF << Math.min(consecutiveFailures, 16);
+			consecutiveFailures++;
+			retryAt = System.currentTimeMillis() + Math.min(backoff, MAX_BACKOFF);
+		}
+
+		URL rewrite(URL requestUrl) throws MalformedURLException {
+			return new URL(url.getProtocol(), url.getHost(), url.getPort(), requestUrl.getFile());
+		}
+
+		@Override
+		public synchronized String toString() {
+			return "Member[url=" + url + ", rtt=" + rtt + ", errorRate=" + errorRate + ", retryAt=" + retryAt + "]"; //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$ //$NON-NLS-5$
+		}
+	}
+
+	private final List<Member> members;
+	private final IEtcdTransport delegate;
+
+	/**
+	 * @param memberUrls
+	 *            urls of the cluster members. Only protocol, host and port are
+	 *            used.
+	 * @param delegate
+	 *            transport used to send requests. If <code>null</code>, the
+	 *            {@link EtcdRequest#getDefaultTransport()} is used.
+	 */
+	public EtcdClusterTransport(List<URL> memberUrls, IEtcdTransport delegate) {
+		List<Member> ms = new ArrayList<Member>(memberUrls.size());
+		for (URL url : memberUrls)
+			ms.add(new Member(url));
+		// per transport order for breaking ties
+		Collections.shuffle(ms, new Random());
+		this.members = Collections.unmodifiableList(ms);
+		this.delegate = delegate;
+	}
+
+	public EtcdClusterTransport(List<URL> memberUrls) {
+		this(memberUrls, null);
+	}
+
+	public List<Member> getMembers() {
+		return members;
+	}
+
+	private IEtcdTransport getDelegate() {
+		return (delegate != null) ? delegate : EtcdRequest.getDefaultTransport();
+	}
+
+	/**
+	 * @return the healthiest member not in excluded. If all members are
+	 *         backing off, the one that is available again first.
+	 */
+	Member select(Set<Member> excluded) {
+		long now = System.currentTimeMillis();
+		Member best = null;
+		double bestScore = Double.MAX_VALUE;
+		Member waiting = null;
+		for (Member m : members) {
+			if (excluded.contains(m))
+				continue;
+			if (!m.isAvailable(now)) {
+				if (waiting == null || m.getRetryAt() < waiting.getRetryAt())
+					waiting = m;
+				continue;
+			}
+			double score = m.getScore();
+			// earlier members win ties
+			if (best == null || score * TOLERANCE < bestScore) {
+				best = m;
+				bestScore = score;
+			}
+		}
+		return (best != null) ? best : waiting;
+	}
+
+	private boolean isMemberFailure(IOException e) {
+		return e instanceof ConnectException || e instanceof NoRouteToHostException
+				|| e instanceof UnknownHostException;
+	}
+
+	public EtcdHttpResponse execute(EtcdRequest request, URL url) throws IOException {
+		Set<Member> tried = new HashSet<Member>();
+		IOException lastException = null;
+		Member member = null;
+		while ((member = select(tried)) != null) {
+			tried.add(member);
+			boolean last = tried.size() == members.size();
+			long start = System.currentTimeMillis();
+			EtcdHttpResponse response = null;
+			try {
+				response = getDelegate().execute(request, member.rewrite(url));
+			} catch (IOException e) {
+				// not the member's fault
+				if (request.isAborted())
+					throw e;
+				member.failure();
+				lastException = e;
+				// if nothing was sent, the request can always go elsewhere
+				if (last || !(isMemberFailure(e) || request.isIdempotent()))
+					throw e;
+				continue;
+			}
+			if (response.getStatusCode() >= 500) {
+				// e.g. member has lost quorum
+				member.failure();
+				if (!last && request.isIdempotent()) {
+					response.close();
+					continue;
+				}
+			} else
+				member.success(System.currentTimeMillis() - start, !request.isLongPoll());
+			return response;
+		}
+		throw (lastException != null) ? lastException : new IOException("No etcd cluster members available"); //$NON-NLS-1$
+	}
+
+	public void close() {
+		// the delegate is shared and closed by its owner
+	}
+
+	@Override
+	public String toString() {
+		return "EtcdClusterTransport[members=" + members + "]"; //$NON-NLS-1$ //$NON-NLS-2$
+	}
+}
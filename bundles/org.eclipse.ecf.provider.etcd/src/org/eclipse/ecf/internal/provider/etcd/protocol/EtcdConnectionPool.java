@@ -0,0 +1,333 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Composent, Inc. All rights reserved. This
+ * program and the accompanying materials are made available under the terms of
+ * the Eclipse Public License v1.0 which accompanies this distribution, and is
+ * available at http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors: Scott Lewis - initial API and implementation
+ ******************************************************************************/
+package org.eclipse.ecf.internal.provider.etcd.protocol;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * Bounded pool of persistent (keep-alive) socket connections, keyed by route
+ * (protocol://host:port). At most maxPerRoute connections are leased or idle
+ * per route, and idle connections are closed once they have not been used for
+ * idleTimeout ms: when the route is used again, or by {@link #evictIdle()},
+ * which the owner of the pool calls periodically (see
+ * {@link EtcdPooledTransport}).
+ */
+public class EtcdConnectionPool {
+
+	public class PooledConnection {
+
+		private final String route;
+		private final Socket socket;
+		private final InputStream in;
+		private final OutputStream out;
+		private long lastUsed;
+		private boolean reused;
+		// guarded by the pool
+		private boolean leased = true;
+		private int leases = 1;
+
+		PooledConnection(String route, Socket socket) throws IOException {
+			this.route = route;
+			this.socket = socket;
+			this.in = new BufferedInputStream(socket.getInputStream());
+			this.out = new BufferedOutputStream(socket.getOutputStream());
+		}
+
+		public InputStream getInputStream() {
+			return in;
+		}
+
+		public OutputStream getOutputStream() {
+			return out;
+		}
+
+		public void setReadTimeout(int timeout) throws IOException {
+			socket.setSoTimeout(timeout);
+		}
+
+		/**
+		 * @return <code>true</code> if this connection was previously used
+		 *         and taken from the idle list
+		 */
+		public boolean isReused() {
+			return reused;
+		}
+
+		public void release(boolean reusable) {
+			EtcdConnectionPool.this.release(this, reusable);
+		}
+
+		/**
+		 * @return handle closing the socket of this connection, to abort the
+		 *         current lease. It does nothing once the connection has been
+		 *         released.
+		 */
+		public Closeable getAbortHandle() {
+			final int lease;
+			synchronized (EtcdConnectionPool.this) {
+				lease = leases;
+			}
+			return new Closeable() {
+				public void close() {
+					synchronized (EtcdConnectionPool.this) {
+						if (!leased || leases != lease)
+							return;
+						closeSocket();
+					}
+				}
+			};
+		}
+
+		void closeSocket() {
+			try {
+				socket.close();
+			} catch (IOException e) {
+				// ignore
+			}
+		}
+
+		@Override
+		public String toString() {
+			return "PooledConnection[route=" + route + ", reused=" + reused + "]"; //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+		}
+	}
+
+	class Route {
+		final LinkedList<PooledConnection> idle = new LinkedList<PooledConnection>();
+		int leased;
+	}
+
+	private final String name;
+	private final int maxPerRoute;
+	private final long idleTimeout;
+	private final Map<String, Route> routes = new HashMap<String, Route>();
+	private boolean closed;
+
+	public EtcdConnectionPool(String name, int maxPerRoute, long idleTimeout) {
+		this.name = name;
+		this.maxPerRoute = (maxPerRoute < 1) ? 1 : maxPerRoute;
+		this.idleTimeout = idleTimeout;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public int getMaxPerRoute() {
+		return maxPerRoute;
+	}
+
+	public long getIdleTimeout() {
+		return idleTimeout;
+	}
+
+	static String getRouteKey(URL url) {
+		int port = url.getPort();
+		if (port == -1)
+			port = url.getDefaultPort();
+		return url.getProtocol() + "://" + url.getHost() + ":" + port; //$NON-NLS-1$ //$NON-NLS-2$
+	}
+
+	/**
+	 * Lease a connection for the given url. An idle connection is reused if
+	 * available, otherwise a new connection is opened if the route has not
+	 * reached its maximum. If the route is at its maximum, wait up to
+	 * connectTimeout ms for a connection to be released.
+	 */
+	public PooledConnection lease(URL url, int connectTimeout) throws IOException {
+		String routeKey = getRouteKey(url);
+		Route route = null;
+		List<PooledConnection> evicted = new ArrayList<PooledConnection>();
+		try {
+			synchronized (this) {
+				long deadline = (connectTimeout > 0) ? System.currentTimeMillis() + connectTimeout : 0;
+				route = routes.get(routeKey);
+				if (route == null) {
+					route = new Route();
+					routes.put(routeKey, route);
+				}
+				while (true) {
+					if (closed)
+						throw new IOException("Connection pool " + name + " is closed"); //$NON-NLS-1$ //$NON-NLS-2$
+					evictIdle(route, System.currentTimeMillis(), evicted);
+					PooledConnection conn = route.idle.poll();
+					if (conn != null) {
+						route.leased++;
+						conn.reused = true;
+						conn.leased = true;
+						conn.leases++;
+						return conn;
+					}
+					if (route.leased + route.idle.size() < maxPerRoute) {
+						route.leased++;
+						break;
+					}
+					long wait = (deadline > 0) ? deadline - System.currentTimeMillis() : 0;
+					if (deadline > 0 && wait <= 0)
+						throw new IOException("Timeout waiting for connection from pool " + name + " for route " //$NON-NLS-1$ //$NON-NLS-2$
+								+ routeKey);
+					try {
+						wait(wait);
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						throw new IOException("Interrupted waiting for connection from pool " + name); //$NON-NLS-1$
+					}
+				}
+			}
+		} finally {
+			for (PooledConnection c : evicted)
+				c.closeSocket();
+		}
+		// open new connection outside of lock
+		try {
+			return new PooledConnection(routeKey, openSocket(url, connectTimeout));
+		} catch (IOException e) {
+			synchronized (this) {
+				route.leased--;
+				notifyAll();
+			}
+			throw e;
+		}
+	}
+
+	protected Socket openSocket(URL url, int connectTimeout) throws IOException {
+		String host = url.getHost();
+		int port = url.getPort();
+		if (port == -1)
+			port = url.getDefaultPort();
+		Socket socket = new Socket();
+		try {
+			socket.setTcpNoDelay(true);
+			socket.setKeepAlive(true);
+			socket.connect(new InetSocketAddress(host, port), connectTimeout);
+			if ("https".equals(url.getProtocol())) { //$NON-NLS-1$
+				SSLSocket sslSocket = (SSLSocket) ((SSLSocketFactory) SSLSocketFactory.getDefault()).createSocket(socket,
+						host, port, true);
+				SSLParameters params = sslSocket.getSSLParameters();
+				params.setEndpointIdentificationAlgorithm("HTTPS"); //$NON-NLS-1$
+				sslSocket.setSSLParameters(params);
+				sslSocket.startHandshake();
+				return sslSocket;
+			}
+			return socket;
+		} catch (IOException e) {
+			try {
+				socket.close();
+			} catch (IOException e1) {
+				// ignore
+			}
+			throw e;
+		}
+	}
+
+	void release(PooledConnection conn, boolean reusable) {
+		List<PooledConnection> evicted = new ArrayList<PooledConnection>();
+		synchronized (this) {
+			conn.leased = false;
+			Route route = routes.get(conn.route);
+			if (route != null) {
+				route.leased--;
+				long now = System.currentTimeMillis();
+				if (reusable && !closed) {
+					conn.lastUsed = now;
+					// most recently used first
+					route.idle.addFirst(conn);
+				} else
+					evicted.add(conn);
+				evictIdle(route, now, evicted);
+			} else
+				evicted.add(conn);
+			notifyAll();
+		}
+		for (PooledConnection c : evicted)
+			c.closeSocket();
+	}
+
+	private void evictIdle(Route route, long now, List<PooledConnection> evicted) {
+		if (idleTimeout <= 0)
+			return;
+		for (Iterator<PooledConnection> i = route.idle.iterator(); i.hasNext();) {
+			PooledConnection c = i.next();
+			if (now - c.lastUsed > idleTimeout) {
+				i.remove();
+				evicted.add(c);
+			}
+		}
+	}
+
+	/**
+	 * Close all idle connections whose idle time exceeds the idle timeout.
+	 */
+	public void evictIdle() {
+		List<PooledConnection> evicted = new ArrayList<PooledConnection>();
+		synchronized (this) {
+			long now = System.currentTimeMillis();
+			for (Route route : routes.values())
+				evictIdle(route, now, evicted);
+		}
+		for (PooledConnection c : evicted)
+			c.closeSocket();
+	}
+
+	public synchronized int getIdleCount() {
+		int result = 0;
+		for (Route route : routes.values())
+			result += route.idle.size();
+		return result;
+	}
+
+	public synchronized int getLeasedCount() {
+		int result = 0;
+		for (Route route : routes.values())
+			result += route.leased;
+		return result;
+	}
+
+	/**
+	 * Close all idle connections and refuse any further leases. Connections
+	 * currently leased are closed when released.
+	 */
+	public void close() {
+		List<PooledConnection> evicted = new ArrayList<PooledConnection>();
+		synchronized (this) {
+			closed = true;
+			for (Route route : routes.values()) {
+				evicted.addAll(route.idle);
+				route.idle.clear();
+			}
+			notifyAll();
+		}
+		for (PooledConnection c : evicted)
+			c.closeSocket();
+	}
+
+	@Override
+	public String toString() {
+		return "EtcdConnectionPool[name=" + name + ", maxPerRoute=" + maxPerRoute + ", idleTimeout=" + idleTimeout //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+				+ "]"; //$NON-NLS-1$
+	}
+}
@@ -8,6 +8,7 @@
  ******************************************************************************/
 package org.eclipse.ecf.internal.provider.etcd.protocol;
 
+import java.io.IOException;
 import java.util.List;
 import java.util.Map;
 
@@ -21,6 +22,11 @@ public class EtcdErrorResponse extends EtcdResponse {
 	public static final String INDEX_KEY = "index"; //$NON-NLS-1$
 	public static final String MESSAGE_KEY = "message"; //$NON-NLS-1$
 
+	// etcd v2 error codes
+	public static final int ERRORCODE_KEY_NOT_FOUND = 100;
+	public static final int ERRORCODE_NODE_EXIST = 105;
+	public static final int ERRORCODE_EVENT_INDEX_CLEARED = 401;
+
 	private Map<String, List<String>> responseHeaders;
 
 	private final String cause;
@@ -38,6 +44,50 @@ public class EtcdErrorResponse extends EtcdResponse {
 		this.responseHeaders = headers;
 	}
 
+	/**
+	 * Read error response from the next object of the given reader.
+	 */
+	public EtcdErrorResponse(EtcdJsonReader reader, Map<String, List<String>> headers)
+			throws IOException, JSONException {
+		String c = null;
+		Integer code = null;
+		int i = 0;
+		String m = null;
+		reader.beginObject();
+		while (reader.hasNext()) {
+			String name = reader.nextName();
+			if (reader.peek() == EtcdJsonReader.NULL)
+				reader.nextNull();
+			else if (CAUSE_KEY.equals(name))
+				c = reader.nextString();
+			else if (ERRORCODE_KEY.equals(name))
+				code = Integer.valueOf(reader.nextInt());
+			else if (INDEX_KEY.equals(name))
+				i = reader.nextInt();
+			else if (MESSAGE_KEY.equals(name))
+				m = reader.nextString();
+			else
+				reader.skipValue();
+		}
+		reader.endObject();
+		if (code == null)
+			throw new JSONException("errorCode field in error response must not be null"); //$NON-NLS-1$
+		this.cause = c;
+		this.errorCode = code.intValue();
+		this.index = i;
+		this.message = m;
+		this.responseHeaders = headers;
+	}
+
+	public EtcdErrorResponse(int errorCode, String message, String cause, int index,
+			Map<String, List<String>> headers) {
+		this.errorCode = errorCode;
+		this.message = message;
+		this.cause = cause;
+		this.index = index;
+		this.responseHeaders = headers;
+	}
+
 	public Map<String, List<String>> getResponseHeaders() {
 		return responseHeaders;
 	}
@@ -10,14 +10,23 @@ package org.eclipse.ecf.internal.provider.etcd.protocol;
 
 public class EtcdGetRequest extends EtcdRequest {
 
+	private boolean recursive;
+
 	public EtcdGetRequest(String url) {
 		super(url);
 	}
 
 	public EtcdGetRequest(String directoryURL, boolean recursive) {
 		super(directoryURL);
+		this.recursive = recursive;
 		if (recursive)
 			setQueryBoolean(RECURSIVE);
 	}
 
+	@Override
+	protected boolean isLazy() {
+		// recursive responses may hold a large directory tree
+		return recursive;
+	}
+
 }
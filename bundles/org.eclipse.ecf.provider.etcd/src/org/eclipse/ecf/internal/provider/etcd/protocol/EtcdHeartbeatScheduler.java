@@ -0,0 +1,409 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Composent, Inc. All rights reserved. This
+ * program and the accompanying materials are made available under the terms of
+ * the Eclipse Public License v1.0 which accompanies this distribution, and is
+ * available at http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors: Scott Lewis - initial API and implementation
+ ******************************************************************************/
+package org.eclipse.ecf.internal.provider.etcd.protocol;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.eclipse.core.runtime.Assert;
+import org.eclipse.ecf.internal.provider.etcd.DebugOptions;
+import org.eclipse.ecf.internal.provider.etcd.LogUtility;
+
+/**
+ * Timer for the periodic requests of etcd sessions (ttl refreshes), shared by
+ * all containers. Each heartbeat is run when it is due, rather than by a
+ * thread per session polling every second. A single timer thread only finds
+ * the heartbeats due: heartbeats due within the coalesce window of the first
+ * one are handed to a worker along with it as one batch, which runs them back
+ * to back. If a beat of the batch is still running after the blocked
+ * threshold, e.g. on a slow cluster, the beats of the batch not started yet
+ * are handed to another worker, so they are delayed by that much at most.
+ * Timer and workers are daemon threads (virtual threads if enabled, see
+ * {@link EtcdVirtualThreads}), which time out when idle.
+ */
+public class EtcdHeartbeatScheduler {
+
+	public static final long COALESCE_WINDOW = Long.parseLong(System.getProperty(
+			"org.eclipse.ecf.provider.etcd.heartbeat.window", "1000")); //$NON-NLS-1$ //$NON-NLS-2$
+	public static final long BLOCKED_THRESHOLD = Long.parseLong(System.getProperty(
+			"org.eclipse.ecf.provider.etcd.heartbeat.blocked", "2000")); //$NON-NLS-1$ //$NON-NLS-2$
+	public static final long KEEPALIVE = Long.parseLong(System.getProperty(
+			"org.eclipse.ecf.provider.etcd.heartbeat.keepalive", "10000")); //$NON-NLS-1$ //$NON-NLS-2$
+
+	private static EtcdHeartbeatScheduler defaultScheduler;
+
+	public static synchronized EtcdHeartbeatScheduler getDefault() {
+		if (defaultScheduler == null)
+			defaultScheduler = new EtcdHeartbeatScheduler(COALESCE_WINDOW, BLOCKED_THRESHOLD, KEEPALIVE);
+		return defaultScheduler;
+	}
+
+	public static synchronized void shutdownDefault() {
+		if (defaultScheduler != null) {
+			defaultScheduler.shutdown();
+			defaultScheduler = null;
+		}
+	}
+
+	public interface Heartbeat {
+		/**
+		 * Send the heartbeat's requests.
+		 *
+		 * @return delay in ms until the next beat, or a negative value to
+		 *         stop
+		 */
+		long beat();
+	}
+
+	public class Registration {
+		final Heartbeat heartbeat;
+		// guarded by the scheduler
+		long due;
+		// last delay returned, used again if a beat fails unexpectedly
+		long delay;
+		boolean canceled;
+		// handed to a worker in a batch, and not done yet
+		boolean running;
+		// worker running the beat, once started
+		Thread runner;
+
+		Registration(Heartbeat heartbeat) {
+			this.heartbeat = heartbeat;
+		}
+
+		/**
+		 * Run the next beat within the given delay, unless it is due earlier
+		 * already (or being run).
+		 *
+		 * @param delay
+		 *            delay in ms
+		 */
+		public void expedite(long delay) {
+			synchronized (EtcdHeartbeatScheduler.this) {
+				long due = System.currentTimeMillis() + Math.max(0, delay);
+				if (canceled || running || due >= this.due || !queue.remove(this))
+					return;
+				enqueue(this, delay);
+			}
+		}
+
+		/**
+		 * Stop the heartbeat. If it is being run (by another thread), wait
+		 * for it to complete.
+		 */
+		public void cancel() {
+			synchronized (EtcdHeartbeatScheduler.this) {
+				canceled = true;
+				queue.remove(this);
+				while (running && runner != Thread.currentThread())
+					try {
+						EtcdHeartbeatScheduler.this.wait();
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						return;
+					}
+			}
+		}
+	}
+
+	/**
+	 * Heartbeats due together, run one after the other by one worker.
+	 */
+	private class Batch implements Runnable {
+		// guarded by the scheduler
+		final LinkedList<Registration> pending;
+		// when the beat being run was started
+		long started;
+
+		Batch(List<Registration> registrations) {
+			this.pending = new LinkedList<Registration>(registrations);
+			this.started = System.currentTimeMillis();
+		}
+
+		public void run() {
+			while (true) {
+				Registration registration;
+				synchronized (EtcdHeartbeatScheduler.this) {
+					// empty if the rest was handed to another worker
+					registration = pending.poll();
+					if (registration == null)
+						return;
+					started = System.currentTimeMillis();
+				}
+				runBeat(registration);
+			}
+		}
+	}
+
+	private final long coalesceWindow;
+	private final long blockedThreshold;
+	private final ScheduledThreadPoolExecutor timer;
+	private final ExecutorService workers;
+	private final PriorityQueue<Registration> queue = new PriorityQueue<Registration>(11,
+			new Comparator<Registration>() {
+				public int compare(Registration r1, Registration r2) {
+					return (r1.due < r2.due) ? -1 : ((r1.due == r2.due) ? 0 : 1);
+				}
+			});
+	// timer task for the first registration due, and when it fires
+	private ScheduledFuture<?> next;
+	private long nextTime;
+	private long runs;
+	private long beats;
+	private long handoffs;
+
+	private final Runnable runDue = new Runnable() {
+		public void run() {
+			runDue();
+		}
+	};
+
+	public EtcdHeartbeatScheduler(long coalesceWindow, long keepAlive) {
+		this(coalesceWindow, BLOCKED_THRESHOLD, keepAlive);
+	}
+
+	/**
+	 * @param coalesceWindow
+	 *            ms after the first heartbeat due within which other due
+	 *            heartbeats are run in the same batch
+	 * @param blockedThreshold
+	 *            ms after which the rest of a batch is handed to another
+	 *            worker if a beat of it is still running
+	 * @param keepAlive
+	 *            ms after which idle threads time out
+	 */
+	public EtcdHeartbeatScheduler(long coalesceWindow, long blockedThreshold, long keepAlive) {
+		Assert.isTrue(coalesceWindow >= 0 && blockedThreshold > 0 && keepAlive > 0);
+		this.coalesceWindow = coalesceWindow;
+		this.blockedThreshold = blockedThreshold;
+		ThreadFactory threadFactory;
+		if (EtcdVirtualThreads.isEnabled())
+			threadFactory = EtcdVirtualThreads.getThreadFactory("EtcdHeartbeatScheduler"); //$NON-NLS-1$
+		else
+			threadFactory = new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "EtcdHeartbeatScheduler"); //$NON-NLS-1$
+					t.setDaemon(true);
+					return t;
+				}
+			};
+		this.timer = new ScheduledThreadPoolExecutor(1, threadFactory);
+		// canceled timer tasks must not keep the thread alive
+		this.timer.setRemoveOnCancelPolicy(true);
+		this.timer.setKeepAliveTime(keepAlive, TimeUnit.MILLISECONDS);
+		this.timer.allowCoreThreadTimeOut(true);
+		if (EtcdVirtualThreads.isEnabled()) {
+			this.workers = EtcdVirtualThreads.newPerTaskExecutor();
+			return;
+		}
+		// at most one worker per registration, as a registration is not
+		// handed to a worker again until its beat is done, and a batch is
+		// only split once a beat of it blocks
+		final AtomicInteger count = new AtomicInteger();
+		this.workers = new ThreadPoolExecutor(0, Integer.MAX_VALUE, keepAlive, TimeUnit.MILLISECONDS,
+				new SynchronousQueue<Runnable>(), new ThreadFactory() {
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "EtcdHeartbeatScheduler-" + count.incrementAndGet()); //$NON-NLS-1$
+						t.setDaemon(true);
+						return t;
+					}
+				});
+	}
+
+	/**
+	 * Schedule a heartbeat.
+	 *
+	 * @param heartbeat
+	 *            the heartbeat. Must not be <code>null</code>.
+	 * @param delay
+	 *            delay in ms until the first beat
+	 * @return registration to cancel the heartbeat with
+	 */
+	public synchronized Registration schedule(Heartbeat heartbeat, long delay) {
+		Assert.isNotNull(heartbeat);
+		Registration registration = new Registration(heartbeat);
+		registration.delay = delay;
+		enqueue(registration, delay);
+		return registration;
+	}
+
+	private void enqueue(Registration registration, long delay) {
+		registration.due = System.currentTimeMillis() + Math.max(0, delay);
+		queue.add(registration);
+		arm();
+	}
+
+	private void arm() {
+		Registration first = queue.peek();
+		if (first == null || (next != null && nextTime <= first.due))
+			return;
+		if (next != null)
+			next.cancel(false);
+		nextTime = first.due;
+		next = timer.schedule(runDue, Math.max(0, nextTime - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+	}
+
+	void runDue() {
+		List<Registration> batch = new ArrayList<Registration>();
+		synchronized (this) {
+			next = null;
+			long limit = System.currentTimeMillis() + coalesceWindow;
+			while (!queue.isEmpty() && queue.peek().due <= limit) {
+				Registration registration = queue.poll();
+				registration.running = true;
+				batch.add(registration);
+			}
+			if (!batch.isEmpty())
+				runs++;
+			arm();
+		}
+		if (!batch.isEmpty())
+			submit(batch);
+	}
+
+	private void submit(List<Registration> registrations) {
+		final Batch batch = new Batch(registrations);
+		try {
+			workers.execute(batch);
+			if (registrations.size() > 1)
+				watch(batch, blockedThreshold);
+		} catch (RejectedExecutionException e) {
+			// shut down
+			synchronized (this) {
+				for (Registration registration : batch.pending)
+					registration.running = false;
+				batch.pending.clear();
+				notifyAll();
+			}
+		}
+	}
+
+	private void watch(final Batch batch, long delay) {
+		timer.schedule(new Runnable() {
+			public void run() {
+				checkBlocked(batch);
+			}
+		}, delay, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Hand the beats of the batch not started yet to another worker, if the
+	 * beat being run has been running for longer than the blocked threshold.
+	 */
+	void checkBlocked(Batch batch) {
+		List<Registration> rest;
+		synchronized (this) {
+			if (batch.pending.isEmpty())
+				return;
+			long running = System.currentTimeMillis() - batch.started;
+			if (running < blockedThreshold) {
+				watch(batch, blockedThreshold - running);
+				return;
+			}
+			rest = new ArrayList<Registration>(batch.pending);
+			batch.pending.clear();
+			handoffs++;
+		}
+		LogUtility.trace("checkBlocked", DebugOptions.TTLJOB, getClass(), "Heartbeat blocked for " + blockedThreshold //$NON-NLS-1$ //$NON-NLS-2$
+				+ "ms, handing " + rest.size() + " heartbeats to another worker"); //$NON-NLS-1$ //$NON-NLS-2$
+		submit(rest);
+	}
+
+	void runBeat(Registration registration) {
+		synchronized (this) {
+			// canceled while waiting for a worker
+			if (registration.canceled) {
+				registration.running = false;
+				notifyAll();
+				return;
+			}
+			registration.runner = Thread.currentThread();
+		}
+		long delay;
+		try {
+			delay = registration.heartbeat.beat();
+		} catch (RuntimeException e) {
+			LogUtility.logError("runBeat", DebugOptions.TTLJOB, getClass(), "Unexpected exception in heartbeat", e); //$NON-NLS-1$ //$NON-NLS-2$
+			delay = registration.delay;
+		}
+		synchronized (this) {
+			beats++;
+			registration.running = false;
+			registration.runner = null;
+			if (!registration.canceled && delay >= 0) {
+				registration.delay = delay;
+				enqueue(registration, delay);
+			}
+			notifyAll();
+		}
+	}
+
+	/**
+	 * @return number of heartbeats scheduled
+	 */
+	public synchronized int getScheduledCount() {
+		return queue.size();
+	}
+
+	/**
+	 * @return number of times heartbeats were handed to the workers together
+	 *         (in one batch)
+	 */
+	public synchronized long getRunCount() {
+		return runs;
+	}
+
+	/**
+	 * @return number of times the rest of a batch was handed to another
+	 *         worker, as a beat of it blocked
+	 */
+	public synchronized long getHandoffCount() {
+		return handoffs;
+	}
+
+	/**
+	 * @return number of heartbeats run
+	 */
+	public synchronized long getBeatCount() {
+		return beats;
+	}
+
+	/**
+	 * @return number of threads currently running or waiting for heartbeats
+	 */
+	public int getThreadCount() {
+		int count = timer.getPoolSize();
+		if (workers instanceof ThreadPoolExecutor)
+			count += ((ThreadPoolExecutor) workers).getPoolSize();
+		return count;
+	}
+
+	public void shutdown() {
+		timer.shutdownNow();
+		workers.shutdownNow();
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "EtcdHeartbeatScheduler[scheduled=" + queue.size() + ";runs=" + runs + ";beats=" + beats //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+				+ ";handoffs=" + handoffs + "]"; //$NON-NLS-1$ //$NON-NLS-2$
+	}
+}
@@ -0,0 +1,75 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Composent, Inc. All rights reserved. This
+ * program and the accompanying materials are made available under the terms of
+ * the Eclipse Public License v1.0 which accompanies this distribution, and is
+ * available at http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors: Scott Lewis - initial API and implementation
+ ******************************************************************************/
+package org.eclipse.ecf.internal.provider.etcd.protocol;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Raw http response as returned by an {@link IEtcdTransport}. The body stream
+ * must be closed by the caller. For pooled transports, closing a fully read
+ * body returns the underlying connection to the pool.
+ */
+public class EtcdHttpResponse {
+
+	private final int statusCode;
+	private final Map<String, List<String>> headers;
+	private final InputStream body;
+
+	public EtcdHttpResponse(int statusCode, Map<String, List<String>> headers, InputStream body) {
+		this.statusCode = statusCode;
+		this.headers = headers;
+		this.body = body;
+	}
+
+	public int getStatusCode() {
+		return statusCode;
+	}
+
+	public boolean isSuccess() {
+		return statusCode >= 200 && statusCode < 300;
+	}
+
+	public Map<String, List<String>> getHeaders() {
+		return headers;
+	}
+
+	public String getHeader(String name) {
+		if (headers == null || name == null)
+			return null;
+		for (Map.Entry<String, List<String>> entry : headers.entrySet()) {
+			if (name.equalsIgnoreCase(entry.getKey())) {
+				List<String> values = entry.getValue();
+				return (values == null || values.isEmpty()) ? null : values.get(0);
+			}
+		}
+		return null;
+	}
+
+	public InputStream getBody() {
+		return body;
+	}
+
+	public void close() {
+		if (body != null) {
+			try {
+				body.close();
+			} catch (IOException e) {
+				// ignore
+			}
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "EtcdHttpResponse[statusCode=" + statusCode + ", headers=" + headers + "]"; //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+	}
+}
@@ -0,0 +1,483 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Composent, Inc. All rights reserved. This
+ * program and the accompanying materials are made available under the terms of
+ * the Eclipse Public License v1.0 which accompanies this distribution, and is
+ * available at http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors: Scott Lewis - initial API and implementation
+ ******************************************************************************/
+package org.eclipse.ecf.internal.provider.etcd.protocol;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+
+import org.json.JSONException;
+
+/**
+ * Pull parser reading a UTF-8 json document token by token, so that responses
+ * can be decoded without first copying the body into a String and an org.json
+ * DOM. When reading from a stream, only a fixed size buffer and the current
+ * token are held in memory. When reading from a byte array, the byte offset
+ * of each value is available via {@link #getValuePosition()}, so that values
+ * can be skipped and decoded later by a new reader at that offset.
+ */
+public class EtcdJsonReader {
+
+	public static final Charset UTF8 = Charset.forName("UTF-8"); //$NON-NLS-1$
+
+	// tokens returned by peek()
+	public static final int BEGIN_OBJECT = 1;
+	public static final int END_OBJECT = 2;
+	public static final int BEGIN_ARRAY = 3;
+	public static final int END_ARRAY = 4;
+	public static final int NAME = 5;
+	public static final int STRING = 6;
+	public static final int NUMBER = 7;
+	public static final int BOOLEAN = 8;
+	public static final int NULL = 9;
+	public static final int END_DOCUMENT = 10;
+
+	private static final int NONE = 0;
+
+	// scopes
+	private static final int EMPTY_DOCUMENT = 0;
+	private static final int NONEMPTY_DOCUMENT = 1;
+	private static final int EMPTY_OBJECT = 2;
+	private static final int DANGLING_NAME = 3;
+	private static final int NONEMPTY_OBJECT = 4;
+	private static final int EMPTY_ARRAY = 5;
+	private static final int NONEMPTY_ARRAY = 6;
+
+	private final InputStream in;
+	private final byte[] buffer;
+	private int pos;
+	private int limit;
+	// start of peeked value
+	private int peekedStart;
+
+	private int[] stack = new int[32];
+	private int stackSize = 1;
+
+	private int peeked = NONE;
+	// text of a peeked number or boolean literal
+	private String peekedLiteral;
+	private final StringBuilder sb = new StringBuilder();
+
+	public EtcdJsonReader(InputStream ins) {
+		this.in = ins;
+		this.buffer = new byte[8192];
+		stack[0] = EMPTY_DOCUMENT;
+	}
+
+	/**
+	 * Read the json value starting at offset of the given data.
+	 */
+	public EtcdJsonReader(byte[] data, int offset, int length) {
+		this.in = null;
+		this.buffer = data;
+		this.pos = offset;
+		this.limit = offset + length;
+		stack[0] = EMPTY_DOCUMENT;
+	}
+
+	public EtcdJsonReader(byte[] data) {
+		this(data, 0, data.length);
+	}
+
+	/**
+	 * @return the data this reader reads from, or <code>null</code> if reading
+	 *         from a stream
+	 */
+	public byte[] getData() {
+		return (in == null) ? buffer : null;
+	}
+
+	/**
+	 * @return offset within {@link #getData()} of the next value, or -1 if
+	 *         reading from a stream
+	 */
+	public int getValuePosition() throws IOException, JSONException {
+		peek();
+		return (in == null) ? peekedStart : -1;
+	}
+
+	public int peek() throws IOException, JSONException {
+		if (peeked == NONE)
+			peeked = doPeek();
+		return peeked;
+	}
+
+	public void beginObject() throws IOException, JSONException {
+		expect(BEGIN_OBJECT);
+		push(EMPTY_OBJECT);
+	}
+
+	public void endObject() throws IOException, JSONException {
+		expect(END_OBJECT);
+		stackSize--;
+	}
+
+	public void beginArray() throws IOException, JSONException {
+		expect(BEGIN_ARRAY);
+		push(EMPTY_ARRAY);
+	}
+
+	public void endArray() throws IOException, JSONException {
+		expect(END_ARRAY);
+		stackSize--;
+	}
+
+	/**
+	 * @return <code>true</code> if the current object or array has another
+	 *         element
+	 */
+	public boolean hasNext() throws IOException, JSONException {
+		int p = peek();
+		return p != END_OBJECT && p != END_ARRAY && p != END_DOCUMENT;
+	}
+
+	public String nextName() throws IOException, JSONException {
+		expect(NAME);
+		return readString();
+	}
+
+	/**
+	 * @return the next string value, or the text of a number or boolean value
+	 */
+	public String nextString() throws IOException, JSONException {
+		int p = peek();
+		if (p == NUMBER || p == BOOLEAN) {
+			peeked = NONE;
+			return peekedLiteral;
+		}
+		expect(STRING);
+		return readString();
+	}
+
+	/**
+	 * @return the next string value, or <code>null</code> if the value is json
+	 *         null
+	 */
+	public String nextOptString() throws IOException, JSONException {
+		if (peek() == NULL) {
+			nextNull();
+			return null;
+		}
+		return nextString();
+	}
+
+	/**
+	 * @return the next number value. Numbers encoded as json strings are
+	 *         accepted as well.
+	 */
+	public long nextLong() throws IOException, JSONException {
+		int p = peek();
+		if (p != NUMBER && p != STRING)
+			throw syntaxError("Expected number"); //$NON-NLS-1$
+		String s = nextString();
+		try {
+			return Long.parseLong(s);
+		} catch (NumberFormatException e) {
+			try {
+				return (long) Double.parseDouble(s);
+			} catch (NumberFormatException e1) {
+				throw syntaxError("Expected number but was " + s); //$NON-NLS-1$
+			}
+		}
+	}
+
+	public int nextInt() throws IOException, JSONException {
+		long result = nextLong();
+		if (result > Integer.MAX_VALUE || result < Integer.MIN_VALUE)
+			throw syntaxError("Expected int but was " + result); //$NON-NLS-1$
+		return (int) result;
+	}
+
+	public boolean nextBoolean() throws IOException, JSONException {
+		int p = peek();
+		if (p == STRING)
+			return Boolean.valueOf(nextString()).booleanValue();
+		expect(BOOLEAN);
+		return Boolean.valueOf(peekedLiteral).booleanValue();
+	}
+
+	public void nextNull() throws IOException, JSONException {
+		expect(NULL);
+	}
+
+	/**
+	 * Skip the next value, including all nested values of an object or array.
+	 */
+	public void skipValue() throws IOException, JSONException {
+		int depth = 0;
+		do {
+			int p = peek();
+			if (p == BEGIN_OBJECT) {
+				beginObject();
+				depth++;
+			} else if (p == BEGIN_ARRAY) {
+				beginArray();
+				depth++;
+			} else if (p == END_OBJECT) {
+				endObject();
+				depth--;
+			} else if (p == END_ARRAY) {
+				endArray();
+				depth--;
+			} else if (p == NAME || p == STRING) {
+				peeked = NONE;
+				skipString();
+			} else if (p == END_DOCUMENT)
+				throw syntaxError("Unexpected end of document"); //$NON-NLS-1$
+			else
+				peeked = NONE;
+		} while (depth > 0);
+	}
+
+	/**
+	 * Consume the rest of the stream, which must contain only whitespace.
+	 */
+	public void endDocument() throws IOException, JSONException {
+		expect(END_DOCUMENT);
+	}
+
+	public void close() throws IOException {
+		peeked = NONE;
+		if (in != null)
+			in.close();
+	}
+
+	private void push(int scope) {
+		if (stackSize == stack.length) {
+			int[] newStack = new int[stackSize * 2];
+			System.arraycopy(stack, 0, newStack, 0, stackSize);
+			stack = newStack;
+		}
+		stack[stackSize++] = scope;
+	}
+
+	private void expect(int token) throws IOException, JSONException {
+		int p = peek();
+		if (p != token)
+			throw syntaxError("Expected token " + token + " but was " + p); //$NON-NLS-1$ //$NON-NLS-2$
+		peeked = NONE;
+	}
+
+	private int doPeek() throws IOException, JSONException {
+		int scope = stack[stackSize - 1];
+		if (scope == EMPTY_ARRAY || scope == NONEMPTY_ARRAY) {
+			stack[stackSize - 1] = NONEMPTY_ARRAY;
+			int c = nextNonWhitespace(true);
+			if (c == ']')
+				return END_ARRAY;
+			if (scope == NONEMPTY_ARRAY) {
+				if (c != ',')
+					throw syntaxError("Unterminated array"); //$NON-NLS-1$
+			} else
+				pos--;
+		} else if (scope == EMPTY_OBJECT || scope == NONEMPTY_OBJECT) {
+			stack[stackSize - 1] = DANGLING_NAME;
+			int c = nextNonWhitespace(true);
+			if (c == '}')
+				return END_OBJECT;
+			if (scope == NONEMPTY_OBJECT) {
+				if (c != ',')
+					throw syntaxError("Unterminated object"); //$NON-NLS-1$
+				c = nextNonWhitespace(true);
+			}
+			if (c != '"')
+				throw syntaxError("Expected name"); //$NON-NLS-1$
+			return NAME;
+		} else if (scope == DANGLING_NAME) {
+			stack[stackSize - 1] = NONEMPTY_OBJECT;
+			if (nextNonWhitespace(true) != ':')
+				throw syntaxError("Expected ':'"); //$NON-NLS-1$
+		} else if (scope == EMPTY_DOCUMENT)
+			stack[stackSize - 1] = NONEMPTY_DOCUMENT;
+		else if (scope == NONEMPTY_DOCUMENT) {
+			if (nextNonWhitespace(false) == -1)
+				return END_DOCUMENT;
+			throw syntaxError("Expected end of document"); //$NON-NLS-1$
+		}
+		int c = nextNonWhitespace(true);
+		peekedStart = pos - 1;
+		switch (c) {
+		case '{':
+			return BEGIN_OBJECT;
+		case '[':
+			return BEGIN_ARRAY;
+		case '"':
+			return STRING;
+		case 't':
+		case 'f':
+		case 'n':
+			pos--;
+			String literal = readLiteral(false);
+			if ("null".equals(literal)) //$NON-NLS-1$
+				return NULL;
+			if (!"true".equals(literal) && !"false".equals(literal)) //$NON-NLS-1$ //$NON-NLS-2$
+				throw syntaxError("Unexpected literal " + literal); //$NON-NLS-1$
+			peekedLiteral = literal;
+			return BOOLEAN;
+		default:
+			if (c != '-' && (c < '0' || c > '9'))
+				throw syntaxError("Unexpected character " + (char) c); //$NON-NLS-1$
+			pos--;
+			peekedLiteral = readLiteral(true);
+			return NUMBER;
+		}
+	}
+
+	private boolean fill() throws IOException {
+		if (in == null)
+			return false;
+		pos = 0;
+		limit = 0;
+		int n;
+		// read may return 0 for some readers
+		while ((n = in.read(buffer, 0, buffer.length)) == 0)
+			;
+		if (n == -1)
+			return false;
+		limit = n;
+		return true;
+	}
+
+	private int nextNonWhitespace(boolean throwOnEof) throws IOException, JSONException {
+		while (pos < limit || fill()) {
+			byte c = buffer[pos++];
+			if (c != ' ' && c != '\t' && c != '\n' && c != '\r')
+				return c & 0xff;
+		}
+		if (throwOnEof)
+			throw syntaxError("Unexpected end of input"); //$NON-NLS-1$
+		return -1;
+	}
+
+	private String readLiteral(boolean number) throws IOException {
+		sb.setLength(0);
+		while (pos < limit || fill()) {
+			char c = (char) buffer[pos];
+			boolean part = number ? ((c >= '0' && c <= '9') || c == '-' || c == '+' || c == '.' || c == 'e' || c == 'E')
+					: (c >= 'a' && c <= 'z');
+			if (!part)
+				break;
+			sb.append(c);
+			pos++;
+		}
+		return sb.toString();
+	}
+
+	private String readString() throws IOException, JSONException {
+		sb.setLength(0);
+		while (true) {
+			// ascii fast path
+			while (pos < limit) {
+				byte b = buffer[pos];
+				if (b == '"' || b == '\\' || b < 0)
+					break;
+				sb.append((char) b);
+				pos++;
+			}
+			if (pos == limit) {
+				if (!fill())
+					throw syntaxError("Unterminated string"); //$NON-NLS-1$
+				continue;
+			}
+			int b = buffer[pos++];
+			if (b == '"')
+				return sb.toString();
+			else if (b == '\\')
+				sb.append(readEscape());
+			else
+				readUTF8(b & 0xff);
+		}
+	}
+
+	/**
+	 * Decode the multi byte UTF-8 sequence starting with the given lead byte.
+	 * Malformed sequences are replaced by U+FFFD.
+	 */
+	private void readUTF8(int lead) throws IOException, JSONException {
+		int count;
+		int cp;
+		if ((lead & 0xe0) == 0xc0) {
+			count = 1;
+			cp = lead & 0x1f;
+		} else if ((lead & 0xf0) == 0xe0) {
+			count = 2;
+			cp = lead & 0x0f;
+		} else if ((lead & 0xf8) == 0xf0) {
+			count = 3;
+			cp = lead & 0x07;
+		} else {
+			sb.append('\ufffd');
+			return;
+		}
+		for (int i = 0; i < count; i++) {
+			if (pos == limit && !fill())
+				throw syntaxError("Unexpected end of input"); //$NON-NLS-1$
+			int b = buffer[pos];
+			if ((b & 0xc0) != 0x80) {
+				sb.append('\ufffd');
+				return;
+			}
+			pos++;
+			cp = (cp << 6) | (b & 0x3f);
+		}
+		if (Character.isValidCodePoint(cp))
+			sb.appendCodePoint(cp);
+		else
+			sb.append('\ufffd');
+	}
+
+	private void skipString() throws IOException, JSONException {
+		while (pos < limit || fill()) {
+			byte c = buffer[pos++];
+			if (c == '"')
+				return;
+			else if (c == '\\')
+				readEscape();
+		}
+		throw syntaxError("Unterminated string"); //$NON-NLS-1$
+	}
+
+	private char readChar() throws IOException, JSONException {
+		if (pos == limit && !fill())
+			throw syntaxError("Unexpected end of input"); //$NON-NLS-1$
+		return (char) buffer[pos++];
+	}
+
+	private char readEscape() throws IOException, JSONException {
+		char c = readChar();
+		switch (c) {
+		case 'u':
+			int result = 0;
+			for (int i = 0; i < 4; i++) {
+				int digit = Character.digit(readChar(), 16);
+				if (digit == -1)
+					throw syntaxError("Malformed unicode escape"); //$NON-NLS-1$
+				result = (result << 4) + digit;
+			}
+			return (char) result;
+		case 'b':
+			return '\b';
+		case 'f':
+			return '\f';
+		case 'n':
+			return '\n';
+		case 'r':
+			return '\r';
+		case 't':
+			return '\t';
+		default:
+			// '"', '\\', '/'
+			return c;
+		}
+	}
+
+	private JSONException syntaxError(String message) {
+		return new JSONException(message);
+	}
+}
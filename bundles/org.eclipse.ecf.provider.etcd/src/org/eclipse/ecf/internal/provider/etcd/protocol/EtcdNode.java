@@ -8,6 +8,7 @@
  ******************************************************************************/
 package org.eclipse.ecf.internal.provider.etcd.protocol;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
@@ -34,9 +35,15 @@ public class EtcdNode {
 	private final String key;
 	private final int modifiedIndex;
 	private final Integer ttl;
-	private final String value;
+	private String value;
 
-	private final EtcdNode[] nodes;
+	private EtcdNode[] nodes;
+
+	// raw response data of a lazily decoded node, and offsets of the undecoded
+	// value and nodes within it (-1 if decoded)
+	private byte[] data;
+	private int valueOffset = -1;
+	private int nodesOffset = -1;
 
 	private EtcdNode[] createNodes(JSONObject jsonObject) throws JSONException {
 		JSONArray array = jsonObject.optJSONArray(NODES_KEY);
@@ -66,6 +73,99 @@ public class EtcdNode {
 		this.nodes = createNodes(jsonObject);
 	}
 
+	/**
+	 * Read node (and all of its child nodes) from the next object of the
+	 * given reader. If the reader reads from a byte array, the node is lazy:
+	 * only key, index, dir, ttl and expiration are decoded right away, while
+	 * value and child nodes are decoded from the array when
+	 * {@link #getValue()} or {@link #getNodes()} is first called.
+	 */
+	public EtcdNode(EtcdJsonReader reader) throws IOException, JSONException {
+		boolean dir = false;
+		int created = 0;
+		String exp = null;
+		String k = null;
+		int modified = 0;
+		int t = 0;
+		String v = ""; //$NON-NLS-1$
+		EtcdNode[] children = null;
+		byte[] lazyData = reader.getData();
+		reader.beginObject();
+		while (reader.hasNext()) {
+			String name = reader.nextName();
+			if (reader.peek() == EtcdJsonReader.NULL)
+				reader.nextNull();
+			else if (DIR_KEY.equals(name))
+				dir = reader.nextBoolean();
+			else if (CREATEDINDEX_KEY.equals(name))
+				created = reader.nextInt();
+			else if (EXPIRATION_KEY.equals(name))
+				exp = reader.nextString();
+			else if (KEY_KEY.equals(name))
+				k = reader.nextString();
+			else if (MODIFIEDINDEX_KEY.equals(name))
+				modified = reader.nextInt();
+			else if (TTL_KEY.equals(name))
+				t = reader.nextInt();
+			else if (VALUE_KEY.equals(name)) {
+				if (lazyData != null) {
+					this.valueOffset = reader.getValuePosition();
+					reader.skipValue();
+				} else
+					v = reader.nextString();
+			} else if (NODES_KEY.equals(name)) {
+				if (lazyData != null) {
+					this.nodesOffset = reader.getValuePosition();
+					reader.skipValue();
+				} else
+					children = readNodes(reader);
+			} else
+				reader.skipValue();
+		}
+		reader.endObject();
+		this.directory = dir;
+		this.createdIndex = created;
+		this.expiration = ("".equals(exp)) ? null : exp; //$NON-NLS-1$
+		this.key = ("".equals(k)) ? null : k; //$NON-NLS-1$
+		this.modifiedIndex = modified;
+		this.ttl = t;
+		this.value = v;
+		this.nodes = children;
+		if (this.valueOffset >= 0 || this.nodesOffset >= 0)
+			this.data = lazyData;
+	}
+
+	private static EtcdNode[] readNodes(EtcdJsonReader reader) throws IOException, JSONException {
+		List<EtcdNode> nodes = new ArrayList<EtcdNode>();
+		reader.beginArray();
+		while (reader.hasNext())
+			nodes.add(new EtcdNode(reader));
+		reader.endArray();
+		return nodes.toArray(new EtcdNode[nodes.size()]);
+	}
+
+	private EtcdJsonReader getLazyReader(int offset) {
+		return new EtcdJsonReader(data, offset, data.length - offset);
+	}
+
+	private void decoded() {
+		// release the data once everything has been decoded
+		if (valueOffset < 0 && nodesOffset < 0)
+			data = null;
+	}
+
+	public EtcdNode(String key, String value, boolean directory, int createdIndex, int modifiedIndex, Integer ttl,
+			EtcdNode[] nodes) {
+		this.key = key;
+		this.value = value;
+		this.directory = directory;
+		this.createdIndex = createdIndex;
+		this.modifiedIndex = modifiedIndex;
+		this.ttl = ttl;
+		this.expiration = null;
+		this.nodes = nodes;
+	}
+
 	public int getCreatedIndex() {
 		return createdIndex;
 	}
@@ -90,20 +190,51 @@ public class EtcdNode {
 		return ttl;
 	}
 
-	public String getValue() {
+	public synchronized String getValue() {
+		if (valueOffset >= 0) {
+			try {
+				value = getLazyReader(valueOffset).nextString();
+			} catch (Exception e) {
+				// data was completely parsed when this node was created
+				throw new IllegalStateException("Could not decode value of node key=" + key, e); //$NON-NLS-1$
+			}
+			valueOffset = -1;
+			decoded();
+		}
 		return value;
 	}
 
-	public EtcdNode[] getNodes() {
+	/**
+	 * @return <code>true</code> if the value or child nodes have not been
+	 *         decoded yet
+	 */
+	public synchronized boolean isLazy() {
+		return data != null;
+	}
+
+	public synchronized EtcdNode[] getNodes() {
+		if (nodesOffset >= 0) {
+			try {
+				nodes = readNodes(getLazyReader(nodesOffset));
+			} catch (Exception e) {
+				// data was completely parsed when this node was created
+				throw new IllegalStateException("Could not decode nodes of node key=" + key, e); //$NON-NLS-1$
+			}
+			nodesOffset = -1;
+			decoded();
+		}
 		return nodes;
 	}
 
 	@Override
-	public String toString() {
+	public synchronized String toString() {
+		// do not decode lazy values just for printing
+		String v = (valueOffset >= 0) ? "<undecoded>" : value; //$NON-NLS-1$
+		String ns = (nodesOffset >= 0) ? "<undecoded>" : Arrays.toString(nodes); //$NON-NLS-1$
 		return "EtcdNode[createdIndex=" + createdIndex + ", directory=" //$NON-NLS-1$ //$NON-NLS-2$
 				+ directory + ", expiration=" + expiration + ", key=" + key //$NON-NLS-1$ //$NON-NLS-2$
 				+ ", modifiedIndex=" + modifiedIndex + ", ttl=" + ttl //$NON-NLS-1$ //$NON-NLS-2$
-				+ ", value=" + value + ", nodes=" + Arrays.toString(nodes) //$NON-NLS-1$ //$NON-NLS-2$
+				+ ", value=" + v + ", nodes=" + ns //$NON-NLS-1$ //$NON-NLS-2$
 				+ "]"; //$NON-NLS-1$
 	}
 
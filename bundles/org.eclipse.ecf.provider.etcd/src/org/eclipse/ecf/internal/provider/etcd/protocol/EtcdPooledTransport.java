@@ -0,0 +1,417 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Composent, Inc. All rights reserved. This
+ * program and the accompanying materials are made available under the terms of
+ * the Eclipse Public License v1.0 which accompanies this distribution, and is
+ * available at http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors: Scott Lewis - initial API and implementation
+ ******************************************************************************/
+package org.eclipse.ecf.internal.provider.etcd.protocol;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.eclipse.ecf.internal.provider.etcd.protocol.EtcdConnectionPool.PooledConnection;
+
+/**
+ * {@link IEtcdTransport} that speaks http/1.1 over persistent connections
+ * taken from an {@link EtcdConnectionPool}. Long poll (watch) requests and
+ * short requests use separate pools, so that outstanding watches cannot starve
+ * short requests of connections. Idle connections of both pools are evicted by
+ * a heartbeat of the default {@link EtcdHeartbeatScheduler}, run at intervals
+ * of the shorter idle timeout until the transport is closed.
+ */
+public class EtcdPooledTransport implements IEtcdTransport {
+
+	public static final int MAX_PER_ROUTE = Integer.parseInt(System.getProperty(
+			"org.eclipse.ecf.provider.etcd.pool.maxperroute", "8")); //$NON-NLS-1$ //$NON-NLS-2$
+	public static final int WATCH_MAX_PER_ROUTE = Integer.parseInt(System.getProperty(
+			"org.eclipse.ecf.provider.etcd.pool.watchmaxperroute", "64")); //$NON-NLS-1$ //$NON-NLS-2$
+	public static final long IDLE_TIMEOUT = Long.parseLong(System.getProperty(
+			"org.eclipse.ecf.provider.etcd.pool.idletimeout", "30000")); //$NON-NLS-1$ //$NON-NLS-2$
+
+	private static final String ISO_8859_1 = "ISO-8859-1"; //$NON-NLS-1$
+	private static final String CRLF = "\r\n"; //$NON-NLS-1$
+	private static final String CONTENT_LENGTH = "Content-Length"; //$NON-NLS-1$
+	private static final String TRANSFER_ENCODING = "Transfer-Encoding"; //$NON-NLS-1$
+	private static final String CONNECTION = "Connection"; //$NON-NLS-1$
+
+	private final EtcdConnectionPool requestPool;
+	private final EtcdConnectionPool watchPool;
+	private final EtcdHeartbeatScheduler.Registration eviction;
+
+	public EtcdPooledTransport(final EtcdConnectionPool requestPool, final EtcdConnectionPool watchPool) {
+		this.requestPool = requestPool;
+		this.watchPool = watchPool;
+		final long interval = getEvictionInterval(requestPool.getIdleTimeout(), watchPool.getIdleTimeout());
+		if (interval > 0)
+			eviction = EtcdHeartbeatScheduler.getDefault().schedule(new EtcdHeartbeatScheduler.Heartbeat() {
+				public long beat() {
+					requestPool.evictIdle();
+					watchPool.evictIdle();
+					return interval;
+				}
+			}, interval);
+		else
+			eviction = null;
+	}
+
+	private static long getEvictionInterval(long idleTimeout1, long idleTimeout2) {
+		if (idleTimeout1 <= 0)
+			return idleTimeout2;
+		if (idleTimeout2 <= 0)
+			return idleTimeout1;
+		return Math.min(idleTimeout1, idleTimeout2);
+	}
+
+	public EtcdPooledTransport() {
+		this(new EtcdConnectionPool("requests", MAX_PER_ROUTE, IDLE_TIMEOUT), //$NON-NLS-1$
+				new EtcdConnectionPool("watches", WATCH_MAX_PER_ROUTE, IDLE_TIMEOUT)); //$NON-NLS-1$
+	}
+
+	public EtcdConnectionPool getRequestPool() {
+		return requestPool;
+	}
+
+	public EtcdConnectionPool getWatchPool() {
+		return watchPool;
+	}
+
+	public EtcdHttpResponse execute(EtcdRequest request, URL url) throws IOException {
+		EtcdConnectionPool pool = request.isLongPoll() ? watchPool : requestPool;
+		byte[] body = request.getBody();
+		byte[] head = createRequestHead(request, url, body);
+		while (true) {
+			PooledConnection conn = pool.lease(url, EtcdProtocol.CONNECT_TIMEOUT);
+			boolean reused = conn.isReused();
+			ResponseReader reader = new ResponseReader(conn);
+			EtcdHttpResponse response = null;
+			try {
+				request.setConnection(conn.getAbortHandle());
+				conn.setReadTimeout(request.getReadTimeout());
+				OutputStream out = conn.getOutputStream();
+				out.write(head);
+				if (body != null)
+					out.write(body);
+				out.flush();
+				response = reader.read(request);
+				return response;
+			} catch (IOException e) {
+				// A reused keep-alive connection may have been closed by the
+				// server while idle. Retry on a fresh connection if nothing
+				// was received, unless the server may have applied the
+				// request already
+				if (reused && !reader.receivedData && request.isIdempotent() && !request.isAborted())
+					continue;
+				throw e;
+			} finally {
+				// otherwise the connection is released with the response body
+				if (response == null)
+					conn.release(false);
+			}
+		}
+	}
+
+	private byte[] createRequestHead(EtcdRequest request, URL url, byte[] body) throws IOException {
+		StringBuilder buf = new StringBuilder(128);
+		String path = url.getPath();
+		buf.append(request.getMethod()).append(' ').append((path == null || path.length() == 0) ? "/" : path); //$NON-NLS-1$
+		if (url.getQuery() != null)
+			buf.append('?').append(url.getQuery());
+		buf.append(" HTTP/1.1").append(CRLF); //$NON-NLS-1$
+		buf.append("Host: ").append(url.getHost()); //$NON-NLS-1$
+		if (url.getPort() != -1)
+			buf.append(':').append(url.getPort());
+		buf.append(CRLF);
+		buf.append(CONNECTION).append(": keep-alive").append(CRLF); //$NON-NLS-1$
+		buf.append("Accept: application/json").append(CRLF); //$NON-NLS-1$
+		if (body != null) {
+			String contentType = request.getContentType();
+			if (contentType != null)
+				buf.append("Content-Type: ").append(contentType).append(CRLF); //$NON-NLS-1$
+			buf.append(CONTENT_LENGTH).append(": ").append(body.length).append(CRLF); //$NON-NLS-1$
+		} else if (!EtcdRequest.METHOD_GET.equals(request.getMethod()))
+			buf.append(CONTENT_LENGTH).append(": 0").append(CRLF); //$NON-NLS-1$
+		buf.append(CRLF);
+		return buf.toString().getBytes(ISO_8859_1);
+	}
+
+	public void close() {
+		if (eviction != null)
+			eviction.cancel();
+		requestPool.close();
+		watchPool.close();
+	}
+
+	static String readLine(InputStream in) throws IOException {
+		ByteArrayOutputStream line = new ByteArrayOutputStream(64);
+		int c;
+		while ((c = in.read()) != -1) {
+			if (c == '\n')
+				break;
+			if (c != '\r')
+				line.write(c);
+		}
+		if (c == -1 && line.size() == 0)
+			throw new EOFException("Connection closed by server"); //$NON-NLS-1$
+		return line.toString(ISO_8859_1);
+	}
+
+	class ResponseReader {
+
+		private final PooledConnection conn;
+		boolean receivedData;
+
+		ResponseReader(PooledConnection conn) {
+			this.conn = conn;
+		}
+
+		EtcdHttpResponse read(EtcdRequest request) throws IOException {
+			InputStream in = conn.getInputStream();
+			int statusCode;
+			String statusLine;
+			Map<String, List<String>> headers;
+			do {
+				statusLine = readLine(in);
+				receivedData = true;
+				statusCode = parseStatusCode(statusLine);
+				headers = readHeaders(in);
+				// skip any informational (1xx) responses
+			} while (statusCode >= 100 && statusCode < 200);
+			boolean keepAlive = !statusLine.startsWith("HTTP/1.0"); //$NON-NLS-1$
+			String connection = getHeader(headers, CONNECTION);
+			if (connection != null)
+				keepAlive = !"close".equalsIgnoreCase(connection); //$NON-NLS-1$
+			InputStream body;
+			String transferEncoding = getHeader(headers, TRANSFER_ENCODING);
+			String contentLength = getHeader(headers, CONTENT_LENGTH);
+			if (statusCode == 204 || statusCode == 304)
+				body = new FixedLengthInputStream(in, 0);
+			else if (transferEncoding != null && transferEncoding.toLowerCase().indexOf("chunked") >= 0) //$NON-NLS-1$
+				body = new ChunkedInputStream(in);
+			else if (contentLength != null)
+				body = new FixedLengthInputStream(in, Long.parseLong(contentLength.trim()));
+			else {
+				// read until close
+				body = in;
+				keepAlive = false;
+			}
+			return new EtcdHttpResponse(statusCode, headers, new ResponseBodyInputStream(body, conn, keepAlive));
+		}
+
+		private int parseStatusCode(String statusLine) throws IOException {
+			int firstSpace = statusLine.indexOf(' ');
+			if (!statusLine.startsWith("HTTP/") || firstSpace < 0) //$NON-NLS-1$
+				throw new IOException("Invalid http status line=" + statusLine); //$NON-NLS-1$
+			int secondSpace = statusLine.indexOf(' ', firstSpace + 1);
+			String code = (secondSpace < 0) ? statusLine.substring(firstSpace + 1)
+					: statusLine.substring(firstSpace + 1, secondSpace);
+			try {
+				return Integer.parseInt(code.trim());
+			} catch (NumberFormatException e) {
+				throw new IOException("Invalid http status line=" + statusLine); //$NON-NLS-1$
+			}
+		}
+
+		private Map<String, List<String>> readHeaders(InputStream in) throws IOException {
+			Map<String, List<String>> headers = new LinkedHashMap<String, List<String>>();
+			String line;
+			while ((line = readLine(in)).length() > 0) {
+				int colon = line.indexOf(':');
+				if (colon <= 0)
+					continue;
+				String name = line.substring(0, colon).trim();
+				String value = line.substring(colon + 1).trim();
+				List<String> values = headers.get(name);
+				if (values == null) {
+					values = new ArrayList<String>(1);
+					headers.put(name, values);
+				}
+				values.add(value);
+			}
+			return headers;
+		}
+
+		private String getHeader(Map<String, List<String>> headers, String name) {
+			for (Map.Entry<String, List<String>> entry : headers.entrySet())
+				if (name.equalsIgnoreCase(entry.getKey()))
+					return entry.getValue().get(0);
+			return null;
+		}
+	}
+
+	/**
+	 * Body stream that returns the underlying connection to its pool when
+	 * closed. The connection is only reused if the body has been read
+	 * completely.
+	 */
+	static class ResponseBodyInputStream extends FilterInputStream {
+
+		private final PooledConnection conn;
+		private final boolean keepAlive;
+		private boolean eof;
+		private boolean closed;
+
+		ResponseBodyInputStream(InputStream in, PooledConnection conn, boolean keepAlive) {
+			super(in);
+			this.conn = conn;
+			this.keepAlive = keepAlive;
+		}
+
+		@Override
+		public int read() throws IOException {
+			if (closed)
+				throw new IOException("Stream closed"); //$NON-NLS-1$
+			int result = super.read();
+			if (result == -1)
+				eof = true;
+			return result;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (closed)
+				throw new IOException("Stream closed"); //$NON-NLS-1$
+			int result = super.read(b, off, len);
+			if (result == -1)
+				eof = true;
+			return result;
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (closed)
+				return;
+			closed = true;
+			conn.release(keepAlive && eof);
+		}
+	}
+
+	static class FixedLengthInputStream extends FilterInputStream {
+
+		private long remaining;
+
+		FixedLengthInputStream(InputStream in, long length) {
+			super(in);
+			this.remaining = length;
+		}
+
+		@Override
+		public int read() throws IOException {
+			if (remaining <= 0)
+				return -1;
+			int result = super.read();
+			if (result == -1)
+				throw new EOFException("Unexpected end of response body"); //$NON-NLS-1$
+			remaining--;
+			return result;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (remaining <= 0)
+				return -1;
+			int result = super.read(b, off, (int) Math.min(len, remaining));
+			if (result == -1)
+				throw new EOFException("Unexpected end of response body"); //$NON-NLS-1$
+			remaining -= result;
+			return result;
+		}
+
+		@Override
+		public int available() throws IOException {
+			return (int) Math.min(super.available(), remaining);
+		}
+
+		@Override
+		public void close() throws IOException {
+			// do not close underlying connection stream
+		}
+	}
+
+	static class ChunkedInputStream extends FilterInputStream {
+
+		private long chunkRemaining;
+		private boolean done;
+
+		ChunkedInputStream(InputStream in) {
+			super(in);
+		}
+
+		private boolean nextChunk() throws IOException {
+			if (done)
+				return false;
+			if (chunkRemaining <= 0) {
+				String line = readLine(in);
+				int semi = line.indexOf(';');
+				if (semi >= 0)
+					line = line.substring(0, semi);
+				try {
+					chunkRemaining = Long.parseLong(line.trim(), 16);
+				} catch (NumberFormatException e) {
+					throw new IOException("Invalid chunk size=" + line); //$NON-NLS-1$
+				}
+				if (chunkRemaining == 0) {
+					// read trailers up to and including the terminating empty line
+					while (readLine(in).length() > 0) {
+						// ignore trailer
+					}
+					done = true;
+					return false;
+				}
+			}
+			return true;
+		}
+
+		private void endChunk() throws IOException {
+			if (chunkRemaining == 0)
+				// crlf following chunk data
+				readLine(in);
+		}
+
+		@Override
+		public int read() throws IOException {
+			if (!nextChunk())
+				return -1;
+			int result = super.read();
+			if (result == -1)
+				throw new EOFException("Unexpected end of chunked response body"); //$NON-NLS-1$
+			chunkRemaining--;
+			endChunk();
+			return result;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (!nextChunk())
+				return -1;
+			int result = super.read(b, off, (int) Math.min(len, chunkRemaining));
+			if (result == -1)
+				throw new EOFException("Unexpected end of chunked response body"); //$NON-NLS-1$
+			chunkRemaining -= result;
+			endChunk();
+			return result;
+		}
+
+		@Override
+		public int available() throws IOException {
+			if (done)
+				return 0;
+			return (int) Math.min(super.available(), chunkRemaining);
+		}
+
+		@Override
+		public void close() throws IOException {
+			// do not close underlying connection stream
+		}
+	}
+}
@@ -38,20 +38,25 @@ public abstract class EtcdProtocol {
 
 	protected String readStream(InputStream ins) throws IOException {
 		if (ins == null) return "InputStream is null"; //$NON-NLS-1$
+		return new String(readBytes(ins), EtcdJsonReader.UTF8);
+	}
+
+	protected byte[] readBytes(InputStream ins) throws IOException {
+		if (ins == null) return new byte[0];
 		try {
 			ByteArrayOutputStream baos = new ByteArrayOutputStream();
 			byte[] buffer = new byte[1024];
 			int length = 0;
 			while ((length = ins.read(buffer)) != -1)
 				baos.write(buffer, 0, length);
-			return new String(baos.toByteArray());
+			return baos.toByteArray();
 		} finally {
 			try {
 				ins.close();
 			} catch (IOException e) {
 				LogUtility
 						.logError(
-								"readStream", DebugOptions.PROTOCOL, getClass(), "Exception closing input stream", e); //$NON-NLS-1$ //$NON-NLS-2$
+								"readBytes", DebugOptions.PROTOCOL, getClass(), "Exception closing input stream", e); //$NON-NLS-1$ //$NON-NLS-2$
 			}
 		}
 	}
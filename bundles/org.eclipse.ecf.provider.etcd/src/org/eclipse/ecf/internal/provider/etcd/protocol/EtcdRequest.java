@@ -8,17 +8,20 @@
  ******************************************************************************/
 package org.eclipse.ecf.internal.provider.etcd.protocol;
 
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
 import java.io.IOException;
-import java.io.UnsupportedEncodingException;
-import java.net.ConnectException;
-import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
-import java.net.ProtocolException;
 import java.net.URL;
-import java.net.URLEncoder;
+import java.nio.charset.Charset;
 import java.util.HashMap;
 import java.util.Map;
 
+import org.eclipse.core.runtime.IProgressMonitor;
+import org.eclipse.ecf.internal.provider.etcd.DebugOptions;
+import org.eclipse.ecf.internal.provider.etcd.LogUtility;
+import org.eclipse.equinox.concurrent.future.IListenableFuture;
+import org.eclipse.equinox.concurrent.future.IProgressRunnable;
 import org.json.JSONException;
 
 public abstract class EtcdRequest extends EtcdProtocol {
@@ -35,8 +38,46 @@ public abstract class EtcdRequest extends EtcdProtocol {
 	public static final String WAIT = "wait"; //$NON-NLS-1$
 	public static final String WAITINDEX = "waitIndex"; //$NON-NLS-1$
 
+	public static final String METHOD_GET = "GET"; //$NON-NLS-1$
+	public static final String METHOD_PUT = "PUT"; //$NON-NLS-1$
+	public static final String METHOD_DELETE = "DELETE"; //$NON-NLS-1$
+	public static final String METHOD_POST = "POST"; //$NON-NLS-1$
+
+	public static final String TRANSPORT_PROP = "org.eclipse.ecf.provider.etcd.transport"; //$NON-NLS-1$
+	public static final String TRANSPORT_POOLED = "pooled"; //$NON-NLS-1$
+	public static final String TRANSPORT_URLCONNECTION = "urlconnection"; //$NON-NLS-1$
+
+	private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1"); //$NON-NLS-1$
+
+	private static final byte[] HEX = new byte[] { '0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'A', 'B', 'C',
+			'D', 'E', 'F' };
+
+	private static IEtcdTransport defaultTransport;
+
+	public static synchronized IEtcdTransport getDefaultTransport() {
+		if (defaultTransport == null) {
+			if (TRANSPORT_URLCONNECTION.equals(System.getProperty(TRANSPORT_PROP, TRANSPORT_POOLED)))
+				defaultTransport = new EtcdURLConnectionTransport();
+			else
+				defaultTransport = new EtcdPooledTransport();
+		}
+		return defaultTransport;
+	}
+
+	public static synchronized void setDefaultTransport(IEtcdTransport transport) {
+		if (defaultTransport != null && defaultTransport != transport)
+			defaultTransport.close();
+		defaultTransport = transport;
+	}
+
 	private final String url;
 	private final Map<String, String> queryParams;
+	private IEtcdTransport transport;
+	// form encoded query params, created once
+	private byte[] formBody;
+	// connection the request is sent on, closed by abort(). Guarded by this.
+	private Closeable connection;
+	private boolean aborted;
 
 	public EtcdRequest(String url) {
 		this.url = url;
@@ -53,72 +94,228 @@ public abstract class EtcdRequest extends EtcdProtocol {
 
 	public void setQueryParam(String name, String value) {
 		getQueryParams().put(name, value);
+		formBody = null;
 	}
 
 	public void setQueryBoolean(String name) {
 		setQueryParam(name, String.valueOf(true));
 	}
 
-	protected EtcdResponse getResponseOrError(HttpURLConnection conn)
-			throws IOException, JSONException {
-		try {
-			return new EtcdSuccessResponse(readStream(conn.getInputStream()),
-					conn.getHeaderFields());
-		} catch (ConnectException e) {
-			throw e;
-		} catch (Exception e) {
-			return new EtcdErrorResponse(readStream(conn.getErrorStream()),
-					conn.getHeaderFields());
+	public IEtcdTransport getTransport() {
+		return (transport != null) ? transport : getDefaultTransport();
+	}
+
+	public void setTransport(IEtcdTransport transport) {
+		this.transport = transport;
+	}
+
+	/**
+	 * Abort this request: the connection it is sent on (if any, now or later)
+	 * is closed, so that the thread executing it fails with an
+	 * {@link EtcdException} rather than waiting for the response, e.g. of a
+	 * long poll.
+	 */
+	public void abort() {
+		Closeable c;
+		synchronized (this) {
+			aborted = true;
+			c = connection;
+			connection = null;
 		}
+		if (c != null)
+			try {
+				c.close();
+			} catch (IOException e) {
+				// ignore
+			}
 	}
 
-	protected HttpURLConnection setRequestMethod(HttpURLConnection conn)
-			throws ProtocolException, IOException {
-		// by default do nothing and default is GET
-		return conn;
+	public synchronized boolean isAborted() {
+		return aborted;
 	}
 
-	protected String getQueryAsString(Map<String, String> params) {
-		StringBuffer buf = new StringBuffer();
-		int queryParamCount = 0;
-		for (String qkey : queryParams.keySet()) {
-			if (queryParamCount++ == 0)
-				buf.append('?');
-			else
-				buf.append('&');
+	/**
+	 * Set by the transport to the connection the request is sent on, which
+	 * {@link #abort()} closes. The connection must not close the socket once
+	 * it has been released for reuse by another request.
+	 *
+	 * @throws IOException
+	 *             if the request has been aborted already. The connection is
+	 *             closed then.
+	 */
+	void setConnection(Closeable connection) throws IOException {
+		synchronized (this) {
+			if (!aborted) {
+				this.connection = connection;
+				return;
+			}
+		}
+		if (connection != null)
+			connection.close();
+		throw new IOException("Request aborted"); //$NON-NLS-1$
+	}
+
+	protected EtcdResponse getResponseOrError(EtcdHttpResponse response)
+			throws IOException, JSONException {
+		if (response.getBody() == null)
+			throw new IOException("No response body, status=" + response.getStatusCode()); //$NON-NLS-1$
+		// decode straight from the body, without copying it first. Lazy
+		// responses keep the body and decode node values when accessed.
+		EtcdJsonReader reader = (isLazy() && response.isSuccess()) ? new EtcdJsonReader(
+				readBytes(response.getBody())) : new EtcdJsonReader(response.getBody());
+		try {
+			EtcdResponse result = response.isSuccess() ? new EtcdSuccessResponse(
+					reader, response.getHeaders()) : new EtcdErrorResponse(
+					reader, response.getHeaders());
+			// read to the end, so the connection can be reused
+			reader.endDocument();
+			return result;
+		} finally {
 			try {
-				buf.append(URLEncoder.encode(qkey, "UTF-8")).append('=').append(URLEncoder.encode(queryParams.get(qkey), "UTF-8")); //$NON-NLS-1$ //$NON-NLS-2$
-			} catch (UnsupportedEncodingException e) {
-				// should never happen
+				reader.close();
+			} catch (IOException e) {
+				LogUtility
+						.logError(
+								"getResponseOrError", DebugOptions.PROTOCOL, getClass(), "Exception closing input stream", e); //$NON-NLS-1$ //$NON-NLS-2$
 			}
 		}
-		return buf.toString();
+	}
+
+	protected String getMethod() {
+		// default is GET
+		return METHOD_GET;
+	}
+
+	protected byte[] getBody() throws IOException {
+		// by default no request body, unless params are form encoded
+		return isFormBody() ? getFormBody() : null;
+	}
+
+	/**
+	 * @return <code>true</code> if the query params should be sent form
+	 *         encoded as the request body rather than in the url
+	 */
+	protected boolean isFormBody() {
+		return false;
+	}
+
+	/**
+	 * @return the query params form encoded, or <code>null</code> if there
+	 *         are none. Encoded only once, so sending the request again (e.g.
+	 *         on another cluster member) reuses the same body.
+	 */
+	protected synchronized byte[] getFormBody() {
+		if (formBody == null && !queryParams.isEmpty()) {
+			ByteArrayOutputStream out = new ByteArrayOutputStream(estimateFormLength(queryParams));
+			encodeForm(queryParams, out);
+			formBody = out.toByteArray();
+		}
+		return formBody;
+	}
+
+	protected String getContentType() {
+		return null;
+	}
+
+	protected int getReadTimeout() {
+		return READ_TIMEOUT;
+	}
+
+	protected boolean isLongPoll() {
+		return false;
+	}
+
+	/**
+	 * @return <code>true</code> if the response body should be kept and the
+	 *         values and child nodes of the response's {@link EtcdNode}s
+	 *         decoded only when accessed
+	 */
+	protected boolean isLazy() {
+		return false;
+	}
+
+	/**
+	 * @return <code>true</code> if sending this request more than once has
+	 *         the same effect as sending it once, so it may be retried on
+	 *         another server. By default, all but POST requests.
+	 */
+	protected boolean isIdempotent() {
+		return !METHOD_POST.equals(getMethod());
+	}
+
+	/**
+	 * @return key used by {@link #executeAsync(EtcdRequestExecutor)} to order
+	 *         asynchronous requests. Requests with equal ordering keys are
+	 *         executed in submission order. Default is the request url.
+	 */
+	protected Object getOrderingKey() {
+		return getUrl();
+	}
+
+	protected String getQueryAsString(Map<String, String> params) {
+		if (params == null || params.isEmpty())
+			return ""; //$NON-NLS-1$
+		ByteArrayOutputStream out = new ByteArrayOutputStream(estimateFormLength(params) + 1);
+		out.write('?');
+		encodeForm(params, out);
+		return new String(out.toByteArray(), ISO_8859_1);
 	}
 
 	protected String getUrlWithQuery() {
-		return new StringBuffer(getUrl()).append(
-				getQueryAsString(getQueryParams())).toString();
+		// form body params are not repeated in the url
+		if (isFormBody())
+			return getUrl();
+		return getUrl() + getQueryAsString(getQueryParams());
+	}
+
+	private static int estimateFormLength(Map<String, String> params) {
+		int length = 0;
+		for (Map.Entry<String, String> entry : params.entrySet())
+			length += entry.getKey().length() + entry.getValue().length() + 2;
+		return length;
+	}
+
+	/**
+	 * Write params as application/x-www-form-urlencoded (UTF-8), i.e. the
+	 * same encoding as {@link java.net.URLEncoder}.
+	 */
+	static void encodeForm(Map<String, String> params, ByteArrayOutputStream out) {
+		boolean first = true;
+		for (Map.Entry<String, String> entry : params.entrySet()) {
+			if (!first)
+				out.write('&');
+			first = false;
+			encodeFormValue(entry.getKey(), out);
+			out.write('=');
+			encodeFormValue(entry.getValue(), out);
+		}
 	}
 
-	protected HttpURLConnection setConnectionOptions(HttpURLConnection conn)
-			throws IOException {
-		conn.setReadTimeout(READ_TIMEOUT);
-		conn.setConnectTimeout(CONNECT_TIMEOUT);
-		return conn;
+	private static void encodeFormValue(String s, ByteArrayOutputStream out) {
+		byte[] bytes = s.getBytes(EtcdJsonReader.UTF8);
+		for (int i = 0; i < bytes.length; i++) {
+			int b = bytes[i] & 0xff;
+			if ((b >= 'a' && b <= 'z') || (b >= 'A' && b <= 'Z') || (b >= '0' && b <= '9') || b == '.' || b == '-'
+					|| b == '*' || b == '_')
+				out.write(b);
+			else if (b == ' ')
+				out.write('+');
+			else {
+				out.write('%');
+				out.write(HEX[b >> 4]);
+				out.write(HEX[b & 0xf]);
+			}
+		}
 	}
 
 	public EtcdResponse execute() throws EtcdException {
-		HttpURLConnection conn = null;
 		URL url = null;
 		try {
 			// Create url (with any query parameters)
 			url = new URL(getUrlWithQuery());
 			String protocol = url.getProtocol();
 			if (!("http".equals(protocol) || "https".equals(protocol)))throw new IOException("url=" + url + " not http protocol"); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$
-			conn = (HttpURLConnection) url.openConnection();
-			setConnectionOptions(conn);
-			setRequestMethod(conn);
-			return getResponseOrError(conn);
+			return getResponseOrError(getTransport().execute(this, url));
 		} catch (MalformedURLException e) {
 			throw new EtcdException("Server url is malformed=" + url, e); //$NON-NLS-1$ 
 		} catch (IOException e) {
@@ -126,9 +323,30 @@ public abstract class EtcdRequest extends EtcdProtocol {
 		} catch (JSONException e) {
 			throw new EtcdException("Parsing error communicating with server url="+url, e); //$NON-NLS-1$
 		} finally {
-			if (conn != null)
-				conn.disconnect();
+			synchronized (this) {
+				connection = null;
+			}
 		}
 	}
 
+	/**
+	 * Execute this request on a thread of the default
+	 * {@link EtcdRequestExecutor}, rather than the caller's (the request is a
+	 * blocking round trip all the same). Requests with the same
+	 * {@link #getOrderingKey()} are executed in the order they were
+	 * submitted. If the request fails, the returned future's status holds the
+	 * {@link EtcdException}.
+	 */
+	public IListenableFuture<EtcdResponse> executeAsync() {
+		return executeAsync(EtcdRequestExecutor.getDefault());
+	}
+
+	public IListenableFuture<EtcdResponse> executeAsync(EtcdRequestExecutor executor) {
+		return executor.execute(getOrderingKey(), new IProgressRunnable<EtcdResponse>() {
+			public EtcdResponse run(IProgressMonitor monitor) throws Exception {
+				return execute();
+			}
+		}, null);
+	}
+
 }
@@ -0,0 +1,191 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Composent, Inc. All rights reserved. This
+ * program and the accompanying materials are made available under the terms of
+ * the Eclipse Public License v1.0 which accompanies this distribution, and is
+ * available at http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors: Scott Lewis - initial API and implementation
+ ******************************************************************************/
+package org.eclipse.ecf.internal.provider.etcd.protocol;
+
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.eclipse.core.runtime.Assert;
+import org.eclipse.core.runtime.IProgressMonitor;
+import org.eclipse.equinox.concurrent.future.AbstractExecutor;
+import org.eclipse.equinox.concurrent.future.AbstractFuture;
+import org.eclipse.equinox.concurrent.future.IFuture;
+import org.eclipse.equinox.concurrent.future.IListenableFuture;
+import org.eclipse.equinox.concurrent.future.IProgressRunnable;
+
+/**
+ * Executor for etcd requests that callers do not wait for. The requests
+ * themselves are blocking http round trips: each one holds a thread of the
+ * executor until its response has been read, so this only moves the wait
+ * off the caller's thread. At most <code>threads</code> requests are in
+ * flight, the others queue. By default, that is the number of connections
+ * the request pool keeps per route ({@link EtcdPooledTransport#MAX_PER_ROUTE}),
+ * so requests in flight do not also wait for a pooled connection. The
+ * threads are daemon threads that time out when idle, or, if enabled,
+ * virtual threads (see {@link EtcdVirtualThreads}). A virtual thread is
+ * started per operation, but only <code>threads</code> of them run it at a
+ * time, the others wait for a permit. Operations submitted with
+ * the same ordering key are run one at a time, in submission order.
+ */
+public class EtcdRequestExecutor extends AbstractExecutor {
+
+	public static final int THREADS = Integer.parseInt(System.getProperty(
+			"org.eclipse.ecf.provider.etcd.async.threads", String.valueOf(EtcdPooledTransport.MAX_PER_ROUTE))); //$NON-NLS-1$
+	public static final long KEEPALIVE = Long.parseLong(System.getProperty(
+			"org.eclipse.ecf.provider.etcd.async.keepalive", "60000")); //$NON-NLS-1$ //$NON-NLS-2$
+
+	private static EtcdRequestExecutor defaultExecutor;
+
+	public static synchronized EtcdRequestExecutor getDefault() {
+		if (defaultExecutor == null)
+			defaultExecutor = new EtcdRequestExecutor(THREADS);
+		return defaultExecutor;
+	}
+
+	public static synchronized void shutdownDefault() {
+		if (defaultExecutor != null) {
+			defaultExecutor.shutdown();
+			defaultExecutor = null;
+		}
+	}
+
+	private final ExecutorService threadPool;
+	// bounds the operations running on virtual threads, null for platform threads
+	private final Semaphore permits;
+	private final Map<Object, LinkedList<Runnable>> orderedQueues = new HashMap<Object, LinkedList<Runnable>>();
+
+	/**
+	 * @param threads
+	 *            maximum number of operations running at a time
+	 */
+	public EtcdRequestExecutor(int threads) {
+		this(threads, EtcdVirtualThreads.isEnabled());
+	}
+
+	public EtcdRequestExecutor(int threads, boolean virtualThreads) {
+		if (virtualThreads) {
+			this.threadPool = EtcdVirtualThreads.newPerTaskExecutor();
+			this.permits = new Semaphore(threads, true);
+			return;
+		}
+		this.permits = null;
+		final AtomicInteger count = new AtomicInteger();
+		ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, KEEPALIVE, TimeUnit.MILLISECONDS,
+				new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "EtcdRequestExecutor-" + count.incrementAndGet()); //$NON-NLS-1$
+						t.setDaemon(true);
+						return t;
+					}
+				});
+		pool.allowCoreThreadTimeOut(true);
+		this.threadPool = pool;
+	}
+
+	@Override
+	protected AbstractFuture<?> createFuture(IProgressMonitor monitor) {
+		return new EtcdRequestFuture<Object>(monitor);
+	}
+
+	@Override
+	public <ResultType> IFuture<ResultType> execute(IProgressRunnable<? extends ResultType> runnable,
+			IProgressMonitor monitor) {
+		return execute(null, runnable, monitor);
+	}
+
+	/**
+	 * Execute the given runnable asynchronously.
+	 *
+	 * @param orderingKey
+	 *            if non-<code>null</code>, the runnable is not started until
+	 *            all previously submitted runnables with an equal ordering key
+	 *            have completed
+	 * @param runnable
+	 *            the runnable to execute. Must not be <code>null</code>.
+	 * @param monitor
+	 *            progress monitor. May be <code>null</code>.
+	 * @return IListenableFuture for the result of the runnable
+	 */
+	@SuppressWarnings("unchecked")
+	public <ResultType> IListenableFuture<ResultType> execute(Object orderingKey,
+			final IProgressRunnable<? extends ResultType> runnable, IProgressMonitor monitor) {
+		Assert.isNotNull(runnable);
+		final EtcdRequestFuture<ResultType> future = (EtcdRequestFuture<ResultType>) createFuture(monitor);
+		Runnable task = new Runnable() {
+			public void run() {
+				future.runWithProgress(runnable);
+			}
+		};
+		if (orderingKey == null)
+			submit(task);
+		else
+			executeOrdered(orderingKey, task);
+		return future;
+	}
+
+	private void executeOrdered(final Object orderingKey, Runnable task) {
+		synchronized (orderedQueues) {
+			LinkedList<Runnable> queue = orderedQueues.get(orderingKey);
+			if (queue != null) {
+				// runner for this key already active
+				queue.add(task);
+				return;
+			}
+			queue = new LinkedList<Runnable>();
+			queue.add(task);
+			orderedQueues.put(orderingKey, queue);
+		}
+		submit(new Runnable() {
+			public void run() {
+				while (true) {
+					Runnable next;
+					synchronized (orderedQueues) {
+						LinkedList<Runnable> q = orderedQueues.get(orderingKey);
+						next = (q == null) ? null : q.poll();
+						if (next == null) {
+							orderedQueues.remove(orderingKey);
+							return;
+						}
+					}
+					next.run();
+				}
+			}
+		});
+	}
+
+	private void submit(final Runnable task) {
+		if (permits == null) {
+			threadPool.execute(task);
+			return;
+		}
+		threadPool.execute(new Runnable() {
+			public void run() {
+				permits.acquireUninterruptibly();
+				try {
+					task.run();
+				} finally {
+					permits.release();
+				}
+			}
+		});
+	}
+
+	public void shutdown() {
+		threadPool.shutdown();
+	}
+
+}
@@ -0,0 +1,160 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Composent, Inc. All rights reserved. This
+ * program and the accompanying materials are made available under the terms of
+ * the Eclipse Public License v1.0 which accompanies this distribution, and is
+ * available at http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors: Scott Lewis - initial API and implementation
+ ******************************************************************************/
+package org.eclipse.ecf.internal.provider.etcd.protocol;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.eclipse.core.runtime.IProgressMonitor;
+import org.eclipse.core.runtime.IStatus;
+import org.eclipse.core.runtime.NullProgressMonitor;
+import org.eclipse.core.runtime.OperationCanceledException;
+import org.eclipse.core.runtime.Status;
+import org.eclipse.ecf.internal.provider.etcd.Activator;
+import org.eclipse.equinox.concurrent.future.AbstractFuture;
+import org.eclipse.equinox.concurrent.future.IExecutor;
+import org.eclipse.equinox.concurrent.future.IListenableFuture;
+import org.eclipse.equinox.concurrent.future.IProgressRunnable;
+import org.eclipse.equinox.concurrent.future.TimeoutException;
+
+/**
+ * Listenable future for asynchronous etcd requests. Unlike
+ * SingleOperationListenableFuture, failures are not run through SafeRunner, so
+ * an etcd communication error is only reported via {@link #getStatus()} (and
+ * logged by whoever handles it) rather than also being written to the platform
+ * log.
+ */
+public class EtcdRequestFuture<ResultType> extends AbstractFuture<ResultType> implements
+		IListenableFuture<ResultType> {
+
+	class Listener {
+		final IExecutor executor;
+		final IProgressRunnable<ResultType> runnable;
+		final IProgressMonitor monitor;
+
+		Listener(IExecutor executor, IProgressRunnable<ResultType> runnable, IProgressMonitor monitor) {
+			this.executor = executor;
+			this.runnable = runnable;
+			this.monitor = (monitor == null) ? new NullProgressMonitor() : monitor;
+		}
+
+		void notifyDone() {
+			executor.execute(runnable, monitor);
+		}
+	}
+
+	private final IProgressMonitor progressMonitor;
+	private List<Listener> listeners = new ArrayList<Listener>(1);
+	private ResultType result;
+	private IStatus status;
+
+	public EtcdRequestFuture(IProgressMonitor progressMonitor) {
+		this.progressMonitor = (progressMonitor == null) ? new NullProgressMonitor() : progressMonitor;
+	}
+
+	public synchronized ResultType get() throws InterruptedException, OperationCanceledException {
+		while (status == null)
+			wait();
+		throwIfCanceled();
+		return result;
+	}
+
+	public synchronized ResultType get(long waitTimeInMillis) throws InterruptedException, TimeoutException,
+			OperationCanceledException {
+		long deadline = System.currentTimeMillis() + waitTimeInMillis;
+		while (status == null) {
+			long remaining = deadline - System.currentTimeMillis();
+			if (remaining <= 0)
+				throw new TimeoutException("Timeout waiting for etcd request", waitTimeInMillis); //$NON-NLS-1$
+			wait(remaining);
+		}
+		throwIfCanceled();
+		return result;
+	}
+
+	private void throwIfCanceled() {
+		if (status.getSeverity() == IStatus.CANCEL)
+			throw new OperationCanceledException();
+	}
+
+	public synchronized IStatus getStatus() {
+		return status;
+	}
+
+	public synchronized boolean hasValue() {
+		return status != null && status.isOK();
+	}
+
+	public synchronized boolean isDone() {
+		return status != null;
+	}
+
+	public boolean cancel() {
+		synchronized (this) {
+			if (status != null)
+				return false;
+			progressMonitor.setCanceled(true);
+		}
+		complete(null, Status.CANCEL_STATUS);
+		return true;
+	}
+
+	@Override
+	public boolean isCanceled() {
+		return progressMonitor.isCanceled();
+	}
+
+	@Override
+	public IProgressMonitor getProgressMonitor() {
+		return progressMonitor;
+	}
+
+	@SuppressWarnings("unchecked")
+	public void runWithProgress(IProgressRunnable<?> runnable) {
+		if (isCanceled()) {
+			complete(null, Status.CANCEL_STATUS);
+			return;
+		}
+		try {
+			complete((ResultType) runnable.run(progressMonitor), Status.OK_STATUS);
+		} catch (OperationCanceledException e) {
+			complete(null, Status.CANCEL_STATUS);
+		} catch (Throwable t) {
+			complete(null, new Status(IStatus.ERROR, Activator.PLUGIN_ID, IStatus.ERROR, t.getMessage(), t));
+		}
+	}
+
+	private void complete(ResultType r, IStatus s) {
+		List<Listener> toNotify = null;
+		synchronized (this) {
+			if (status != null)
+				return;
+			result = r;
+			status = s;
+			toNotify = listeners;
+			listeners = null;
+			notifyAll();
+		}
+		for (Listener l : toNotify)
+			l.notifyDone();
+	}
+
+	public void addListener(IExecutor executor, IProgressRunnable<ResultType> progressRunnable,
+			IProgressMonitor monitor) {
+		Listener listener = new Listener(executor, progressRunnable, monitor);
+		synchronized (this) {
+			if (status == null) {
+				listeners.add(listener);
+				return;
+			}
+		}
+		listener.notifyDone();
+	}
+
+}
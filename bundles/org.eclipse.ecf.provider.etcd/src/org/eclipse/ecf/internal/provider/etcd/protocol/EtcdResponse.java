@@ -8,10 +8,38 @@
  ******************************************************************************/
 package org.eclipse.ecf.internal.provider.etcd.protocol;
 
+import java.util.List;
+import java.util.Map;
+
 public abstract class EtcdResponse extends EtcdProtocol {
+
+	public static final String ETCD_INDEX_HEADER = "X-Etcd-Index"; //$NON-NLS-1$
+
 	public abstract boolean isError();
 
 	public abstract EtcdSuccessResponse getSuccessResponse();
 
 	public abstract EtcdErrorResponse getErrorResponse();
+
+	public abstract Map<String, List<String>> getResponseHeaders();
+
+	/**
+	 * @return the etcd index at the time of the response, from the
+	 *         X-Etcd-Index header, or -1 if not present
+	 */
+	public long getEtcdIndex() {
+		Map<String, List<String>> headers = getResponseHeaders();
+		if (headers == null)
+			return -1;
+		for (Map.Entry<String, List<String>> entry : headers.entrySet()) {
+			List<String> values = entry.getValue();
+			if (ETCD_INDEX_HEADER.equalsIgnoreCase(entry.getKey()) && values != null && !values.isEmpty())
+				try {
+					return Long.parseLong(values.get(0).trim());
+				} catch (NumberFormatException e) {
+					return -1;
+				}
+		}
+		return -1;
+	}
 }
@@ -8,16 +8,11 @@
  ******************************************************************************/
 package org.eclipse.ecf.internal.provider.etcd.protocol;
 
-import java.io.IOException;
-import java.io.OutputStream;
-import java.io.OutputStreamWriter;
-import java.net.HttpURLConnection;
 import java.util.Map;
 
 public class EtcdSetRequest extends EtcdRequest {
 
 	private static final String CONTENT_TYPE_VALUE = "application/x-www-form-urlencoded"; //$NON-NLS-1$
-	private static final String CONTENT_TYPE = "Content-Type"; //$NON-NLS-1$
 
 	public EtcdSetRequest(String url, Map<String, String> params) {
 		super(url);
@@ -59,26 +54,19 @@ public class EtcdSetRequest extends EtcdRequest {
 	}
 
 	@Override
-	protected HttpURLConnection setConnectionOptions(HttpURLConnection conn)
-			throws IOException {
-		HttpURLConnection c = super.setConnectionOptions(conn);
-		c.setDoOutput(true);
-		conn.setRequestProperty(CONTENT_TYPE, CONTENT_TYPE_VALUE);
-		return conn;
+	protected String getMethod() {
+		return METHOD_PUT;
 	}
 
-	protected HttpURLConnection setRequestMethod(HttpURLConnection conn)
-			throws IOException {
-		conn.setRequestMethod("PUT"); //$NON-NLS-1$
-		Map<String, String> params = getQueryParams();
-		if (params != null && params.size() > 0) {
-			OutputStream os = conn.getOutputStream();
-			OutputStreamWriter writer = new OutputStreamWriter(os);
-			writer.write(getQueryAsString(params));
-			writer.close();
-			os.close();
-		}
-		return conn;
+	@Override
+	protected String getContentType() {
+		return CONTENT_TYPE_VALUE;
+	}
+
+	@Override
+	protected boolean isFormBody() {
+		// value may be large, so params are only sent in the body
+		return true;
 	}
 
 }
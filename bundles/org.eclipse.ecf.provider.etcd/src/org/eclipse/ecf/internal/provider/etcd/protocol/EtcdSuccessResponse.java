@@ -8,6 +8,7 @@
  ******************************************************************************/
 package org.eclipse.ecf.internal.provider.etcd.protocol;
 
+import java.io.IOException;
 import java.util.List;
 import java.util.Map;
 
@@ -35,6 +36,47 @@ public class EtcdSuccessResponse extends EtcdResponse {
 		this.responseHeaders = headers;
 	}
 
+	/**
+	 * Read response from the next object of the given reader.
+	 */
+	public EtcdSuccessResponse(EtcdJsonReader reader, Map<String, List<String>> headers)
+			throws IOException, JSONException {
+		String a = null;
+		EtcdNode n = null;
+		EtcdNode pn = null;
+		reader.beginObject();
+		while (reader.hasNext()) {
+			String name = reader.nextName();
+			if (reader.peek() == EtcdJsonReader.NULL)
+				reader.nextNull();
+			else if (ACTION_KEY.equals(name))
+				a = reader.nextString();
+			else if (NODE_KEY.equals(name))
+				n = new EtcdNode(reader);
+			else if (PREVIOUSNODE_KEY.equals(name))
+				pn = new EtcdNode(reader);
+			else
+				reader.skipValue();
+		}
+		reader.endObject();
+		if (n == null)
+			throw new JSONException("node field in response must not be null"); //$NON-NLS-1$
+		Assert.isNotNull(a, "action field in response must not be null"); //$NON-NLS-1$
+		this.action = a;
+		this.etcdNode = n;
+		this.previousNode = pn;
+		this.responseHeaders = headers;
+	}
+
+	public EtcdSuccessResponse(String action, EtcdNode node, EtcdNode previousNode,
+			Map<String, List<String>> headers) {
+		Assert.isNotNull(action, "action must not be null"); //$NON-NLS-1$
+		this.action = action;
+		this.etcdNode = node;
+		this.previousNode = previousNode;
+		this.responseHeaders = headers;
+	}
+
 	public Map<String, List<String>> getResponseHeaders() {
 		return responseHeaders;
 	}
@@ -0,0 +1,70 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Composent, Inc. All rights reserved. This
+ * program and the accompanying materials are made available under the terms of
+ * the Eclipse Public License v1.0 which accompanies this distribution, and is
+ * available at http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors: Scott Lewis - initial API and implementation
+ ******************************************************************************/
+package org.eclipse.ecf.internal.provider.etcd.protocol;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ConnectException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+/**
+ * {@link IEtcdTransport} based upon {@link HttpURLConnection}. Connections are
+ * not explicitly disconnected, so the JRE keep-alive cache may reuse them once
+ * the response body has been completely read and closed.
+ */
+public class EtcdURLConnectionTransport implements IEtcdTransport {
+
+	private static final String CONTENT_TYPE = "Content-Type"; //$NON-NLS-1$
+
+	public EtcdHttpResponse execute(EtcdRequest request, URL url) throws IOException {
+		final HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+		// an aborted request is not reused by the keep-alive cache
+		request.setConnection(new Closeable() {
+			public void close() {
+				conn.disconnect();
+			}
+		});
+		conn.setReadTimeout(request.getReadTimeout());
+		conn.setConnectTimeout(EtcdProtocol.CONNECT_TIMEOUT);
+		conn.setRequestMethod(request.getMethod());
+		byte[] body = request.getBody();
+		if (body != null) {
+			conn.setDoOutput(true);
+			String contentType = request.getContentType();
+			if (contentType != null)
+				conn.setRequestProperty(CONTENT_TYPE, contentType);
+			conn.setFixedLengthStreamingMode(body.length);
+			OutputStream os = conn.getOutputStream();
+			try {
+				os.write(body);
+			} finally {
+				os.close();
+			}
+		}
+		InputStream ins = null;
+		try {
+			ins = conn.getInputStream();
+		} catch (ConnectException e) {
+			throw e;
+		} catch (IOException e) {
+			ins = conn.getErrorStream();
+			if (ins == null)
+				throw e;
+		}
+		return new EtcdHttpResponse(conn.getResponseCode(), conn.getHeaderFields(), ins);
+	}
+
+	public void close() {
+		// nothing to release
+	}
+
+}
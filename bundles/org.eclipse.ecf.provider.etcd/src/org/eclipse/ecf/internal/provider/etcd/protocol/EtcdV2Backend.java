@@ -0,0 +1,122 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Composent, Inc. All rights reserved. This
+ * program and the accompanying materials are made available under the terms of
+ * the Eclipse Public License v1.0 which accompanies this distribution, and is
+ * available at http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors: Scott Lewis - initial API and implementation
+ ******************************************************************************/
+package org.eclipse.ecf.internal.provider.etcd.protocol;
+
+/**
+ * {@link IEtcdBackend} for the etcd v2 keys api (e.g.
+ * http://localhost:2379/v2/keys).
+ */
+public class EtcdV2Backend implements IEtcdBackend {
+
+	class EtcdV2Watch implements IEtcdWatch {
+
+		private final String url;
+		private long index;
+		private volatile boolean closed;
+		// long poll in progress, if any
+		private volatile EtcdRequest request;
+
+		EtcdV2Watch(String url, long fromIndex) {
+			this.url = url;
+			this.index = fromIndex;
+		}
+
+		public EtcdResponse[] next() throws EtcdException {
+			if (closed)
+				throw new EtcdException("Watch on url=" + url + " is closed"); //$NON-NLS-1$ //$NON-NLS-2$
+			EtcdRequest r = prepare(new EtcdWatchRequest(url, Long.toString(index)));
+			request = r;
+			// closed meanwhile
+			if (closed)
+				r.abort();
+			EtcdResponse response;
+			try {
+				response = r.execute();
+			} finally {
+				request = null;
+			}
+			if (!response.isError()) {
+				EtcdNode node = response.getSuccessResponse().getNode();
+				if (node != null)
+					index = node.getModifiedIndex() + 1;
+			}
+			return new EtcdResponse[] { response };
+		}
+
+		public void close() {
+			closed = true;
+			// ends the long poll in progress, rather than waiting for the next
+			// change
+			EtcdRequest r = request;
+			if (r != null)
+				r.abort();
+		}
+	}
+
+	private final String keysUrl;
+	private final IEtcdTransport transport;
+
+	/**
+	 * @param transport
+	 *            transport for all requests. If <code>null</code>, the
+	 *            {@link EtcdRequest#getDefaultTransport()} is used.
+	 */
+	public EtcdV2Backend(String keysUrl, IEtcdTransport transport) {
+		this.keysUrl = keysUrl;
+		this.transport = transport;
+	}
+
+	public EtcdV2Backend(String keysUrl) {
+		this(keysUrl, null);
+	}
+
+	protected <T extends EtcdRequest> T prepare(T request) {
+		if (transport != null)
+			request.setTransport(transport);
+		return request;
+	}
+
+	protected String getUrl(String key) {
+		return keysUrl + key;
+	}
+
+	public EtcdRequest createGetRequest(String key, boolean recursive) {
+		return prepare(new EtcdGetRequest(getUrl(key), recursive));
+	}
+
+	public EtcdRequest createDirectoryRequest(String key, int ttl, boolean prevExist) {
+		return prepare(new EtcdSetRequest(getUrl(key), ttl, prevExist));
+	}
+
+	public EtcdRequest createSessionDirectoryRequest(String key, String sessionKey, int ttl) {
+		// v2 has no leases, so the directory has a ttl of its own
+		return createDirectoryRequest(key, ttl, false);
+	}
+
+	public boolean sharesSessionLease() {
+		return false;
+	}
+
+	public EtcdRequest createSetRequest(String key, String value, int ttl) {
+		return prepare(new EtcdSetRequest(getUrl(key), value, ttl));
+	}
+
+	public EtcdRequest createDeleteRequest(String key, boolean recursive) {
+		return prepare(recursive ? new EtcdDeleteRequest(getUrl(key), true) : new EtcdDeleteRequest(getUrl(key)));
+	}
+
+	public IEtcdWatch createWatch(String key, long fromIndex) {
+		return new EtcdV2Watch(getUrl(key), fromIndex);
+	}
+
+	@Override
+	public String toString() {
+		return "EtcdV2Backend[keysUrl=" + keysUrl + "]"; //$NON-NLS-1$ //$NON-NLS-2$
+	}
+}
@@ -0,0 +1,200 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Composent, Inc. All rights reserved. This
+ * program and the accompanying materials are made available under the terms of
+ * the Eclipse Public License v1.0 which accompanies this distribution, and is
+ * available at http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors: Scott Lewis - initial API and implementation
+ ******************************************************************************/
+package org.eclipse.ecf.internal.provider.etcd.protocol;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * {@link IEtcdBackend} for the etcd v3 json gateway (e.g.
+ * http://localhost:2379/v3). A directory with a ttl is backed by a lease: the
+ * directory's marker key and all keys set within the directory are attached to
+ * the lease, so they are removed together when the lease is revoked or
+ * expires. Refreshing the directory's ttl is a lease keep alive, rather than a
+ * write of the directory. Session directories (see
+ * {@link #createSessionDirectoryRequest(String, String, int)}) share the lease
+ * of their session, so a single keep alive covers them all.
+ */
+public class EtcdV3Backend implements IEtcdBackend {
+
+	/**
+	 * Request made up of several v3 requests, e.g. lease grant followed by
+	 * create.
+	 */
+	abstract class EtcdV3CompositeRequest extends EtcdRequest {
+
+		private final String key;
+
+		EtcdV3CompositeRequest(String key) {
+			super(baseUrl);
+			this.key = key;
+			prepare(this);
+		}
+
+		@Override
+		protected Object getOrderingKey() {
+			return key;
+		}
+
+		@Override
+		public abstract EtcdResponse execute() throws EtcdException;
+	}
+
+	private final String baseUrl;
+	private final IEtcdTransport transport;
+	// lease ids of directories created with a ttl
+	private final Map<String, Long> leases = new HashMap<String, Long>();
+	// lease ids of directories attached to the lease of their session
+	// directory, which is not revoked when they are deleted. Guarded by
+	// leases.
+	private final Map<String, Long> attached = new HashMap<String, Long>();
+
+	/**
+	 * @param transport
+	 *            transport for all requests. If <code>null</code>, the
+	 *            {@link EtcdRequest#getDefaultTransport()} is used.
+	 */
+	public EtcdV3Backend(String baseUrl, IEtcdTransport transport) {
+		this.baseUrl = baseUrl;
+		this.transport = transport;
+	}
+
+	public EtcdV3Backend(String baseUrl) {
+		this(baseUrl, null);
+	}
+
+	protected <T extends EtcdRequest> T prepare(T request) {
+		if (transport != null)
+			request.setTransport(transport);
+		return request;
+	}
+
+	private Long getLease(String directoryKey) {
+		synchronized (leases) {
+			Long lease = leases.get(directoryKey);
+			return (lease != null) ? lease : attached.get(directoryKey);
+		}
+	}
+
+	private String getParentKey(String key) {
+		int slashIndex = key.lastIndexOf('/');
+		return (slashIndex <= 0) ? "/" : key.substring(0, slashIndex); //$NON-NLS-1$
+	}
+
+	public EtcdRequest createGetRequest(String key, boolean recursive) {
+		return prepare(new EtcdV3RangeRequest(baseUrl, key, recursive));
+	}
+
+	public EtcdRequest createDirectoryRequest(final String key, final int ttl, boolean prevExist) {
+		final String dirKey = EtcdV3Request.getDirectoryPrefix(key);
+		if (prevExist) {
+			return new EtcdV3CompositeRequest(key) {
+				@Override
+				public EtcdResponse execute() throws EtcdException {
+					Long lease = getLease(key);
+					if (lease == null)
+						// no ttl, so nothing to refresh
+						return prepare(new EtcdV3RangeRequest(baseUrl, dirKey, false)).execute();
+					return prepare(EtcdV3LeaseRequest.keepAlive(baseUrl, lease.longValue())).execute();
+				}
+			};
+		}
+		if (ttl <= 0)
+			return prepare(new EtcdV3PutRequest(baseUrl, dirKey, null));
+		return new EtcdV3CompositeRequest(key) {
+			@Override
+			public EtcdResponse execute() throws EtcdException {
+				EtcdResponse response = prepare(EtcdV3LeaseRequest.grant(baseUrl, ttl)).execute();
+				if (response.isError())
+					return response;
+				long lease = Long.parseLong(response.getSuccessResponse().getNode().getValue());
+				response = prepare(new EtcdV3CreateRequest(baseUrl, dirKey, null, lease)).execute();
+				if (response.isError())
+					prepare(EtcdV3LeaseRequest.revoke(baseUrl, lease)).execute();
+				else {
+					synchronized (leases) {
+						leases.put(key, Long.valueOf(lease));
+					}
+				}
+				return response;
+			}
+		};
+	}
+
+	public EtcdRequest createSessionDirectoryRequest(final String key, String sessionKey, int ttl) {
+		final Long lease;
+		synchronized (leases) {
+			lease = leases.get(sessionKey);
+		}
+		if (lease == null)
+			return createDirectoryRequest(key, ttl, false);
+		final String dirKey = EtcdV3Request.getDirectoryPrefix(key);
+		return new EtcdV3CompositeRequest(key) {
+			@Override
+			public EtcdResponse execute() throws EtcdException {
+				EtcdResponse response = prepare(new EtcdV3CreateRequest(baseUrl, dirKey, null, lease.longValue()))
+						.execute();
+				// existing if created concurrently for the same session
+				if (!response.isError()
+						|| response.getErrorResponse().getErrorCode() == EtcdErrorResponse.ERRORCODE_NODE_EXIST) {
+					synchronized (leases) {
+						attached.put(key, lease);
+					}
+				}
+				return response;
+			}
+		};
+	}
+
+	public boolean sharesSessionLease() {
+		return true;
+	}
+
+	public EtcdRequest createSetRequest(String key, String value, int ttl) {
+		// keys are attached to the lease of their directory rather than
+		// having a ttl of their own
+		Long lease = getLease(getParentKey(key));
+		return prepare(new EtcdV3PutRequest(baseUrl, key, value, (lease == null) ? 0 : lease.longValue()));
+	}
+
+	public EtcdRequest createDeleteRequest(final String key, boolean recursive) {
+		if (!recursive)
+			return prepare(new EtcdV3DeleteRangeRequest(baseUrl, key, false));
+		return new EtcdV3CompositeRequest(key) {
+			@Override
+			public EtcdResponse execute() throws EtcdException {
+				EtcdResponse response = prepare(new EtcdV3DeleteRangeRequest(baseUrl, key, true)).execute();
+				Long lease = null;
+				synchronized (leases) {
+					// the lease of a directory attached to its session's
+					// lease is not revoked
+					attached.remove(key);
+					lease = leases.remove(key);
+					if (lease != null)
+						attached.values().removeAll(Collections.singleton(lease));
+				}
+				// keys are already deleted, so a failure to revoke only
+				// means the lease lives until it expires
+				if (lease != null)
+					prepare(EtcdV3LeaseRequest.revoke(baseUrl, lease.longValue())).execute();
+				return response;
+			}
+		};
+	}
+
+	public IEtcdWatch createWatch(String key, long fromIndex) {
+		return new EtcdV3Watch(baseUrl, key, fromIndex, transport);
+	}
+
+	@Override
+	public String toString() {
+		return "EtcdV3Backend[baseUrl=" + baseUrl + "]"; //$NON-NLS-1$ //$NON-NLS-2$
+	}
+}
@@ -0,0 +1,73 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Composent, Inc. All rights reserved. This
+ * program and the accompanying materials are made available under the terms of
+ * the Eclipse Public License v1.0 which accompanies this distribution, and is
+ * available at http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors: Scott Lewis - initial API and implementation
+ ******************************************************************************/
+package org.eclipse.ecf.internal.provider.etcd.protocol;
+
+import java.util.List;
+import java.util.Map;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Transaction that puts key only if it does not exist yet (create_revision of
+ * key is 0). If key already exists, an error response with the v2 'node exist'
+ * error code is returned.
+ */
+public class EtcdV3CreateRequest extends EtcdV3Request {
+
+	public static final String PATH = "/kv/txn"; //$NON-NLS-1$
+
+	public static final String COMPARE_KEY = "compare"; //$NON-NLS-1$
+	public static final String SUCCESS_KEY = "success"; //$NON-NLS-1$
+	public static final String SUCCEEDED_KEY = "succeeded"; //$NON-NLS-1$
+	public static final String TARGET_KEY = "target"; //$NON-NLS-1$
+	public static final String TARGET_CREATE = "CREATE"; //$NON-NLS-1$
+	public static final String REQUEST_PUT_KEY = "request_put"; //$NON-NLS-1$
+
+	private final String value;
+	private final long lease;
+
+	public EtcdV3CreateRequest(String baseUrl, String key, String value, long lease) {
+		super(baseUrl, PATH, key);
+		this.value = value;
+		this.lease = lease;
+	}
+
+	@Override
+	protected boolean isIdempotent() {
+		// a retry after success would fail with node exist
+		return false;
+	}
+
+	@Override
+	protected JSONObject createBody() throws JSONException {
+		JSONObject compare = new JSONObject();
+		compare.put(KEY_KEY, encode(getKey()));
+		compare.put(TARGET_KEY, TARGET_CREATE);
+		// result defaults to EQUAL
+		compare.put(CREATE_REVISION_KEY, "0"); //$NON-NLS-1$
+		JSONObject put = new JSONObject();
+		put.put(REQUEST_PUT_KEY, EtcdV3PutRequest.createPut(getKey(), value, lease));
+		JSONObject body = new JSONObject();
+		body.put(COMPARE_KEY, new JSONArray().put(compare));
+		body.put(SUCCESS_KEY, new JSONArray().put(put));
+		return body;
+	}
+
+	@Override
+	protected EtcdResponse createResponse(JSONObject json, Map<String, List<String>> headers) throws JSONException {
+		long revision = getRevision(json);
+		if (!json.optBoolean(SUCCEEDED_KEY))
+			return new EtcdErrorResponse(ERRORCODE_NODE_EXIST, "Key already exists", getKey(), toIndex(revision), //$NON-NLS-1$
+					headers);
+		return new EtcdSuccessResponse(ACTION_CREATE, createNode(getKey(), value, revision, revision), null, headers);
+	}
+
+}
@@ -0,0 +1,50 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Composent, Inc. All rights reserved. This
+ * program and the accompanying materials are made available under the terms of
+ * the Eclipse Public License v1.0 which accompanies this distribution, and is
+ * available at http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors: Scott Lewis - initial API and implementation
+ ******************************************************************************/
+package org.eclipse.ecf.internal.provider.etcd.protocol;
+
+import java.util.List;
+import java.util.Map;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Delete range request. If prefix is <code>true</code>, the directory key and
+ * all keys within it are deleted, otherwise only the given key.
+ */
+public class EtcdV3DeleteRangeRequest extends EtcdV3Request {
+
+	public static final String PATH = "/kv/deleterange"; //$NON-NLS-1$
+	public static final String DELETED_KEY = "deleted"; //$NON-NLS-1$
+
+	private final boolean prefix;
+
+	public EtcdV3DeleteRangeRequest(String baseUrl, String key, boolean prefix) {
+		super(baseUrl, PATH, prefix ? getDirectoryPrefix(key) : key);
+		this.prefix = prefix;
+	}
+
+	@Override
+	protected JSONObject createBody() throws JSONException {
+		JSONObject body = new JSONObject();
+		body.put(KEY_KEY, encode(getKey()));
+		if (prefix)
+			body.put(RANGE_END_KEY, getPrefixRangeEnd(getKey()));
+		return body;
+	}
+
+	@Override
+	protected EtcdResponse createResponse(JSONObject json, Map<String, List<String>> headers) throws JSONException {
+		long revision = getRevision(json);
+		if (getLong(json, DELETED_KEY) == 0)
+			return createKeyNotFound(getKey(), revision, headers);
+		return new EtcdSuccessResponse(ACTION_DELETE, createNode(getKey(), null, 0, revision), null, headers);
+	}
+
+}
@@ -0,0 +1,90 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Composent, Inc. All rights reserved. This
+ * program and the accompanying materials are made available under the terms of
+ * the Eclipse Public License v1.0 which accompanies this distribution, and is
+ * available at http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors: Scott Lewis - initial API and implementation
+ ******************************************************************************/
+package org.eclipse.ecf.internal.provider.etcd.protocol;
+
+import java.util.List;
+import java.util.Map;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Lease grant, keep alive or revoke request. The lease is returned as a node
+ * with the lease id as value and the lease's ttl (in seconds).
+ */
+public class EtcdV3LeaseRequest extends EtcdV3Request {
+
+	public static final int GRANT = 0;
+	public static final int KEEPALIVE = 1;
+	public static final int REVOKE = 2;
+
+	private static final String[] PATHS = new String[] { "/lease/grant", "/lease/keepalive", "/lease/revoke" }; //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+	private static final String[] ACTIONS = new String[] { ACTION_CREATE, ACTION_UPDATE, ACTION_DELETE };
+
+	private final int type;
+	private final long id;
+	private final int ttl;
+
+	private EtcdV3LeaseRequest(String baseUrl, int type, long id, int ttl) {
+		super(baseUrl, PATHS[type], null);
+		this.type = type;
+		this.id = id;
+		this.ttl = ttl;
+	}
+
+	public static EtcdV3LeaseRequest grant(String baseUrl, int ttl) {
+		return new EtcdV3LeaseRequest(baseUrl, GRANT, 0, ttl);
+	}
+
+	public static EtcdV3LeaseRequest keepAlive(String baseUrl, long id) {
+		return new EtcdV3LeaseRequest(baseUrl, KEEPALIVE, id, 0);
+	}
+
+	public static EtcdV3LeaseRequest revoke(String baseUrl, long id) {
+		return new EtcdV3LeaseRequest(baseUrl, REVOKE, id, 0);
+	}
+
+	@Override
+	protected boolean isIdempotent() {
+		// each grant creates a new lease
+		return type != GRANT;
+	}
+
+	@Override
+	protected JSONObject createBody() throws JSONException {
+		JSONObject body = new JSONObject();
+		if (type == GRANT)
+			body.put(TTL_KEY, String.valueOf(ttl));
+		else
+			body.put(ID_KEY, String.valueOf(id));
+		return body;
+	}
+
+	@Override
+	protected EtcdResponse createResponse(JSONObject json, Map<String, List<String>> headers) throws JSONException {
+		// keep alive responses are streamed, and so wrapped in result
+		JSONObject result = json.optJSONObject(RESULT_KEY);
+		if (result != null)
+			json = result;
+		long revision = getRevision(json);
+		String error = EtcdNode.getOptString(json, ERROR_KEY);
+		if (error != null)
+			return new EtcdErrorResponse(ERRORCODE_KEY_NOT_FOUND, error, String.valueOf(id), toIndex(revision),
+					headers);
+		long leaseId = (type == REVOKE) ? id : getLong(json, ID_KEY);
+		long leaseTTL = getLong(json, TTL_KEY);
+		// an expired lease is reported with ttl <= 0
+		if (type == KEEPALIVE && leaseTTL <= 0)
+			return new EtcdErrorResponse(ERRORCODE_KEY_NOT_FOUND, "Lease not found", String.valueOf(id), //$NON-NLS-1$
+					toIndex(revision), headers);
+		return new EtcdSuccessResponse(ACTIONS[type], new EtcdNode(null, String.valueOf(leaseId), false,
+				toIndex(revision), toIndex(revision), Integer.valueOf((int) leaseTTL), null), null, headers);
+	}
+
+}
@@ -0,0 +1,58 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Composent, Inc. All rights reserved. This
+ * program and the accompanying materials are made available under the terms of
+ * the Eclipse Public License v1.0 which accompanies this distribution, and is
+ * available at http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors: Scott Lewis - initial API and implementation
+ ******************************************************************************/
+package org.eclipse.ecf.internal.provider.etcd.protocol;
+
+import java.util.List;
+import java.util.Map;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Put request. If lease is non-zero, the key is attached to the given lease
+ * and deleted when the lease is revoked or expires.
+ */
+public class EtcdV3PutRequest extends EtcdV3Request {
+
+	public static final String PATH = "/kv/put"; //$NON-NLS-1$
+
+	private final String value;
+	private final long lease;
+
+	public EtcdV3PutRequest(String baseUrl, String key, String value, long lease) {
+		super(baseUrl, PATH, key);
+		this.value = value;
+		this.lease = lease;
+	}
+
+	public EtcdV3PutRequest(String baseUrl, String key, String value) {
+		this(baseUrl, key, value, 0);
+	}
+
+	static JSONObject createPut(String key, String value, long lease) throws JSONException {
+		JSONObject put = new JSONObject();
+		put.put(KEY_KEY, encode(key));
+		put.put(VALUE_KEY, encode((value == null) ? "" : value)); //$NON-NLS-1$
+		if (lease != 0)
+			put.put(LEASE_KEY, String.valueOf(lease));
+		return put;
+	}
+
+	@Override
+	protected JSONObject createBody() throws JSONException {
+		return createPut(getKey(), value, lease);
+	}
+
+	@Override
+	protected EtcdResponse createResponse(JSONObject json, Map<String, List<String>> headers) throws JSONException {
+		long revision = getRevision(json);
+		return new EtcdSuccessResponse(ACTION_SET, createNode(getKey(), value, revision, revision), null, headers);
+	}
+
+}
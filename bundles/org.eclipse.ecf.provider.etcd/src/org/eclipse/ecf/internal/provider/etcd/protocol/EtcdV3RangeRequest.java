@@ -0,0 +1,68 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Composent, Inc. All rights reserved. This
+ * program and the accompanying materials are made available under the terms of
+ * the Eclipse Public License v1.0 which accompanies this distribution, and is
+ * available at http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors: Scott Lewis - initial API and implementation
+ ******************************************************************************/
+package org.eclipse.ecf.internal.provider.etcd.protocol;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Range (get) request. If prefix is <code>true</code>, all keys within the
+ * directory key are returned as the (flat) child nodes of a directory node,
+ * otherwise the single node for key is returned.
+ */
+public class EtcdV3RangeRequest extends EtcdV3Request {
+
+	public static final String PATH = "/kv/range"; //$NON-NLS-1$
+
+	private final boolean prefix;
+
+	public EtcdV3RangeRequest(String baseUrl, String key, boolean prefix) {
+		super(baseUrl, PATH, prefix ? getDirectoryPrefix(key) : key);
+		this.prefix = prefix;
+	}
+
+	@Override
+	protected JSONObject createBody() throws JSONException {
+		JSONObject body = new JSONObject();
+		body.put(KEY_KEY, encode(getKey()));
+		if (prefix)
+			body.put(RANGE_END_KEY, getPrefixRangeEnd(getKey()));
+		return body;
+	}
+
+	@Override
+	protected EtcdResponse createResponse(JSONObject json, Map<String, List<String>> headers) throws JSONException {
+		long revision = getRevision(json);
+		JSONArray kvs = json.optJSONArray(KVS_KEY);
+		if (!prefix) {
+			if (kvs == null || kvs.length() == 0)
+				return createKeyNotFound(getKey(), revision, headers);
+			return new EtcdSuccessResponse(ACTION_GET, createNode(kvs.getJSONObject(0)), null, headers);
+		}
+		List<EtcdNode> nodes = new ArrayList<EtcdNode>();
+		if (kvs != null) {
+			for (int i = 0; i < kvs.length(); i++) {
+				EtcdNode node = createNode(kvs.getJSONObject(i));
+				// skip the marker for the directory itself
+				if (!getKey().equals(getDirectoryPrefix(node.getKey())))
+					nodes.add(node);
+			}
+		}
+		String dirKey = (getKey().length() > 1) ? getKey().substring(0, getKey().length() - 1) : getKey();
+		return new EtcdSuccessResponse(ACTION_GET, new EtcdNode(dirKey, null, true, toIndex(revision),
+				toIndex(revision), null, nodes.isEmpty() ? null : nodes.toArray(new EtcdNode[nodes.size()])), null,
+				headers);
+	}
+
+}
@@ -0,0 +1,225 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Composent, Inc. All rights reserved. This
+ * program and the accompanying materials are made available under the terms of
+ * the Eclipse Public License v1.0 which accompanies this distribution, and is
+ * available at http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors: Scott Lewis - initial API and implementation
+ ******************************************************************************/
+package org.eclipse.ecf.internal.provider.etcd.protocol;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.List;
+import java.util.Map;
+
+import org.eclipse.ecf.core.util.Base64;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Request to the etcd v3 json gateway (e.g. http://localhost:2379/v3). All
+ * requests are POSTs of a json body, and keys and values are base64 encoded.
+ * Responses are mapped to the v2 response model ({@link EtcdSuccessResponse}
+ * with action and {@link EtcdNode}), with revisions used as indexes. As v3 has
+ * no directories, a v2 directory is represented by a key ending in '/'.
+ */
+public abstract class EtcdV3Request extends EtcdRequest {
+
+	public static final String CONTENT_TYPE_JSON = "application/json"; //$NON-NLS-1$
+
+	public static final String HEADER_KEY = "header"; //$NON-NLS-1$
+	public static final String REVISION_KEY = "revision"; //$NON-NLS-1$
+	public static final String KEY_KEY = "key"; //$NON-NLS-1$
+	public static final String RANGE_END_KEY = "range_end"; //$NON-NLS-1$
+	public static final String VALUE_KEY = "value"; //$NON-NLS-1$
+	public static final String LEASE_KEY = "lease"; //$NON-NLS-1$
+	public static final String KVS_KEY = "kvs"; //$NON-NLS-1$
+	public static final String CREATE_REVISION_KEY = "create_revision"; //$NON-NLS-1$
+	public static final String MOD_REVISION_KEY = "mod_revision"; //$NON-NLS-1$
+	public static final String ID_KEY = "ID"; //$NON-NLS-1$
+	public static final String TTL_KEY = "TTL"; //$NON-NLS-1$
+	public static final String RESULT_KEY = "result"; //$NON-NLS-1$
+	public static final String ERROR_KEY = "error"; //$NON-NLS-1$
+	public static final String CODE_KEY = "code"; //$NON-NLS-1$
+	public static final String MESSAGE_KEY = "message"; //$NON-NLS-1$
+
+	// v2 error codes used for equivalent v3 failures
+	public static final int ERRORCODE_KEY_NOT_FOUND = 100;
+	public static final int ERRORCODE_NODE_EXIST = 105;
+	public static final int ERRORCODE_EVENT_INDEX_CLEARED = 401;
+
+	private static final String UTF8 = "UTF-8"; //$NON-NLS-1$
+
+	private final String key;
+
+	public EtcdV3Request(String baseUrl, String path, String key) {
+		super(baseUrl + path);
+		this.key = key;
+	}
+
+	public String getKey() {
+		return key;
+	}
+
+	@Override
+	protected String getMethod() {
+		return METHOD_POST;
+	}
+
+	@Override
+	protected String getContentType() {
+		return CONTENT_TYPE_JSON;
+	}
+
+	@Override
+	protected byte[] getBody() throws IOException {
+		try {
+			return createBody().toString().getBytes(UTF8);
+		} catch (JSONException e) {
+			throw new IOException("Could not create request body", e); //$NON-NLS-1$
+		}
+	}
+
+	@Override
+	protected boolean isIdempotent() {
+		// all v3 requests are POSTs, but most are idempotent
+		return true;
+	}
+
+	@Override
+	protected Object getOrderingKey() {
+		return (key != null) ? key : getUrl();
+	}
+
+	protected abstract JSONObject createBody() throws JSONException;
+
+	protected abstract EtcdResponse createResponse(JSONObject json, Map<String, List<String>> headers)
+			throws JSONException;
+
+	@Override
+	protected EtcdResponse getResponseOrError(EtcdHttpResponse response) throws IOException, JSONException {
+		String json = new String(readBytes(response.getBody()), UTF8);
+		if (response.isSuccess())
+			return createResponse(new JSONObject(json), response.getHeaders());
+		return createErrorResponse(json, response.getStatusCode(), response.getHeaders());
+	}
+
+	static EtcdErrorResponse createErrorResponse(String json, int statusCode, Map<String, List<String>> headers) {
+		try {
+			JSONObject jsonObject = new JSONObject(json);
+			String message = EtcdNode.getOptString(jsonObject, MESSAGE_KEY);
+			Object error = jsonObject.opt(ERROR_KEY);
+			// watch errors are nested
+			if (error instanceof JSONObject) {
+				jsonObject = (JSONObject) error;
+				message = EtcdNode.getOptString(jsonObject, MESSAGE_KEY);
+				error = message;
+			}
+			return new EtcdErrorResponse(jsonObject.optInt(CODE_KEY, statusCode), message,
+					(error == null) ? null : error.toString(), 0, headers);
+		} catch (JSONException e) {
+			// not a json error body
+			return new EtcdErrorResponse(statusCode, json, null, 0, headers);
+		}
+	}
+
+	static String encode(String s) {
+		try {
+			return encode(s.getBytes(UTF8));
+		} catch (UnsupportedEncodingException e) {
+			// should never happen
+			return null;
+		}
+	}
+
+	static String encode(byte[] bytes) {
+		return new String(Base64.encode(bytes));
+	}
+
+	static String decode(String s) {
+		if (s == null)
+			return null;
+		try {
+			return new String(Base64.decode(s), UTF8);
+		} catch (UnsupportedEncodingException e) {
+			// should never happen
+			return null;
+		}
+	}
+
+	/**
+	 * @return the key with a trailing '/', i.e. the prefix of all keys within
+	 *         the directory with the given key
+	 */
+	static String getDirectoryPrefix(String key) {
+		return key.endsWith("/") ? key : key + "/"; //$NON-NLS-1$ //$NON-NLS-2$
+	}
+
+	/**
+	 * @return base64 encoded range end for all keys starting with the given
+	 *         prefix
+	 */
+	static String getPrefixRangeEnd(String prefix) {
+		byte[] bytes;
+		try {
+			bytes = prefix.getBytes(UTF8);
+		} catch (UnsupportedEncodingException e) {
+			// should never happen
+			return null;
+		}
+		for (int i = bytes.length - 1; i >= 0; i--) {
+			if (bytes[i] != (byte) 0xff) {
+				byte[] end = new byte[i + 1];
+				System.arraycopy(bytes, 0, end, 0, i);
+				end[i] = (byte) (bytes[i] + 1);
+				return encode(end);
+			}
+		}
+		// all 0xff, so range to the end of the keyspace
+		return encode(new byte[] { 0 });
+	}
+
+	/**
+	 * int64 fields are encoded as json strings by the gateway, and omitted if
+	 * zero
+	 */
+	static long getLong(JSONObject jsonObject, String name) {
+		Object value = (jsonObject == null) ? null : jsonObject.opt(name);
+		if (value == null)
+			return 0;
+		if (value instanceof Number)
+			return ((Number) value).longValue();
+		try {
+			return Long.parseLong(value.toString());
+		} catch (NumberFormatException e) {
+			return 0;
+		}
+	}
+
+	static long getRevision(JSONObject response) {
+		return getLong(response.optJSONObject(HEADER_KEY), REVISION_KEY);
+	}
+
+	static int toIndex(long revision) {
+		return (revision > Integer.MAX_VALUE) ? Integer.MAX_VALUE : (int) revision;
+	}
+
+	static EtcdNode createNode(String key, String value, long createRevision, long modRevision) {
+		boolean directory = key.length() > 1 && key.endsWith("/"); //$NON-NLS-1$
+		if (directory)
+			key = key.substring(0, key.length() - 1);
+		return new EtcdNode(key, directory ? null : value, directory, toIndex(createRevision), toIndex(modRevision),
+				null, null);
+	}
+
+	static EtcdNode createNode(JSONObject kv) throws JSONException {
+		return createNode(decode(kv.getString(KEY_KEY)), decode(EtcdNode.getOptString(kv, VALUE_KEY)),
+				getLong(kv, CREATE_REVISION_KEY), getLong(kv, MOD_REVISION_KEY));
+	}
+
+	static EtcdErrorResponse createKeyNotFound(String key, long revision, Map<String, List<String>> headers) {
+		return new EtcdErrorResponse(ERRORCODE_KEY_NOT_FOUND, "Key not found", key, toIndex(revision), headers); //$NON-NLS-1$
+	}
+
+}
@@ -0,0 +1,263 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Composent, Inc. All rights reserved. This
+ * program and the accompanying materials are made available under the terms of
+ * the Eclipse Public License v1.0 which accompanies this distribution, and is
+ * available at http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors: Scott Lewis - initial API and implementation
+ ******************************************************************************/
+package org.eclipse.ecf.internal.provider.etcd.protocol;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.List;
+import java.util.Map;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * {@link IEtcdWatch} for the etcd v3 json gateway. A single watch stream is
+ * kept open and delivers all events for the keys within the watched directory,
+ * with many events possibly delivered in a single message. If the stream
+ * breaks, it is re-created starting after the last revision seen.
+ */
+public class EtcdV3Watch implements IEtcdWatch {
+
+	public static final String PATH = "/watch"; //$NON-NLS-1$
+
+	public static final String CREATE_REQUEST_KEY = "create_request"; //$NON-NLS-1$
+	public static final String START_REVISION_KEY = "start_revision"; //$NON-NLS-1$
+	public static final String EVENTS_KEY = "events"; //$NON-NLS-1$
+	public static final String TYPE_KEY = "type"; //$NON-NLS-1$
+	public static final String KV_KEY = "kv"; //$NON-NLS-1$
+	public static final String PREV_KV_KEY = "prev_kv"; //$NON-NLS-1$
+	public static final String CANCELED_KEY = "canceled"; //$NON-NLS-1$
+	public static final String CANCEL_REASON_KEY = "cancel_reason"; //$NON-NLS-1$
+	public static final String COMPACT_REVISION_KEY = "compact_revision"; //$NON-NLS-1$
+	public static final String TYPE_DELETE = "DELETE"; //$NON-NLS-1$
+
+	class EtcdV3WatchCreateRequest extends EtcdV3Request {
+
+		private final long startRevision;
+
+		EtcdV3WatchCreateRequest(long startRevision) {
+			super(baseUrl, PATH, prefix);
+			this.startRevision = startRevision;
+			if (transport != null)
+				setTransport(transport);
+		}
+
+		@Override
+		protected JSONObject createBody() throws JSONException {
+			JSONObject create = new JSONObject();
+			create.put(KEY_KEY, encode(getKey()));
+			create.put(RANGE_END_KEY, getPrefixRangeEnd(getKey()));
+			if (startRevision > 0)
+				create.put(START_REVISION_KEY, String.valueOf(startRevision));
+			JSONObject body = new JSONObject();
+			body.put(CREATE_REQUEST_KEY, create);
+			return body;
+		}
+
+		@Override
+		protected EtcdResponse createResponse(JSONObject json, Map<String, List<String>> headers)
+				throws JSONException {
+			// responses are read from the stream by the watch
+			return null;
+		}
+
+		@Override
+		protected int getReadTimeout() {
+			// wait for events indefinitely
+			return 0;
+		}
+
+		@Override
+		protected boolean isLongPoll() {
+			return true;
+		}
+
+		EtcdHttpResponse open() throws IOException {
+			return getTransport().execute(this, new URL(getUrl()));
+		}
+	}
+
+	private final String baseUrl;
+	private final String prefix;
+	private final IEtcdTransport transport;
+	private long nextRevision;
+	private EtcdHttpResponse stream;
+	private volatile boolean closed;
+
+	public EtcdV3Watch(String baseUrl, String key, long fromRevision, IEtcdTransport transport) {
+		this.baseUrl = baseUrl;
+		this.prefix = EtcdV3Request.getDirectoryPrefix(key);
+		this.nextRevision = fromRevision;
+		this.transport = transport;
+	}
+
+	public EtcdV3Watch(String baseUrl, String key, long fromRevision) {
+		this(baseUrl, key, fromRevision, null);
+	}
+
+	public EtcdResponse[] next() throws EtcdException {
+		while (true) {
+			if (closed)
+				throw new EtcdException("Watch on prefix=" + prefix + " is closed"); //$NON-NLS-1$ //$NON-NLS-2$
+			EtcdHttpResponse s = null;
+			JSONObject message = null;
+			try {
+				synchronized (this) {
+					if (stream == null) {
+						EtcdErrorResponse error = openStream();
+						if (error != null)
+							return new EtcdResponse[] { error };
+					}
+					s = stream;
+				}
+				message = readMessage(s.getBody());
+			} catch (IOException e) {
+				closeStream(s);
+				throw new EtcdException("Error reading watch stream for prefix=" + prefix, e); //$NON-NLS-1$
+			} catch (JSONException e) {
+				closeStream(s);
+				throw new EtcdException("Parsing error in watch stream for prefix=" + prefix, e); //$NON-NLS-1$
+			}
+			if (message == null) {
+				closeStream(s);
+				throw new EtcdException("Watch stream for prefix=" + prefix + " closed by server"); //$NON-NLS-1$ //$NON-NLS-2$
+			}
+			JSONObject result = message.optJSONObject(EtcdV3Request.RESULT_KEY);
+			if (result == null) {
+				closeStream(s);
+				return new EtcdResponse[] { EtcdV3Request.createErrorResponse(message.toString(), 500,
+						s.getHeaders()) };
+			}
+			EtcdResponse[] responses = handleResult(result, s.getHeaders());
+			if (responses == null) {
+				closeStream(s);
+				throw new EtcdException("Watch for prefix=" + prefix + " canceled by server. reason=" //$NON-NLS-1$ //$NON-NLS-2$
+						+ EtcdNode.getOptString(result, CANCEL_REASON_KEY));
+			}
+			if (responses.length > 0)
+				return responses;
+			// created or progress notification without events, so wait for next
+		}
+	}
+
+	/**
+	 * @return <code>null</code> if the stream was opened, otherwise the error
+	 *         response from the server
+	 */
+	private EtcdErrorResponse openStream() throws IOException {
+		EtcdV3WatchCreateRequest request = new EtcdV3WatchCreateRequest(nextRevision);
+		EtcdHttpResponse response = request.open();
+		if (!response.isSuccess()) {
+			String json = new String(request.readBytes(response.getBody()), "UTF-8"); //$NON-NLS-1$
+			return EtcdV3Request.createErrorResponse(json, response.getStatusCode(), response.getHeaders());
+		}
+		stream = response;
+		return null;
+	}
+
+	private EtcdResponse[] handleResult(JSONObject result, Map<String, List<String>> headers) throws EtcdException {
+		long compactRevision = EtcdV3Request.getLong(result, COMPACT_REVISION_KEY);
+		if (compactRevision > 0) {
+			closeStream(stream);
+			return new EtcdResponse[] { new EtcdErrorResponse(EtcdV3Request.ERRORCODE_EVENT_INDEX_CLEARED,
+					"The event in requested index is outdated and cleared", "watch prefix=" + prefix, //$NON-NLS-1$ //$NON-NLS-2$
+					EtcdV3Request.toIndex(compactRevision), headers) };
+		}
+		if (result.optBoolean(CANCELED_KEY))
+			return null;
+		JSONArray events = result.optJSONArray(EVENTS_KEY);
+		if (events == null)
+			return new EtcdResponse[0];
+		EtcdResponse[] responses = new EtcdResponse[events.length()];
+		try {
+			for (int i = 0; i < events.length(); i++) {
+				JSONObject event = events.getJSONObject(i);
+				JSONObject kv = event.getJSONObject(KV_KEY);
+				EtcdNode node = EtcdV3Request.createNode(kv);
+				String action = null;
+				// type is omitted for PUT, as it is the default
+				if (TYPE_DELETE.equals(event.optString(TYPE_KEY)))
+					action = EtcdProtocol.ACTION_DELETE;
+				else if (node.getCreatedIndex() == node.getModifiedIndex())
+					action = EtcdProtocol.ACTION_CREATE;
+				else
+					action = EtcdProtocol.ACTION_SET;
+				JSONObject prevKv = event.optJSONObject(PREV_KV_KEY);
+				responses[i] = new EtcdSuccessResponse(action, node,
+						(prevKv == null) ? null : EtcdV3Request.createNode(prevKv), headers);
+				long modRevision = EtcdV3Request.getLong(kv, EtcdV3Request.MOD_REVISION_KEY);
+				if (modRevision >= nextRevision)
+					nextRevision = modRevision + 1;
+			}
+		} catch (JSONException e) {
+			closeStream(stream);
+			throw new EtcdException("Parsing error in watch event for prefix=" + prefix, e); //$NON-NLS-1$
+		}
+		return responses;
+	}
+
+	/**
+	 * Read the next json object from the stream. Messages are read by matching
+	 * braces, so any delimiter between messages is skipped.
+	 *
+	 * @return the next message, or <code>null</code> if the stream has ended
+	 */
+	static JSONObject readMessage(InputStream ins) throws IOException, JSONException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		int depth = 0;
+		boolean inString = false;
+		boolean escape = false;
+		int b;
+		while ((b = ins.read()) != -1) {
+			if (depth == 0 && b != '{')
+				continue;
+			baos.write(b);
+			if (inString) {
+				if (escape)
+					escape = false;
+				else if (b == '\\')
+					escape = true;
+				else if (b == '"')
+					inString = false;
+			} else if (b == '"')
+				inString = true;
+			else if (b == '{')
+				depth++;
+			else if (b == '}' && --depth == 0)
+				return new JSONObject(new String(baos.toByteArray(), "UTF-8")); //$NON-NLS-1$
+		}
+		return null;
+	}
+
+	private synchronized void closeStream(EtcdHttpResponse s) {
+		if (s != null) {
+			s.close();
+			if (stream == s)
+				stream = null;
+		}
+	}
+
+	public void close() {
+		closed = true;
+		EtcdHttpResponse s = null;
+		synchronized (this) {
+			s = stream;
+		}
+		// releases a thread blocked reading the stream
+		closeStream(s);
+	}
+
+	@Override
+	public String toString() {
+		return "EtcdV3Watch[baseUrl=" + baseUrl + ", prefix=" + prefix + ", nextRevision=" + nextRevision + "]"; //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$
+	}
+}
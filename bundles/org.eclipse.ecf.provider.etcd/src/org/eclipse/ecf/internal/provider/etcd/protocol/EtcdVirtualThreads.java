@@ -0,0 +1,129 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Composent, Inc. All rights reserved. This
+ * program and the accompanying materials are made available under the terms of
+ * the Eclipse Public License v1.0 which accompanies this distribution, and is
+ * available at http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors: Scott Lewis - initial API and implementation
+ ******************************************************************************/
+package org.eclipse.ecf.internal.provider.etcd.protocol;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import org.eclipse.ecf.internal.provider.etcd.DebugOptions;
+import org.eclipse.ecf.internal.provider.etcd.LogUtility;
+
+/**
+ * Virtual threads (Java 21 and later), looked up reflectively as the bundle
+ * runs on older runtimes too. When available and enabled by
+ * {@link #VIRTUALTHREADS_PROP}, blocking etcd operations (requests, watches
+ * and heartbeats) run on virtual threads, so that each may block without
+ * tying up a platform thread. Otherwise callers fall back to their platform
+ * thread pools and jobs. They are off by default: the waits for pooled
+ * connections, responses, watch events and retries are monitor waits, which
+ * pin the carrier thread before Java 24.
+ */
+public final class EtcdVirtualThreads {
+
+	public static final String VIRTUALTHREADS_PROP = "org.eclipse.ecf.provider.etcd.virtualthreads"; //$NON-NLS-1$
+	public static final boolean VIRTUALTHREADS_DEFAULT = Boolean.valueOf(
+			System.getProperty(VIRTUALTHREADS_PROP, "false")).booleanValue(); //$NON-NLS-1$
+
+	// Thread.ofVirtual(), and the methods of Thread.Builder
+	private static final Method ofVirtual;
+	private static final Method name;
+	private static final Method nameCounter;
+	private static final Method factory;
+	private static final Method start;
+	private static final Method newVirtualThreadPerTaskExecutor;
+
+	static {
+		Method[] methods = new Method[6];
+		if (VIRTUALTHREADS_DEFAULT)
+			try {
+				Class<?> builder = Class.forName("java.lang.Thread$Builder"); //$NON-NLS-1$
+				methods[0] = Thread.class.getMethod("ofVirtual"); //$NON-NLS-1$
+				methods[1] = builder.getMethod("name", String.class); //$NON-NLS-1$
+				methods[2] = builder.getMethod("name", String.class, long.class); //$NON-NLS-1$
+				methods[3] = builder.getMethod("factory"); //$NON-NLS-1$
+				methods[4] = builder.getMethod("start", Runnable.class); //$NON-NLS-1$
+				methods[5] = Executors.class.getMethod("newVirtualThreadPerTaskExecutor"); //$NON-NLS-1$
+			} catch (Exception e) {
+				// before Java 21
+				methods = new Method[6];
+			}
+		ofVirtual = methods[0];
+		name = methods[1];
+		nameCounter = methods[2];
+		factory = methods[3];
+		start = methods[4];
+		newVirtualThreadPerTaskExecutor = methods[5];
+	}
+
+	private EtcdVirtualThreads() {
+	}
+
+	/**
+	 * @return <code>true</code> if the runtime has virtual threads and they
+	 *         are enabled by {@link #VIRTUALTHREADS_PROP}
+	 */
+	public static boolean isEnabled() {
+		return ofVirtual != null;
+	}
+
+	private static RuntimeException unavailable(Exception e) {
+		LogUtility.logError("EtcdVirtualThreads", DebugOptions.DEBUG, EtcdVirtualThreads.class, //$NON-NLS-1$
+				"Could not use virtual threads", e); //$NON-NLS-1$
+		return new UnsupportedOperationException("Virtual threads not available", e); //$NON-NLS-1$
+	}
+
+	/**
+	 * @return factory of virtual threads named prefix-1, prefix-2...
+	 * @throws UnsupportedOperationException
+	 *             if not {@link #isEnabled()}
+	 */
+	public static ThreadFactory getThreadFactory(String prefix) {
+		if (!isEnabled())
+			throw new UnsupportedOperationException("Virtual threads not available"); //$NON-NLS-1$
+		try {
+			return (ThreadFactory) factory.invoke(nameCounter.invoke(ofVirtual.invoke(null), prefix + "-", 1L)); //$NON-NLS-1$
+		} catch (Exception e) {
+			throw unavailable(e);
+		}
+	}
+
+	/**
+	 * @return executor starting a virtual thread per task
+	 * @throws UnsupportedOperationException
+	 *             if not {@link #isEnabled()}
+	 */
+	public static ExecutorService newPerTaskExecutor() {
+		if (!isEnabled())
+			throw new UnsupportedOperationException("Virtual threads not available"); //$NON-NLS-1$
+		try {
+			return (ExecutorService) newVirtualThreadPerTaskExecutor.invoke(null);
+		} catch (Exception e) {
+			throw unavailable(e);
+		}
+	}
+
+	/**
+	 * Start a virtual thread.
+	 *
+	 * @return the thread started
+	 * @throws UnsupportedOperationException
+	 *             if not {@link #isEnabled()}
+	 */
+	public static Thread start(String threadName, Runnable runnable) {
+		if (!isEnabled())
+			throw new UnsupportedOperationException("Virtual threads not available"); //$NON-NLS-1$
+		try {
+			return (Thread) start.invoke(name.invoke(ofVirtual.invoke(null), threadName), runnable);
+		} catch (Exception e) {
+			throw unavailable(e);
+		}
+	}
+}
@@ -0,0 +1,311 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Composent, Inc. All rights reserved. This
+ * program and the accompanying materials are made available under the terms of
+ * the Eclipse Public License v1.0 which accompanies this distribution, and is
+ * available at http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors: Scott Lewis - initial API and implementation
+ ******************************************************************************/
+package org.eclipse.ecf.internal.provider.etcd.protocol;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import org.eclipse.core.runtime.Assert;
+
+/**
+ * Watches shared by the containers of a JVM that use the same etcd cluster.
+ * The watches created by {@link #createWatch(String, long)} are subscriptions
+ * to a single etcd watch on the common parent of their keys, whose changes
+ * are demultiplexed to the subscriptions by key. So many containers (or the
+ * watch jobs of the service types of a container) hold one long poll or
+ * stream, rather than one each.
+ * <p>
+ * Each subscription keeps its own index: it gets the changes below its key
+ * from the index it was created with, and none twice. The etcd watch is
+ * started from the lowest index of the subscriptions, and restarted when a
+ * subscription is created with a lower index or a key outside its prefix.
+ * There is no thread of its own: the next subscription waiting for changes
+ * polls the etcd watch for all of them.
+ */
+public class EtcdWatchHub {
+
+	private static final Map<String, EtcdWatchHub> hubs = new HashMap<String, EtcdWatchHub>();
+
+	/**
+	 * Get the hub for the given cluster, creating it if needed. Each call
+	 * must be paired with a call to {@link #release()}.
+	 *
+	 * @param cluster
+	 *            key identifying the etcd cluster (e.g. its urls and api
+	 *            version)
+	 * @param backend
+	 *            backend to create the etcd watch with, if the hub is created
+	 */
+	public static EtcdWatchHub acquire(String cluster, IEtcdBackend backend) {
+		synchronized (hubs) {
+			EtcdWatchHub hub = hubs.get(cluster);
+			if (hub == null) {
+				hub = new EtcdWatchHub(cluster, backend);
+				hubs.put(cluster, hub);
+			}
+			hub.references++;
+			return hub;
+		}
+	}
+
+	public void release() {
+		synchronized (hubs) {
+			if (--references == 0)
+				hubs.remove(cluster);
+		}
+	}
+
+	class Subscription implements IEtcdWatch {
+
+		final String key;
+		// the key without trailing slash
+		final String path;
+		// guarded by the hub
+		long index;
+		final LinkedList<EtcdResponse> responses = new LinkedList<EtcdResponse>();
+		EtcdException failure;
+		// set when the etcd watch lost the changes from index
+		boolean cleared;
+		boolean closed;
+
+		Subscription(String key, long fromIndex) {
+			this.key = key;
+			this.path = getPath(key);
+			this.index = fromIndex;
+		}
+
+		boolean matches(String nodeKey) {
+			return path.length() == 0 || nodeKey.equals(path) || nodeKey.startsWith(path + "/"); //$NON-NLS-1$
+		}
+
+		public EtcdResponse[] next() throws EtcdException {
+			return EtcdWatchHub.this.next(this);
+		}
+
+		public void close() {
+			EtcdWatchHub.this.close(this);
+		}
+
+		@Override
+		public String toString() {
+			return "EtcdWatchHub.Subscription[key=" + key + ", index=" + index + "]"; //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+		}
+	}
+
+	private final String cluster;
+	private final IEtcdBackend backend;
+	// guarded by hubs
+	private int references;
+
+	// guarded by this
+	private final List<Subscription> subscriptions = new ArrayList<Subscription>();
+	private IEtcdWatch watch;
+	private String watchPath;
+	// next index the etcd watch delivers changes from
+	private long watchIndex;
+	// subscription whose thread polls the etcd watch, if any
+	private Subscription poller;
+	private long watchesCreated;
+
+	public EtcdWatchHub(String cluster, IEtcdBackend backend) {
+		Assert.isNotNull(backend);
+		this.cluster = cluster;
+		this.backend = backend;
+	}
+
+	/**
+	 * Watch for changes to all nodes below key, starting with (and including)
+	 * the changes at fromIndex.
+	 */
+	public synchronized IEtcdWatch createWatch(String key, long fromIndex) {
+		Subscription subscription = new Subscription(key, fromIndex);
+		subscriptions.add(subscription);
+		// restart the etcd watch if it does not cover the subscription
+		if (watch != null && (fromIndex < watchIndex || !covers(watchPath, subscription.path)))
+			closeWatch();
+		return subscription;
+	}
+
+	static String getPath(String key) {
+		return key.endsWith("/") ? key.substring(0, key.length() - 1) : key; //$NON-NLS-1$
+	}
+
+	private static boolean covers(String parent, String path) {
+		return parent.length() == 0 || path.equals(parent) || path.startsWith(parent + "/"); //$NON-NLS-1$
+	}
+
+	private void closeWatch() {
+		watch.close();
+		watch = null;
+		// the thread polling it (if its close does not release it) is no
+		// longer waited for
+		poller = null;
+		notifyAll();
+	}
+
+	private List<Subscription> getActiveSubscriptions() {
+		List<Subscription> results = new ArrayList<Subscription>();
+		for (Subscription s : subscriptions)
+			if (!s.cleared)
+				results.add(s);
+		return results;
+	}
+
+	/**
+	 * Start the etcd watch on the common parent of the subscriptions, from
+	 * their lowest index.
+	 */
+	private void startWatch() {
+		String path = null;
+		long index = Long.MAX_VALUE;
+		List<Subscription> active = getActiveSubscriptions();
+		// polled again by a subscription that was not resynced
+		if (active.isEmpty())
+			active = subscriptions;
+		for (Subscription s : active) {
+			index = Math.min(index, s.index);
+			if (path == null)
+				path = s.path;
+			else
+				while (!covers(path, s.path))
+					path = path.substring(0, Math.max(0, path.lastIndexOf('/')));
+		}
+		watchPath = path;
+		watchIndex = index;
+		watch = backend.createWatch(path.length() == 0 ? "/" : path, index); //$NON-NLS-1$
+		watchesCreated++;
+	}
+
+	EtcdResponse[] next(Subscription subscription) throws EtcdException {
+		while (true) {
+			IEtcdWatch w;
+			synchronized (this) {
+				while (true) {
+					if (subscription.closed)
+						throw new EtcdException("Watch on key=" + subscription.key + " is closed"); //$NON-NLS-1$ //$NON-NLS-2$
+					if (!subscription.responses.isEmpty()) {
+						EtcdResponse[] results = subscription.responses
+								.toArray(new EtcdResponse[subscription.responses.size()]);
+						subscription.responses.clear();
+						return results;
+					}
+					if (subscription.failure != null) {
+						EtcdException e = subscription.failure;
+						subscription.failure = null;
+						throw e;
+					}
+					if (poller == null)
+						break;
+					try {
+						wait();
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						throw new EtcdException("Interrupted waiting for watch on key=" + subscription.key, e); //$NON-NLS-1$
+					}
+				}
+				if (watch == null)
+					startWatch();
+				poller = subscription;
+				w = watch;
+			}
+			EtcdResponse[] responses = null;
+			EtcdException failure = null;
+			try {
+				responses = w.next();
+			} catch (EtcdException e) {
+				failure = e;
+			}
+			synchronized (this) {
+				if (poller == subscription)
+					poller = null;
+				notifyAll();
+				// changes of a watch closed meanwhile are seen again by the
+				// new one, as it starts from the lowest index
+				if (w != watch)
+					continue;
+				if (failure != null) {
+					// the subscriptions retry as they see fit
+					for (Subscription s : subscriptions)
+						if (s != subscription)
+							s.failure = failure;
+					throw failure;
+				}
+				dispatch(responses);
+			}
+		}
+	}
+
+	private void dispatch(EtcdResponse[] responses) {
+		List<Subscription> active = getActiveSubscriptions();
+		long start = watchIndex;
+		for (EtcdResponse response : responses) {
+			if (response.isError()) {
+				if (response.getErrorResponse().getErrorCode() == EtcdErrorResponse.ERRORCODE_EVENT_INDEX_CLEARED) {
+					// each subscription resyncs, and creates a new watch
+					for (Subscription s : active) {
+						s.cleared = true;
+						s.responses.add(response);
+					}
+					closeWatch();
+					return;
+				}
+				for (Subscription s : active)
+					s.responses.add(response);
+				continue;
+			}
+			EtcdNode node = response.getSuccessResponse().getNode();
+			if (node == null)
+				continue;
+			long modifiedIndex = node.getModifiedIndex();
+			for (Subscription s : active) {
+				if (modifiedIndex < s.index)
+					continue;
+				if (s.matches(node.getKey()))
+					s.responses.add(response);
+				// the subscriptions the watch started for have seen all
+				// changes up to this one
+				if (s.matches(node.getKey()) || s.index >= start)
+					s.index = modifiedIndex + 1;
+			}
+			watchIndex = Math.max(watchIndex, modifiedIndex + 1);
+		}
+	}
+
+	synchronized void close(Subscription subscription) {
+		subscription.closed = true;
+		subscriptions.remove(subscription);
+		if (watch != null && (subscriptions.isEmpty() || poller == subscription))
+			// releases the thread polling the watch for the subscription
+			closeWatch();
+		notifyAll();
+	}
+
+	/**
+	 * @return number of subscriptions
+	 */
+	public synchronized int getSubscriptionCount() {
+		return subscriptions.size();
+	}
+
+	/**
+	 * @return number of etcd watches created so far
+	 */
+	public synchronized long getWatchCount() {
+		return watchesCreated;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "EtcdWatchHub[cluster=" + cluster + ", subscriptions=" + subscriptions.size() + ", watchPath=" //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+				+ watchPath + ", watchIndex=" + watchIndex + ", watches=" + watchesCreated + "]"; //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+	}
+}
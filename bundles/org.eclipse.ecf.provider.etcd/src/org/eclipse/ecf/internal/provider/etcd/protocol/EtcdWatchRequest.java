@@ -8,9 +8,6 @@
  ******************************************************************************/
 package org.eclipse.ecf.internal.provider.etcd.protocol;
 
-import java.io.IOException;
-import java.net.HttpURLConnection;
-
 public class EtcdWatchRequest extends EtcdGetRequest {
 
 	public EtcdWatchRequest(String url) {
@@ -30,11 +27,15 @@ public class EtcdWatchRequest extends EtcdGetRequest {
 			setQueryBoolean(RECURSIVE);
 	}
 
-	protected HttpURLConnection setConnectionOptions(HttpURLConnection conn)
-			throws IOException {
-		conn.setReadTimeout(0);
-		conn.setConnectTimeout(CONNECT_TIMEOUT);
-		return conn;
+	@Override
+	protected int getReadTimeout() {
+		// wait for changes indefinitely
+		return 0;
+	}
+
+	@Override
+	protected boolean isLongPoll() {
+		return true;
 	}
 
 }
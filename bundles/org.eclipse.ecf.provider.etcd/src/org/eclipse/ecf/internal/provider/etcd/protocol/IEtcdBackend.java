@@ -0,0 +1,77 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Composent, Inc. All rights reserved. This
+ * program and the accompanying materials are made available under the terms of
+ * the Eclipse Public License v1.0 which accompanies this distribution, and is
+ * available at http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors: Scott Lewis - initial API and implementation
+ ******************************************************************************/
+package org.eclipse.ecf.internal.provider.etcd.protocol;
+
+/**
+ * Creates the requests used by the etcd discovery container for a particular
+ * etcd api version. Keys are etcd key paths (e.g. /containerId/sessionId/...),
+ * relative to the backend's base url. Directories are created with a ttl to
+ * represent a session: keys set within such a directory are removed when the
+ * directory is deleted or expires.
+ */
+public interface IEtcdBackend {
+
+	/**
+	 * Get the node for the given key. If recursive, the returned node is a
+	 * directory node holding all nodes below key.
+	 */
+	EtcdRequest createGetRequest(String key, boolean recursive);
+
+	/**
+	 * Create the directory with the given key, or, if prevExist is
+	 * <code>true</code>, refresh the ttl of the existing directory.
+	 *
+	 * @param ttl
+	 *            the time to live in seconds. If &lt;= 0, the directory does
+	 *            not expire.
+	 */
+	EtcdRequest createDirectoryRequest(String key, int ttl, boolean prevExist);
+
+	/**
+	 * Create the directory with the given key, expiring along with the given
+	 * session directory (created with a ttl) where the api allows, rather than
+	 * having a ttl of its own.
+	 *
+	 * @param ttl
+	 *            the time to live in seconds, if the directory cannot expire
+	 *            along with the session directory
+	 * @see #sharesSessionLease()
+	 */
+	EtcdRequest createSessionDirectoryRequest(String key, String sessionKey, int ttl);
+
+	/**
+	 * @return <code>true</code> if the directories created by
+	 *         {@link #createSessionDirectoryRequest(String, String, int)}
+	 *         expire along with their session directory, so that only the
+	 *         session directory's ttl is to be refreshed
+	 */
+	boolean sharesSessionLease();
+
+	/**
+	 * Set the value of the given key.
+	 *
+	 * @param ttl
+	 *            the time to live in seconds. If &lt;= 0, the key does not
+	 *            expire other than with its directory.
+	 */
+	EtcdRequest createSetRequest(String key, String value, int ttl);
+
+	/**
+	 * Delete the given key, or, if recursive, the directory with the given key
+	 * and all of its contents.
+	 */
+	EtcdRequest createDeleteRequest(String key, boolean recursive);
+
+	/**
+	 * Watch for changes to all nodes below key, starting with (and including)
+	 * the changes at fromIndex.
+	 */
+	IEtcdWatch createWatch(String key, long fromIndex);
+
+}
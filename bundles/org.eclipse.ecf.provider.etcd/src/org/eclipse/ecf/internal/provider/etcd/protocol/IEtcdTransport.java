@@ -0,0 +1,41 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Composent, Inc. All rights reserved. This
+ * program and the accompanying materials are made available under the terms of
+ * the Eclipse Public License v1.0 which accompanies this distribution, and is
+ * available at http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors: Scott Lewis - initial API and implementation
+ ******************************************************************************/
+package org.eclipse.ecf.internal.provider.etcd.protocol;
+
+import java.io.IOException;
+import java.net.URL;
+
+/**
+ * Http transport used by {@link EtcdRequest} to send a request to an etcd
+ * server.
+ */
+public interface IEtcdTransport {
+
+	/**
+	 * Send the given request to the given url and return the raw response.
+	 * The caller is responsible for closing the returned response.
+	 *
+	 * @param request
+	 *            the request to send. Must not be <code>null</code>.
+	 * @param url
+	 *            the complete url (including any query) to send to. Must not
+	 *            be <code>null</code>.
+	 * @return EtcdHttpResponse the response. Will not be <code>null</code>.
+	 * @throws IOException
+	 *             if the request could not be sent or the response could not
+	 *             be read
+	 */
+	EtcdHttpResponse execute(EtcdRequest request, URL url) throws IOException;
+
+	/**
+	 * Release any resources (e.g. pooled connections) held by this transport.
+	 */
+	void close();
+
+}
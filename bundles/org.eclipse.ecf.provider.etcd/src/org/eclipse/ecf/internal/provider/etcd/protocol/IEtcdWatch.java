@@ -0,0 +1,37 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Composent, Inc. All rights reserved. This
+ * program and the accompanying materials are made available under the terms of
+ * the Eclipse Public License v1.0 which accompanies this distribution, and is
+ * available at http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors: Scott Lewis - initial API and implementation
+ ******************************************************************************/
+package org.eclipse.ecf.internal.provider.etcd.protocol;
+
+/**
+ * Watch on a etcd key (and all keys below it) created via
+ * {@link IEtcdBackend#createWatch(String, long)}.
+ */
+public interface IEtcdWatch {
+
+	/**
+	 * Wait for the next change(s). Each change is returned as a
+	 * {@link EtcdSuccessResponse} with the action (e.g. set, delete, expire)
+	 * and node that changed. If the watch could not continue at the current
+	 * index, a single {@link EtcdErrorResponse} is returned.
+	 *
+	 * @return the responses for the changes, in order. Will not be
+	 *         <code>null</code> or empty.
+	 * @throws EtcdException
+	 *             if communication with the etcd server fails, or the watch
+	 *             was closed
+	 */
+	EtcdResponse[] next() throws EtcdException;
+
+	/**
+	 * Close this watch. A thread blocked in {@link #next()} is released with an
+	 * {@link EtcdException} where the underlying connection allows.
+	 */
+	void close();
+
+}
@@ -8,20 +8,31 @@
  ******************************************************************************/
 package org.eclipse.ecf.provider.etcd;
 
+import java.io.File;
+import java.io.IOException;
 import java.net.MalformedURLException;
 import java.net.URISyntaxException;
+import java.net.URL;
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.HashMap;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.eclipse.core.runtime.IProgressMonitor;
 import org.eclipse.core.runtime.IStatus;
+import org.eclipse.core.runtime.NullProgressMonitor;
+import org.eclipse.core.runtime.OperationCanceledException;
 import org.eclipse.core.runtime.Status;
 import org.eclipse.core.runtime.jobs.Job;
 import org.eclipse.ecf.core.ContainerConnectException;
@@ -32,8 +43,10 @@ import org.eclipse.ecf.core.events.ContainerDisconnectingEvent;
 import org.eclipse.ecf.core.identity.ID;
 import org.eclipse.ecf.core.security.IConnectContext;
 import org.eclipse.ecf.discovery.AbstractDiscoveryContainerAdapter;
+import org.eclipse.ecf.discovery.IServiceEvent;
 import org.eclipse.ecf.discovery.IServiceInfo;
 import org.eclipse.ecf.discovery.IServiceListener;
+import org.eclipse.ecf.discovery.IServiceTypeEvent;
 import org.eclipse.ecf.discovery.IServiceTypeListener;
 import org.eclipse.ecf.discovery.ServiceContainerEvent;
 import org.eclipse.ecf.discovery.ServiceInfo;
@@ -43,18 +56,29 @@ import org.eclipse.ecf.discovery.identity.IServiceTypeID;
 import org.eclipse.ecf.internal.provider.etcd.Activator;
 import org.eclipse.ecf.internal.provider.etcd.DebugOptions;
 import org.eclipse.ecf.internal.provider.etcd.LogUtility;
-import org.eclipse.ecf.internal.provider.etcd.protocol.EtcdDeleteRequest;
+import org.eclipse.ecf.internal.provider.etcd.protocol.EtcdClusterTransport;
+import org.eclipse.ecf.internal.provider.etcd.protocol.EtcdErrorResponse;
 import org.eclipse.ecf.internal.provider.etcd.protocol.EtcdException;
-import org.eclipse.ecf.internal.provider.etcd.protocol.EtcdGetRequest;
+import org.eclipse.ecf.internal.provider.etcd.protocol.EtcdHeartbeatScheduler;
 import org.eclipse.ecf.internal.provider.etcd.protocol.EtcdNode;
 import org.eclipse.ecf.internal.provider.etcd.protocol.EtcdProtocol;
 import org.eclipse.ecf.internal.provider.etcd.protocol.EtcdRequest;
+import org.eclipse.ecf.internal.provider.etcd.protocol.EtcdRequestExecutor;
 import org.eclipse.ecf.internal.provider.etcd.protocol.EtcdResponse;
-import org.eclipse.ecf.internal.provider.etcd.protocol.EtcdSetRequest;
 import org.eclipse.ecf.internal.provider.etcd.protocol.EtcdSuccessResponse;
-import org.eclipse.ecf.internal.provider.etcd.protocol.EtcdWatchRequest;
+import org.eclipse.ecf.internal.provider.etcd.protocol.EtcdVirtualThreads;
+import org.eclipse.ecf.internal.provider.etcd.protocol.EtcdWatchHub;
+import org.eclipse.ecf.internal.provider.etcd.protocol.EtcdV2Backend;
+import org.eclipse.ecf.internal.provider.etcd.protocol.EtcdV3Backend;
+import org.eclipse.ecf.internal.provider.etcd.protocol.IEtcdBackend;
+import org.eclipse.ecf.internal.provider.etcd.protocol.IEtcdTransport;
+import org.eclipse.ecf.internal.provider.etcd.protocol.IEtcdWatch;
 import org.eclipse.ecf.provider.etcd.identity.EtcdNamespace;
 import org.eclipse.ecf.provider.etcd.identity.EtcdServiceID;
+import org.eclipse.equinox.concurrent.future.IFuture;
+import org.eclipse.equinox.concurrent.future.IListenableFuture;
+import org.eclipse.equinox.concurrent.future.IProgressRunnable;
+import org.eclipse.equinox.concurrent.future.ImmediateExecutor;
 import org.json.JSONException;
 
 public class EtcdDiscoveryContainer extends AbstractDiscoveryContainerAdapter {
@@ -80,6 +104,14 @@ public class EtcdDiscoveryContainer extends AbstractDiscoveryContainerAdapter {
 			return this.fullKey;
 		}
 
+		public String getSessionId() {
+			return this.sessId;
+		}
+
+		public String getServiceInfoId() {
+			return this.serviceInfoId;
+		}
+
 		public boolean matchSessionId(String sId) {
 			if (sessId == null)
 				return true;
@@ -106,64 +138,197 @@ public class EtcdDiscoveryContainer extends AbstractDiscoveryContainerAdapter {
 		}
 	}
 
-	// services
-	private final Map<EtcdServiceInfoKey, EtcdServiceInfo> services = new HashMap<EtcdServiceInfoKey, EtcdServiceInfo>();
+	// services, also the monitor guarding connection state
+	private final EtcdServiceRegistry services = new EtcdServiceRegistry();
 	private EtcdServiceID etcdTargetID;
 	private String localSessionId;
 	private String keyPrefix;
 
-	private String dirUrl;
-	private EtcdWatchJob watchJob;
+	private IEtcdBackend backend;
+	private String dirKey;
+	private EtcdKeyLayout layout;
+	// with the types layout, the directories of this session per service
+	// type (relative to dirKey) created so far
+	private final Set<String> sessionDirectories = new LinkedHashSet<String>();
+	// entries of the service types not discovered, dropped by key without
+	// decoding their value again (the service type of an entry does not change)
+	private final Set<EtcdServiceInfoKey> excludedKeys = new HashSet<EtcdServiceInfoKey>();
+	private final List<EtcdWatchJob> watchJobs = new ArrayList<EtcdWatchJob>();
+	// shared with the other containers using the cluster, if configured
+	private EtcdWatchHub watchHub;
 	private boolean watchDone;
 	private int watchIndex;
-
-	private EtcdTTLJob ttlJob;
-
-	private String getDirectoryUrl() {
-		return this.dirUrl;
+	// deletes of the session directory by withdrawSession, not yet seen by
+	// the watch job
+	private final AtomicInteger pendingWithdraws = new AtomicInteger();
+	// watches resynced after falling behind etcd's event history
+	private final AtomicInteger resyncs = new AtomicInteger();
+
+	// ttl refreshes of the session, and snapshot saves (if configured), run
+	// by the shared heartbeat scheduler
+	private volatile EtcdHeartbeatScheduler.Registration sessionHeartbeat;
+	private volatile EtcdHeartbeatScheduler.Registration snapshotHeartbeat;
+
+	private String getDirectoryKey() {
+		return this.dirKey;
 	}
 
+	private final EtcdEventDispatcher eventDispatcher;
+	// collapses transitions per key before they reach the dispatcher
+	private final EtcdEventCoalescer eventCoalescer;
+	// backoff and circuit breaker shared by the watch jobs and the session
+	// heartbeat
+	private final EtcdRetryPolicy retryPolicy;
+	// set if configured, on connect
+	private EtcdSnapshotStore snapshotStore;
+	// set if the services were restored from the snapshot file on connect
+	private volatile boolean restored;
+	// version of the registry's snapshot last saved
+	private long savedVersion = -1;
+
 	public EtcdDiscoveryContainer(EtcdDiscoveryContainerConfig config) {
 		super(EtcdNamespace.NAME, config);
+		this.eventDispatcher = new EtcdEventDispatcher(config);
+		this.eventCoalescer = new EtcdEventCoalescer(new EtcdEventCoalescer.Target() {
+			public void serviceDiscovered(IServiceInfo serviceInfo) {
+				fireServiceDiscovered(new ServiceContainerEvent(serviceInfo, getConfig().getID()));
+			}
+
+			public void serviceUndiscovered(IServiceInfo serviceInfo) {
+				fireServiceUndiscovered(new ServiceContainerEvent(serviceInfo, getConfig().getID()));
+			}
+		}, config.getCoalesceWindow(), config.getFlapPenalty(), config.getFlapMaxDelay());
+		this.retryPolicy = new EtcdRetryPolicy(config);
 	}
 
 	public EtcdDiscoveryContainer() throws MalformedURLException, URISyntaxException {
-		super(EtcdNamespace.NAME, new EtcdDiscoveryContainerConfig(EtcdDiscoveryContainer.class.getName()));
+		this(new EtcdDiscoveryContainerConfig(EtcdDiscoveryContainer.class.getName()));
 	}
 
-	public void registerService(IServiceInfo serviceInfo) {
-		trace("registerService", "serviceInfo=" + serviceInfo); //$NON-NLS-1$ //$NON-NLS-2$
+	private EtcdServiceInfo toEtcdServiceInfo(IServiceInfo serviceInfo) {
 		long ttl = serviceInfo.getTTL();
 		if (ttl == ServiceInfo.DEFAULT_TTL)
 			ttl = ((EtcdDiscoveryContainerConfig) getConfig()).getTTL();
-		EtcdServiceInfo si = (serviceInfo instanceof EtcdServiceInfo) ? (EtcdServiceInfo) serviceInfo
+		return (serviceInfo instanceof EtcdServiceInfo) ? (EtcdServiceInfo) serviceInfo
 				: new EtcdServiceInfo(serviceInfo, ttl);
+	}
+
+	private EtcdServiceInfoKey createServiceInfoKey(IServiceInfo serviceInfo) {
 		String endpointid = serviceInfo.getServiceProperties().getPropertyString("endpoint.id"); //$NON-NLS-1$
-		EtcdServiceInfoKey siKey = (endpointid == null) ? new EtcdServiceInfoKey()
-				: new EtcdServiceInfoKey(this.localSessionId, endpointid);
-		int etcdTTL = convertLongTTLToIntTTL(si.getTTL());
+		return (endpointid == null) ? new EtcdServiceInfoKey() : new EtcdServiceInfoKey(this.localSessionId, endpointid);
+	}
+
+	private String serialize(EtcdServiceInfo si) throws JSONException {
+		return si.serializeToString(getEtcdConfig().getValueFormat(), getEtcdConfig().getCompressThreshold());
+	}
+
+	/**
+	 * Register a service. Unless
+	 * {@link EtcdDiscoveryContainerConfig#isAsyncRegister()}, it is
+	 * discovered once etcd has set it.
+	 *
+	 * @throws RuntimeException
+	 *             if etcd could not set it (not if async)
+	 */
+	public void registerService(IServiceInfo serviceInfo) {
+		trace("registerService", "serviceInfo=" + serviceInfo); //$NON-NLS-1$ //$NON-NLS-2$
+		EtcdServiceInfo si = toEtcdServiceInfo(serviceInfo);
+		EtcdServiceInfoKey siKey = createServiceInfoKey(serviceInfo);
+		int etcdTTL = getKeyTTL(si);
 		String siString = null;
 		try {
-			siString = si.serializeToJsonString();
+			siString = serialize(si);
 		} catch (JSONException e) {
 			throw new IllegalArgumentException("Exception serializing serviceInfo=" + si, e); //$NON-NLS-1$
 		}
-		String fullKey = createFullKey(siKey);
+		final String fullKey = createFullKey(siKey, si);
+		createSessionDirectory(si.getServiceID().getServiceTypeID());
+		boolean async = getEtcdConfig().isAsyncRegister();
+		// unless async, announced only once etcd has it
+		if (!async)
+			executeEtcdRequest("registerService", backend.createSetRequest(fullKey, siString, etcdTTL), //$NON-NLS-1$
+					"Error in EtcdServiceInfo set request serviceInfo=" + si); //$NON-NLS-1$
 		synchronized (services) {
 			startWatchJob();
-			executeEtcdRequest("registerService", //$NON-NLS-1$
-					new EtcdSetRequest(fullKey, siString, etcdTTL),
-					"Error in EtcdServiceInfo set request serviceInfo=" + si); //$NON-NLS-1$
-			services.put(siKey, si);
+			services.put(siKey, si, -1);
+		}
+		if (async) {
+			final EtcdServiceInfoKey key = siKey;
+			final EtcdServiceInfo info = si;
+			// If the set request fails, remove the service again
+			executeEtcdRequestAsync("registerService", //$NON-NLS-1$
+					backend.createSetRequest(fullKey, siString, etcdTTL),
+					"Error in EtcdServiceInfo set request serviceInfo=" + si, new FailureHandler() { //$NON-NLS-1$
+						public void failed(EtcdException error) {
+							if (services.remove(key, info))
+								fireServiceUndiscovered(key, info);
+						}
+					});
 		}
 		fireServiceTypeDiscovered(si.getServiceID().getServiceTypeID());
-		fireServiceDiscovered(fullKey, si);
+		fireServiceDiscovered(siKey, si);
 	}
 
-	private String createFullKey(EtcdServiceInfoKey key) {
-		return getDirectoryUrl() + key.getFullKey();
+	/**
+	 * @return ttl of the key of the given service: none with a lease session,
+	 *         as the key expires with its session directory
+	 */
+	private int getKeyTTL(IServiceInfo serviceInfo) {
+		return getEtcdConfig().isLeaseSession() ? 0 : convertLongTTLToIntTTL(serviceInfo.getTTL());
 	}
 
+	private String createFullKey(EtcdServiceInfoKey key, IServiceInfo serviceInfo) {
+		return getDirectoryKey() + layout.getServiceKey(key, serviceInfo.getServiceID().getServiceTypeID());
+	}
+
+	/**
+	 * With the types layout, create the directory of this session for the
+	 * given type, with the session ttl, unless created already. Entries set
+	 * there are removed with it. With a lease session, it shares the lease of
+	 * the session directory where the backend supports it.
+	 *
+	 * @return <code>false</code> if it could not be created
+	 */
+	private boolean createSessionDirectory(IServiceTypeID type) {
+		if (!layout.isByType())
+			return true;
+		String sessionDirectory = layout.getSessionDirectory(localSessionId, type);
+		synchronized (sessionDirectories) {
+			if (sessionDirectories.contains(sessionDirectory))
+				return true;
+		}
+		EtcdException error = null;
+		try {
+			EtcdDiscoveryContainerConfig config = getEtcdConfig();
+			String key = getDirectoryKey() + sessionDirectory;
+			EtcdResponse response = (config.isLeaseSession() ? backend.createSessionDirectoryRequest(key,
+					getDirectoryKey() + localSessionId, config.getSessionTTL()) : backend.createDirectoryRequest(key,
+					config.getSessionTTL(), false)).execute();
+			// created concurrently for another service of the type
+			if (response.isError()
+					&& response.getErrorResponse().getErrorCode() != EtcdErrorResponse.ERRORCODE_NODE_EXIST)
+				error = new EtcdException("Error response", response.getErrorResponse()); //$NON-NLS-1$
+		} catch (EtcdException e) {
+			error = e;
+		}
+		if (error != null) {
+			logEtcdError("createSessionDirectory", "Could not create sessionDirectory=" + sessionDirectory, error); //$NON-NLS-1$ //$NON-NLS-2$
+			return false;
+		}
+		synchronized (sessionDirectories) {
+			sessionDirectories.add(sessionDirectory);
+		}
+		return true;
+	}
+
+	/**
+	 * Unregister a service. Unless
+	 * {@link EtcdDiscoveryContainerConfig#isAsyncRegister()}, it is
+	 * undiscovered once etcd has deleted it.
+	 *
+	 * @throws RuntimeException
+	 *             if etcd could not delete it (not if async)
+	 */
 	public void unregisterService(IServiceInfo serviceInfo) {
 		trace("unregisterService", "serviceInfo=" + serviceInfo); //$NON-NLS-1$ //$NON-NLS-2$
 		EtcdServiceInfoKey key = findEtcdServiceInfoKey(serviceInfo.getServiceID(), true);
@@ -171,30 +336,305 @@ public class EtcdDiscoveryContainer extends AbstractDiscoveryContainerAdapter {
 			logEtcdError("unregisterService", "Could not find serviceInfo=" + serviceInfo, null); //$NON-NLS-1$ //$NON-NLS-2$
 			return;
 		}
-		String fullKey = createFullKey(key);
-		EtcdServiceInfo si = null;
+		final String fullKey = createFullKey(key, serviceInfo);
+		final EtcdServiceInfoKey siKey = key;
+		if (!getEtcdConfig().isAsyncRegister()) {
+			executeEtcdRequest("unregisterService", backend.createDeleteRequest(fullKey, false), //$NON-NLS-1$
+					"EtcdDelete request failed"); //$NON-NLS-1$
+			EtcdServiceInfo si = services.remove(key);
+			if (si != null)
+				fireServiceUndiscovered(siKey, si);
+			return;
+		}
+		// removed right away, and restored if the delete request fails, as the
+		// service is then still in etcd
+		final EtcdServiceInfo si = services.remove(key);
+		executeEtcdRequestAsync("unregisterService", backend.createDeleteRequest(fullKey, false), //$NON-NLS-1$
+				"EtcdDelete request failed", (si == null) ? null : new FailureHandler() { //$NON-NLS-1$
+					public void failed(EtcdException error) {
+						if (isKeyNotFound(error))
+							return;
+						if (services.putIfAbsent(siKey, si))
+							fireServiceDiscovered(siKey, si);
+					}
+				});
+		if (si != null)
+			fireServiceUndiscovered(siKey, si);
+	}
+
+	private static boolean isKeyNotFound(Throwable error) {
+		if (!(error instanceof EtcdException))
+			return false;
+		EtcdErrorResponse errorResponse = ((EtcdException) error).getErrorResponse();
+		return errorResponse != null && errorResponse.getErrorCode() == EtcdErrorResponse.ERRORCODE_KEY_NOT_FOUND;
+	}
+
+	/**
+	 * Register several services at once. The services are serialized and set
+	 * in etcd concurrently, with at most
+	 * {@link EtcdDiscoveryContainerConfig#getBatchConcurrency()} requests in
+	 * flight, and this method returns once all requests have completed. The
+	 * services set successfully are then added together, in a single
+	 * {@link EtcdServiceSnapshot}, and discovered.
+	 * 
+	 * @return the result for each of serviceInfos, in the same order
+	 */
+	public IStatus[] registerServices(IServiceInfo[] serviceInfos) {
+		trace("registerServices", "count=" + serviceInfos.length); //$NON-NLS-1$ //$NON-NLS-2$
+		final int count = serviceInfos.length;
+		final EtcdServiceInfo[] infos = new EtcdServiceInfo[count];
+		final EtcdServiceInfoKey[] keys = new EtcdServiceInfoKey[count];
+		for (int i = 0; i < count; i++) {
+			infos[i] = toEtcdServiceInfo(serviceInfos[i]);
+			keys[i] = createServiceInfoKey(serviceInfos[i]);
+		}
+		final IEtcdBackend b = backend;
+		Set<IServiceTypeID> types = new LinkedHashSet<IServiceTypeID>();
+		for (int i = 0; i < count; i++)
+			types.add(infos[i].getServiceID().getServiceTypeID());
+		for (IServiceTypeID type : types)
+			createSessionDirectory(type);
 		synchronized (services) {
+			startWatchJob();
+		}
+		IStatus[] results = executeBatch(new IStatus[count], new BatchOperation() {
+			public EtcdResponse execute(int index) throws Exception {
+				EtcdServiceInfo si = infos[index];
+				String siString = null;
+				try {
+					siString = serialize(si);
+				} catch (JSONException e) {
+					throw new IllegalArgumentException("Exception serializing serviceInfo=" + si, e); //$NON-NLS-1$
+				}
+				return b.createSetRequest(createFullKey(keys[index], si), siString, getKeyTTL(si)).execute();
+			}
+		});
+		types.clear();
+		services.beginBatch();
+		try {
+			for (int i = 0; i < count; i++)
+				if (results[i].isOK()) {
+					services.put(keys[i], infos[i], -1);
+					types.add(infos[i].getServiceID().getServiceTypeID());
+				}
+			for (IServiceTypeID type : types)
+				fireServiceTypeDiscovered(type);
+			for (int i = 0; i < count; i++)
+				if (results[i].isOK())
+					fireServiceDiscovered(keys[i], infos[i]);
+		} finally {
+			services.endBatch(-1);
+			fireBatchEvents();
+		}
+		for (int i = 0; i < count; i++)
+			if (!results[i].isOK())
+				logEtcdError("registerServices", "Could not register serviceInfo=" + infos[i], //$NON-NLS-1$ //$NON-NLS-2$
+						results[i].getException());
+		return results;
+	}
+
+	/**
+	 * Unregister several services at once. The services are removed locally
+	 * right away, in a single {@link EtcdServiceSnapshot}, and deleted from
+	 * etcd concurrently, with at most
+	 * {@link EtcdDiscoveryContainerConfig#getBatchConcurrency()} requests in
+	 * flight. This method returns once all requests have completed. Services
+	 * that could not be deleted from etcd are restored.
+	 * 
+	 * @return the result for each of serviceInfos, in the same order
+	 */
+	public IStatus[] unregisterServices(IServiceInfo[] serviceInfos) {
+		trace("unregisterServices", "count=" + serviceInfos.length); //$NON-NLS-1$ //$NON-NLS-2$
+		final int count = serviceInfos.length;
+		final EtcdServiceInfoKey[] keys = new EtcdServiceInfoKey[count];
+		final IServiceInfo[] infos = serviceInfos;
+		EtcdServiceInfo[] removed = new EtcdServiceInfo[count];
+		IStatus[] results = new IStatus[count];
+		services.beginBatch();
+		try {
+			for (int i = 0; i < count; i++) {
+				keys[i] = findEtcdServiceInfoKey(serviceInfos[i].getServiceID(), true);
+				if (keys[i] == null)
+					results[i] = createErrorStatus("Could not find serviceInfo=" + serviceInfos[i]); //$NON-NLS-1$
+				else
+					removed[i] = services.remove(keys[i]);
+			}
+			for (int i = 0; i < count; i++)
+				if (removed[i] != null)
+					fireServiceUndiscovered(keys[i], removed[i]);
+		} finally {
+			services.endBatch(-1);
+			fireBatchEvents();
+		}
+		final IEtcdBackend b = backend;
+		executeBatch(results, new BatchOperation() {
+			public EtcdResponse execute(int index) throws Exception {
+				return b.createDeleteRequest(createFullKey(keys[index], infos[index]), false).execute();
+			}
+		});
+		services.beginBatch();
+		try {
+			for (int i = 0; i < count; i++) {
+				if (results[i].isOK() || keys[i] == null)
+					continue;
+				if (isKeyNotFound(results[i].getException()))
+					results[i] = Status.OK_STATUS;
+				else {
+					logEtcdError("unregisterServices", "Could not unregister serviceInfo=" + serviceInfos[i], //$NON-NLS-1$ //$NON-NLS-2$
+							results[i].getException());
+					// still in etcd
+					if (removed[i] != null && services.putIfAbsent(keys[i], removed[i]))
+						fireServiceDiscovered(keys[i], removed[i]);
+				}
+			}
+		} finally {
+			services.endBatch(-1);
+			fireBatchEvents();
+		}
+		return results;
+	}
+
+	/**
+	 * Request of a batch.
+	 */
+	interface BatchOperation {
+		EtcdResponse execute(int index) throws Exception;
+	}
+
+	/**
+	 * Execute the operations of a batch concurrently on the shared
+	 * {@link EtcdRequestExecutor}, with at most
+	 * {@link EtcdDiscoveryContainerConfig#getBatchConcurrency()} of them in
+	 * flight (and at most as many as the executor runs at a time), and wait
+	 * for all of them.
+	 * 
+	 * @param results
+	 *            operations are executed for the indexes with a
+	 *            <code>null</code> result. Their results are set.
+	 * @return results
+	 */
+	private IStatus[] executeBatch(IStatus[] results, final BatchOperation operation) {
+		List<Integer> indexes = new ArrayList<Integer>(results.length);
+		for (int i = 0; i < results.length; i++)
+			if (results[i] == null)
+				indexes.add(Integer.valueOf(i));
+		if (indexes.isEmpty())
+			return results;
+		EtcdRequestExecutor executor = EtcdRequestExecutor.getDefault();
+		// the operations of this batch in flight, so that a large batch does
+		// not take all of the shared executor's threads at once
+		final Semaphore inFlight = new Semaphore(Math.max(1, getEtcdConfig().getBatchConcurrency()));
+		List<IFuture<EtcdResponse>> futures = new ArrayList<IFuture<EtcdResponse>>(indexes.size());
+		for (Integer index : indexes) {
+			final int i = index.intValue();
+			inFlight.acquireUninterruptibly();
+			futures.add(executor.execute(new IProgressRunnable<EtcdResponse>() {
+				public EtcdResponse run(IProgressMonitor monitor) throws Exception {
+					try {
+						return operation.execute(i);
+					} finally {
+						inFlight.release();
+					}
+				}
+			}, null));
+		}
+		for (int j = 0; j < indexes.size(); j++) {
+			int i = indexes.get(j).intValue();
+			IFuture<EtcdResponse> future = futures.get(j);
 			try {
-				EtcdResponse r = new EtcdDeleteRequest(fullKey).execute();
-				if (r.isError())
-					logEtcdError("unregisterService", "EtcdDelete request failed", new EtcdException(r.getErrorResponse().getMessage())); //$NON-NLS-1$ //$NON-NLS-2$
-			} catch (EtcdException e) {
-				// we ignore but log
-				logEtcdError("unregisterServiced", "EtcdDelete request failed", e); //$NON-NLS-1$ //$NON-NLS-2$
+				EtcdResponse response = future.get();
+				IStatus status = future.getStatus();
+				if (status != null && !status.isOK())
+					results[i] = status;
+				else if (response != null && response.isError())
+					results[i] = createErrorStatus("Etcd error response", //$NON-NLS-1$
+							new EtcdException("Error response", response.getErrorResponse())); //$NON-NLS-1$
+				else
+					results[i] = Status.OK_STATUS;
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				results[i] = createErrorStatus("Interrupted waiting for etcd request", e); //$NON-NLS-1$
+			} catch (OperationCanceledException e) {
+				results[i] = Status.CANCEL_STATUS;
 			}
-			si = services.remove(key);
 		}
-		if (si != null)
-			fireServiceUndiscovered(fullKey, si);
+		return results;
+	}
+
+	/**
+	 * Compensates the optimistic local change made for a request, if the
+	 * request fails.
+	 */
+	interface FailureHandler {
+		void failed(EtcdException error);
 	}
 
+	// requests sent but not yet completed
+	/**
+	 * Send the request and wait for its response.
+	 *
+	 * @throws RuntimeException
+	 *             if etcd could not be reached, or answered with an error
+	 *             other than key not found
+	 */
 	private void executeEtcdRequest(String methodName, EtcdRequest request, String exceptionMessage) {
 		try {
 			EtcdResponse response = request.execute();
 			if (response.isError())
 				throw new EtcdException(exceptionMessage, response.getErrorResponse());
 		} catch (EtcdException e) {
-			logAndThrowEtcdError(methodName, "Error communicating with etcd server", e); //$NON-NLS-1$
+			// already gone, e.g. with its session
+			if (isKeyNotFound(e))
+				return;
+			logEtcdError(methodName, exceptionMessage, e);
+			throw new RuntimeException(exceptionMessage, e);
+		}
+	}
+
+	private final Set<IFuture<EtcdResponse>> pendingRequests = new HashSet<IFuture<EtcdResponse>>();
+
+	private void executeEtcdRequestAsync(final String methodName, EtcdRequest request, final String exceptionMessage,
+			final FailureHandler onFailure) {
+		final IListenableFuture<EtcdResponse> future = request.executeAsync();
+		synchronized (pendingRequests) {
+			pendingRequests.add(future);
+		}
+		future.addListener(new ImmediateExecutor(), new IProgressRunnable<EtcdResponse>() {
+			public EtcdResponse run(IProgressMonitor monitor) throws Exception {
+				synchronized (pendingRequests) {
+					pendingRequests.remove(future);
+				}
+				EtcdException error = null;
+				IStatus status = future.getStatus();
+				if (status != null && !status.isOK()) {
+					Throwable t = status.getException();
+					error = (t instanceof EtcdException) ? (EtcdException) t : new EtcdException(exceptionMessage, t);
+				} else {
+					EtcdResponse response = future.get();
+					if (response != null && response.isError())
+						error = new EtcdException(exceptionMessage, response.getErrorResponse());
+				}
+				if (error != null) {
+					logEtcdError(methodName, exceptionMessage, error);
+					if (onFailure != null)
+						onFailure.failed(error);
+				}
+				return null;
+			}
+		}, null);
+	}
+
+	private void waitForPendingRequests() {
+		List<IFuture<EtcdResponse>> pending = null;
+		synchronized (pendingRequests) {
+			pending = new ArrayList<IFuture<EtcdResponse>>(pendingRequests);
+		}
+		for (IFuture<EtcdResponse> f : pending) {
+			try {
+				f.get(EtcdProtocol.READ_TIMEOUT);
+			} catch (Exception e) {
+				// logged by listener, if it failed
+			}
 		}
 	}
 
@@ -216,68 +656,145 @@ public class EtcdDiscoveryContainer extends AbstractDiscoveryContainerAdapter {
 
 		fireContainerEvent(new ContainerConnectingEvent(getID(), aTargetID, connectContext));
 
-		// set targetID from config
-		if (aTargetID == null) {
-			etcdTargetID = config.getTargetID();
-		} else {
-			if (!(aTargetID instanceof EtcdServiceID))
-				throw new ContainerConnectException("targetID must be of type EtcdServiceID"); //$NON-NLS-1$
-			etcdTargetID = (EtcdServiceID) aTargetID;
-		}
-		// Set sessionId from config
-		localSessionId = config.getSessionId();
-		if (localSessionId == null)
-			throw new ContainerConnectException("SessionId cannot be null"); //$NON-NLS-1$
-		this.keyPrefix = verifySlash("/" + getID().getName()); //$NON-NLS-1$
-
-		// Then set directory URL
-		this.dirUrl = this.etcdTargetID.getLocation().toString() + this.keyPrefix;
-
-		String directoryUrl = getDirectoryUrl();
-		int sessionTTL = config.getSessionTTL();
+		// on failure, the container is left disconnected, so that connect
+		// may be retried
+		boolean sessionCreated = false;
+		boolean unreachable = false;
 		try {
-			EtcdResponse topResponse = new EtcdGetRequest(directoryUrl, true).execute();
-			if (topResponse.isError()) {
-				// if dir not present, try to create
-				topResponse = new EtcdSetRequest(directoryUrl).execute();
-				// If could not create then we cannot continue
-				if (topResponse.isError())
-					throw new ContainerConnectException("etcd directoryURL=" + directoryUrl + " could not be created"); //$NON-NLS-1$ //$NON-NLS-2$
-			}
-			EtcdNode tn = topResponse.getSuccessResponse().getNode();
-			// If the topNode is not a directory, then we can't continue
-			if (!tn.isDirectory())
-				throw new ContainerConnectException("etcd directoryUrl=" + directoryUrl + " is not a directory"); //$NON-NLS-1$//$NON-NLS-2$
-			// Set the top node for later discovery via watch job
-			this.topNode = tn;
-			// create a directory with our unique sessionid
-			EtcdResponse sessionExistsResponse = new EtcdSetRequest(directoryUrl + localSessionId, sessionTTL)
-					.execute();
-			if (sessionExistsResponse.isError())
-				throw new ContainerConnectException("Could not create etcd session directory for sessionDirectory=" //$NON-NLS-1$
-						+ directoryUrl + localSessionId);
-			trace("connect","client connected to etcd server at url="+ directoryUrl + localSessionId + " ttl="+sessionTTL); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
-			// set watchIndex to createdIndex + 1
-			watchIndex = sessionExistsResponse.getSuccessResponse().getNode().getCreatedIndex() + 1;
-		} catch (EtcdException e) {
-			throw new ContainerConnectException("Could not communicate with etcd server at url=" + directoryUrl, e); //$NON-NLS-1$
-		}
+			// set targetID from config
+			if (aTargetID == null) {
+				etcdTargetID = config.getTargetID();
+			} else {
+				if (!(aTargetID instanceof EtcdServiceID))
+					throw new ContainerConnectException("targetID must be of type EtcdServiceID"); //$NON-NLS-1$
+				etcdTargetID = (EtcdServiceID) aTargetID;
+			}
+			// Set sessionId from config
+			localSessionId = config.getSessionId();
+			if (localSessionId == null)
+				throw new ContainerConnectException("SessionId cannot be null"); //$NON-NLS-1$
+			this.keyPrefix = verifySlash("/" + getID().getName()); //$NON-NLS-1$
+
+			// Then set backend for api version and directory key
+			this.backend = createBackend(config);
+			this.dirKey = this.keyPrefix;
+			this.layout = new EtcdKeyLayout(config.getKeyLayout());
+			// with the types layout, only the subtrees of the types of interest
+			// are read and watched
+			List<String> watchedTypes = layout.isByType() ? config.getServiceTypes() : null;
+
+			String directoryUrl = this.etcdTargetID.getLocation().toString() + this.dirKey;
+			int sessionTTL = config.getSessionTTL();
+			EtcdNode tn = null;
+			long topIndex = -1;
+			if (config.getSnapshotDirectory() != null) {
+				snapshotStore = new EtcdSnapshotStore(new File(config.getSnapshotDirectory()), getID().getName());
+				// known (as stale) even if etcd cannot be reached. Still known
+				// if restored by a connect that could not reach etcd.
+				restored = restoreSnapshot() || restored;
+			}
+			try {
+				EtcdResponse topResponse = backend.createGetRequest(dirKey, watchedTypes == null).execute();
+				if (topResponse.isError()) {
+					// if dir not present, try to create
+					topResponse = backend.createDirectoryRequest(dirKey, 0, false).execute();
+					// If could not create then we cannot continue
+					if (topResponse.isError())
+						throw new ContainerConnectException("etcd directoryURL=" + directoryUrl + " could not be created"); //$NON-NLS-1$ //$NON-NLS-2$
+				}
+				tn = topResponse.getSuccessResponse().getNode();
+				topIndex = getResponseIndex(topResponse);
+				// If the topNode is not a directory, then we can't continue
+				if (!tn.isDirectory())
+					throw new ContainerConnectException("etcd directoryUrl=" + directoryUrl + " is not a directory"); //$NON-NLS-1$//$NON-NLS-2$
+				// create a directory with our unique sessionid
+				EtcdResponse sessionExistsResponse = backend.createDirectoryRequest(dirKey + localSessionId, sessionTTL,
+						false).execute();
+				if (sessionExistsResponse.isError())
+					throw new ContainerConnectException("Could not create etcd session directory for sessionDirectory=" //$NON-NLS-1$
+							+ directoryUrl + localSessionId);
+				trace("connect","client connected to etcd server at url="+ directoryUrl + localSessionId + " ttl="+sessionTTL); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+				sessionCreated = true;
+				// set watchIndex to createdIndex + 1
+				watchIndex = sessionExistsResponse.getSuccessResponse().getNode().getCreatedIndex() + 1;
+			} catch (EtcdException e) {
+				unreachable = true;
+				throw new ContainerConnectException("Could not communicate with etcd server at url=" + directoryUrl, e); //$NON-NLS-1$
+			}
 		
-		ttlJob = new EtcdTTLJob(sessionTTL);
-		watchJob = new EtcdWatchJob();
-		// schedule ttlJob right away
-		ttlJob.schedule();
+			EtcdWatchJob topJob = null;
+			synchronized (services) {
+				// the watches of several types share one long poll, rather
+				// than holding a pooled watch connection each
+				if (config.isWatchHub() || (watchedTypes != null && watchedTypes.size() > 1))
+					watchHub = EtcdWatchHub.acquire(getClusterKey(config), backend);
+				if (watchedTypes == null) {
+					// the top node is used for discovery by the watch job, which
+					// watches from the index it was read at (if known)
+					topJob = new EtcdWatchJob(dirKey, null, tn, (topIndex < 0) ? watchIndex : topIndex + 1);
+					watchJobs.add(topJob);
+				} else
+					for (String typeName : watchedTypes)
+						watchJobs.add(new EtcdWatchJob(dirKey + EtcdKeyLayout.getTypeDirectory(typeName), typeName,
+								null, watchIndex));
+			}
+			EtcdSessionHeartbeat heartbeat = new EtcdSessionHeartbeat(sessionTTL);
+			EtcdHeartbeatScheduler scheduler = EtcdHeartbeatScheduler.getDefault();
+			sessionHeartbeat = scheduler.schedule(heartbeat, heartbeat.getRefreshTime());
+			if (snapshotStore != null) {
+				final long interval = config.getSnapshotInterval();
+				snapshotHeartbeat = scheduler.schedule(new EtcdHeartbeatScheduler.Heartbeat() {
+					public long beat() {
+						saveSnapshot();
+						return interval;
+					}
+				}, interval);
+			}
+			if (config.isFastStart()) {
+				// the services read are known before connect returns. The
+				// subtrees of the types are read by their jobs, in parallel.
+				if (topJob != null)
+					topJob.sync();
+				synchronized (services) {
+					startWatchJob();
+				}
+			}
+		} catch (ContainerConnectException e) {
+			abortConnect(sessionCreated, unreachable);
+			throw e;
+		} catch (RuntimeException e) {
+			abortConnect(sessionCreated, false);
+			throw e;
+		}
 		// Fire container connected event
 		fireContainerEvent(new ContainerConnectedEvent(this.getID(), aTargetID));
 	}
 
-	EtcdNode topNode;
+	private IEtcdBackend createBackend(EtcdDiscoveryContainerConfig config) {
+		String location = this.etcdTargetID.getLocation().toString();
+		// with several members, requests go to the healthiest one
+		List<URL> members = config.getClusterMembers();
+		IEtcdTransport transport = (members.size() > 1) ? new EtcdClusterTransport(members) : null;
+		if (EtcdDiscoveryContainerConfig.ETCD_API_V3.equals(config.getApiVersion()))
+			return new EtcdV3Backend(location, transport);
+		return new EtcdV2Backend(location, transport);
+	}
+
+	private String getClusterKey(EtcdDiscoveryContainerConfig config) {
+		return config.getApiVersion() + " " + this.etcdTargetID.getLocation() + " " + config.getClusterMembers(); //$NON-NLS-1$ //$NON-NLS-2$
+	}
+
+	private IEtcdWatch createWatch(String key, long fromIndex) {
+		return (watchHub != null) ? watchHub.createWatch(key, fromIndex) : backend.createWatch(key, fromIndex);
+	}
 
 	private void startWatchJob() {
-		if (watchJob != null && watchJob.getState() == Job.NONE) {
-			trace("startWatchJob", "starting watchJob");  //$NON-NLS-1$//$NON-NLS-2$
-			int startDelay = getEtcdConfig().getStartDelay();
-			watchJob.schedule(startDelay);
+		for (EtcdWatchJob watchJob : watchJobs) {
+			if (!watchJob.isActive()) {
+				trace("startWatchJob", "starting watchJob for key=" + watchJob.key); //$NON-NLS-1$//$NON-NLS-2$
+				EtcdDiscoveryContainerConfig config = getEtcdConfig();
+				watchJob.start(config.isFastStart() ? 0 : config.getStartDelay());
+			}
 		}
 	}
 	
@@ -286,6 +803,8 @@ public class EtcdDiscoveryContainer extends AbstractDiscoveryContainerAdapter {
 			startWatchJob();
 		}
 		super.addServiceListener(aListener);
+		if (getEtcdConfig().isFastStart())
+			fireKnownServices(aListener, services.getSnapshot().getServices());
 	}
 	
 	public void addServiceListener(final IServiceTypeID aType, final IServiceListener aListener) {
@@ -293,6 +812,24 @@ public class EtcdDiscoveryContainer extends AbstractDiscoveryContainerAdapter {
 			startWatchJob();
 		}
 		super.addServiceListener(aType, aListener);
+		if (getEtcdConfig().isFastStart())
+			fireKnownServices(aListener, services.getSnapshot().getServices(aType));
+	}
+
+	/**
+	 * With fast start, services are discovered before listeners are added,
+	 * so a listener added gets discovered events for the services known. A
+	 * service discovered concurrently may be delivered twice.
+	 */
+	private void fireKnownServices(final IServiceListener listener, List<IServiceInfo> serviceInfos) {
+		for (IServiceInfo serviceInfo : serviceInfos) {
+			final IServiceEvent event = new ServiceContainerEvent(serviceInfo, getConfig().getID());
+			eventDispatcher.dispatch(listener, new Runnable() {
+				public void run() {
+					listener.serviceDiscovered(event);
+				}
+			});
+		}
 	}
 	
 	public void addServiceTypeListener(IServiceTypeListener aListener) {
@@ -313,159 +850,723 @@ public class EtcdDiscoveryContainer extends AbstractDiscoveryContainerAdapter {
 		if (etcdTargetID != null) {
 			ID anID = getConnectedID();
 			fireContainerEvent(new ContainerDisconnectingEvent(this.getID(), anID));
+			// let outstanding set/delete requests complete before session is removed
+			waitForPendingRequests();
+			stopJobs();
+			saveSnapshot();
+			// delete our sessionId from etcd service
+			List<String> sessionKeys = getSessionDirectoryKeys();
+			sessionKeys.add(getDirectoryKey() + this.localSessionId);
+			deleteSessionKeys(sessionKeys);
+			clearConnection(false);
+			fireContainerEvent(new ContainerDisconnectedEvent(this.getID(), anID));
+		}
+	}
+
+	/**
+	 * Stop the heartbeats and watch jobs, and release the watch hub.
+	 */
+	private void stopJobs() {
+		// jobs are stopped and the session deleted without holding the
+		// services monitor, as the jobs synchronize on it too
+		EtcdHeartbeatScheduler.Registration[] hbs = null;
+		List<EtcdWatchJob> wjs = null;
+		synchronized (services) {
+			hbs = new EtcdHeartbeatScheduler.Registration[] { sessionHeartbeat, snapshotHeartbeat };
+			sessionHeartbeat = null;
+			snapshotHeartbeat = null;
+			wjs = new ArrayList<EtcdWatchJob>(watchJobs);
+			watchJobs.clear();
+		}
+		// waits for a beat being run
+		for (EtcdHeartbeatScheduler.Registration hb : hbs)
+			if (hb != null)
+				hb.cancel();
+		for (EtcdWatchJob wj : wjs) {
+			wj.stop();
+			IEtcdWatch w = null;
 			synchronized (services) {
-				// delete our sessionId from etcd service
-				try {
-					new EtcdDeleteRequest(getDirectoryUrl() + this.localSessionId, true).execute();
-				} catch (EtcdException e) {
-					logEtcdError("shutdownEtcdConnection", "Error with etcd shutdown", e); //$NON-NLS-1$ //$NON-NLS-2$
-				}
+				w = wj.watch;
+			}
+			if (w != null)
+				w.close();
+		}
+		for (EtcdWatchJob wj : wjs) {
+			try {
+				wj.awaitStop();
+			} catch (InterruptedException e) {
+			}
+		}
+		synchronized (services) {
+			if (watchHub != null) {
+				watchHub.release();
+				watchHub = null;
+			}
+		}
+	}
+
+	private void deleteSessionKeys(List<String> sessionKeys) {
+		for (String sessionKey : sessionKeys) {
+			try {
+				backend.createDeleteRequest(sessionKey, true).execute();
+			} catch (EtcdException e) {
+				logEtcdError("shutdownEtcdConnection", "Error with etcd shutdown", e); //$NON-NLS-1$ //$NON-NLS-2$
+			}
+		}
+	}
+
+	/**
+	 * Forget the connection state and, unless kept, the services (including
+	 * those restored from the snapshot).
+	 *
+	 * @param keepServices
+	 *            <code>true</code> to keep the services known, e.g. restored
+	 *            (as stale) from the snapshot
+	 */
+	private void clearConnection(boolean keepServices) {
+		synchronized (sessionDirectories) {
+			sessionDirectories.clear();
+		}
+		synchronized (excludedKeys) {
+			excludedKeys.clear();
+		}
+		synchronized (services) {
+			if (!keepServices) {
 				services.clear();
-				etcdTargetID = null;
-				localSessionId = null;
-				keyPrefix = null;
-				dirUrl = null;
-				if (ttlJob != null) {
-					ttlJob.cancel();
-					try {
-						ttlJob.join();
-					} catch (InterruptedException e) {
-					}
-					ttlJob = null;
-				}
-				if (watchJob != null) {
-					watchJob.cancel();
-					try {
-						watchJob.join();
-					} catch (InterruptedException e) {
-					}
-					watchJob = null;
+				eventCoalescer.reset();
+				restored = false;
+			}
+			snapshotStore = null;
+			savedVersion = -1;
+			etcdTargetID = null;
+			localSessionId = null;
+			keyPrefix = null;
+			dirKey = null;
+			backend = null;
+		}
+	}
+
+	/**
+	 * Undo a connect that failed, leaving the container disconnected.
+	 *
+	 * @param sessionCreated
+	 *            <code>true</code> if the session directory was created
+	 * @param unreachable
+	 *            <code>true</code> if etcd could not be reached: the services
+	 *            restored from the snapshot are kept, as stale
+	 */
+	private void abortConnect(boolean sessionCreated, boolean unreachable) {
+		stopJobs();
+		if (sessionCreated) {
+			List<String> sessionKeys = new ArrayList<String>();
+			sessionKeys.add(dirKey + localSessionId);
+			deleteSessionKeys(sessionKeys);
+		}
+		clearConnection(unreachable);
+	}
+
+	/**
+	 * Add the services of the snapshot file (other than this session's) as
+	 * stale, unless services are known already.
+	 *
+	 * @return <code>true</code> if services were restored
+	 */
+	private boolean restoreSnapshot() {
+		if (services.size() > 0)
+			return false;
+		List<EtcdSnapshotStore.Record> records = new ArrayList<EtcdSnapshotStore.Record>();
+		long index;
+		try {
+			index = snapshotStore.read(records);
+		} catch (IOException e) {
+			logEtcdError("restoreSnapshot", "Could not read snapshot file " + snapshotStore.getFile(), e); //$NON-NLS-1$ //$NON-NLS-2$
+			return false;
+		}
+		if (index < 0)
+			return false;
+		services.beginBatch();
+		try {
+			for (EtcdSnapshotStore.Record record : records) {
+				if (record.sessionId.equals(localSessionId))
+					continue;
+				try {
+					EtcdServiceInfo si = EtcdServiceInfo.deserializeFromString(record.value);
+					EtcdServiceInfoKey key = new EtcdServiceInfoKey(record.sessionId, record.serviceInfoId);
+					services.put(key, si, record.modifiedIndex);
+					fireServiceTypeDiscovered(si.getServiceID().getServiceTypeID());
+					fireServiceDiscovered(key, si);
+				} catch (JSONException e) {
+					logEtcdError("restoreSnapshot", "Error deserializing snapshot record for serviceInfoId=" //$NON-NLS-1$ //$NON-NLS-2$
+							+ record.serviceInfoId, e);
 				}
 			}
-			fireContainerEvent(new ContainerDisconnectedEvent(this.getID(), anID));
+			services.setStale(true);
+		} finally {
+			services.endBatch(index);
+			fireBatchEvents();
+		}
+		trace("restoreSnapshot", "restored " + records.size() + " services from " + snapshotStore.getFile()); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+		return true;
+	}
+
+	/**
+	 * Write the remote services to the snapshot file, if configured and
+	 * changed since last written.
+	 */
+	private void saveSnapshot() {
+		EtcdSnapshotStore store = snapshotStore;
+		EtcdServiceSnapshot snapshot = services.getSnapshot();
+		if (store == null || snapshot.getVersion() == savedVersion)
+			return;
+		Map<EtcdServiceInfoKey, EtcdServiceRegistry.Entry> entries = services.copyEntries();
+		List<EtcdSnapshotStore.Record> records = new ArrayList<EtcdSnapshotStore.Record>(entries.size());
+		try {
+			for (EtcdServiceInfoKey key : entries.keySet()) {
+				EtcdServiceRegistry.Entry entry = entries.get(key);
+				// only discovered services, not those of this session
+				if (entry.modifiedIndex >= 0 && !key.matchSessionId(localSessionId))
+					records.add(new EtcdSnapshotStore.Record(key.getSessionId(), key.getServiceInfoId(),
+							entry.modifiedIndex, entry.serviceInfo.serializeToCompactString()));
+			}
+			store.write(snapshot.getIndex(), records);
+		} catch (Exception e) {
+			logEtcdError("saveSnapshot", "Could not write snapshot file " + store.getFile(), e); //$NON-NLS-1$ //$NON-NLS-2$
 		}
+		savedVersion = snapshot.getVersion();
 	}
 
-	public class EtcdTTLJob extends Job {
+	/**
+	 * Refreshes the ttl of the session's directories when they are due, i.e.
+	 * after nine tenths of the ttl. While etcd cannot be reached, it retries
+	 * (and probes the open circuit) as the retry policy allows.
+	 */
+	private class EtcdSessionHeartbeat implements EtcdHeartbeatScheduler.Heartbeat {
 
+		// shortest delay of a retry
 		private static final int DELAY = 1000;
-		private int ttl;
-		
-		public EtcdTTLJob(int ttl) {
-			super("Etcd TTL Job"); //$NON-NLS-1$
+		private final int ttl;
+
+		EtcdSessionHeartbeat(int ttl) {
 			this.ttl = ttl;
 		}
 
-		private long getStartWaitTime() {
+		long getRefreshTime() {
 			long kttl = this.ttl * 1000;
 			return kttl - (kttl / 10);
 		}
 
 		void trace(String message) {
-			LogUtility.trace("run", DebugOptions.TTLJOB, EtcdTTLJob.class, message); //$NON-NLS-1$
+			LogUtility.trace("beat", DebugOptions.TTLJOB, EtcdSessionHeartbeat.class, message); //$NON-NLS-1$
 		}
 
-		@Override
-		protected IStatus run(IProgressMonitor arg0) {
-			trace("Etcd TTL Job starting"); //$NON-NLS-1$
-			long waittime = getStartWaitTime();
-			while (true) {
-				if (arg0.isCanceled())
-					return Status.CANCEL_STATUS;
-				synchronized (this) {
-					try {
-						Thread.sleep(DELAY);
-						if (arg0.isCanceled())
-							return Status.CANCEL_STATUS;
-						waittime -= DELAY;
-						if (waittime <= 0) {
-							try {
-								new EtcdSetRequest(getDirectoryUrl() + EtcdDiscoveryContainer.this.localSessionId,
-										this.ttl, true).execute();
-							} catch (EtcdException e) {
-								logEtcdError("TTLJob.run", "Exception sending ttl update", e); //$NON-NLS-1$//$NON-NLS-2$
-							}
-							waittime = getStartWaitTime();
-						}
-					} catch (InterruptedException e) {
-						logEtcdError("TTLJob.run", "InterruptedException in ttl update", e); //$NON-NLS-1$//$NON-NLS-2$
-					}
+		public long beat() {
+			if (!retryPolicy.allowRequest()) {
+				// another request is probing, or the retry is not due yet
+				return Math.max(DELAY, retryPolicy.getRetryDelay());
+			}
+			trace("refreshing session ttl=" + ttl); //$NON-NLS-1$
+			IEtcdBackend b = backend;
+			if (b == null)
+				return getRefreshTime();
+			try {
+				if (!refresh(b)) {
+					// expired, e.g. while etcd could not be reached for longer
+					// than the ttl. Not recovered until created again.
+					trace("session expired, recreating it"); //$NON-NLS-1$
+					recreate(b);
 				}
+			} catch (EtcdException e) {
+				retryFailed("heartbeat", "Exception sending ttl update", e); //$NON-NLS-1$ //$NON-NLS-2$
+				return Math.max(DELAY, retryPolicy.getRetryDelay());
+			}
+			retryPolicy.success();
+			return getRefreshTime();
+		}
+
+		/**
+		 * Refresh the ttl of the session's directories. If they share the
+		 * session lease, that is a single keepalive of the session directory.
+		 *
+		 * @return <code>false</code> if the session directory (or lease) or
+		 *         one of its directories no longer exists
+		 * @throws EtcdException
+		 *             if etcd could not be reached
+		 */
+		private boolean refresh(IEtcdBackend b) throws EtcdException {
+			List<String> sessionKeys = (getEtcdConfig().isLeaseSession() && b.sharesSessionLease()) ? new ArrayList<String>()
+					: getSessionDirectoryKeys();
+			sessionKeys.add(getDirectoryKey() + EtcdDiscoveryContainer.this.localSessionId);
+			boolean exists = true;
+			for (String sessionKey : sessionKeys) {
+				EtcdResponse response = b.createDirectoryRequest(sessionKey, this.ttl, true).execute();
+				if (!response.isError())
+					continue;
+				if (response.getErrorResponse().getErrorCode() == EtcdErrorResponse.ERRORCODE_KEY_NOT_FOUND)
+					exists = false;
+				else
+					logEtcdError("heartbeat", "Error response to ttl update for key=" + sessionKey, //$NON-NLS-1$ //$NON-NLS-2$
+							new EtcdException("Error response", response.getErrorResponse())); //$NON-NLS-1$
+			}
+			return exists;
+		}
+
+		/**
+		 * Create the expired session directory (with the v3 api, with a new
+		 * lease) and the directories of its types again, and set the local
+		 * services that expired with them.
+		 *
+		 * @throws EtcdException
+		 *             if they could not be created
+		 */
+		private void recreate(IEtcdBackend b) throws EtcdException {
+			String sessionKey = getDirectoryKey() + EtcdDiscoveryContainer.this.localSessionId;
+			EtcdResponse response = b.createDirectoryRequest(sessionKey, this.ttl, false).execute();
+			// unless only one of its directories expired
+			if (response.isError()
+					&& response.getErrorResponse().getErrorCode() != EtcdErrorResponse.ERRORCODE_NODE_EXIST)
+				throw new EtcdException("Could not recreate session directory " + sessionKey, //$NON-NLS-1$
+						response.getErrorResponse());
+			synchronized (sessionDirectories) {
+				sessionDirectories.clear();
+			}
+			Map<EtcdServiceInfoKey, EtcdServiceInfo> entries = services
+					.getEntries(EtcdDiscoveryContainer.this.localSessionId);
+			for (Map.Entry<EtcdServiceInfoKey, EtcdServiceInfo> entry : entries.entrySet()) {
+				EtcdServiceInfo si = entry.getValue();
+				if (!createSessionDirectory(si.getServiceID().getServiceTypeID()))
+					throw new EtcdException("Could not recreate session directory of serviceInfo=" + si); //$NON-NLS-1$
+				String siString;
+				try {
+					siString = serialize(si);
+				} catch (JSONException e) {
+					logEtcdError("heartbeat", "Exception serializing serviceInfo=" + si, e); //$NON-NLS-1$ //$NON-NLS-2$
+					continue;
+				}
+				response = b.createSetRequest(createFullKey(entry.getKey(), si), siString, getKeyTTL(si)).execute();
+				if (response.isError())
+					throw new EtcdException("Could not set serviceInfo=" + si, response.getErrorResponse()); //$NON-NLS-1$
 			}
+			trace("recreated session with services=" + entries.size()); //$NON-NLS-1$
 		}
 	}
 
-	private void setNewEtcdIndex(EtcdNode node) {
-		watchIndex = node.getModifiedIndex() + 1;
+	/**
+	 * @return keys of the directories of this session per service type (types
+	 *         layout only)
+	 */
+	private List<String> getSessionDirectoryKeys() {
+		List<String> results = new ArrayList<String>();
+		synchronized (sessionDirectories) {
+			for (String sessionDirectory : sessionDirectories)
+				results.add(getDirectoryKey() + sessionDirectory);
+		}
+		return results;
 	}
 
 	public class EtcdWatchJob extends Job {
 
-		public EtcdWatchJob() {
+		// longest wait for a retry before checking for cancel
+		private static final int DELAY = 1000;
+		// key of the directory watched
+		final String key;
+		// type of the services in it (types layout), or null for all
+		private final String typeName;
+		// node of the directory read on connect, or null to read it first
+		private EtcdNode topNode;
+		// index to watch from
+		private long index;
+		IEtcdWatch watch;
+		// counted down once the services below key are applied
+		final CountDownLatch synced = new CountDownLatch(1);
+		private boolean syncStarted;
+		// set once the services below key are up to date with etcd
+		volatile boolean reconciled;
+		// set when etcd no longer has the events from the watch's index
+		private boolean resyncNeeded;
+		// last error response to the watch, other than index cleared
+		private EtcdErrorResponse errorResponse;
+		// with virtual threads, the thread running the job (rather than the
+		// job manager), and the monitor it is canceled with
+		private volatile Thread thread;
+		private final IProgressMonitor monitor = new NullProgressMonitor();
+
+		/**
+		 * @param key
+		 *            key of the directory to watch
+		 * @param typeName
+		 *            name of the type whose directory it is, or
+		 *            <code>null</code> if the whole directory is watched
+		 * @param topNode
+		 *            the directory, read on connect, or <code>null</code> to
+		 *            read it when the job starts
+		 * @param fromIndex
+		 *            index to watch from, unless the directory is read when
+		 *            the job starts
+		 */
+		public EtcdWatchJob(String key, String typeName, EtcdNode topNode, long fromIndex) {
 			super("EtcdDiscovery Watch Job"); //$NON-NLS-1$
+			this.key = key;
+			this.typeName = typeName;
+			this.topNode = topNode;
+			this.index = fromIndex;
 		}
 
 		void trace(String methodName, String message) {
 			LogUtility.trace(methodName, DebugOptions.DEBUG, getClass(), message);
 		}
 
+		/**
+		 * Run the job on a virtual thread if enabled, otherwise schedule
+		 * it.
+		 *
+		 * @param delay
+		 *            delay in ms before it starts
+		 */
+		void start(final long delay) {
+			if (!EtcdVirtualThreads.isEnabled()) {
+				schedule(delay);
+				return;
+			}
+			monitor.setCanceled(false);
+			thread = EtcdVirtualThreads.start(getName(), new Runnable() {
+				public void run() {
+					long end = System.currentTimeMillis() + delay;
+					long wait = delay;
+					try {
+						while (wait > 0 && !monitor.isCanceled()) {
+							Thread.sleep(Math.min(wait, DELAY));
+							wait = end - System.currentTimeMillis();
+						}
+					} catch (InterruptedException e) {
+						return;
+					}
+					if (!monitor.isCanceled())
+						EtcdWatchJob.this.run(monitor);
+				}
+			});
+		}
+
+		/**
+		 * @return <code>true</code> if started and not done yet
+		 */
+		boolean isActive() {
+			if (!EtcdVirtualThreads.isEnabled())
+				return getState() != Job.NONE;
+			Thread t = thread;
+			return t != null && t.isAlive();
+		}
+
+		void stop() {
+			if (EtcdVirtualThreads.isEnabled())
+				monitor.setCanceled(true);
+			else
+				cancel();
+		}
+
+		void awaitStop() throws InterruptedException {
+			if (!EtcdVirtualThreads.isEnabled()) {
+				join();
+				return;
+			}
+			Thread t = thread;
+			if (t != null)
+				t.join();
+		}
+
+		/**
+		 * Apply the services below key (read on connect, or got now), once.
+		 * Called by the job, or by connect with fast start.
+		 */
+		void sync() {
+			synchronized (this) {
+				if (syncStarted)
+					return;
+				syncStarted = true;
+			}
+			try {
+				IEtcdBackend b = backend;
+				boolean read = topNode != null;
+				if (topNode == null && b != null) {
+					try {
+						EtcdResponse response = b.createGetRequest(key, true).execute();
+						// not found if no services of the type are registered
+						// yet
+						if (!response.isError())
+							topNode = response.getSuccessResponse().getNode();
+						read = !response.isError()
+								|| response.getErrorResponse().getErrorCode() == EtcdErrorResponse.ERRORCODE_KEY_NOT_FOUND;
+						long responseIndex = getResponseIndex(response);
+						if (read && responseIndex >= 0)
+							index = responseIndex + 1;
+					} catch (EtcdException e) {
+						// changes since connect are still replayed by the
+						// watch
+						logEtcdError("watchJob.run", "Could not get key=" + key, e); //$NON-NLS-1$ //$NON-NLS-2$
+					}
+				}
+				if (read && (topNode != null || restored)) {
+					services.beginBatch();
+					try {
+						// services restored from the snapshot file may be
+						// gone meanwhile
+						if (restored)
+							reconcile(topNode);
+						else
+							handleAddDirectory(topNode);
+					} finally {
+						services.endBatch(index - 1);
+						fireBatchEvents();
+					}
+					topNode = null;
+					if (restored)
+						reconciled();
+				} else if (restored)
+					// reconciled once etcd can be read
+					resyncNeeded = true;
+			} finally {
+				synced.countDown();
+			}
+		}
+
 		@Override
 		protected IStatus run(IProgressMonitor monitor) {
-			if (topNode != null) {
-				handleAddDirectory(topNode);
-				topNode = null;
-			}
+			sync();
 			// Now we loop and watch
+			synchronized (services) {
+				if (backend == null)
+					return Status.CANCEL_STATUS;
+				watch = createWatch(key, index);
+			}
 			while (!watchDone) {
 				if (monitor.isCanceled())
 					return Status.CANCEL_STATUS;
-				String url = getDirectoryUrl();
+				// the watch does not probe an open circuit, as its long poll
+				// may only complete with the next change
+				if (!retryPolicy.isRetryDue()) {
+					try {
+						retryPolicy.await(DELAY);
+					} catch (InterruptedException e) {
+						return Status.CANCEL_STATUS;
+					}
+					continue;
+				}
 				try {
-					EtcdResponse response = new EtcdWatchRequest(url, Integer.toString(watchIndex)).execute();
+					if (resyncNeeded) {
+						if (!resync())
+							return Status.CANCEL_STATUS;
+						retryPolicy.success();
+						continue;
+					}
+					EtcdResponse[] responses = watch.next();
 					if (monitor.isCanceled())
 						return Status.CANCEL_STATUS;
 					if (etcdTargetID == null || localSessionId == null)
 						return Status.CANCEL_STATUS;
-					if (response.isError()) {
-						logEtcdError("watchJobExec", "Etcd error response to watch request", //$NON-NLS-1$ //$NON-NLS-2$
-								new EtcdException("Error response", response.getErrorResponse())); //$NON-NLS-1$
-					} else {
-						EtcdSuccessResponse success = response.getSuccessResponse();
-						String action = success.getAction();
-						EtcdNode node = success.getNode();
-						if (node == null) {
-							logEtcdError("handleEtcdWatchResponse", "node in response cannot be null", //$NON-NLS-1$ //$NON-NLS-2$
-									new EtcdException("node cannot be null")); //$NON-NLS-1$
-							continue;
-						}
-						String fullKey = node.getKey();
-						String noPrefix = removeKeyPrefix(fullKey);
-						if (action.equals(EtcdProtocol.ACTION_DELETE) && fullKey.endsWith(localSessionId)) {
-							watchDone = true;
-							continue;
-						} else if (fullKey.endsWith(localSessionId) || noPrefix.startsWith(localSessionId)) {
-							setNewEtcdIndex(node);
-							continue;
-						} else {
-							handleEtcdWatchResponse(action, node);
-							setNewEtcdIndex(node);
-						}
+					long batchIndex = -1;
+					services.beginBatch();
+					try {
+						batchIndex = applyWatchResponses(responses);
+					} finally {
+						services.endBatch(batchIndex);
+						fireBatchEvents();
 					}
+					if (errorResponse != null) {
+						retryFailed("watchJob.run", "Etcd error response to watch request", //$NON-NLS-1$ //$NON-NLS-2$
+								new EtcdException("Error response", errorResponse)); //$NON-NLS-1$
+						errorResponse = null;
+					} else
+						retryPolicy.success();
 				} catch (Exception e) {
-					logEtcdError("watchJob.run", "Unexpected exception in watch job", e); //$NON-NLS-1$ //$NON-NLS-2$
+					if (monitor.isCanceled())
+						return Status.CANCEL_STATUS;
+					retryFailed("watchJob.run", "Unexpected exception in watch job", e); //$NON-NLS-1$ //$NON-NLS-2$
 				}
 			}
 			return Status.OK_STATUS;
 		}
+
+		/**
+		 * @return the highest modifiedIndex of the responses, or -1
+		 */
+		private long applyWatchResponses(EtcdResponse[] responses) {
+			long batchIndex = -1;
+			for (EtcdResponse response : responses) {
+				if (response.isError()) {
+					if (response.getErrorResponse().getErrorCode() == EtcdErrorResponse.ERRORCODE_EVENT_INDEX_CLEARED) {
+						// more changes than etcd keeps history for since
+						// the watch's index
+						trace("applyWatchResponses", "Watch index cleared for key=" + key + ", resyncing"); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+						resyncNeeded = true;
+						break;
+					}
+					errorResponse = response.getErrorResponse();
+					continue;
+				}
+				EtcdSuccessResponse success = response.getSuccessResponse();
+				String action = success.getAction();
+				EtcdNode node = success.getNode();
+				if (node == null) {
+					logEtcdError("handleEtcdWatchResponse", "node in response cannot be null", //$NON-NLS-1$ //$NON-NLS-2$
+							new EtcdException("node cannot be null")); //$NON-NLS-1$
+					continue;
+				}
+				batchIndex = Math.max(batchIndex, node.getModifiedIndex());
+				String relativeKey = removeKeyPrefix(node.getKey());
+				if (action.equals(EtcdProtocol.ACTION_DELETE) && relativeKey.equals(localSessionId)) {
+					// deleted and recreated by withdrawSession
+					if (consumePendingWithdraw())
+						continue;
+					watchDone = true;
+					break;
+				} else if (!isLocalSessionKey(relativeKey))
+					handleEtcdWatchResponse(action, node);
+			}
+			return batchIndex;
+		}
+
+		/**
+		 * Get the watched directory again, apply the difference to the
+		 * services known (so that only services added, changed or removed
+		 * meanwhile are fired) and watch again from the index of the get.
+		 *
+		 * @return <code>false</code> if disconnected meanwhile
+		 * @throws EtcdException
+		 *             if the directory could not be read. The watch is
+		 *             resynced on the next attempt.
+		 */
+		private boolean resync() throws EtcdException {
+			IEtcdBackend b = backend;
+			if (b == null)
+				return false;
+			watch.close();
+			EtcdResponse response = b.createGetRequest(key, true).execute();
+			EtcdNode node = null;
+			// not found if all entries below the key are gone
+			if (response.isError()
+					&& response.getErrorResponse().getErrorCode() != EtcdErrorResponse.ERRORCODE_KEY_NOT_FOUND)
+				throw new EtcdException("Could not resync watch for key=" + key, response.getErrorResponse()); //$NON-NLS-1$
+			if (!response.isError())
+				node = response.getSuccessResponse().getNode();
+			long index = getResponseIndex(response);
+			if (index < 0)
+				throw new EtcdException("No etcd index in response to resync get for key=" + key); //$NON-NLS-1$
+			services.beginBatch();
+			try {
+				reconcile(node);
+			} finally {
+				services.endBatch(index);
+				fireBatchEvents();
+			}
+			resyncs.incrementAndGet();
+			resyncNeeded = false;
+			reconciled();
+			synchronized (services) {
+				if (backend == null)
+					return false;
+				watch = createWatch(key, index + 1);
+			}
+			return true;
+		}
+
+		/**
+		 * Make the remote services below key those of the given directory,
+		 * firing only for services removed, added or changed.
+		 *
+		 * @param node
+		 *            the directory, or <code>null</code> if not found
+		 */
+		private void reconcile(EtcdNode node) {
+			Set<EtcdServiceInfoKey> present = new HashSet<EtcdServiceInfoKey>();
+			if (node != null)
+				collectRemoteKeys(node, present);
+			// only the services below key, found by the type index
+			Map<EtcdServiceInfoKey, EtcdServiceInfo> known = (typeName == null) ? services.getEntries(null)
+					: services.getTypeEntries(typeName);
+			for (EtcdServiceInfoKey siKey : known.keySet()) {
+				EtcdServiceInfo si = known.get(siKey);
+				if (siKey.matchSessionId(localSessionId) || present.contains(siKey))
+					continue;
+				if (services.remove(siKey, si))
+					fireServiceUndiscovered(siKey, si);
+			}
+			if (node != null)
+				addRemoteEntries(node);
+		}
+
+		/**
+		 * The services below key are up to date with etcd. Once so for all
+		 * jobs, services restored from the snapshot file are no longer
+		 * stale.
+		 */
+		private void reconciled() {
+			reconciled = true;
+			synchronized (services) {
+				for (EtcdWatchJob job : watchJobs)
+					if (!job.reconciled)
+						return;
+				services.setStale(false);
+			}
+		}
+
+		private void collectRemoteKeys(EtcdNode node, Set<EtcdServiceInfoKey> keys) {
+			EtcdNode[] nodes = node.getNodes();
+			if (nodes != null)
+				for (EtcdNode n : nodes)
+					if (isLocalSessionKey(removeKeyPrefix(n.getKey())))
+						continue;
+					else if (n.isDirectory())
+						collectRemoteKeys(n, keys);
+					else {
+						EtcdServiceInfoKey siKey = parseServiceInfoKey(n.getKey());
+						if (siKey != null)
+							keys.add(siKey);
+					}
+		}
+
+		private void addRemoteEntries(EtcdNode node) {
+			EtcdNode[] nodes = node.getNodes();
+			if (nodes != null)
+				for (EtcdNode n : nodes)
+					if (isLocalSessionKey(removeKeyPrefix(n.getKey())))
+						continue;
+					else if (n.isDirectory())
+						addRemoteEntries(n);
+					else
+						// fires only if new or changed
+						handleAddNode(n);
+		}
+	}
+
+	/**
+	 * @return etcd index a get response is up to date with, or -1 if unknown
+	 */
+	private static long getResponseIndex(EtcdResponse response) {
+		long index = response.getEtcdIndex();
+		if (response.isError())
+			return Math.max(index, response.getErrorResponse().getIndex());
+		EtcdNode node = response.getSuccessResponse().getNode();
+		// v3 has the revision of the get as the directory's index
+		return (node == null) ? index : Math.max(index, node.getModifiedIndex());
+	}
+
+	/**
+	 * @return <code>true</code> if relativeKey is a directory or entry of
+	 *         this session
+	 */
+	private boolean isLocalSessionKey(String relativeKey) {
+		String[] segments = relativeKey.split("/"); //$NON-NLS-1$
+		int last = segments.length - 1;
+		return segments[last].equals(localSessionId) || (last > 0 && segments[last - 1].equals(localSessionId));
 	}
 
 	private EtcdServiceInfoKey parseServiceInfoKey(String fullKey) {
 		fullKey = removeKeyPrefix(fullKey);
-		// Now split into sessionKey/serviceInfoKey
+		// Now split into sessionKey/serviceInfoKey, the last two segments in
+		// either layout
 		int slashIndex = fullKey.lastIndexOf('/');
 		if (slashIndex < 0)
 			return null;
-		String sessionKey = fullKey.substring(0, slashIndex);
+		String sessionKey = fullKey.substring(fullKey.lastIndexOf('/', slashIndex - 1) + 1, slashIndex);
 		String siKey = fullKey.substring(slashIndex + 1);
 		// Check to make sure sessionKey has UUID syntax
 		try {
@@ -493,12 +1594,12 @@ public class EtcdDiscoveryContainer extends AbstractDiscoveryContainerAdapter {
 		trace("handleRemoveNode", "node=" + node); //$NON-NLS-1$ //$NON-NLS-2$
 		EtcdServiceInfoKey key = parseServiceInfoKey(node.getKey());
 		if (key != null) {
-			EtcdServiceInfo si = null;
-			synchronized (services) {
-				si = services.remove(key);
+			synchronized (excludedKeys) {
+				excludedKeys.remove(key);
 			}
+			EtcdServiceInfo si = services.remove(key);
 			if (si != null)
-				fireServiceUndiscovered(key.getFullKey(), si);
+				fireServiceUndiscovered(key, si);
 
 		} else
 			logEtcdError("handleRemoveNode", "Could not get EtcdServiceInfoKey for node=" + node); //$NON-NLS-1$ //$NON-NLS-2$
@@ -506,41 +1607,72 @@ public class EtcdDiscoveryContainer extends AbstractDiscoveryContainerAdapter {
 
 	private void handleRemoveSession(String sessionKey) {
 		if (sessionKey != null) {
-			Map<EtcdServiceInfoKey, EtcdServiceInfo> removed = new HashMap<EtcdServiceInfoKey, EtcdServiceInfo>();
-			synchronized (services) {
-				for (Iterator<EtcdServiceInfoKey> it = services.keySet().iterator(); it.hasNext();) {
-					EtcdServiceInfoKey key = it.next();
-					if (key.matchSessionId(sessionKey)) {
-						EtcdServiceInfo esi = services.get(key);
-						if (esi != null)
-							removed.put(key, esi);
-						it.remove();
-					}
-				}
+			synchronized (excludedKeys) {
+				for (Iterator<EtcdServiceInfoKey> i = excludedKeys.iterator(); i.hasNext();)
+					if (sessionKey.equals(i.next().getSessionId()))
+						i.remove();
 			}
+			Map<EtcdServiceInfoKey, EtcdServiceInfo> removed = services.removeSession(sessionKey);
 			for (EtcdServiceInfoKey key : removed.keySet())
-				fireServiceUndiscovered(key.getFullKey(), removed.get(key));
+				fireServiceUndiscovered(key, removed.get(key));
 		} else
 			logEtcdError("handleRemoveDirectory", "Could not remove sessionKey=" + sessionKey); //$NON-NLS-1$ //$NON-NLS-2$
 	}
 
 	private void handleRemoveDirectory(EtcdNode node) {
 		trace("handleRemoveDirectory", "node=" + node); //$NON-NLS-1$ //$NON-NLS-2$
-		handleRemoveSession(removeKeyPrefix(node.getKey()));
+		String relativeKey = removeKeyPrefix(node.getKey());
+		if (relativeKey.indexOf('/') < 0)
+			// a session's directory (flat layout) or marker
+			handleRemoveSession(relativeKey);
+		else
+			handleRemoveEntries(relativeKey);
+	}
+
+	/**
+	 * Remove the services with entries below the given directory, e.g. a
+	 * session's directory for a service type.
+	 */
+	private void handleRemoveEntries(String relativeKey) {
+		String prefix = verifySlash(relativeKey);
+		Map<EtcdServiceInfoKey, EtcdServiceInfo> candidates = services.getEntries(relativeKey
+				.substring(relativeKey.lastIndexOf('/') + 1));
+		if (candidates.isEmpty())
+			candidates = services.getEntries(null);
+		for (EtcdServiceInfoKey key : candidates.keySet()) {
+			EtcdServiceInfo si = candidates.get(key);
+			if (layout.getServiceKey(key, si.getServiceID().getServiceTypeID()).startsWith(prefix)
+					&& services.remove(key, si))
+				fireServiceUndiscovered(key, si);
+		}
 	}
 
 	private void handleAddNode(EtcdNode node) {
 		trace("handleAddNode", "node=" + node); //$NON-NLS-1$ //$NON-NLS-2$
 		EtcdServiceInfoKey siKey = parseServiceInfoKey(node.getKey());
 		if (siKey != null) {
+			int modifiedIndex = node.getModifiedIndex();
+			// unchanged since discovered, so no need to decode the value
+			if (services.isCurrent(siKey, modifiedIndex))
+				return;
+			List<String> serviceTypes = getEtcdConfig().getServiceTypes();
+			if (serviceTypes != null)
+				synchronized (excludedKeys) {
+					if (excludedKeys.contains(siKey))
+						return;
+				}
 			EtcdServiceInfo si = null;
 			try {
 				si = EtcdServiceInfo.deserializeFromString(node.getValue());
-				synchronized (services) {
-					services.put(siKey, si);
+				if (serviceTypes != null && !serviceTypes.contains(si.getServiceID().getServiceTypeID().getName())) {
+					synchronized (excludedKeys) {
+						excludedKeys.add(siKey);
+					}
+					return;
 				}
+				services.put(siKey, si, modifiedIndex);
 				fireServiceTypeDiscovered(si.getServiceID().getServiceTypeID());
-				fireServiceDiscovered(siKey.getFullKey(), si);
+				fireServiceDiscovered(siKey, si);
 			} catch (JSONException e) {
 				logEtcdError("handleEtcdServiceInfoAdd", "Error deserializing nodeValue for node=" + node, //$NON-NLS-1$ //$NON-NLS-2$
 						new EtcdException(e));
@@ -632,18 +1764,200 @@ public class EtcdDiscoveryContainer extends AbstractDiscoveryContainerAdapter {
 			handleUnexpectedAction(action, node);
 	}
 
-	private void fireServiceUndiscovered(String key, IServiceInfo iinfo) {
-		trace("fireServiceUndiscovered", "key=" + key + ",serviceInfo=" + iinfo); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
-		fireServiceUndiscovered(new ServiceContainerEvent(iinfo, getConfig().getID()));
+	// events of the batch being applied by a watch job, fired once the
+	// batch's snapshot is published
+	private final ThreadLocal<List<Runnable>> batchEvents = new ThreadLocal<List<Runnable>>() {
+		@Override
+		protected List<Runnable> initialValue() {
+			return new ArrayList<Runnable>();
+		}
+	};
+
+	private void fireEvent(Runnable event) {
+		if (services.isBatching())
+			batchEvents.get().add(event);
+		else
+			event.run();
+	}
+
+	// deliveries of the batch events being fired, by listener
+	private final ThreadLocal<Map<Object, List<Runnable>>> batchDeliveries = new ThreadLocal<Map<Object, List<Runnable>>>();
+
+	/**
+	 * Fire the events of the batch. Each listener is handed the batch's
+	 * events as a single dispatch, delivered back to back. Events held back
+	 * by the coalescing window are delivered on their own once it has
+	 * passed.
+	 */
+	private void fireBatchEvents() {
+		List<Runnable> events = new ArrayList<Runnable>(batchEvents.get());
+		batchEvents.remove();
+		if (events.isEmpty())
+			return;
+		Map<Object, List<Runnable>> deliveries = new LinkedHashMap<Object, List<Runnable>>();
+		batchDeliveries.set(deliveries);
+		try {
+			for (Runnable event : events)
+				event.run();
+		} finally {
+			batchDeliveries.remove();
+		}
+		for (Map.Entry<Object, List<Runnable>> entry : deliveries.entrySet())
+			eventDispatcher.dispatch(entry.getKey(), entry.getValue());
+	}
+
+	private void dispatch(Object listener, Runnable delivery) {
+		Map<Object, List<Runnable>> deliveries = batchDeliveries.get();
+		if (deliveries == null) {
+			eventDispatcher.dispatch(listener, delivery);
+			return;
+		}
+		List<Runnable> listenerDeliveries = deliveries.get(listener);
+		if (listenerDeliveries == null) {
+			listenerDeliveries = new ArrayList<Runnable>();
+			deliveries.put(listener, listenerDeliveries);
+		}
+		listenerDeliveries.add(delivery);
+	}
+
+	private void fireServiceUndiscovered(final EtcdServiceInfoKey key, final IServiceInfo iinfo) {
+		trace("fireServiceUndiscovered", "key=" + key.getFullKey() + ",serviceInfo=" + iinfo); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+		fireEvent(new Runnable() {
+			public void run() {
+				eventCoalescer.serviceUndiscovered(key, iinfo);
+			}
+		});
 	}
 
-	private void fireServiceDiscovered(String key, IServiceInfo iinfo) {
-		trace("fireServiceDiscovered", "key=" + key + ",serviceInfo=" + iinfo); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
-		fireServiceDiscovered(new ServiceContainerEvent(iinfo, getConfig().getID()));
+	private void fireServiceDiscovered(final EtcdServiceInfoKey key, final IServiceInfo iinfo) {
+		trace("fireServiceDiscovered", "key=" + key.getFullKey() + ",serviceInfo=" + iinfo); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+		fireEvent(new Runnable() {
+			public void run() {
+				eventCoalescer.serviceDiscovered(key, iinfo);
+			}
+		});
 	}
 
 	private void fireServiceTypeDiscovered(IServiceTypeID serviceTypeID) {
-		fireServiceTypeDiscovered(new ServiceTypeContainerEvent(serviceTypeID, getConfig().getID()));
+		final ServiceTypeContainerEvent event = new ServiceTypeContainerEvent(serviceTypeID, getConfig().getID());
+		fireEvent(new Runnable() {
+			public void run() {
+				fireServiceTypeDiscovered(event);
+			}
+		});
+	}
+
+	/**
+	 * Listener events are delivered by the event dispatcher rather than
+	 * synchronously, so that a slow listener does not stall the watch job.
+	 */
+	@Override
+	protected void fireServiceDiscovered(final IServiceEvent event) {
+		for (Object l : getListeners(event.getServiceInfo().getServiceID().getServiceTypeID())) {
+			final IServiceListener listener = (IServiceListener) l;
+			dispatch(listener, new Runnable() {
+				public void run() {
+					listener.serviceDiscovered(event);
+				}
+			});
+		}
+	}
+
+	@Override
+	protected void fireServiceUndiscovered(final IServiceEvent event) {
+		for (Object l : getListeners(event.getServiceInfo().getServiceID().getServiceTypeID())) {
+			final IServiceListener listener = (IServiceListener) l;
+			dispatch(listener, new Runnable() {
+				public void run() {
+					listener.serviceUndiscovered(event);
+				}
+			});
+		}
+	}
+
+	@Override
+	protected void fireServiceTypeDiscovered(final IServiceTypeEvent event) {
+		List<IServiceTypeListener> listeners = new ArrayList<IServiceTypeListener>();
+		synchronized (serviceTypeListeners) {
+			for (Object l : serviceTypeListeners)
+				listeners.add((IServiceTypeListener) l);
+		}
+		for (final IServiceTypeListener listener : listeners) {
+			dispatch(listener, new Runnable() {
+				public void run() {
+					listener.serviceTypeDiscovered(event);
+				}
+			});
+		}
+	}
+
+	/**
+	 * @return the dispatcher delivering events to this container's listeners,
+	 *         e.g. to read its metrics
+	 */
+	public EtcdEventDispatcher getEventDispatcher() {
+		return eventDispatcher;
+	}
+
+	/**
+	 * @return number of discovered/undiscovered transitions not delivered to
+	 *         listeners, as they cancelled out within the coalescing window
+	 * @see EtcdDiscoveryContainerConfig#getCoalesceWindow()
+	 */
+	public long getCoalescedEventCount() {
+		return eventCoalescer.getCoalescedCount();
+	}
+
+	/**
+	 * @return number of times a watch fell behind the events etcd keeps (etcd
+	 *         error 401, or a compacted revision with the v3 api) and the
+	 *         services were read again
+	 */
+	public int getWatchResyncCount() {
+		return resyncs.get();
+	}
+
+	/**
+	 * Wait until the services present in etcd on connect are known, i.e. the
+	 * watch jobs have applied the directories they read. With fast start,
+	 * connect has applied them already (flat layout) or the jobs read them
+	 * right after connect (types layout). Otherwise the watch jobs are
+	 * started now, and apply them after the start delay.
+	 *
+	 * @param timeout
+	 *            maximum time to wait in ms
+	 * @return <code>true</code> if the services are known,
+	 *         <code>false</code> if not connected or timed out
+	 * @throws InterruptedException
+	 * @see EtcdDiscoveryContainerConfig#isFastStart()
+	 */
+	public boolean awaitInitialSync(long timeout) throws InterruptedException {
+		List<EtcdWatchJob> jobs;
+		synchronized (services) {
+			if (etcdTargetID == null)
+				return false;
+			startWatchJob();
+			jobs = new ArrayList<EtcdWatchJob>(watchJobs);
+		}
+		long end = System.currentTimeMillis() + timeout;
+		for (EtcdWatchJob job : jobs)
+			if (!job.synced.await(Math.max(0, end - System.currentTimeMillis()), TimeUnit.MILLISECONDS))
+				return false;
+		return true;
+	}
+
+	/**
+	 * @return the retry policy of the container's loops talking to etcd, e.g.
+	 *         to read whether its circuit is open
+	 */
+	public EtcdRetryPolicy getRetryPolicy() {
+		return retryPolicy;
+	}
+
+	public void dispose() {
+		super.dispose();
+		eventCoalescer.reset();
+		eventDispatcher.close();
 	}
 
 	private void trace(String methodName, String message) {
@@ -658,61 +1972,145 @@ public class EtcdDiscoveryContainer extends AbstractDiscoveryContainerAdapter {
 		logEtcdError(method, message, null);
 	}
 
-	private void logAndThrowEtcdError(String method, String message, EtcdException e) {
-		logEtcdError(method, message, e);
-		throw new RuntimeException(message, e);
+	/**
+	 * Record a failure to reach etcd with the retry policy. Logged when the
+	 * backoff starts or the circuit opens, traced otherwise, so that an
+	 * outage does not flood the log.
+	 */
+	private void retryFailed(String method, String message, Throwable e) {
+		if (retryPolicy.failure())
+			logEtcdError(method, message + ". " + retryPolicy, e); //$NON-NLS-1$
+		else
+			trace(method, message + ". " + retryPolicy + " exception=" + e); //$NON-NLS-1$ //$NON-NLS-2$
+		// while the circuit is open, the session heartbeat probes etcd
+		EtcdHeartbeatScheduler.Registration hb = sessionHeartbeat;
+		if (hb != null && !EtcdRetryPolicy.STATE_CLOSED.equals(retryPolicy.getState()))
+			hb.expedite(retryPolicy.getRetryDelay());
+	}
+
+	/**
+	 * @return immutable snapshot of the known services, with the etcd index it
+	 *         reflects. Does not lock, and the snapshot does not change when
+	 *         services are discovered or undiscovered later.
+	 */
+	public EtcdServiceSnapshot getServiceSnapshot() {
+		return services.getSnapshot();
 	}
 
 	public IServiceInfo getServiceInfo(IServiceID aServiceID) {
-		synchronized (services) {
-			for (EtcdServiceInfo info : services.values())
-				if (info.getServiceID().equals(aServiceID))
-					return info;
-		}
-		return null;
+		return services.getSnapshot().getServiceInfo(aServiceID);
 	}
 
 	public IServiceInfo[] getServices() {
-		return services.values().toArray(new IServiceInfo[services.size()]);
+		List<IServiceInfo> results = services.getSnapshot().getServices();
+		return results.toArray(new IServiceInfo[results.size()]);
 	}
 
 	private Collection<EtcdServiceInfo> getLocalServices() {
-		List<EtcdServiceInfo> results = new ArrayList<EtcdServiceInfo>();
-		synchronized (services) {
-			for (EtcdServiceInfoKey key : services.keySet())
-				if (key.matchSessionId(this.localSessionId))
-					results.add(services.get(key));
-		}
-		return results;
+		return services.getSessionServices(this.localSessionId);
 	}
 
 	@Override
 	public void unregisterAllServices() {
-		synchronized (services) {
-			Collection<EtcdServiceInfo> locallyPublished = getLocalServices();
-			for (EtcdServiceInfo info : locallyPublished)
-				unregisterService(info);
-		}
+		if (getEtcdConfig().isFastWithdraw() && withdrawSession())
+			return;
+		// delete requests are sent without holding the services monitor
+		Collection<EtcdServiceInfo> locallyPublished = getLocalServices();
+		for (EtcdServiceInfo info : locallyPublished)
+			unregisterService(info);
 	}
 
-	public IServiceInfo[] getServices(IServiceTypeID aServiceTypeID) {
-		List<IServiceInfo> results = new ArrayList<IServiceInfo>();
-		synchronized (services) {
-			for (EtcdServiceInfo info : services.values()) {
-				IServiceTypeID stid = info.getServiceID().getServiceTypeID();
-				if (stid.equals(aServiceTypeID))
-					results.add(info);
+	/**
+	 * Withdraw all local services with a single recursive delete of the
+	 * session directory (with the v3 api, a revoke of the session's lease),
+	 * after which the session directory is created again. With the types
+	 * layout, the session's directory of each service type is deleted
+	 * instead, and created again on the next registration of the type. The
+	 * services are removed locally in a single {@link EtcdServiceSnapshot}.
+	 * 
+	 * @return <code>true</code> if the session directory was deleted. If
+	 *         not, the local services are restored.
+	 */
+	private boolean withdrawSession() {
+		String sessionId = this.localSessionId;
+		IEtcdBackend b = backend;
+		if (sessionId == null || b == null)
+			return false;
+		String sessionKey = getDirectoryKey() + sessionId;
+		boolean byType = layout.isByType();
+		Map<EtcdServiceInfoKey, EtcdServiceInfo> removed = services.removeSession(sessionId);
+		for (EtcdServiceInfoKey key : removed.keySet())
+			fireServiceUndiscovered(key, removed.get(key));
+		// let outstanding set requests complete, so they are deleted too
+		waitForPendingRequests();
+		List<String> deleteKeys = byType ? getSessionDirectoryKeys() : Collections.singletonList(sessionKey);
+		// the session marker stays with the types layout, so no delete of it
+		// is to be ignored by the watch job
+		if (!byType)
+			pendingWithdraws.incrementAndGet();
+		for (String deleteKey : deleteKeys) {
+			EtcdException error = null;
+			try {
+				EtcdResponse response = b.createDeleteRequest(deleteKey, true).execute();
+				if (response.isError())
+					error = new EtcdException("Error deleting session directory", response.getErrorResponse()); //$NON-NLS-1$
+			} catch (EtcdException e) {
+				error = e;
 			}
+			if (error != null && !isKeyNotFound(error)) {
+				if (!byType)
+					consumePendingWithdraw();
+				logEtcdError("withdrawSession", "Could not delete sessionKey=" + deleteKey, error); //$NON-NLS-1$ //$NON-NLS-2$
+				services.beginBatch();
+				try {
+					for (EtcdServiceInfoKey key : removed.keySet())
+						services.putIfAbsent(key, removed.get(key));
+				} finally {
+					services.endBatch(-1);
+				}
+				for (EtcdServiceInfoKey key : removed.keySet())
+					fireServiceDiscovered(key, removed.get(key));
+				return false;
+			}
+			if (byType) {
+				synchronized (sessionDirectories) {
+					sessionDirectories.remove(removeKeyPrefix(deleteKey));
+				}
+			} else if (error != null)
+				// already gone, so there will be no delete event
+				consumePendingWithdraw();
+		}
+		if (byType)
+			return true;
+		try {
+			EtcdResponse response = b.createDirectoryRequest(sessionKey, getEtcdConfig().getSessionTTL(), false)
+					.execute();
+			if (response.isError())
+				logEtcdError("withdrawSession", "Could not recreate sessionKey=" + sessionKey, //$NON-NLS-1$ //$NON-NLS-2$
+						new EtcdException("Error response", response.getErrorResponse())); //$NON-NLS-1$
+		} catch (EtcdException e) {
+			logEtcdError("withdrawSession", "Could not recreate sessionKey=" + sessionKey, e); //$NON-NLS-1$ //$NON-NLS-2$
 		}
+		return true;
+	}
+
+	private boolean consumePendingWithdraw() {
+		while (true) {
+			int pending = pendingWithdraws.get();
+			if (pending <= 0)
+				return false;
+			if (pendingWithdraws.compareAndSet(pending, pending - 1))
+				return true;
+		}
+	}
+
+	public IServiceInfo[] getServices(IServiceTypeID aServiceTypeID) {
+		List<IServiceInfo> results = services.getSnapshot().getServices(aServiceTypeID);
 		return results.toArray(new IServiceInfo[results.size()]);
 	}
 
 	public IServiceTypeID[] getServiceTypes() {
-		Set<IServiceTypeID> results = new HashSet<IServiceTypeID>();
-		synchronized (services) {
-			for (EtcdServiceInfo info : services.values())
-				results.add(info.getServiceID().getServiceTypeID());
-		}
+		Set<IServiceTypeID> results = services.getSnapshot().getServiceTypes();
 		return results.toArray(new IServiceTypeID[results.size()]);
 	}
 
@@ -721,14 +2119,7 @@ public class EtcdDiscoveryContainer extends AbstractDiscoveryContainerAdapter {
 	}
 
 	private EtcdServiceInfoKey findEtcdServiceInfoKey(IServiceID serviceID, boolean matchSessionId) {
-		synchronized (services) {
-			for (EtcdServiceInfoKey key : services.keySet()) {
-				EtcdServiceInfo info = services.get(key);
-				if (info.getServiceID().equals(serviceID) && key.matchSessionId(this.localSessionId))
-					return key;
-			}
-		}
-		return null;
+		return services.findKey(serviceID, this.localSessionId);
 	}
 
 	private String verifySlash(String prefix) {
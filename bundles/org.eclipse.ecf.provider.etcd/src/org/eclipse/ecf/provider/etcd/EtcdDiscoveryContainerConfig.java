@@ -11,7 +11,11 @@ package org.eclipse.ecf.provider.etcd;
 import java.net.MalformedURLException;
 import java.net.URISyntaxException;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.Executor;
 
 import org.eclipse.ecf.core.identity.IDFactory;
 import org.eclipse.ecf.discovery.DiscoveryContainerConfig;
@@ -34,16 +38,28 @@ public class EtcdDiscoveryContainerConfig extends DiscoveryContainerConfig {
 			+ ".port"; //$NON-NLS-1$
 	public static final Integer ETCD_TARGETID_PORT_DEFAULT = Integer
 			.getInteger(ETCD_TARGETID_PORT_PROP, 2379);
+	public static final String ETCD_API_V2 = "v2"; //$NON-NLS-1$
+	public static final String ETCD_API_V3 = "v3"; //$NON-NLS-1$
+	public static final String ETCD_API_PROP = EtcdDiscoveryContainerInstantiator.NAME
+			+ ".api"; //$NON-NLS-1$
+	public static final String ETCD_API_DEFAULT = System
+			.getProperty(ETCD_API_PROP);
+
 	public static final String ETCD_TARGETID_PATH_PROP = EtcdDiscoveryContainerInstantiator.NAME
 			+ ".path"; //$NON-NLS-1$
 	public static final String ETCD_TARGETID_PATH_DEFAULT = System.getProperty(
-			ETCD_TARGETID_PATH_PROP, "/v2/keys"); //$NON-NLS-1$
+			ETCD_TARGETID_PATH_PROP, ETCD_API_V3.equals(ETCD_API_DEFAULT) ? "/v3" : "/v2/keys"); //$NON-NLS-1$ //$NON-NLS-2$
 
 	public static final String ETCD_TARGETID_PROP = EtcdDiscoveryContainerInstantiator.NAME
 			+ ".targetid"; //$NON-NLS-1$
 	public static final String ETCD_TARGETID_DEFAULT = System
 			.getProperty(ETCD_TARGETID_PROP);
 
+	public static final String ETCD_MEMBERS_PROP = EtcdDiscoveryContainerInstantiator.NAME
+			+ ".members"; //$NON-NLS-1$
+	public static final String ETCD_MEMBERS_DEFAULT = System
+			.getProperty(ETCD_MEMBERS_PROP);
+
 	public static final String ETCD_SESSIONID_PROP = EtcdDiscoveryContainerInstantiator.NAME
 			+ ".sessionid"; //$NON-NLS-1$
 	public static final String ETCD_SESSIONID_DEFAULT = System
@@ -66,11 +82,125 @@ public class EtcdDiscoveryContainerConfig extends DiscoveryContainerConfig {
 	public static final String ETCD_STARTDELAY_PROP = EtcdDiscoveryContainerInstantiator.NAME + ".startDelay"; //$NON-NLS-1$
 	public static final int ETCD_STARTDELAY_DEFAULT = Integer.getInteger(ETCD_STARTDELAY_PROP, 5000);
 	
+	public static final String ETCD_VALUEFORMAT_PROP = EtcdDiscoveryContainerInstantiator.NAME + ".valueFormat"; //$NON-NLS-1$
+	public static final String ETCD_VALUEFORMAT_DEFAULT = System.getProperty(ETCD_VALUEFORMAT_PROP,
+			EtcdServiceInfo.FORMAT_JSON);
+
+	public static final String ETCD_COMPRESSTHRESHOLD_PROP = EtcdDiscoveryContainerInstantiator.NAME
+			+ ".compressThreshold"; //$NON-NLS-1$
+	public static final int ETCD_COMPRESSTHRESHOLD_DEFAULT = Integer.getInteger(ETCD_COMPRESSTHRESHOLD_PROP, -1);
+
+	public static final String ETCD_BATCHCONCURRENCY_PROP = EtcdDiscoveryContainerInstantiator.NAME
+			+ ".batchConcurrency"; //$NON-NLS-1$
+	public static final int ETCD_BATCHCONCURRENCY_DEFAULT = Integer.getInteger(ETCD_BATCHCONCURRENCY_PROP, 16);
+
+	public static final String ETCD_FASTWITHDRAW_PROP = EtcdDiscoveryContainerInstantiator.NAME
+			+ ".fastWithdraw"; //$NON-NLS-1$
+	public static final boolean ETCD_FASTWITHDRAW_DEFAULT = Boolean.getBoolean(ETCD_FASTWITHDRAW_PROP);
+
+	public static final String ETCD_EVENTTHREADS_PROP = EtcdDiscoveryContainerInstantiator.NAME
+			+ ".eventThreads"; //$NON-NLS-1$
+	public static final int ETCD_EVENTTHREADS_DEFAULT = Integer.getInteger(ETCD_EVENTTHREADS_PROP, 2);
+
+	public static final String ETCD_EVENTQUEUECAPACITY_PROP = EtcdDiscoveryContainerInstantiator.NAME
+			+ ".eventQueueCapacity"; //$NON-NLS-1$
+	public static final int ETCD_EVENTQUEUECAPACITY_DEFAULT = Integer.getInteger(ETCD_EVENTQUEUECAPACITY_PROP,
+			10000);
+
+	public static final String ETCD_EVENTOVERFLOW_PROP = EtcdDiscoveryContainerInstantiator.NAME
+			+ ".eventOverflow"; //$NON-NLS-1$
+	public static final String ETCD_EVENTOVERFLOW_DEFAULT = System.getProperty(ETCD_EVENTOVERFLOW_PROP,
+			EtcdEventDispatcher.OVERFLOW_BLOCK);
+
+	public static final String ETCD_COALESCEWINDOW_PROP = EtcdDiscoveryContainerInstantiator.NAME
+			+ ".coalesceWindow"; //$NON-NLS-1$
+	public static final int ETCD_COALESCEWINDOW_DEFAULT = Integer.getInteger(ETCD_COALESCEWINDOW_PROP, 0);
+
+	public static final String ETCD_FLAPPENALTY_PROP = EtcdDiscoveryContainerInstantiator.NAME
+			+ ".flapPenalty"; //$NON-NLS-1$
+	public static final int ETCD_FLAPPENALTY_DEFAULT = Integer.getInteger(ETCD_FLAPPENALTY_PROP, 0);
+
+	public static final String ETCD_FLAPMAXDELAY_PROP = EtcdDiscoveryContainerInstantiator.NAME
+			+ ".flapMaxDelay"; //$NON-NLS-1$
+	public static final int ETCD_FLAPMAXDELAY_DEFAULT = Integer.getInteger(ETCD_FLAPMAXDELAY_PROP, 60000);
+
+	public static final String KEY_LAYOUT_FLAT = "flat"; //$NON-NLS-1$
+	public static final String KEY_LAYOUT_TYPES = "types"; //$NON-NLS-1$
+	public static final String ETCD_KEYLAYOUT_PROP = EtcdDiscoveryContainerInstantiator.NAME
+			+ ".keyLayout"; //$NON-NLS-1$
+	public static final String ETCD_KEYLAYOUT_DEFAULT = System.getProperty(ETCD_KEYLAYOUT_PROP, KEY_LAYOUT_FLAT);
+
+	public static final String ETCD_SERVICETYPES_PROP = EtcdDiscoveryContainerInstantiator.NAME
+			+ ".serviceTypes"; //$NON-NLS-1$
+	public static final String ETCD_SERVICETYPES_DEFAULT = System.getProperty(ETCD_SERVICETYPES_PROP);
+
+	public static final String ETCD_RETRYMINDELAY_PROP = EtcdDiscoveryContainerInstantiator.NAME
+			+ ".retryMinDelay"; //$NON-NLS-1$
+	public static final int ETCD_RETRYMINDELAY_DEFAULT = Integer.getInteger(ETCD_RETRYMINDELAY_PROP, 1000);
+
+	public static final String ETCD_RETRYMAXDELAY_PROP = EtcdDiscoveryContainerInstantiator.NAME
+			+ ".retryMaxDelay"; //$NON-NLS-1$
+	public static final int ETCD_RETRYMAXDELAY_DEFAULT = Integer.getInteger(ETCD_RETRYMAXDELAY_PROP, 30000);
+
+	public static final String ETCD_CIRCUITFAILURETHRESHOLD_PROP = EtcdDiscoveryContainerInstantiator.NAME
+			+ ".circuitFailureThreshold"; //$NON-NLS-1$
+	public static final int ETCD_CIRCUITFAILURETHRESHOLD_DEFAULT = Integer.getInteger(
+			ETCD_CIRCUITFAILURETHRESHOLD_PROP, 3);
+
+	public static final String ETCD_FASTSTART_PROP = EtcdDiscoveryContainerInstantiator.NAME
+			+ ".fastStart"; //$NON-NLS-1$
+	public static final boolean ETCD_FASTSTART_DEFAULT = Boolean.getBoolean(ETCD_FASTSTART_PROP);
+
+	public static final String ETCD_SNAPSHOTDIRECTORY_PROP = EtcdDiscoveryContainerInstantiator.NAME
+			+ ".snapshotDirectory"; //$NON-NLS-1$
+	public static final String ETCD_SNAPSHOTDIRECTORY_DEFAULT = System.getProperty(ETCD_SNAPSHOTDIRECTORY_PROP);
+
+	public static final String ETCD_SNAPSHOTINTERVAL_PROP = EtcdDiscoveryContainerInstantiator.NAME
+			+ ".snapshotInterval"; //$NON-NLS-1$
+	public static final int ETCD_SNAPSHOTINTERVAL_DEFAULT = Integer.getInteger(ETCD_SNAPSHOTINTERVAL_PROP, 30000);
+
+	public static final String ETCD_WATCHHUB_PROP = EtcdDiscoveryContainerInstantiator.NAME
+			+ ".watchHub"; //$NON-NLS-1$
+	public static final boolean ETCD_WATCHHUB_DEFAULT = Boolean.getBoolean(ETCD_WATCHHUB_PROP);
+
+	public static final String ETCD_LEASESESSION_PROP = EtcdDiscoveryContainerInstantiator.NAME
+			+ ".leaseSession"; //$NON-NLS-1$
+	public static final boolean ETCD_LEASESESSION_DEFAULT = Boolean.valueOf(
+			System.getProperty(ETCD_LEASESESSION_PROP, "true")).booleanValue(); //$NON-NLS-1$
+
+	public static final String ETCD_ASYNCREGISTER_PROP = EtcdDiscoveryContainerInstantiator.NAME
+			+ ".asyncRegister"; //$NON-NLS-1$
+	public static final boolean ETCD_ASYNCREGISTER_DEFAULT = Boolean.getBoolean(ETCD_ASYNCREGISTER_PROP);
+
 	private EtcdServiceID targetID;
 	private String sessionId;
 	private long ttl = ETCD_TTL_DEFAULT.longValue();
 	private int sessionTTL = ETCD_SESSIONTTL_DEFAULT;
 	private int startDelay = ETCD_STARTDELAY_DEFAULT;
+	private String apiVersion = ETCD_API_DEFAULT;
+	private List<URL> clusterMembers;
+	private String valueFormat = ETCD_VALUEFORMAT_DEFAULT;
+	private int compressThreshold = ETCD_COMPRESSTHRESHOLD_DEFAULT;
+	private int batchConcurrency = ETCD_BATCHCONCURRENCY_DEFAULT;
+	private boolean fastWithdraw = ETCD_FASTWITHDRAW_DEFAULT;
+	private int eventThreads = ETCD_EVENTTHREADS_DEFAULT;
+	private int eventQueueCapacity = ETCD_EVENTQUEUECAPACITY_DEFAULT;
+	private String eventOverflow = ETCD_EVENTOVERFLOW_DEFAULT;
+	private Executor eventExecutor;
+	private long coalesceWindow = ETCD_COALESCEWINDOW_DEFAULT;
+	private long flapPenalty = ETCD_FLAPPENALTY_DEFAULT;
+	private long flapMaxDelay = ETCD_FLAPMAXDELAY_DEFAULT;
+	private String keyLayout = ETCD_KEYLAYOUT_DEFAULT;
+	private List<String> serviceTypes;
+	private long retryMinDelay = ETCD_RETRYMINDELAY_DEFAULT;
+	private long retryMaxDelay = ETCD_RETRYMAXDELAY_DEFAULT;
+	private int circuitFailureThreshold = ETCD_CIRCUITFAILURETHRESHOLD_DEFAULT;
+	private boolean fastStart = ETCD_FASTSTART_DEFAULT;
+	private String snapshotDirectory = ETCD_SNAPSHOTDIRECTORY_DEFAULT;
+	private long snapshotInterval = ETCD_SNAPSHOTINTERVAL_DEFAULT;
+	private boolean watchHub = ETCD_WATCHHUB_DEFAULT;
+	private boolean leaseSession = ETCD_LEASESESSION_DEFAULT;
+	private boolean asyncRegister = ETCD_ASYNCREGISTER_DEFAULT;
 	
 	public EtcdDiscoveryContainerConfig() throws MalformedURLException, URISyntaxException {
 		this(System.getProperty(ETCD_CONTAINERID_PROP,ETCD_CONTAINERID_DEFAULT));
@@ -79,6 +209,10 @@ public class EtcdDiscoveryContainerConfig extends DiscoveryContainerConfig {
 	public EtcdDiscoveryContainerConfig(String containerId)
 			throws MalformedURLException, URISyntaxException {
 		super(IDFactory.getDefault().createStringID(containerId));
+		if (ETCD_MEMBERS_DEFAULT != null)
+			setClusterMembers(ETCD_MEMBERS_DEFAULT.split(",")); //$NON-NLS-1$
+		if (ETCD_SERVICETYPES_DEFAULT != null)
+			setServiceTypes(ETCD_SERVICETYPES_DEFAULT.split(",")); //$NON-NLS-1$
 		setTargetID(null);
 		setSessionId(null);
 	}
@@ -110,7 +244,12 @@ public class EtcdDiscoveryContainerConfig extends DiscoveryContainerConfig {
 	private void setTargetID(String aTargetId) throws MalformedURLException,
 			URISyntaxException {
 		URL url = null;
-		if (aTargetId == null)
+		if (aTargetId == null && ETCD_TARGETID_DEFAULT == null
+				&& clusterMembers != null) {
+			URL member = clusterMembers.get(0);
+			url = new URL(member.getProtocol(), member.getHost(),
+					member.getPort(), ETCD_TARGETID_PATH_DEFAULT);
+		} else if (aTargetId == null)
 			url = (ETCD_TARGETID_DEFAULT != null) ? new URL(
 					ETCD_TARGETID_DEFAULT) : new URL(
 					ETCD_TARGETID_PROTOCOL_DEFAULT,
@@ -162,4 +301,381 @@ public class EtcdDiscoveryContainerConfig extends DiscoveryContainerConfig {
 	public void setStartDelay(int startDelay) {
 		this.startDelay = startDelay;
 	}
+
+	/**
+	 * @return the etcd api version to use, {@link #ETCD_API_V2} or
+	 *         {@link #ETCD_API_V3}. If not set explicitly, v3 is used if the
+	 *         target path starts with /v3 (e.g. http://localhost:2379/v3),
+	 *         otherwise v2.
+	 */
+	public String getApiVersion() {
+		if (this.apiVersion != null)
+			return this.apiVersion;
+		String path = this.targetID.getLocation().getPath();
+		return (path != null && path.startsWith("/" + ETCD_API_V3)) ? ETCD_API_V3 : ETCD_API_V2; //$NON-NLS-1$
+	}
+
+	public void setApiVersion(String apiVersion) {
+		this.apiVersion = apiVersion;
+	}
+
+	/**
+	 * @return format of service info values written to etcd,
+	 *         {@link EtcdServiceInfo#FORMAT_JSON} or
+	 *         {@link EtcdServiceInfo#FORMAT_COMPACT}. Values in any format are
+	 *         read, so compact should only be used once all members of a
+	 *         fleet can read it.
+	 */
+	public String getValueFormat() {
+		return this.valueFormat;
+	}
+
+	public void setValueFormat(String valueFormat) {
+		this.valueFormat = valueFormat;
+	}
+
+	/**
+	 * @return length from which service info values written to etcd are
+	 *         compressed. If negative (the default), values are never
+	 *         compressed. Compressed values are always read, so compression
+	 *         should only be enabled once all members of a fleet can read it.
+	 */
+	public int getCompressThreshold() {
+		return this.compressThreshold;
+	}
+
+	public void setCompressThreshold(int compressThreshold) {
+		this.compressThreshold = compressThreshold;
+	}
+
+	/**
+	 * @return maximum number of requests in flight for
+	 *         {@link EtcdDiscoveryContainer#registerServices(org.eclipse.ecf.discovery.IServiceInfo[])}
+	 *         and
+	 *         {@link EtcdDiscoveryContainer#unregisterServices(org.eclipse.ecf.discovery.IServiceInfo[])}
+	 */
+	public int getBatchConcurrency() {
+		return this.batchConcurrency;
+	}
+
+	public void setBatchConcurrency(int batchConcurrency) {
+		this.batchConcurrency = batchConcurrency;
+	}
+
+	/**
+	 * @return <code>true</code> if
+	 *         {@link EtcdDiscoveryContainer#unregisterAllServices()} withdraws
+	 *         the local services by deleting the session directory, rather
+	 *         than with a delete per service
+	 */
+	public boolean isFastWithdraw() {
+		return this.fastWithdraw;
+	}
+
+	public void setFastWithdraw(boolean fastWithdraw) {
+		this.fastWithdraw = fastWithdraw;
+	}
+
+	/**
+	 * @return number of threads delivering events to listeners, if no
+	 *         {@link #getEventExecutor()} is set. If 0, events are delivered
+	 *         synchronously by the thread that discovers them (e.g. the watch
+	 *         job).
+	 */
+	public int getEventThreads() {
+		return this.eventThreads;
+	}
+
+	public void setEventThreads(int eventThreads) {
+		this.eventThreads = eventThreads;
+	}
+
+	/**
+	 * @return maximum number of events queued per listener
+	 */
+	public int getEventQueueCapacity() {
+		return this.eventQueueCapacity;
+	}
+
+	public void setEventQueueCapacity(int eventQueueCapacity) {
+		this.eventQueueCapacity = eventQueueCapacity;
+	}
+
+	/**
+	 * @return what to do when a listener's event queue is full,
+	 *         {@link EtcdEventDispatcher#OVERFLOW_BLOCK},
+	 *         {@link EtcdEventDispatcher#OVERFLOW_DROP_OLDEST} or
+	 *         {@link EtcdEventDispatcher#OVERFLOW_DROP_NEWEST}
+	 */
+	public String getEventOverflow() {
+		return this.eventOverflow;
+	}
+
+	public void setEventOverflow(String eventOverflow) {
+		this.eventOverflow = eventOverflow;
+	}
+
+	/**
+	 * @return executor to deliver events to listeners on, or
+	 *         <code>null</code> (the default) to use
+	 *         {@link #getEventThreads()} threads of the container's own
+	 */
+	public Executor getEventExecutor() {
+		return this.eventExecutor;
+	}
+
+	public void setEventExecutor(Executor eventExecutor) {
+		this.eventExecutor = eventExecutor;
+	}
+
+	/**
+	 * @return time in ms over which the discovered/undiscovered transitions
+	 *         of a service are collapsed into their net change before being
+	 *         delivered to listeners. If 0 (the default), transitions are
+	 *         delivered as they happen.
+	 */
+	public long getCoalesceWindow() {
+		return this.coalesceWindow;
+	}
+
+	public void setCoalesceWindow(long coalesceWindow) {
+		this.coalesceWindow = coalesceWindow;
+	}
+
+	/**
+	 * @return time in ms added to a service's coalescing window each time
+	 *         the service flaps, i.e. changes more than once within a window.
+	 *         If 0 (the default), flapping services are not damped.
+	 */
+	public long getFlapPenalty() {
+		return this.flapPenalty;
+	}
+
+	public void setFlapPenalty(long flapPenalty) {
+		this.flapPenalty = flapPenalty;
+	}
+
+	/**
+	 * @return maximum time in ms the flap penalty delays a service's events
+	 */
+	public long getFlapMaxDelay() {
+		return this.flapMaxDelay;
+	}
+
+	public void setFlapMaxDelay(long flapMaxDelay) {
+		this.flapMaxDelay = flapMaxDelay;
+	}
+
+	/**
+	 * @return layout of the service entries below the container's directory,
+	 *         {@link #KEY_LAYOUT_FLAT} (the default, entries under their
+	 *         session) or {@link #KEY_LAYOUT_TYPES} (entries partitioned by
+	 *         service type, then session). All members of a fleet must use the
+	 *         same layout.
+	 */
+	public String getKeyLayout() {
+		return this.keyLayout;
+	}
+
+	public void setKeyLayout(String keyLayout) {
+		this.keyLayout = keyLayout;
+	}
+
+	/**
+	 * @return names of the service types to discover (see
+	 *         {@link IServiceTypeID#getName()}), or <code>null</code> (the
+	 *         default) to discover services of all types. With
+	 *         {@link #KEY_LAYOUT_TYPES}, only the entries of these types are
+	 *         read and watched.
+	 */
+	public List<String> getServiceTypes() {
+		return this.serviceTypes;
+	}
+
+	/**
+	 * @param serviceTypeNames
+	 *            service type names. If <code>null</code> or empty, services
+	 *            of all types are discovered.
+	 */
+	public void setServiceTypes(String... serviceTypeNames) {
+		if (serviceTypeNames == null || serviceTypeNames.length == 0) {
+			this.serviceTypes = null;
+			return;
+		}
+		List<String> types = new ArrayList<String>(serviceTypeNames.length);
+		for (String name : serviceTypeNames)
+			types.add(name.trim());
+		this.serviceTypes = Collections.unmodifiableList(types);
+	}
+
+	/**
+	 * @return delay in ms before retrying after the first failure to reach
+	 *         etcd. Doubled with each further failure, up to
+	 *         {@link #getRetryMaxDelay()}.
+	 * @see EtcdRetryPolicy
+	 */
+	public long getRetryMinDelay() {
+		return this.retryMinDelay;
+	}
+
+	public void setRetryMinDelay(long retryMinDelay) {
+		this.retryMinDelay = retryMinDelay;
+	}
+
+	/**
+	 * @return maximum delay in ms between retries while etcd cannot be
+	 *         reached
+	 */
+	public long getRetryMaxDelay() {
+		return this.retryMaxDelay;
+	}
+
+	public void setRetryMaxDelay(long retryMaxDelay) {
+		this.retryMaxDelay = retryMaxDelay;
+	}
+
+	/**
+	 * @return number of consecutive failures to reach etcd after which the
+	 *         circuit opens, i.e. only a single probe is sent until etcd
+	 *         answers again
+	 */
+	public int getCircuitFailureThreshold() {
+		return this.circuitFailureThreshold;
+	}
+
+	public void setCircuitFailureThreshold(int circuitFailureThreshold) {
+		this.circuitFailureThreshold = circuitFailureThreshold;
+	}
+
+	/**
+	 * @return <code>true</code> to apply the services read on connect before
+	 *         connect returns (flat layout), or right after in parallel
+	 *         (types layout), and to start watching at once rather than
+	 *         after {@link #getStartDelay()} and once a listener is added.
+	 *         Listeners added later get discovered events for the services
+	 *         already known. Default is <code>false</code>.
+	 * @see EtcdDiscoveryContainer#awaitInitialSync(long)
+	 */
+	public boolean isFastStart() {
+		return this.fastStart;
+	}
+
+	public void setFastStart(boolean fastStart) {
+		this.fastStart = fastStart;
+	}
+
+	/**
+	 * @return directory of the file the discovered services are saved to
+	 *         (named after the container id), or <code>null</code> (the
+	 *         default) for none. On connect, the services saved are known
+	 *         right away, flagged as stale (see
+	 *         {@link EtcdServiceSnapshot#isStale()}) until reconciled with
+	 *         etcd, also if etcd cannot be reached.
+	 */
+	public String getSnapshotDirectory() {
+		return this.snapshotDirectory;
+	}
+
+	public void setSnapshotDirectory(String snapshotDirectory) {
+		this.snapshotDirectory = snapshotDirectory;
+	}
+
+	/**
+	 * @return time in ms between writes of the snapshot file. It is written
+	 *         only if the services changed since, and on disconnect.
+	 */
+	public long getSnapshotInterval() {
+		return this.snapshotInterval;
+	}
+
+	public void setSnapshotInterval(long snapshotInterval) {
+		this.snapshotInterval = snapshotInterval;
+	}
+
+	/**
+	 * @return <code>true</code> to share etcd watches with the other
+	 *         containers (with this option) of the JVM that use the same
+	 *         cluster: a single watch on the common parent of their
+	 *         directories, whose changes are demultiplexed to the containers.
+	 *         Default is <code>false</code>. With {@link #KEY_LAYOUT_TYPES}
+	 *         and several service types, the watches of the types go through
+	 *         the hub in any case, so that they hold a single watch connection.
+	 */
+	public boolean isWatchHub() {
+		return this.watchHub;
+	}
+
+	public void setWatchHub(boolean watchHub) {
+		this.watchHub = watchHub;
+	}
+
+	/**
+	 * @return <code>true</code> to write service keys without a ttl of their
+	 *         own: they expire with the session directory they are in, so that
+	 *         the session heartbeat alone keeps them alive. With the v3 api,
+	 *         the directories of the session (per service type) share the
+	 *         session lease, and each beat is a single keepalive whatever the
+	 *         number of services. <code>false</code> to write service keys
+	 *         with the service ttl, as before. Default is <code>true</code>.
+	 */
+	public boolean isLeaseSession() {
+		return this.leaseSession;
+	}
+
+	public void setLeaseSession(boolean leaseSession) {
+		this.leaseSession = leaseSession;
+	}
+
+	/**
+	 * @return <code>true</code> to have registerService and unregisterService
+	 *         return before etcd has answered: the change is applied locally
+	 *         right away, and undone (and logged) if the request fails.
+	 *         <code>false</code> to wait for etcd, and throw a
+	 *         {@link RuntimeException} if the request fails. Default is
+	 *         <code>false</code>.
+	 */
+	public boolean isAsyncRegister() {
+		return this.asyncRegister;
+	}
+
+	public void setAsyncRegister(boolean asyncRegister) {
+		this.asyncRegister = asyncRegister;
+	}
+
+	/**
+	 * @return the etcd cluster members to send requests to. If not set
+	 *         explicitly, the target's location is the only member.
+	 */
+	public List<URL> getClusterMembers() {
+		if (this.clusterMembers != null)
+			return this.clusterMembers;
+		try {
+			return Collections.singletonList(this.targetID.getLocation().toURL());
+		} catch (MalformedURLException e) {
+			return Collections.emptyList();
+		}
+	}
+
+	/**
+	 * Set the etcd cluster members. Only the protocol, host and port of each
+	 * member url are used, the path is taken from the target (e.g.
+	 * http://host1:2379, http://host2:2379).
+	 * 
+	 * @param memberUrls
+	 *            member urls. If <code>null</code> or empty, the target's
+	 *            location is the only member.
+	 * @throws MalformedURLException
+	 */
+	public void setClusterMembers(String... memberUrls) throws MalformedURLException {
+		if (memberUrls == null || memberUrls.length == 0) {
+			this.clusterMembers = null;
+			return;
+		}
+		List<URL> members = new ArrayList<URL>(memberUrls.length);
+		for (String memberUrl : memberUrls) {
+			URL url = new URL(memberUrl.trim());
+			members.add(new URL(url.getProtocol(), url.getHost(), url.getPort(), "")); //$NON-NLS-1$
+		}
+		this.clusterMembers = Collections.unmodifiableList(members);
+	}
 }
@@ -0,0 +1,213 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Composent, Inc. All rights reserved. This
+ * program and the accompanying materials are made available under the terms of
+ * the Eclipse Public License v1.0 which accompanies this distribution, and is
+ * available at http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors: Scott Lewis - initial API and implementation
+ ******************************************************************************/
+package org.eclipse.ecf.provider.etcd;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.ecf.discovery.IServiceInfo;
+import org.eclipse.ecf.provider.etcd.EtcdDiscoveryContainer.EtcdServiceInfoKey;
+import org.json.JSONException;
+
+/**
+ * Collapses the discovered/undiscovered transitions of a service key into
+ * their net change. The first transition of a key opens a window; when it
+ * closes, listeners get only the difference between the service delivered
+ * before the window and the one present at its end. E.g. an undiscovered
+ * followed by a discovered of the same service (a node restarting, or a
+ * session ttl briefly lapsing) is not delivered at all.
+ * <p>
+ * Flap damping: each window that collapsed more than one transition adds the
+ * flap penalty to the key. The penalty runs down in real time, and while it
+ * lasts, the next window of the key is extended by what is left of it (up to
+ * the maximum delay), so a key that keeps flapping is delivered less and less
+ * often.
+ * <p>
+ * With neither a window nor a penalty configured, transitions are passed on
+ * right away.
+ */
+class EtcdEventCoalescer {
+
+	interface Target {
+		void serviceDiscovered(IServiceInfo serviceInfo);
+
+		void serviceUndiscovered(IServiceInfo serviceInfo);
+	}
+
+	static class KeyState {
+		// service last delivered as discovered, or null
+		IServiceInfo delivered;
+		// service present now, or null
+		IServiceInfo current;
+		boolean pending;
+		int transitions;
+		boolean undiscovered;
+		long penaltyUntil;
+	}
+
+	private final Target target;
+	private final long window;
+	private final long flapPenalty;
+	private final long flapMaxDelay;
+
+	// guarded by this
+	private final Map<EtcdServiceInfoKey, KeyState> states = new HashMap<EtcdServiceInfoKey, KeyState>();
+	private ScheduledThreadPoolExecutor timer;
+	private long coalesced;
+
+	EtcdEventCoalescer(Target target, long window, long flapPenalty, long flapMaxDelay) {
+		this.target = target;
+		this.window = Math.max(0, window);
+		this.flapPenalty = Math.max(0, flapPenalty);
+		this.flapMaxDelay = Math.max(0, flapMaxDelay);
+	}
+
+	boolean isEnabled() {
+		return window > 0 || flapPenalty > 0;
+	}
+
+	void serviceDiscovered(EtcdServiceInfoKey key, IServiceInfo serviceInfo) {
+		if (!isEnabled())
+			target.serviceDiscovered(serviceInfo);
+		else
+			transition(key, serviceInfo, false);
+	}
+
+	void serviceUndiscovered(EtcdServiceInfoKey key, IServiceInfo serviceInfo) {
+		if (!isEnabled())
+			target.serviceUndiscovered(serviceInfo);
+		else
+			transition(key, null, true);
+	}
+
+	private synchronized void transition(final EtcdServiceInfoKey key, IServiceInfo current, boolean undiscovered) {
+		KeyState state = states.get(key);
+		if (state == null) {
+			state = new KeyState();
+			states.put(key, state);
+		}
+		state.current = current;
+		state.transitions++;
+		state.undiscovered |= undiscovered;
+		if (state.pending)
+			return;
+		state.pending = true;
+		long delay = window + Math.max(0, state.penaltyUntil - System.currentTimeMillis());
+		getTimer().schedule(new Runnable() {
+			public void run() {
+				flush(key);
+			}
+		}, delay, TimeUnit.MILLISECONDS);
+	}
+
+	private ScheduledThreadPoolExecutor getTimer() {
+		if (timer == null) {
+			timer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "EtcdEventCoalescer"); //$NON-NLS-1$
+					t.setDaemon(true);
+					return t;
+				}
+			});
+			timer.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+		}
+		return timer;
+	}
+
+	void flush(final EtcdServiceInfoKey key) {
+		IServiceInfo undiscover = null;
+		IServiceInfo discover = null;
+		synchronized (this) {
+			KeyState state = states.get(key);
+			if (state == null || !state.pending)
+				return;
+			IServiceInfo before = state.delivered;
+			IServiceInfo after = state.current;
+			if (before == null && after != null)
+				discover = after;
+			else if (before != null && after == null)
+				undiscover = before;
+			else if (before != null && !sameService(before, after)) {
+				if (state.undiscovered)
+					undiscover = before;
+				discover = after;
+			}
+			int delivered = ((undiscover == null) ? 0 : 1) + ((discover == null) ? 0 : 1);
+			coalesced += state.transitions - delivered;
+			long now = System.currentTimeMillis();
+			if (state.transitions > 1 && flapPenalty > 0) {
+				long remaining = Math.max(0, state.penaltyUntil - now);
+				state.penaltyUntil = now + Math.min(remaining + flapPenalty, flapMaxDelay);
+			}
+			state.delivered = after;
+			state.pending = false;
+			state.transitions = 0;
+			state.undiscovered = false;
+			if (after == null) {
+				if (state.penaltyUntil <= now)
+					states.remove(key);
+				else
+					// forget the key once its penalty has run down
+					getTimer().schedule(new Runnable() {
+						public void run() {
+							expire(key);
+						}
+					}, state.penaltyUntil - now, TimeUnit.MILLISECONDS);
+			}
+		}
+		// delivered from the timer thread only, so in order per key
+		if (undiscover != null)
+			target.serviceUndiscovered(undiscover);
+		if (discover != null)
+			target.serviceDiscovered(discover);
+	}
+
+	synchronized void expire(EtcdServiceInfoKey key) {
+		KeyState state = states.get(key);
+		if (state != null && !state.pending && state.delivered == null
+				&& state.penaltyUntil <= System.currentTimeMillis())
+			states.remove(key);
+	}
+
+	private static boolean sameService(IServiceInfo a, IServiceInfo b) {
+		if (a == b)
+			return true;
+		if (!(a instanceof EtcdServiceInfo) || !(b instanceof EtcdServiceInfo))
+			return false;
+		try {
+			return ((EtcdServiceInfo) a).serializeToCompactString().equals(
+					((EtcdServiceInfo) b).serializeToCompactString());
+		} catch (JSONException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * @return number of transitions not delivered, as they cancelled out
+	 *         within a window
+	 */
+	synchronized long getCoalescedCount() {
+		return coalesced;
+	}
+
+	/**
+	 * Drop pending transitions and what was delivered for each key, and stop
+	 * the timer.
+	 */
+	synchronized void reset() {
+		states.clear();
+		if (timer != null) {
+			timer.shutdown();
+			timer = null;
+		}
+	}
+}
@@ -0,0 +1,368 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Composent, Inc. All rights reserved. This
+ * program and the accompanying materials are made available under the terms of
+ * the Eclipse Public License v1.0 which accompanies this distribution, and is
+ * available at http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors: Scott Lewis - initial API and implementation
+ ******************************************************************************/
+package org.eclipse.ecf.provider.etcd;
+
+import java.util.ArrayDeque;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.eclipse.core.runtime.Assert;
+import org.eclipse.ecf.internal.provider.etcd.DebugOptions;
+import org.eclipse.ecf.internal.provider.etcd.LogUtility;
+
+/**
+ * Delivers discovery events to listeners off the thread that ingests them
+ * (e.g. the watch job), so that a slow listener does not hold up the watch.
+ * Each listener has a bounded queue of its own, drained by one task at a time
+ * on the executor, so a listener gets its events in the order they were
+ * dispatched (and so in order per service key), while listeners are delivered
+ * to independently of each other. When a listener's queue is full, the
+ * overflow policy decides: {@link #OVERFLOW_BLOCK} makes the dispatching
+ * thread wait for room (backpressure), {@link #OVERFLOW_DROP_OLDEST} and
+ * {@link #OVERFLOW_DROP_NEWEST} drop an event and count it.
+ */
+public class EtcdEventDispatcher {
+
+	public static final String OVERFLOW_BLOCK = "block"; //$NON-NLS-1$
+	public static final String OVERFLOW_DROP_OLDEST = "dropOldest"; //$NON-NLS-1$
+	public static final String OVERFLOW_DROP_NEWEST = "dropNewest"; //$NON-NLS-1$
+
+	static class Event {
+		final Runnable delivery;
+		final long dispatched;
+
+		Event(Runnable delivery) {
+			this.delivery = delivery;
+			this.dispatched = System.currentTimeMillis();
+		}
+	}
+
+	class ListenerQueue implements Runnable {
+		final Object listener;
+		final ArrayDeque<Event> events = new ArrayDeque<Event>();
+		boolean scheduled;
+		// thread currently delivering to the listener, if any
+		Thread deliveryThread;
+
+		ListenerQueue(Object listener) {
+			this.listener = listener;
+		}
+
+		public void run() {
+			while (true) {
+				Event event;
+				synchronized (queues) {
+					event = events.poll();
+					if (event == null) {
+						scheduled = false;
+						deliveryThread = null;
+						queues.remove(listener);
+						queues.notifyAll();
+						return;
+					}
+					deliveryThread = Thread.currentThread();
+					pending--;
+					// room for blocked dispatchers
+					queues.notifyAll();
+				}
+				deliver(event);
+			}
+		}
+	}
+
+	private final Executor executor;
+	// set if the executor was created by this dispatcher
+	private final ExecutorService ownExecutor;
+	private final int queueCapacity;
+	private final String overflowPolicy;
+
+	// guarded by queues
+	private final Map<Object, ListenerQueue> queues = new IdentityHashMap<Object, ListenerQueue>();
+	private int pending;
+	private int maxQueueLength;
+
+	private final AtomicLong delivered = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+	private final AtomicLong failed = new AtomicLong();
+	private final AtomicLong blocked = new AtomicLong();
+	private final AtomicLong maxLatency = new AtomicLong();
+
+	/**
+	 * @param executor
+	 *            executor to deliver events on. If <code>null</code>, events
+	 *            are delivered synchronously by the dispatching thread.
+	 * @param queueCapacity
+	 *            maximum number of events queued per listener
+	 * @param overflowPolicy
+	 *            {@link #OVERFLOW_BLOCK}, {@link #OVERFLOW_DROP_OLDEST} or
+	 *            {@link #OVERFLOW_DROP_NEWEST}
+	 */
+	public EtcdEventDispatcher(Executor executor, int queueCapacity, String overflowPolicy) {
+		this(executor, null, queueCapacity, overflowPolicy);
+	}
+
+	EtcdEventDispatcher(EtcdDiscoveryContainerConfig config) {
+		this(config.getEventExecutor(), (config.getEventExecutor() == null && config.getEventThreads() > 0)
+				? createExecutor(config.getEventThreads()) : null, config.getEventQueueCapacity(),
+				config.getEventOverflow());
+	}
+
+	private EtcdEventDispatcher(Executor executor, ExecutorService ownExecutor, int queueCapacity,
+			String overflowPolicy) {
+		Assert.isTrue(queueCapacity > 0);
+		Assert.isTrue(OVERFLOW_BLOCK.equals(overflowPolicy) || OVERFLOW_DROP_OLDEST.equals(overflowPolicy)
+				|| OVERFLOW_DROP_NEWEST.equals(overflowPolicy));
+		this.executor = (ownExecutor != null) ? ownExecutor : executor;
+		this.ownExecutor = ownExecutor;
+		this.queueCapacity = queueCapacity;
+		this.overflowPolicy = overflowPolicy;
+	}
+
+	private static ExecutorService createExecutor(int threads) {
+		final AtomicInteger count = new AtomicInteger();
+		ThreadPoolExecutor threadPool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "EtcdEventDispatcher-" + count.incrementAndGet()); //$NON-NLS-1$
+						t.setDaemon(true);
+						return t;
+					}
+				});
+		threadPool.allowCoreThreadTimeOut(true);
+		return threadPool;
+	}
+
+	/**
+	 * Dispatch an event to listener. Returns once the event is queued (or
+	 * dropped), or delivered if there is no executor.
+	 *
+	 * @param listener
+	 *            listener the event is delivered to. Events for the same
+	 *            listener are delivered one at a time, in dispatch order.
+	 * @param delivery
+	 *            delivers the event to listener
+	 */
+	public void dispatch(Object listener, Runnable delivery) {
+		Assert.isNotNull(listener);
+		Assert.isNotNull(delivery);
+		Event event = new Event(delivery);
+		if (executor == null) {
+			deliver(event);
+			return;
+		}
+		ListenerQueue queue;
+		boolean schedule = false;
+		synchronized (queues) {
+			while (true) {
+				queue = queues.get(listener);
+				if (queue == null) {
+					queue = new ListenerQueue(listener);
+					queues.put(listener, queue);
+				}
+				if (queue.events.size() < queueCapacity)
+					break;
+				if (OVERFLOW_DROP_NEWEST.equals(overflowPolicy)) {
+					dropped.incrementAndGet();
+					return;
+				}
+				if (OVERFLOW_DROP_OLDEST.equals(overflowPolicy)) {
+					queue.events.poll();
+					pending--;
+					dropped.incrementAndGet();
+					break;
+				}
+				// a listener dispatching to itself (e.g. by registering a
+				// service) would wait for itself forever
+				if (queue.deliveryThread == Thread.currentThread())
+					break;
+				blocked.incrementAndGet();
+				try {
+					queues.wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					dropped.incrementAndGet();
+					return;
+				}
+			}
+			queue.events.add(event);
+			pending++;
+			if (queue.events.size() > maxQueueLength)
+				maxQueueLength = queue.events.size();
+			if (!queue.scheduled) {
+				queue.scheduled = true;
+				schedule = true;
+			}
+		}
+		if (schedule) {
+			try {
+				executor.execute(queue);
+			} catch (RejectedExecutionException e) {
+				// executor shut down, deliver here rather than lose events
+				queue.run();
+			}
+		}
+	}
+
+	/**
+	 * Dispatch several events to listener as one: they are queued (or
+	 * dropped) together, and delivered back to back. An exception of one
+	 * delivery does not prevent the others.
+	 *
+	 * @param listener
+	 *            listener the events are delivered to
+	 * @param deliveries
+	 *            deliver the events to listener, in order
+	 */
+	public void dispatch(Object listener, final List<Runnable> deliveries) {
+		Assert.isNotNull(deliveries);
+		if (deliveries.size() == 1) {
+			dispatch(listener, deliveries.get(0));
+			return;
+		}
+		dispatch(listener, new Runnable() {
+			public void run() {
+				for (Runnable delivery : deliveries)
+					try {
+						delivery.run();
+					} catch (RuntimeException e) {
+						failed.incrementAndGet();
+						LogUtility.logError("deliver", DebugOptions.EXCEPTIONS_CATCHING, EtcdEventDispatcher.class, //$NON-NLS-1$
+								"Exception delivering event to listener", e); //$NON-NLS-1$
+					}
+			}
+		});
+	}
+
+	private void deliver(Event event) {
+		try {
+			event.delivery.run();
+		} catch (RuntimeException e) {
+			failed.incrementAndGet();
+			LogUtility.logError("deliver", DebugOptions.EXCEPTIONS_CATCHING, getClass(), //$NON-NLS-1$
+					"Exception delivering event to listener", e); //$NON-NLS-1$
+		}
+		delivered.incrementAndGet();
+		long latency = System.currentTimeMillis() - event.dispatched;
+		long max = maxLatency.get();
+		while (latency > max && !maxLatency.compareAndSet(max, latency))
+			max = maxLatency.get();
+	}
+
+	/**
+	 * Wait until all events dispatched so far are delivered.
+	 *
+	 * @param timeout
+	 *            maximum time to wait in ms
+	 * @return <code>true</code> if no events are queued or being delivered
+	 * @throws InterruptedException
+	 */
+	public boolean awaitIdle(long timeout) throws InterruptedException {
+		long end = System.currentTimeMillis() + timeout;
+		synchronized (queues) {
+			while (!queues.isEmpty()) {
+				long remaining = end - System.currentTimeMillis();
+				if (remaining <= 0)
+					return false;
+				queues.wait(remaining);
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Shut down the executor, if created by this dispatcher. Events already
+	 * queued are still delivered.
+	 */
+	public void close() {
+		if (ownExecutor != null)
+			ownExecutor.shutdown();
+	}
+
+	/**
+	 * @return <code>true</code> if events are delivered by an executor rather
+	 *         than by the dispatching thread
+	 */
+	public boolean isAsynchronous() {
+		return executor != null;
+	}
+
+	/**
+	 * @return number of events delivered, including those whose listener
+	 *         threw an exception
+	 */
+	public long getDeliveredCount() {
+		return delivered.get();
+	}
+
+	/**
+	 * @return number of events dropped because the listener's queue was full
+	 */
+	public long getDroppedCount() {
+		return dropped.get();
+	}
+
+	/**
+	 * @return number of events whose listener threw an exception
+	 */
+	public long getFailedCount() {
+		return failed.get();
+	}
+
+	/**
+	 * @return number of times a dispatching thread had to wait for room in a
+	 *         listener's queue
+	 */
+	public long getBlockedCount() {
+		return blocked.get();
+	}
+
+	/**
+	 * @return number of events queued and not yet delivered, over all
+	 *         listeners
+	 */
+	public int getPendingCount() {
+		synchronized (queues) {
+			return pending;
+		}
+	}
+
+	/**
+	 * @return highest number of events queued for a single listener so far
+	 */
+	public int getMaxQueueLength() {
+		synchronized (queues) {
+			return maxQueueLength;
+		}
+	}
+
+	/**
+	 * @return longest time in ms from dispatch to delivery of an event so far
+	 */
+	public long getMaxLatency() {
+		return maxLatency.get();
+	}
+
+	@Override
+	public String toString() {
+		return "EtcdEventDispatcher[delivered=" + getDeliveredCount() + ";dropped=" + getDroppedCount() //$NON-NLS-1$ //$NON-NLS-2$
+				+ ";failed=" + getFailedCount() + ";blocked=" + getBlockedCount() + ";pending=" //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+				+ getPendingCount() + ";maxQueueLength=" + getMaxQueueLength() + ";maxLatency=" //$NON-NLS-1$ //$NON-NLS-2$
+				+ getMaxLatency() + "]"; //$NON-NLS-1$
+	}
+}
@@ -0,0 +1,90 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Composent, Inc. All rights reserved. This
+ * program and the accompanying materials are made available under the terms of
+ * the Eclipse Public License v1.0 which accompanies this distribution, and is
+ * available at http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors: Scott Lewis - initial API and implementation
+ ******************************************************************************/
+package org.eclipse.ecf.provider.etcd;
+
+import java.nio.charset.Charset;
+
+import org.eclipse.ecf.discovery.identity.IServiceTypeID;
+import org.eclipse.ecf.provider.etcd.EtcdDiscoveryContainer.EtcdServiceInfoKey;
+
+/**
+ * Where service entries are kept below the container's directory, as keys
+ * relative to it. With {@link EtcdDiscoveryContainerConfig#KEY_LAYOUT_FLAT}
+ * all entries of a session are in the session's directory:
+ *
+ * <pre>
+ * &lt;session&gt;/&lt;id&gt;
+ * </pre>
+ *
+ * With {@link EtcdDiscoveryContainerConfig#KEY_LAYOUT_TYPES} they are
+ * partitioned by service type, each session having a directory (with the
+ * session ttl) per type it registers services of:
+ *
+ * <pre>
+ * types/&lt;type&gt;/&lt;session&gt;/&lt;id&gt;
+ * </pre>
+ *
+ * so that a locator can get and watch the subtrees of the types it is
+ * interested in only. In either layout, the session and id of an entry are the
+ * last two segments of its key.
+ */
+final class EtcdKeyLayout {
+
+	static final String TYPES_DIRECTORY = "types"; //$NON-NLS-1$
+
+	private static final Charset UTF8 = Charset.forName("UTF-8"); //$NON-NLS-1$
+	private static final char[] HEX = "0123456789abcdef".toCharArray(); //$NON-NLS-1$
+
+	private final boolean byType;
+
+	EtcdKeyLayout(String layout) {
+		this.byType = EtcdDiscoveryContainerConfig.KEY_LAYOUT_TYPES.equals(layout);
+	}
+
+	boolean isByType() {
+		return byType;
+	}
+
+	/**
+	 * Encode a service type name as a single key segment. Letters, digits,
+	 * '.', '_' and '-' are kept, any other byte (of the UTF-8 encoding) is
+	 * written as '~' and two hex digits.
+	 */
+	static String encodeSegment(String name) {
+		byte[] bytes = name.getBytes(UTF8);
+		StringBuilder sb = new StringBuilder(bytes.length);
+		for (byte b : bytes) {
+			int c = b & 0xff;
+			if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '.' || c == '_'
+					|| c == '-')
+				sb.append((char) c);
+			else
+				sb.append('~').append(HEX[c >> 4]).append(HEX[c & 0xf]);
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * @return directory of the entries of the given type name
+	 */
+	static String getTypeDirectory(String typeName) {
+		return TYPES_DIRECTORY + "/" + encodeSegment(typeName); //$NON-NLS-1$
+	}
+
+	/**
+	 * @return directory holding the session's entries of the given type
+	 */
+	String getSessionDirectory(String sessionId, IServiceTypeID type) {
+		return byType ? getTypeDirectory(type.getName()) + "/" + sessionId : sessionId; //$NON-NLS-1$
+	}
+
+	String getServiceKey(EtcdServiceInfoKey key, IServiceTypeID type) {
+		return getSessionDirectory(key.getSessionId(), type) + "/" + key.getServiceInfoId(); //$NON-NLS-1$
+	}
+}
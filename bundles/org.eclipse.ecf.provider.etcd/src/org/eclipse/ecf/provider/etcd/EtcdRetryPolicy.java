@@ -0,0 +1,186 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Composent, Inc. All rights reserved. This
+ * program and the accompanying materials are made available under the terms of
+ * the Eclipse Public License v1.0 which accompanies this distribution, and is
+ * available at http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors: Scott Lewis - initial API and implementation
+ ******************************************************************************/
+package org.eclipse.ecf.provider.etcd;
+
+import java.util.Random;
+
+import org.eclipse.core.runtime.Assert;
+
+/**
+ * Retry policy shared by the loops of an {@link EtcdDiscoveryContainer} that
+ * talk to etcd (the watch jobs and the session heartbeat). After each
+ * consecutive failure, the next attempt is delayed by an exponential backoff,
+ * starting at the minimum delay and capped by the maximum. Only half of the
+ * delay is fixed, the other half is random, so that many clients losing etcd
+ * at the same time do not retry in lockstep when it comes back.
+ * <p>
+ * Circuit breaker: after the failure threshold is reached the circuit is
+ * {@link #STATE_OPEN}. Once the delay has passed, a single caller of
+ * {@link #allowRequest()} gets to probe ({@link #STATE_HALF_OPEN}), while
+ * the others keep waiting. A success (of the probe or of any other request)
+ * closes the circuit, resets the backoff and wakes up the waiting loops
+ * right away.
+ */
+public class EtcdRetryPolicy {
+
+	public static final String STATE_CLOSED = "closed"; //$NON-NLS-1$
+	public static final String STATE_OPEN = "open"; //$NON-NLS-1$
+	public static final String STATE_HALF_OPEN = "halfOpen"; //$NON-NLS-1$
+
+	private final long minDelay;
+	private final long maxDelay;
+	private final int failureThreshold;
+	private final Random random = new Random();
+
+	// guarded by this
+	private String state = STATE_CLOSED;
+	private int consecutiveFailures;
+	private long retryAt;
+	private long failures;
+	private long circuitOpenings;
+
+	/**
+	 * @param minDelay
+	 *            delay in ms after the first failure
+	 * @param maxDelay
+	 *            maximum delay in ms
+	 * @param failureThreshold
+	 *            number of consecutive failures opening the circuit
+	 */
+	public EtcdRetryPolicy(long minDelay, long maxDelay, int failureThreshold) {
+		Assert.isTrue(minDelay > 0 && maxDelay >= minDelay && failureThreshold > 0);
+		this.minDelay = minDelay;
+		this.maxDelay = maxDelay;
+		this.failureThreshold = failureThreshold;
+	}
+
+	EtcdRetryPolicy(EtcdDiscoveryContainerConfig config) {
+		this(config.getRetryMinDelay(), config.getRetryMaxDelay(), config.getCircuitFailureThreshold());
+	}
+
+	/**
+	 * Ask whether a request may be sent now. If the circuit is open and its
+	 * delay has passed, the caller gets to probe, and the circuit is half open
+	 * until {@link #success()} or {@link #failure()} is called.
+	 *
+	 * @return <code>true</code> if the request may be sent
+	 */
+	public synchronized boolean allowRequest() {
+		if (System.currentTimeMillis() < retryAt || state == STATE_HALF_OPEN)
+			return false;
+		if (state == STATE_OPEN)
+			state = STATE_HALF_OPEN;
+		return true;
+	}
+
+	/**
+	 * Like {@link #allowRequest()}, but never probing an open circuit. For
+	 * requests that do not complete quickly when they succeed (e.g. a watch),
+	 * and so would hold up the other loops while the circuit is half open.
+	 *
+	 * @return <code>true</code> if the circuit is closed and the delay after
+	 *         the last failure (if any) has passed
+	 */
+	public synchronized boolean isRetryDue() {
+		return state == STATE_CLOSED && System.currentTimeMillis() >= retryAt;
+	}
+
+	/**
+	 * Record a request that reached etcd. Closes the circuit.
+	 */
+	public synchronized void success() {
+		boolean waiting = consecutiveFailures > 0 || state != STATE_CLOSED;
+		consecutiveFailures = 0;
+		retryAt = 0;
+		state = STATE_CLOSED;
+		if (waiting)
+			notifyAll();
+	}
+
+	/**
+	 * Record a request that failed to reach etcd, and delay the next attempt.
+	 *
+	 * @return <code>true</code> if this failure opened the circuit (or, for
+	 *         the first failure, started the backoff), i.e. the caller should
+	 *         log it. Further failures are best only traced.
+	 */
+	public synchronized boolean failure() {
+		failures++;
+		consecutiveFailures++;
+		long backoff = Math.min(maxDelay, minDelay << Math.min(consecutiveFailures - 1, 30));
+		long delay = backoff / 2 + (long) (random.nextDouble() * (backoff - backoff / 2));
+		retryAt = System.currentTimeMillis() + delay;
+		boolean opened = false;
+		if (state == STATE_HALF_OPEN)
+			state = STATE_OPEN;
+		else if (state == STATE_CLOSED && consecutiveFailures >= failureThreshold) {
+			state = STATE_OPEN;
+			circuitOpenings++;
+			opened = true;
+		}
+		return opened || consecutiveFailures == 1;
+	}
+
+	/**
+	 * Wait until the next attempt is due, the circuit is closed by another
+	 * loop, or the timeout has passed.
+	 *
+	 * @param timeout
+	 *            maximum time to wait in ms, so that the caller can check
+	 *            whether it was canceled
+	 * @throws InterruptedException
+	 */
+	public synchronized void await(long timeout) throws InterruptedException {
+		long wait = Math.min(timeout, retryAt - System.currentTimeMillis());
+		if (state == STATE_HALF_OPEN)
+			wait = timeout;
+		if (wait > 0)
+			wait(wait);
+	}
+
+	/**
+	 * @return {@link #STATE_CLOSED}, {@link #STATE_OPEN} or
+	 *         {@link #STATE_HALF_OPEN}
+	 */
+	public synchronized String getState() {
+		return state;
+	}
+
+	public synchronized int getConsecutiveFailures() {
+		return consecutiveFailures;
+	}
+
+	/**
+	 * @return time in ms until the next attempt is due, 0 if due now
+	 */
+	public synchronized long getRetryDelay() {
+		return Math.max(0, retryAt - System.currentTimeMillis());
+	}
+
+	/**
+	 * @return number of failures so far
+	 */
+	public synchronized long getFailureCount() {
+		return failures;
+	}
+
+	/**
+	 * @return number of times the circuit opened so far
+	 */
+	public synchronized long getCircuitOpenCount() {
+		return circuitOpenings;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "EtcdRetryPolicy[state=" + state + ";consecutiveFailures=" + consecutiveFailures //$NON-NLS-1$ //$NON-NLS-2$
+				+ ";retryDelay=" + getRetryDelay() + ";failures=" + failures + ";circuitOpenings=" //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+				+ circuitOpenings + "]"; //$NON-NLS-1$
+	}
+}
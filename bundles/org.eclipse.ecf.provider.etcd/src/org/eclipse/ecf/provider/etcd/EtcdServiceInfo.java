@@ -8,11 +8,19 @@
  ******************************************************************************/
 package org.eclipse.ecf.provider.etcd;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.util.ArrayList;
 import java.util.Enumeration;
 import java.util.List;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
 
 import org.eclipse.ecf.core.util.Base64;
 import org.eclipse.ecf.discovery.IServiceInfo;
@@ -55,7 +63,37 @@ public class EtcdServiceInfo extends ServiceInfo {
 	public static final String SERVICETYPE_PROTOCOLS_KEY = "protocols"; //$NON-NLS-1$
 	private static final String SERVICETYPE_NA_KEY = "namingauth"; //$NON-NLS-1$
 
-	public static EtcdServiceInfo deserializeFromString(String jsonString)
+	public static final String FORMAT_JSON = "json"; //$NON-NLS-1$
+	public static final String FORMAT_COMPACT = "compact"; //$NON-NLS-1$
+	/**
+	 * Prefix of values in compact format, including the format version. Json
+	 * values always start with '{'.
+	 */
+	public static final String COMPACT_FORMAT_MARKER = "c" + EtcdServiceInfoCompactCodec.VERSION + ":"; //$NON-NLS-1$ //$NON-NLS-2$
+	/**
+	 * Prefix of compressed values (followed by the base64 encoded deflate
+	 * stream of the value in any of the other formats).
+	 */
+	public static final String COMPRESSED_FORMAT_MARKER = "z1:"; //$NON-NLS-1$
+	// guards against values inflating to a multiple of the etcd value limit
+	private static final int MAX_DECOMPRESSED_LENGTH = 64 * 1024 * 1024;
+	private static final String UTF8 = "UTF-8"; //$NON-NLS-1$
+
+	/**
+	 * Deserialize a value written by {@link #serializeToString(String)} or
+	 * {@link #serializeToString(String, int)} in any of the supported formats.
+	 * The format and compression are detected from the value.
+	 */
+	public static EtcdServiceInfo deserializeFromString(String value)
+			throws JSONException {
+		if (value != null && value.startsWith(COMPRESSED_FORMAT_MARKER))
+			value = decompress(value);
+		if (value != null && value.startsWith(COMPACT_FORMAT_MARKER))
+			return EtcdServiceInfoCompactCodec.decode(value, COMPACT_FORMAT_MARKER.length());
+		return deserializeFromJsonString(value);
+	}
+
+	public static EtcdServiceInfo deserializeFromJsonString(String jsonString)
 			throws JSONException {
 		JSONObject jsonObject = new JSONObject(jsonString);
 		String locationString = jsonObject.getString(LOCATION_KEY);
@@ -124,6 +162,90 @@ public class EtcdServiceInfo extends ServiceInfo {
 				priority, weight, sProps, ttl);
 	}
 
+	/**
+	 * @param format
+	 *            {@link #FORMAT_JSON} or {@link #FORMAT_COMPACT}
+	 */
+	public String serializeToString(String format) throws JSONException {
+		if (FORMAT_COMPACT.equals(format))
+			return serializeToCompactString();
+		return serializeToJsonString();
+	}
+
+	/**
+	 * @param format
+	 *            {@link #FORMAT_JSON} or {@link #FORMAT_COMPACT}
+	 * @param compressThreshold
+	 *            values at least this long are compressed. If negative, values
+	 *            are never compressed.
+	 */
+	public String serializeToString(String format, int compressThreshold) throws JSONException {
+		return compress(serializeToString(format), compressThreshold);
+	}
+
+	/**
+	 * Compress a value, if it is at least compressThreshold long and
+	 * compressing makes it shorter.
+	 * 
+	 * @return the value prefixed with {@link #COMPRESSED_FORMAT_MARKER}, or
+	 *         the value itself if not compressed
+	 */
+	public static String compress(String value, int compressThreshold) {
+		if (compressThreshold < 0 || value.length() < compressThreshold)
+			return value;
+		ByteArrayOutputStream bos = new ByteArrayOutputStream(value.length() / 4);
+		Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+		try {
+			DeflaterOutputStream dos = new DeflaterOutputStream(bos, deflater);
+			dos.write(value.getBytes(UTF8));
+			dos.close();
+		} catch (IOException e) {
+			// not for a byte array stream
+			return value;
+		} finally {
+			deflater.end();
+		}
+		String result = COMPRESSED_FORMAT_MARKER + new String(Base64.encode(bos.toByteArray()));
+		return (result.length() < value.length()) ? result : value;
+	}
+
+	static String decompress(String value) throws JSONException {
+		byte[] data = null;
+		try {
+			data = Base64.decode(value.substring(COMPRESSED_FORMAT_MARKER.length()));
+		} catch (RuntimeException e) {
+			throw new JSONException(e);
+		}
+		if (data == null)
+			throw new JSONException("Could not decode compressed service info"); //$NON-NLS-1$
+		InputStream ins = new InflaterInputStream(new ByteArrayInputStream(data));
+		ByteArrayOutputStream bos = new ByteArrayOutputStream(data.length * 4);
+		byte[] buf = new byte[8192];
+		try {
+			try {
+				int read;
+				while ((read = ins.read(buf)) != -1) {
+					bos.write(buf, 0, read);
+					if (bos.size() > MAX_DECOMPRESSED_LENGTH)
+						throw new JSONException("Compressed service info too large"); //$NON-NLS-1$
+				}
+			} finally {
+				ins.close();
+			}
+			return bos.toString(UTF8);
+		} catch (UnsupportedEncodingException e) {
+			throw new JSONException(e);
+		} catch (IOException e) {
+			throw new JSONException(e);
+		}
+	}
+
+	public String serializeToCompactString() throws JSONException {
+		StringBuilder result = new StringBuilder(1024).append(COMPACT_FORMAT_MARKER);
+		EtcdServiceInfoCompactCodec.encode(this, result);
+		return result.toString();
+	}
+
 	public String serializeToJsonString() throws JSONException {
 		JSONStringer result = new JSONStringer();
 		JSONWriter stringer = result.object();
@@ -0,0 +1,288 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Composent, Inc. All rights reserved. This
+ * program and the accompanying materials are made available under the terms of
+ * the Eclipse Public License v1.0 which accompanies this distribution, and is
+ * available at http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors: Scott Lewis - initial API and implementation
+ ******************************************************************************/
+package org.eclipse.ecf.provider.etcd;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.eclipse.ecf.core.util.Base64;
+import org.eclipse.ecf.discovery.IServiceProperties;
+import org.eclipse.ecf.discovery.ServiceProperties;
+import org.eclipse.ecf.discovery.identity.IServiceTypeID;
+import org.eclipse.ecf.discovery.identity.ServiceIDFactory;
+import org.eclipse.ecf.provider.etcd.identity.EtcdNamespace;
+import org.json.JSONArray;
+import org.json.JSONException;
+
+/**
+ * Compact, dictionary encoded format of {@link EtcdServiceInfo}. Fields are
+ * written in a fixed order without names, strings are written raw with a
+ * length prefix (no escaping), and a string written before is referenced by
+ * its index (e.g. interface names appearing both in the service type and in
+ * the properties). Being text, values stay valid etcd v2 values without base64
+ * encoding. Tokens:
+ *
+ * <pre>
+ * number: digits ';'       e.g. 30;
+ * string: length ':' chars e.g. 5:hello
+ * ref:    '#' index ';'    e.g. #3;
+ * null:   '~'
+ * </pre>
+ *
+ * Layout (version 1):
+ *
+ * <pre>
+ * location priority weight servicename ttl
+ * services scopes protocols namingauth
+ * propertyCount (propertyType name value)*
+ * </pre>
+ */
+final class EtcdServiceInfoCompactCodec {
+
+	static final int VERSION = 1;
+
+	// property types
+	private static final int TYPE_BYTES = 0;
+	private static final int TYPE_STRING = 1;
+	private static final int TYPE_INTEGER = 2;
+	private static final int TYPE_LONG = 3;
+	private static final int TYPE_BOOLEAN = 4;
+	private static final int TYPE_DOUBLE = 5;
+	// any other value, as json text of a single element array
+	private static final int TYPE_JSON = 6;
+
+	private EtcdServiceInfoCompactCodec() {
+		// no instances
+	}
+
+	static class Writer {
+		final StringBuilder out;
+		final Map<String, Integer> strings = new HashMap<String, Integer>();
+
+		Writer(StringBuilder out) {
+			this.out = out;
+		}
+
+		void writeLong(long value) {
+			out.append(value).append(';');
+		}
+
+		void writeString(String s) {
+			if (s == null) {
+				out.append('~');
+				return;
+			}
+			Integer index = strings.get(s);
+			if (index != null) {
+				out.append('#').append(index.intValue()).append(';');
+				return;
+			}
+			strings.put(s, Integer.valueOf(strings.size()));
+			out.append(s.length()).append(':').append(s);
+		}
+
+		void writeStrings(String[] strings) {
+			writeLong(strings.length);
+			for (int i = 0; i < strings.length; i++)
+				writeString(strings[i]);
+		}
+	}
+
+	static class Reader {
+		final String data;
+		int pos;
+		final List<String> strings = new ArrayList<String>();
+
+		Reader(String data, int pos) {
+			this.data = data;
+			this.pos = pos;
+		}
+
+		private char peek() throws JSONException {
+			if (pos >= data.length())
+				throw new JSONException("Unexpected end of compact service info"); //$NON-NLS-1$
+			return data.charAt(pos);
+		}
+
+		private long readNumber(char terminator) throws JSONException {
+			int start = pos;
+			int end = data.indexOf(terminator, start);
+			if (end < 0)
+				throw new JSONException("Unexpected end of compact service info"); //$NON-NLS-1$
+			pos = end + 1;
+			try {
+				return Long.parseLong(data.substring(start, end));
+			} catch (NumberFormatException e) {
+				throw new JSONException("Malformed number in compact service info at " + start); //$NON-NLS-1$
+			}
+		}
+
+		long readLong() throws JSONException {
+			return readNumber(';');
+		}
+
+		int readCount() throws JSONException {
+			long count = readLong();
+			// every element takes at least one char
+			if (count < 0 || count > data.length() - pos)
+				throw new JSONException("Invalid count in compact service info"); //$NON-NLS-1$
+			return (int) count;
+		}
+
+		String readString() throws JSONException {
+			char c = peek();
+			if (c == '~') {
+				pos++;
+				return null;
+			}
+			if (c == '#') {
+				pos++;
+				long index = readLong();
+				if (index < 0 || index >= strings.size())
+					throw new JSONException("Invalid string reference in compact service info"); //$NON-NLS-1$
+				return strings.get((int) index);
+			}
+			long length = readNumber(':');
+			if (length < 0 || length > data.length() - pos)
+				throw new JSONException("Invalid string length in compact service info"); //$NON-NLS-1$
+			String s = data.substring(pos, pos + (int) length);
+			pos += length;
+			strings.add(s);
+			return s;
+		}
+
+		String[] readStrings() throws JSONException {
+			int count = readCount();
+			String[] result = new String[count];
+			for (int i = 0; i < count; i++)
+				result[i] = readString();
+			return result;
+		}
+	}
+
+	static void encode(EtcdServiceInfo serviceInfo, StringBuilder out) throws JSONException {
+		Writer w = new Writer(out);
+		w.writeString(serviceInfo.getLocation().toString());
+		w.writeLong(serviceInfo.getPriority());
+		w.writeLong(serviceInfo.getWeight());
+		w.writeString(serviceInfo.getServiceName());
+		w.writeLong(serviceInfo.getTTL());
+		IServiceTypeID stid = serviceInfo.getServiceID().getServiceTypeID();
+		w.writeStrings(stid.getServices());
+		w.writeStrings(stid.getScopes());
+		w.writeStrings(stid.getProtocols());
+		w.writeString(stid.getNamingAuthority());
+
+		IServiceProperties properties = serviceInfo.getServiceProperties();
+		List<String> names = new ArrayList<String>();
+		for (@SuppressWarnings("rawtypes")
+		Enumeration e = properties.getPropertyNames(); e.hasMoreElements();) {
+			String name = (String) e.nextElement();
+			// like json format, null values are not written
+			if (properties.getProperty(name) != null)
+				names.add(name);
+		}
+		w.writeLong(names.size());
+		for (String name : names) {
+			byte[] bytes = properties.getPropertyBytes(name);
+			String string = (bytes == null) ? properties.getPropertyString(name) : null;
+			Object value = properties.getProperty(name);
+			if (bytes != null) {
+				w.writeLong(TYPE_BYTES);
+				w.writeString(name);
+				w.writeString(new String(Base64.encode(bytes)));
+			} else if (string != null) {
+				w.writeLong(TYPE_STRING);
+				w.writeString(name);
+				w.writeString(string);
+			} else if (value instanceof Integer || value instanceof Short || value instanceof Byte) {
+				w.writeLong(TYPE_INTEGER);
+				w.writeString(name);
+				w.writeLong(((Number) value).longValue());
+			} else if (value instanceof Long) {
+				w.writeLong(TYPE_LONG);
+				w.writeString(name);
+				w.writeLong(((Long) value).longValue());
+			} else if (value instanceof Boolean) {
+				w.writeLong(TYPE_BOOLEAN);
+				w.writeString(name);
+				w.writeLong(((Boolean) value).booleanValue() ? 1 : 0);
+			} else if (value instanceof Double || value instanceof Float) {
+				w.writeLong(TYPE_DOUBLE);
+				w.writeString(name);
+				w.writeLong(Double.doubleToLongBits(((Number) value).doubleValue()));
+			} else {
+				w.writeLong(TYPE_JSON);
+				w.writeString(name);
+				w.writeString(new JSONArray().put(value).toString());
+			}
+		}
+	}
+
+	static EtcdServiceInfo decode(String data, int offset) throws JSONException {
+		Reader r = new Reader(data, offset);
+		String locationString = r.readString();
+		if (locationString == null)
+			throw new JSONException("location must not be null"); //$NON-NLS-1$
+		URI location = null;
+		try {
+			location = new URI(locationString);
+		} catch (URISyntaxException e) {
+			throw new JSONException(e);
+		}
+		int priority = (int) r.readLong();
+		int weight = (int) r.readLong();
+		String serviceName = r.readString();
+		long ttl = r.readLong();
+		String[] services = r.readStrings();
+		String[] scopes = r.readStrings();
+		String[] protocols = r.readStrings();
+		String namingAuth = r.readString();
+		IServiceTypeID serviceTypeID = ServiceIDFactory.getDefault().createServiceTypeID(EtcdNamespace.INSTANCE,
+				services, scopes, protocols, namingAuth);
+
+		IServiceProperties sProps = new ServiceProperties();
+		int count = r.readCount();
+		for (int i = 0; i < count; i++) {
+			int type = (int) r.readLong();
+			String name = r.readString();
+			switch (type) {
+			case TYPE_BYTES:
+				sProps.setPropertyBytes(name, Base64.decode(r.readString()));
+				break;
+			case TYPE_STRING:
+				sProps.setPropertyString(name, r.readString());
+				break;
+			case TYPE_INTEGER:
+				sProps.setProperty(name, Integer.valueOf((int) r.readLong()));
+				break;
+			case TYPE_LONG:
+				sProps.setProperty(name, Long.valueOf(r.readLong()));
+				break;
+			case TYPE_BOOLEAN:
+				sProps.setProperty(name, Boolean.valueOf(r.readLong() != 0));
+				break;
+			case TYPE_DOUBLE:
+				sProps.setProperty(name, Double.valueOf(Double.longBitsToDouble(r.readLong())));
+				break;
+			case TYPE_JSON:
+				sProps.setProperty(name, new JSONArray(r.readString()).get(0));
+				break;
+			default:
+				throw new JSONException("Unknown property type=" + type + " in compact service info"); //$NON-NLS-1$ //$NON-NLS-2$
+			}
+		}
+		return new EtcdServiceInfo(location, serviceName, serviceTypeID, priority, weight, sProps, ttl);
+	}
+}
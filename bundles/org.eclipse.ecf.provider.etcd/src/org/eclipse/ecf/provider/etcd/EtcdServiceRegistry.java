@@ -0,0 +1,304 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Composent, Inc. All rights reserved. This
+ * program and the accompanying materials are made available under the terms of
+ * the Eclipse Public License v1.0 which accompanies this distribution, and is
+ * available at http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors: Scott Lewis - initial API and implementation
+ ******************************************************************************/
+package org.eclipse.ecf.provider.etcd;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.eclipse.ecf.discovery.IServiceInfo;
+import org.eclipse.ecf.discovery.identity.IServiceID;
+import org.eclipse.ecf.discovery.identity.IServiceTypeID;
+import org.eclipse.ecf.provider.etcd.EtcdDiscoveryContainer.EtcdServiceInfoKey;
+
+/**
+ * Services known to an {@link EtcdDiscoveryContainer}, with indexes by service
+ * id, service type and session id, so that lookups are proportional to the
+ * number of matching services rather than to the number of all services.
+ * Changes are synchronized on the registry. Queries are answered from an
+ * immutable {@link EtcdServiceSnapshot}, published (copy on write) after each
+ * change or batch of changes, and read without locking. Publishing copies only
+ * the services of the types changed (and the segment of the snapshot holding
+ * them), the rest is shared with the previous snapshot.
+ * <p>
+ * Public only so that it can be tested, not intended to be used by clients.
+ */
+public class EtcdServiceRegistry {
+
+	static class Entry {
+		final EtcdServiceInfo serviceInfo;
+		// modifiedIndex of the etcd node the service was discovered from, or
+		// -1 if registered locally
+		final int modifiedIndex;
+
+		Entry(EtcdServiceInfo serviceInfo, int modifiedIndex) {
+			this.serviceInfo = serviceInfo;
+			this.modifiedIndex = modifiedIndex;
+		}
+	}
+
+	private final Map<EtcdServiceInfoKey, Entry> entries = new HashMap<EtcdServiceInfoKey, Entry>();
+	private final Map<IServiceID, Set<EtcdServiceInfoKey>> byServiceID = new HashMap<IServiceID, Set<EtcdServiceInfoKey>>();
+	private final Map<IServiceTypeID, Set<EtcdServiceInfoKey>> byServiceType = new HashMap<IServiceTypeID, Set<EtcdServiceInfoKey>>();
+	private final Map<String, Set<EtcdServiceInfoKey>> bySession = new HashMap<String, Set<EtcdServiceInfoKey>>();
+
+	// types changed since the last published snapshot
+	private final Set<IServiceTypeID> changedTypes = new HashSet<IServiceTypeID>();
+	// set for threads applying a batch of changes, published at the end of
+	// the batch
+	private final ThreadLocal<Boolean> batching = new ThreadLocal<Boolean>();
+	private long index = -1;
+	// set while the services are restored from a snapshot file and not yet
+	// reconciled with etcd
+	private boolean stale;
+	private volatile EtcdServiceSnapshot snapshot = EtcdServiceSnapshot.EMPTY;
+
+	private static <K> void addIndex(Map<K, Set<EtcdServiceInfoKey>> index, K indexKey, EtcdServiceInfoKey key) {
+		Set<EtcdServiceInfoKey> keys = index.get(indexKey);
+		if (keys == null) {
+			keys = new LinkedHashSet<EtcdServiceInfoKey>();
+			index.put(indexKey, keys);
+		}
+		keys.add(key);
+	}
+
+	private static <K> void removeIndex(Map<K, Set<EtcdServiceInfoKey>> index, K indexKey, EtcdServiceInfoKey key) {
+		Set<EtcdServiceInfoKey> keys = index.get(indexKey);
+		if (keys != null && keys.remove(key) && keys.isEmpty())
+			index.remove(indexKey);
+	}
+
+	private static Set<EtcdServiceInfoKey> getIndex(Map<?, Set<EtcdServiceInfoKey>> index, Object indexKey) {
+		Set<EtcdServiceInfoKey> keys = index.get(indexKey);
+		return (keys == null) ? Collections.<EtcdServiceInfoKey> emptySet() : keys;
+	}
+
+	/**
+	 * @return the service previously registered with key, or <code>null</code>
+	 */
+	public synchronized EtcdServiceInfo put(EtcdServiceInfoKey key, EtcdServiceInfo serviceInfo, int modifiedIndex) {
+		EtcdServiceInfo previous = removeEntry(key);
+		entries.put(key, new Entry(serviceInfo, modifiedIndex));
+		IServiceID sid = serviceInfo.getServiceID();
+		addIndex(byServiceID, sid, key);
+		addIndex(byServiceType, sid.getServiceTypeID(), key);
+		addIndex(bySession, key.getSessionId(), key);
+		changedTypes.add(sid.getServiceTypeID());
+		changed();
+		return previous;
+	}
+
+	private EtcdServiceInfo removeEntry(EtcdServiceInfoKey key) {
+		Entry entry = entries.remove(key);
+		if (entry == null)
+			return null;
+		IServiceID sid = entry.serviceInfo.getServiceID();
+		removeIndex(byServiceID, sid, key);
+		removeIndex(byServiceType, sid.getServiceTypeID(), key);
+		removeIndex(bySession, key.getSessionId(), key);
+		changedTypes.add(sid.getServiceTypeID());
+		return entry.serviceInfo;
+	}
+
+	/**
+	 * Put serviceInfo as registered locally, unless key is registered already.
+	 * 
+	 * @return <code>true</code> if serviceInfo was put
+	 */
+	public synchronized boolean putIfAbsent(EtcdServiceInfoKey key, EtcdServiceInfo serviceInfo) {
+		if (entries.containsKey(key))
+			return false;
+		put(key, serviceInfo, -1);
+		return true;
+	}
+
+	public synchronized EtcdServiceInfo remove(EtcdServiceInfoKey key) {
+		EtcdServiceInfo removed = removeEntry(key);
+		changed();
+		return removed;
+	}
+
+	/**
+	 * Remove key only if it is still registered with serviceInfo.
+	 */
+	public synchronized boolean remove(EtcdServiceInfoKey key, EtcdServiceInfo serviceInfo) {
+		Entry entry = entries.get(key);
+		if (entry == null || entry.serviceInfo != serviceInfo)
+			return false;
+		remove(key);
+		return true;
+	}
+
+	/**
+	 * @return the services removed, by key
+	 */
+	public synchronized Map<EtcdServiceInfoKey, EtcdServiceInfo> removeSession(String sessionId) {
+		Map<EtcdServiceInfoKey, EtcdServiceInfo> removed = new HashMap<EtcdServiceInfoKey, EtcdServiceInfo>();
+		for (EtcdServiceInfoKey key : new ArrayList<EtcdServiceInfoKey>(getIndex(bySession, sessionId)))
+			removed.put(key, removeEntry(key));
+		changed();
+		return removed;
+	}
+
+	public synchronized void clear() {
+		entries.clear();
+		byServiceID.clear();
+		byServiceType.clear();
+		bySession.clear();
+		changedTypes.clear();
+		index = -1;
+		stale = false;
+		snapshot = snapshot.cleared();
+	}
+
+	/**
+	 * Mark the services as restored from a snapshot file, or as reconciled
+	 * with etcd.
+	 */
+	public synchronized void setStale(boolean stale) {
+		this.stale = stale;
+		changed();
+	}
+
+	private void changed() {
+		if (!isBatching())
+			publish();
+	}
+
+	private void publish() {
+		EtcdServiceSnapshot current = snapshot;
+		if (changedTypes.isEmpty() && index == current.getIndex() && stale == current.isStale())
+			return;
+		Map<IServiceTypeID, List<IServiceInfo>> changes = new HashMap<IServiceTypeID, List<IServiceInfo>>();
+		for (IServiceTypeID type : changedTypes) {
+			Set<EtcdServiceInfoKey> keys = getIndex(byServiceType, type);
+			List<IServiceInfo> typeServices = null;
+			if (!keys.isEmpty()) {
+				typeServices = new ArrayList<IServiceInfo>(keys.size());
+				for (EtcdServiceInfoKey key : keys)
+					typeServices.add(entries.get(key).serviceInfo);
+			}
+			changes.put(type, typeServices);
+		}
+		changedTypes.clear();
+		snapshot = current.update(index, stale, changes);
+	}
+
+	/**
+	 * Start a batch of changes made by the calling thread, published together
+	 * by {@link #endBatch(long)}. Changes made by other threads meanwhile are
+	 * still published right away, along with the changes of the batch so far.
+	 */
+	public void beginBatch() {
+		batching.set(Boolean.TRUE);
+	}
+
+	/**
+	 * @param etcdIndex
+	 *            etcd index the changes of the batch are up to date with, or
+	 *            -1 if unknown
+	 */
+	public synchronized void endBatch(long etcdIndex) {
+		batching.remove();
+		if (etcdIndex > index)
+			index = etcdIndex;
+		publish();
+	}
+
+	/**
+	 * @return <code>true</code> if the calling thread is applying a batch
+	 */
+	public boolean isBatching() {
+		return batching.get() != null;
+	}
+
+	/**
+	 * @return the current snapshot. Does not lock.
+	 */
+	public EtcdServiceSnapshot getSnapshot() {
+		return snapshot;
+	}
+
+	/**
+	 * @return <code>true</code> if key is registered from the etcd node with
+	 *         the given modifiedIndex, i.e. it is unchanged since discovered
+	 */
+	public synchronized boolean isCurrent(EtcdServiceInfoKey key, int modifiedIndex) {
+		Entry entry = entries.get(key);
+		return entry != null && entry.modifiedIndex == modifiedIndex;
+	}
+
+	public synchronized EtcdServiceInfo get(EtcdServiceInfoKey key) {
+		Entry entry = entries.get(key);
+		return (entry == null) ? null : entry.serviceInfo;
+	}
+
+	/**
+	 * @return key of the service with serviceID within the given session, or
+	 *         <code>null</code>
+	 */
+	public synchronized EtcdServiceInfoKey findKey(IServiceID serviceID, String sessionId) {
+		for (EtcdServiceInfoKey key : getIndex(byServiceID, serviceID))
+			if (key.matchSessionId(sessionId))
+				return key;
+		return null;
+	}
+
+	public synchronized List<EtcdServiceInfo> getSessionServices(String sessionId) {
+		Set<EtcdServiceInfoKey> keys = getIndex(bySession, sessionId);
+		List<EtcdServiceInfo> results = new ArrayList<EtcdServiceInfo>(keys.size());
+		for (EtcdServiceInfoKey key : keys)
+			results.add(entries.get(key).serviceInfo);
+		return results;
+	}
+
+	/**
+	 * @param sessionId
+	 *            session of the services, or <code>null</code> for all
+	 * @return the services by key
+	 */
+	public synchronized Map<EtcdServiceInfoKey, EtcdServiceInfo> getEntries(String sessionId) {
+		Map<EtcdServiceInfoKey, EtcdServiceInfo> results = new LinkedHashMap<EtcdServiceInfoKey, EtcdServiceInfo>();
+		for (EtcdServiceInfoKey key : (sessionId == null) ? entries.keySet() : getIndex(bySession, sessionId))
+			results.put(key, entries.get(key).serviceInfo);
+		return results;
+	}
+
+	/**
+	 * @param typeName
+	 *            name of the service type
+	 * @return the services of the type by key
+	 */
+	public synchronized Map<EtcdServiceInfoKey, EtcdServiceInfo> getTypeEntries(String typeName) {
+		Map<EtcdServiceInfoKey, EtcdServiceInfo> results = new LinkedHashMap<EtcdServiceInfoKey, EtcdServiceInfo>();
+		for (Map.Entry<IServiceTypeID, Set<EtcdServiceInfoKey>> typeKeys : byServiceType.entrySet())
+			if (typeKeys.getKey().getName().equals(typeName))
+				for (EtcdServiceInfoKey key : typeKeys.getValue())
+					results.put(key, entries.get(key).serviceInfo);
+		return results;
+	}
+
+	/**
+	 * @return the entries (services with the modifiedIndex they were
+	 *         discovered from) by key
+	 */
+	public synchronized Map<EtcdServiceInfoKey, Entry> copyEntries() {
+		return new LinkedHashMap<EtcdServiceInfoKey, Entry>(entries);
+	}
+
+	public synchronized int size() {
+		return entries.size();
+	}
+}
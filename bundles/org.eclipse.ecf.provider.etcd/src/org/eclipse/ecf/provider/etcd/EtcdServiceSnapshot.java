@@ -0,0 +1,198 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Composent, Inc. All rights reserved. This
+ * program and the accompanying materials are made available under the terms of
+ * the Eclipse Public License v1.0 which accompanies this distribution, and is
+ * available at http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors: Scott Lewis - initial API and implementation
+ ******************************************************************************/
+package org.eclipse.ecf.provider.etcd;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.eclipse.ecf.discovery.IServiceInfo;
+import org.eclipse.ecf.discovery.identity.IServiceID;
+import org.eclipse.ecf.discovery.identity.IServiceTypeID;
+
+/**
+ * Immutable view of the services known to an {@link EtcdDiscoveryContainer}.
+ * A new snapshot is published whenever the known services change, so a
+ * snapshot can be read without locking and stays consistent however long it
+ * is held.
+ *
+ * @see EtcdDiscoveryContainer#getServiceSnapshot()
+ */
+public final class EtcdServiceSnapshot {
+
+	// number of segments the types are hashed to
+	private static final int SEGMENTS = 32;
+
+	static final EtcdServiceSnapshot EMPTY = new EtcdServiceSnapshot(0, -1, false, createSegments());
+
+	/**
+	 * Services of a type, with an index by service id.
+	 */
+	static final class TypeServices {
+		final List<IServiceInfo> services;
+		final Map<IServiceID, IServiceInfo> byServiceID;
+
+		TypeServices(List<IServiceInfo> services) {
+			this.services = Collections.unmodifiableList(services);
+			Map<IServiceID, IServiceInfo> ids = new HashMap<IServiceID, IServiceInfo>();
+			// the first one wins, if registered by several sessions
+			for (IServiceInfo info : services)
+				if (!ids.containsKey(info.getServiceID()))
+					ids.put(info.getServiceID(), info);
+			this.byServiceID = ids;
+		}
+	}
+
+	private final long version;
+	private final long index;
+	private final boolean stale;
+	// services by type, in segments by the hash of the type. A new snapshot
+	// copies only the segments (and the services) of the changed types, and
+	// shares the others with the previous snapshot.
+	private final Map<IServiceTypeID, TypeServices>[] segments;
+	// computed on first use
+	private volatile List<IServiceInfo> services;
+	private volatile Set<IServiceTypeID> serviceTypes;
+
+	private EtcdServiceSnapshot(long version, long index, boolean stale, Map<IServiceTypeID, TypeServices>[] segments) {
+		this.version = version;
+		this.index = index;
+		this.stale = stale;
+		this.segments = segments;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static Map<IServiceTypeID, TypeServices>[] createSegments() {
+		Map<IServiceTypeID, TypeServices>[] results = new Map[SEGMENTS];
+		Arrays.fill(results, Collections.<IServiceTypeID, TypeServices> emptyMap());
+		return results;
+	}
+
+	private static int getSegment(IServiceTypeID type) {
+		int h = type.hashCode();
+		h ^= (h >>> 16);
+		return (h & 0x7fffffff) % SEGMENTS;
+	}
+
+	private TypeServices getTypeServices(IServiceTypeID type) {
+		return segments[getSegment(type)].get(type);
+	}
+
+	/**
+	 * @return the next snapshot, without any services
+	 */
+	EtcdServiceSnapshot cleared() {
+		return new EtcdServiceSnapshot(version + 1, -1, false, createSegments());
+	}
+
+	/**
+	 * @param changes
+	 *            services of the types changed, by type. <code>null</code> for
+	 *            the types without services now.
+	 * @return the next snapshot, with the services of the types changed
+	 */
+	EtcdServiceSnapshot update(long newIndex, boolean newStale, Map<IServiceTypeID, List<IServiceInfo>> changes) {
+		Map<IServiceTypeID, TypeServices>[] newSegments = segments.clone();
+		boolean[] copied = new boolean[SEGMENTS];
+		for (Map.Entry<IServiceTypeID, List<IServiceInfo>> change : changes.entrySet()) {
+			int segment = getSegment(change.getKey());
+			if (!copied[segment]) {
+				newSegments[segment] = new HashMap<IServiceTypeID, TypeServices>(segments[segment]);
+				copied[segment] = true;
+			}
+			if (change.getValue() == null)
+				newSegments[segment].remove(change.getKey());
+			else
+				newSegments[segment].put(change.getKey(), new TypeServices(change.getValue()));
+		}
+		return new EtcdServiceSnapshot(version + 1, newIndex, newStale, newSegments);
+	}
+
+	/**
+	 * @return number of this snapshot, increasing with each snapshot published
+	 *         by a container
+	 */
+	public long getVersion() {
+		return version;
+	}
+
+	/**
+	 * @return etcd index up to which watch events are reflected in this
+	 *         snapshot, or -1 if none have been applied yet
+	 */
+	public long getIndex() {
+		return index;
+	}
+
+	/**
+	 * @return <code>true</code> if the services were restored from the local
+	 *         snapshot file and not yet reconciled with etcd, e.g. as etcd
+	 *         could not be reached
+	 * @see EtcdDiscoveryContainerConfig#getSnapshotDirectory()
+	 */
+	public boolean isStale() {
+		return stale;
+	}
+
+	/**
+	 * @return all services, as an unmodifiable list
+	 */
+	public List<IServiceInfo> getServices() {
+		List<IServiceInfo> result = services;
+		if (result == null) {
+			result = new ArrayList<IServiceInfo>();
+			for (Map<IServiceTypeID, TypeServices> segment : segments)
+				for (TypeServices typeServices : segment.values())
+					result.addAll(typeServices.services);
+			result = Collections.unmodifiableList(result);
+			services = result;
+		}
+		return result;
+	}
+
+	/**
+	 * @return services of the given type, as an unmodifiable list
+	 */
+	public List<IServiceInfo> getServices(IServiceTypeID serviceTypeID) {
+		TypeServices result = getTypeServices(serviceTypeID);
+		return (result == null) ? Collections.<IServiceInfo> emptyList() : result.services;
+	}
+
+	public Set<IServiceTypeID> getServiceTypes() {
+		Set<IServiceTypeID> result = serviceTypes;
+		if (result == null) {
+			result = new HashSet<IServiceTypeID>();
+			for (Map<IServiceTypeID, TypeServices> segment : segments)
+				result.addAll(segment.keySet());
+			result = Collections.unmodifiableSet(result);
+			serviceTypes = result;
+		}
+		return result;
+	}
+
+	public IServiceInfo getServiceInfo(IServiceID serviceID) {
+		TypeServices typeServices = getTypeServices(serviceID.getServiceTypeID());
+		return (typeServices == null) ? null : typeServices.byServiceID.get(serviceID);
+	}
+
+	public int size() {
+		return getServices().size();
+	}
+
+	@Override
+	public String toString() {
+		return "EtcdServiceSnapshot[version=" + version + ";index=" + index + ";stale=" + stale + ";types=" //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$
+				+ getServiceTypes().size() + "]"; //$NON-NLS-1$
+	}
+}
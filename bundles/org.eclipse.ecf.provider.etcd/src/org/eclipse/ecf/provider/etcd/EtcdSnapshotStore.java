@@ -0,0 +1,132 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Composent, Inc. All rights reserved. This
+ * program and the accompanying materials are made available under the terms of
+ * the Eclipse Public License v1.0 which accompanies this distribution, and is
+ * available at http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors: Scott Lewis - initial API and implementation
+ ******************************************************************************/
+package org.eclipse.ecf.provider.etcd;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+
+/**
+ * File holding the services known to a container (other than its own), with
+ * the etcd index they reflect, so that a restarted container knows them
+ * before (or without) reading etcd. The file is written as a whole to a
+ * temporary file, which then replaces the previous one, so a crash while
+ * writing leaves the previous snapshot intact. Each service is kept in its
+ * etcd value format, along with its key and modifiedIndex.
+ */
+class EtcdSnapshotStore {
+
+	static class Record {
+		final String sessionId;
+		final String serviceInfoId;
+		final int modifiedIndex;
+		final String value;
+
+		Record(String sessionId, String serviceInfoId, int modifiedIndex, String value) {
+			this.sessionId = sessionId;
+			this.serviceInfoId = serviceInfoId;
+			this.modifiedIndex = modifiedIndex;
+			this.value = value;
+		}
+	}
+
+	// "ESNP"
+	private static final int MAGIC = 0x45534e50;
+	private static final int VERSION = 1;
+	private static final Charset UTF8 = Charset.forName("UTF-8"); //$NON-NLS-1$
+
+	private final File file;
+
+	/**
+	 * @param directory
+	 *            directory of the snapshot files
+	 * @param containerName
+	 *            name of the container (i.e. of its etcd directory), the
+	 *            snapshot file is named after
+	 */
+	EtcdSnapshotStore(File directory, String containerName) {
+		this.file = new File(directory, EtcdKeyLayout.encodeSegment(containerName) + ".snapshot"); //$NON-NLS-1$
+	}
+
+	File getFile() {
+		return file;
+	}
+
+	/**
+	 * Replace the snapshot.
+	 */
+	void write(long index, List<Record> records) throws IOException {
+		File directory = file.getParentFile();
+		if (directory != null && !directory.isDirectory() && !directory.mkdirs())
+			throw new IOException("Could not create snapshot directory " + directory); //$NON-NLS-1$
+		File tmp = new File(directory, file.getName() + ".tmp"); //$NON-NLS-1$
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeLong(index);
+			out.writeInt(records.size());
+			for (Record record : records) {
+				out.writeUTF(record.sessionId);
+				out.writeUTF(record.serviceInfoId);
+				out.writeInt(record.modifiedIndex);
+				byte[] value = record.value.getBytes(UTF8);
+				out.writeInt(value.length);
+				out.write(value);
+			}
+		} finally {
+			out.close();
+		}
+		Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Read the snapshot.
+	 *
+	 * @param records
+	 *            list the records are added to
+	 * @return the etcd index of the snapshot, or -1 if there is none
+	 */
+	long read(List<Record> records) throws IOException {
+		DataInputStream in;
+		try {
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		} catch (FileNotFoundException e) {
+			return -1;
+		}
+		try {
+			if (in.readInt() != MAGIC || in.readInt() != VERSION)
+				throw new IOException("Not a snapshot file of this version: " + file); //$NON-NLS-1$
+			long index = in.readLong();
+			int count = in.readInt();
+			for (int i = 0; i < count; i++) {
+				String sessionId = in.readUTF();
+				String serviceInfoId = in.readUTF();
+				int modifiedIndex = in.readInt();
+				byte[] value = new byte[in.readInt()];
+				in.readFully(value);
+				records.add(new Record(sessionId, serviceInfoId, modifiedIndex, new String(value, UTF8)));
+			}
+			return index;
+		} finally {
+			in.close();
+		}
+	}
+}
@@ -133,7 +133,6 @@ public class DiscoveryTest extends AbstractDiscoveryTest {
 		}
 	}
 	
-
 	public void testGetRequestSucceed() throws Exception {
 		System.out.println("testGetRequestSucceed(" + GET_SUCCEED + ")");
 		EtcdResponse response = new EtcdGetRequest(GET_SUCCEED, false)
@@ -187,6 +186,50 @@ public class DiscoveryTest extends AbstractDiscoveryTest {
 
 		assertNotNull(newSinfo);
 
+		compareServiceInfo(sinfo, newSinfo);
+	}
+
+	public void testSerializeAndDeserializeServiceInfoCompact() throws Exception {
+
+		EtcdServiceInfo sinfo = new EtcdServiceInfo(serviceInfo);
+
+		String s = sinfo.serializeToString(EtcdServiceInfo.FORMAT_COMPACT);
+		assertTrue(s.startsWith(EtcdServiceInfo.COMPACT_FORMAT_MARKER));
+		assertTrue(s.length() < sinfo.serializeToJsonString().length());
+
+		// format is detected
+		EtcdServiceInfo newSinfo = EtcdServiceInfo.deserializeFromString(s);
+
+		assertNotNull(newSinfo);
+
+		compareServiceInfo(sinfo, newSinfo);
+	}
+
+	public void testSerializeAndDeserializeServiceInfoCompressed() throws Exception {
+
+		EtcdServiceInfo sinfo = new EtcdServiceInfo(serviceInfo);
+
+		String json = sinfo.serializeToJsonString();
+		// below threshold, value is unchanged
+		assertEquals(json, sinfo.serializeToString(EtcdServiceInfo.FORMAT_JSON, json.length() + 1));
+		// negative threshold disables compression
+		assertEquals(json, sinfo.serializeToString(EtcdServiceInfo.FORMAT_JSON, -1));
+
+		String[] formats = new String[] { EtcdServiceInfo.FORMAT_JSON, EtcdServiceInfo.FORMAT_COMPACT };
+		for (int i = 0; i < formats.length; i++) {
+			String s = sinfo.serializeToString(formats[i], 0);
+			assertTrue(s.startsWith(EtcdServiceInfo.COMPRESSED_FORMAT_MARKER));
+			assertTrue(s.length() < sinfo.serializeToString(formats[i]).length());
+
+			EtcdServiceInfo newSinfo = EtcdServiceInfo.deserializeFromString(s);
+
+			assertNotNull(newSinfo);
+
+			compareServiceInfo(sinfo, newSinfo);
+		}
+	}
+
+	void compareServiceInfo(EtcdServiceInfo sinfo, EtcdServiceInfo newSinfo) {
 		IServiceID sid1 = sinfo.getServiceID();
 		IServiceID sid2 = newSinfo.getServiceID();
 		assertTrue(sid1.getServiceTypeID().equals(sid2.getServiceTypeID()));
@@ -0,0 +1,83 @@
+package org.eclipse.ecf.tests.provider.etcd;
+
+import java.net.ServerSocket;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.eclipse.ecf.internal.provider.etcd.protocol.EtcdClusterTransport;
+import org.eclipse.ecf.internal.provider.etcd.protocol.EtcdClusterTransport.Member;
+import org.eclipse.ecf.internal.provider.etcd.protocol.EtcdProtocol;
+import org.eclipse.ecf.internal.provider.etcd.protocol.EtcdResponse;
+import org.eclipse.ecf.internal.provider.etcd.protocol.EtcdV3Backend;
+import org.eclipse.ecf.internal.provider.etcd.protocol.IEtcdWatch;
+
+@SuppressWarnings("restriction")
+public class EtcdClusterTransportTest extends TestCase {
+
+	static final String DIR = "/" + EtcdClusterTransportTest.class.getName() + "/";
+
+	private EtcdV3StandInServer server;
+	private URL deadMember;
+	private EtcdClusterTransport transport;
+	private EtcdV3Backend backend;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		server = new EtcdV3StandInServer();
+		// a port nobody listens on
+		ServerSocket socket = new ServerSocket(0);
+		int deadPort = socket.getLocalPort();
+		socket.close();
+		URL live = new URL(server.getBaseUrl());
+		deadMember = new URL(live.getProtocol(), live.getHost(), deadPort, "");
+		List<URL> members = Arrays.asList(deadMember, new URL(live.getProtocol(), live.getHost(), live.getPort(), ""));
+		transport = new EtcdClusterTransport(members);
+		// requests are addressed to the dead member, and rewritten by the
+		// transport
+		backend = new EtcdV3Backend(new URL(deadMember, live.getPath()).toString(), transport);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		server.close();
+		super.tearDown();
+	}
+
+	private Member getMember(URL url) {
+		for (Member m : transport.getMembers())
+			if (m.getUrl().equals(url))
+				return m;
+		return null;
+	}
+
+	public void testFailover() throws Exception {
+		for (int i = 0; i < 5; i++) {
+			EtcdResponse response = backend.createSetRequest(DIR + "key" + i, "value" + i, 0).execute();
+			assertFalse(response.isError());
+		}
+		assertEquals(5, server.getKeyCount());
+		Member dead = getMember(deadMember);
+		// tried at most once, then backing off
+		assertTrue(dead.getErrorRate() <= 0.2);
+		assertFalse(dead.isAvailable(System.currentTimeMillis()));
+		assertEquals(5, server.getRequestCount());
+	}
+
+	public void testWatchFailover() throws Exception {
+		IEtcdWatch watch = backend.createWatch(DIR, server.getRevision() + 1);
+		try {
+			assertFalse(backend.createSetRequest(DIR + "key1", "value1", 0).execute().isError());
+			EtcdResponse[] responses = watch.next();
+			assertEquals(1, responses.length);
+			assertEquals(EtcdProtocol.ACTION_CREATE, responses[0].getSuccessResponse().getAction());
+			assertEquals(DIR + "key1", responses[0].getSuccessResponse().getNode().getKey());
+		} finally {
+			watch.close();
+		}
+	}
+
+}
@@ -0,0 +1,515 @@
+package org.eclipse.ecf.tests.provider.etcd;
+
+import java.io.File;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import org.eclipse.core.runtime.IStatus;
+import org.eclipse.ecf.core.ContainerConnectException;
+import org.eclipse.ecf.discovery.IServiceEvent;
+import org.eclipse.ecf.discovery.IServiceInfo;
+import org.eclipse.ecf.discovery.IServiceListener;
+import org.eclipse.ecf.discovery.ServiceInfo;
+import org.eclipse.ecf.discovery.ServiceProperties;
+import org.eclipse.ecf.discovery.identity.IServiceID;
+import org.eclipse.ecf.discovery.identity.IServiceTypeID;
+import org.eclipse.ecf.discovery.identity.ServiceIDFactory;
+import org.eclipse.ecf.provider.etcd.EtcdDiscoveryContainer;
+import org.eclipse.ecf.provider.etcd.EtcdDiscoveryContainerConfig;
+import org.eclipse.ecf.provider.etcd.EtcdRetryPolicy;
+import org.eclipse.ecf.provider.etcd.EtcdServiceSnapshot;
+import org.eclipse.ecf.provider.etcd.identity.EtcdNamespace;
+
+public class EtcdDiscoveryContainerTest extends TestCase {
+
+	private EtcdV2StandInServer server;
+	private final List<EtcdDiscoveryContainer> containers = new ArrayList<EtcdDiscoveryContainer>();
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		new EtcdNamespace();
+		server = new EtcdV2StandInServer();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		for (EtcdDiscoveryContainer container : containers) {
+			if (container.getConnectedID() != null)
+				container.disconnect();
+			container.dispose();
+		}
+		server.close();
+		super.tearDown();
+	}
+
+	private EtcdDiscoveryContainerConfig createConfig() throws Exception {
+		EtcdDiscoveryContainerConfig config = new EtcdDiscoveryContainerConfig(getName(), server.getBaseUrl());
+		config.setApiVersion(EtcdDiscoveryContainerConfig.ETCD_API_V2);
+		return config;
+	}
+
+	/**
+	 * @return a service with the given endpoint.id, so its key is known
+	 */
+	private IServiceInfo createServiceInfo(String endpointId) {
+		IServiceTypeID type = ServiceIDFactory.getDefault().createServiceTypeID(EtcdNamespace.INSTANCE,
+				new String[] { "test" }, new String[] { "default" }, new String[] { "tcp" }, "iana");
+		ServiceProperties properties = new ServiceProperties();
+		properties.setPropertyString("endpoint.id", endpointId);
+		return new ServiceInfo(URI.create("ecftcp://localhost:3282/server"), "service", type, properties);
+	}
+
+	/**
+	 * Set a service of another session on the server, named by its id.
+	 *
+	 * @return key of the service
+	 */
+	private String putRemoteService(String sessionKey) {
+		if (server.get("/" + getName()) == null)
+			server.put("/" + getName(), null);
+		if (server.get(sessionKey) == null)
+			server.put(sessionKey, null);
+		String serviceInfoId = UUID.randomUUID().toString();
+		String serviceKey = sessionKey + "/" + serviceInfoId;
+		server.put(serviceKey, "{\"location\":\"ecftcp://localhost:3282/" + serviceInfoId + "\","
+				+ "\"priority\":0,\"weight\":0,\"servicename\":\"" + serviceInfoId + "\",\"ttl\":3600,"
+				+ "\"servicetype\":{\"services\":[\"test\"],\"scopes\":[\"default\"],"
+				+ "\"protocols\":[\"tcp\"],\"namingauth\":\"iana\"},\"properties\":[]}");
+		return serviceKey;
+	}
+
+	/**
+	 * @return container connected to the stand-in server, disconnected and
+	 *         disposed by tearDown
+	 */
+	private EtcdDiscoveryContainer connect(EtcdDiscoveryContainerConfig config) throws Exception {
+		EtcdDiscoveryContainer container = new EtcdDiscoveryContainer(config);
+		containers.add(container);
+		container.connect(null, null);
+		return container;
+	}
+
+	public void testDisconnectOnQuietCluster() throws Exception {
+		EtcdDiscoveryContainerConfig config = createConfig();
+		// watch right away
+		config.setFastStart(true);
+		final EtcdDiscoveryContainer container = new EtcdDiscoveryContainer(config);
+		container.connect(null, null);
+		String sessionKey = "/" + getName() + "/" + config.getSessionId();
+		assertNotNull(server.get(sessionKey));
+		long deadline = System.currentTimeMillis() + 5000;
+		while (server.getWatchCount() == 0 && System.currentTimeMillis() < deadline)
+			Thread.sleep(50);
+		assertEquals(1, server.getWatchCount());
+		// no change ends the long poll
+		Thread t = new Thread(new Runnable() {
+			public void run() {
+				container.disconnect();
+			}
+		});
+		t.start();
+		t.join(10000);
+		assertFalse(t.isAlive());
+		assertNull(container.getConnectedID());
+		assertNull(server.get(sessionKey));
+		container.dispose();
+	}
+
+	public void testConnectFailureLeavesDisconnected() throws Exception {
+		// a service of another session, known by the snapshot
+		putRemoteService("/" + getName() + "/" + UUID.randomUUID());
+		File snapshotDirectory = File.createTempFile("etcd", "snapshots");
+		snapshotDirectory.delete();
+		snapshotDirectory.mkdir();
+		EtcdDiscoveryContainerConfig config = createConfig();
+		config.setFastStart(true);
+		config.setSnapshotDirectory(snapshotDirectory.getAbsolutePath());
+		EtcdDiscoveryContainer container = new EtcdDiscoveryContainer(config);
+		container.connect(null, null);
+		assertEquals(1, container.getServices().length);
+		container.disconnect();
+		// etcd cannot be reached
+		EtcdV2StandInServer other = new EtcdV2StandInServer();
+		other.close();
+		try {
+			container.connect(new EtcdDiscoveryContainerConfig(getName(), other.getBaseUrl()).getTargetID(), null);
+			fail();
+		} catch (ContainerConnectException e) {
+			// expected
+		}
+		assertNull(container.getConnectedID());
+		// the services restored from the snapshot are still known, as stale
+		assertEquals(1, container.getServices().length);
+		assertTrue(container.getServiceSnapshot().isStale());
+		// connect may be retried
+		container.connect(null, null);
+		assertNotNull(container.getConnectedID());
+		assertEquals(1, container.getServices().length);
+		assertFalse(container.getServiceSnapshot().isStale());
+		container.disconnect();
+		container.dispose();
+		File[] files = snapshotDirectory.listFiles();
+		for (int i = 0; i < files.length; i++)
+			files[i].delete();
+		snapshotDirectory.delete();
+	}
+
+	public void testTypesShareOneWatch() throws Exception {
+		EtcdDiscoveryContainerConfig config = createConfig();
+		config.setKeyLayout(EtcdDiscoveryContainerConfig.KEY_LAYOUT_TYPES);
+		config.setServiceTypes("first", "second", "third");
+		config.setFastStart(true);
+		EtcdDiscoveryContainer container = new EtcdDiscoveryContainer(config);
+		container.connect(null, null);
+		// wait for the jobs of all types to poll
+		Thread.sleep(500);
+		assertEquals(1, server.getWatchCount());
+		container.disconnect();
+		container.dispose();
+	}
+
+	private void waitForKey(String key) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 5000;
+		while (server.get(key) == null && System.currentTimeMillis() < deadline)
+			Thread.sleep(50);
+		assertNotNull(key, server.get(key));
+	}
+
+	private void waitForWatch() throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 5000;
+		while (server.getWatchCount() == 0 && System.currentTimeMillis() < deadline)
+			Thread.sleep(50);
+		assertEquals(1, server.getWatchCount());
+	}
+
+	private void waitForRemoval(String key) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 5000;
+		while (server.get(key) != null && System.currentTimeMillis() < deadline)
+			Thread.sleep(50);
+		assertNull(key, server.get(key));
+	}
+
+	public void testHeartbeatRecreatesExpiredSession() throws Exception {
+		EtcdDiscoveryContainerConfig config = createConfig();
+		// refreshed every 0.9s
+		config.setSessionTTL(1);
+		EtcdDiscoveryContainer container = new EtcdDiscoveryContainer(config);
+		container.connect(null, null);
+		String sessionKey = "/" + getName() + "/" + config.getSessionId();
+		// expires while etcd cannot be reached, say
+		server.remove(sessionKey);
+		waitForKey(sessionKey);
+		assertEquals(EtcdRetryPolicy.STATE_CLOSED, container.getRetryPolicy().getState());
+		container.disconnect();
+		container.dispose();
+	}
+
+	public void testHeartbeatRecreatesExpiredServices() throws Exception {
+		EtcdDiscoveryContainerConfig config = createConfig();
+		config.setSessionTTL(1);
+		config.setKeyLayout(EtcdDiscoveryContainerConfig.KEY_LAYOUT_TYPES);
+		EtcdDiscoveryContainer container = new EtcdDiscoveryContainer(config);
+		container.connect(null, null);
+		String endpointId = UUID.randomUUID().toString();
+		IServiceInfo serviceInfo = createServiceInfo(endpointId);
+		container.registerService(serviceInfo);
+		String sessionKey = "/" + getName() + "/" + config.getSessionId();
+		String typeSessionKey = "/" + getName() + "/types/" + serviceInfo.getServiceID().getServiceTypeID().getName()
+				+ "/" + config.getSessionId();
+		waitForKey(typeSessionKey + "/" + endpointId);
+		// the session and the entries of its types expire together
+		server.remove(sessionKey);
+		server.remove(typeSessionKey);
+		waitForKey(sessionKey);
+		waitForKey(typeSessionKey + "/" + endpointId);
+		assertNotNull(server.get(typeSessionKey));
+		assertEquals(1, container.getServices().length);
+		container.disconnect();
+		container.dispose();
+	}
+
+	public void testServiceSnapshot() throws Exception {
+		EtcdDiscoveryContainer container = connect(createConfig());
+		IServiceInfo serviceInfo = createServiceInfo(UUID.randomUUID().toString());
+		IServiceID sid = serviceInfo.getServiceID();
+		EtcdServiceSnapshot before = container.getServiceSnapshot();
+		container.registerService(serviceInfo);
+		EtcdServiceSnapshot registered = container.getServiceSnapshot();
+		assertTrue(registered.getVersion() > before.getVersion());
+		assertNull(before.getServiceInfo(sid));
+		assertNotNull(registered.getServiceInfo(sid));
+		assertTrue(registered.getServiceTypes().contains(sid.getServiceTypeID()));
+		assertEquals(1, registered.getServices(sid.getServiceTypeID()).size());
+
+		container.unregisterService(serviceInfo);
+		assertNull(container.getServiceSnapshot().getServiceInfo(sid));
+		// snapshots do not change
+		assertNotNull(registered.getServiceInfo(sid));
+	}
+
+	public void testRegisterAndUnregisterServices() throws Exception {
+		EtcdDiscoveryContainer container = connect(createConfig());
+		IServiceInfo serviceInfo = createServiceInfo(UUID.randomUUID().toString());
+		IServiceInfo[] infos = new IServiceInfo[] { serviceInfo };
+		IStatus[] results = container.registerServices(infos);
+		assertEquals(1, results.length);
+		assertTrue(results[0].isOK());
+		assertNotNull(container.getServiceInfo(serviceInfo.getServiceID()));
+
+		results = container.unregisterServices(infos);
+		assertEquals(1, results.length);
+		assertTrue(results[0].isOK());
+		assertNull(container.getServiceInfo(serviceInfo.getServiceID()));
+
+		// no longer registered
+		results = container.unregisterServices(infos);
+		assertFalse(results[0].isOK());
+	}
+
+	public void testRegisterServicesDeliveredTogether() throws Exception {
+		EtcdDiscoveryContainerConfig config = createConfig();
+		// only local events
+		config.setStartDelay(60000);
+		EtcdDiscoveryContainer container = new EtcdDiscoveryContainer(config);
+		containers.add(container);
+		final CountDownLatch discovered = new CountDownLatch(3);
+		final CountDownLatch undiscovered = new CountDownLatch(3);
+		container.addServiceListener(new IServiceListener() {
+			public void serviceDiscovered(IServiceEvent anEvent) {
+				discovered.countDown();
+			}
+
+			public void serviceUndiscovered(IServiceEvent anEvent) {
+				undiscovered.countDown();
+			}
+
+			public boolean triggerDiscovery() {
+				return false;
+			}
+		});
+		container.connect(null, null);
+		IServiceInfo[] infos = new IServiceInfo[3];
+		for (int i = 0; i < infos.length; i++)
+			infos[i] = createServiceInfo(UUID.randomUUID().toString());
+		long delivered = container.getEventDispatcher().getDeliveredCount();
+		container.registerServices(infos);
+		assertTrue(discovered.await(5, TimeUnit.SECONDS));
+		assertTrue(container.getEventDispatcher().awaitIdle(5000));
+		// one delivery to the listener for the batch
+		assertEquals(delivered + 1, container.getEventDispatcher().getDeliveredCount());
+
+		container.unregisterServices(infos);
+		assertTrue(undiscovered.await(5, TimeUnit.SECONDS));
+		assertTrue(container.getEventDispatcher().awaitIdle(5000));
+		assertEquals(delivered + 2, container.getEventDispatcher().getDeliveredCount());
+	}
+
+	public void testFastWithdraw() throws Exception {
+		EtcdDiscoveryContainerConfig config = createConfig();
+		config.setFastWithdraw(true);
+		EtcdDiscoveryContainer container = connect(config);
+		String endpointId = UUID.randomUUID().toString();
+		IServiceInfo serviceInfo = createServiceInfo(endpointId);
+		IServiceID sid = serviceInfo.getServiceID();
+		String sessionKey = "/" + getName() + "/" + config.getSessionId();
+		assertTrue(container.registerServices(new IServiceInfo[] { serviceInfo })[0].isOK());
+		assertNotNull(container.getServiceInfo(sid));
+		assertNotNull(server.get(sessionKey + "/" + endpointId));
+
+		container.unregisterAllServices();
+		assertNull(container.getServiceInfo(sid));
+		assertNull(server.get(sessionKey + "/" + endpointId));
+
+		// session directory is recreated, so services can be registered again
+		assertNotNull(server.get(sessionKey));
+		assertTrue(container.registerServices(new IServiceInfo[] { serviceInfo })[0].isOK());
+		assertNotNull(container.getServiceInfo(sid));
+	}
+
+	public void testCoalesceEvents() throws Exception {
+		EtcdDiscoveryContainerConfig config = createConfig();
+		config.setCoalesceWindow(500);
+		// only local events
+		config.setStartDelay(60000);
+		EtcdDiscoveryContainer container = new EtcdDiscoveryContainer(config);
+		containers.add(container);
+		final CountDownLatch discovered = new CountDownLatch(1);
+		final AtomicInteger discoveredCount = new AtomicInteger();
+		final AtomicInteger undiscoveredCount = new AtomicInteger();
+		container.addServiceListener(new IServiceListener() {
+			public void serviceDiscovered(IServiceEvent anEvent) {
+				discoveredCount.incrementAndGet();
+				discovered.countDown();
+			}
+
+			public void serviceUndiscovered(IServiceEvent anEvent) {
+				undiscoveredCount.incrementAndGet();
+			}
+
+			public boolean triggerDiscovery() {
+				return false;
+			}
+		});
+		container.connect(null, null);
+		IServiceInfo serviceInfo = createServiceInfo(UUID.randomUUID().toString());
+		container.registerService(serviceInfo);
+		container.unregisterService(serviceInfo);
+		container.registerService(serviceInfo);
+		// delivered once the coalesce window has passed
+		assertTrue(discovered.await(5, TimeUnit.SECONDS));
+		assertTrue(container.getEventDispatcher().awaitIdle(5000));
+		// net change is a single discovered
+		assertEquals(1, discoveredCount.get());
+		assertEquals(0, undiscoveredCount.get());
+		assertEquals(2, container.getCoalescedEventCount());
+	}
+
+	public void testTypesKeyLayout() throws Exception {
+		EtcdDiscoveryContainerConfig config = createConfig();
+		String endpointId = UUID.randomUUID().toString();
+		IServiceInfo serviceInfo = createServiceInfo(endpointId);
+		IServiceID sid = serviceInfo.getServiceID();
+		config.setKeyLayout(EtcdDiscoveryContainerConfig.KEY_LAYOUT_TYPES);
+		config.setServiceTypes(sid.getServiceTypeID().getName());
+		EtcdDiscoveryContainer container = connect(config);
+		String serviceKey = "/" + getName() + "/types/" + sid.getServiceTypeID().getName() + "/"
+				+ config.getSessionId() + "/" + endpointId;
+		container.registerService(serviceInfo);
+		assertNotNull(container.getServiceInfo(sid));
+		waitForKey(serviceKey);
+		container.unregisterService(serviceInfo);
+		assertNull(container.getServiceInfo(sid));
+		waitForRemoval(serviceKey);
+	}
+
+	public void testFastStart() throws Exception {
+		EtcdDiscoveryContainer advertiser = connect(createConfig());
+		IServiceInfo serviceInfo = createServiceInfo(UUID.randomUUID().toString());
+		IServiceID sid = serviceInfo.getServiceID();
+		assertTrue(advertiser.registerServices(new IServiceInfo[] { serviceInfo })[0].isOK());
+		EtcdDiscoveryContainerConfig config = createConfig();
+		config.setFastStart(true);
+		EtcdDiscoveryContainer locator = connect(config);
+		// known on connect, without waiting for the start delay
+		assertNotNull(locator.getServiceInfo(sid));
+		assertTrue(locator.awaitInitialSync(5000));
+	}
+
+	public void testSnapshotRestoredWhenUnreachable() throws Exception {
+		File snapshotDirectory = File.createTempFile("etcd", "snapshots");
+		snapshotDirectory.delete();
+		snapshotDirectory.mkdir();
+		EtcdDiscoveryContainer advertiser = connect(createConfig());
+		IServiceInfo serviceInfo = createServiceInfo(UUID.randomUUID().toString());
+		IServiceID sid = serviceInfo.getServiceID();
+		assertTrue(advertiser.registerServices(new IServiceInfo[] { serviceInfo })[0].isOK());
+		EtcdDiscoveryContainerConfig config = createConfig();
+		config.setFastStart(true);
+		config.setSnapshotDirectory(snapshotDirectory.getAbsolutePath());
+		EtcdDiscoveryContainer locator = connect(config);
+		assertNotNull(locator.getServiceInfo(sid));
+		assertFalse(locator.getServiceSnapshot().isStale());
+		// saves the snapshot file
+		locator.disconnect();
+
+		// etcd cannot be reached, services are restored as stale
+		EtcdV2StandInServer other = new EtcdV2StandInServer();
+		other.close();
+		config = new EtcdDiscoveryContainerConfig(getName(), other.getBaseUrl());
+		config.setApiVersion(EtcdDiscoveryContainerConfig.ETCD_API_V2);
+		config.setSnapshotDirectory(snapshotDirectory.getAbsolutePath());
+		locator = new EtcdDiscoveryContainer(config);
+		containers.add(locator);
+		try {
+			locator.connect(null, null);
+			fail();
+		} catch (ContainerConnectException e) {
+			// expected
+		}
+		assertNotNull(locator.getServiceInfo(sid));
+		assertTrue(locator.getServiceSnapshot().isStale());
+		File[] files = snapshotDirectory.listFiles();
+		for (int i = 0; i < files.length; i++)
+			files[i].delete();
+		snapshotDirectory.delete();
+	}
+
+	public void testWatchResyncsWhenEventIndexCleared() throws Exception {
+		String sessionKey = "/" + getName() + "/" + UUID.randomUUID();
+		String removedKey = putRemoteService(sessionKey);
+		putRemoteService(sessionKey);
+		EtcdDiscoveryContainerConfig config = createConfig();
+		config.setFastStart(true);
+		EtcdDiscoveryContainer container = new EtcdDiscoveryContainer(config);
+		containers.add(container);
+		// the two services read on connect, then the net change
+		final CountDownLatch events = new CountDownLatch(4);
+		final List<IServiceInfo> discovered = Collections.synchronizedList(new ArrayList<IServiceInfo>());
+		final List<IServiceInfo> undiscovered = Collections.synchronizedList(new ArrayList<IServiceInfo>());
+		container.addServiceListener(new IServiceListener() {
+			public void serviceDiscovered(IServiceEvent anEvent) {
+				discovered.add(anEvent.getServiceInfo());
+				events.countDown();
+			}
+
+			public void serviceUndiscovered(IServiceEvent anEvent) {
+				undiscovered.add(anEvent.getServiceInfo());
+				events.countDown();
+			}
+
+			public boolean triggerDiscovery() {
+				return false;
+			}
+		});
+		container.connect(null, null);
+		assertTrue(container.awaitInitialSync(5000));
+		assertTrue(container.getEventDispatcher().awaitIdle(5000));
+		assertEquals(2, discovered.size());
+		discovered.clear();
+		waitForWatch();
+		// changes the watch is not told about: one service added, one removed
+		// and one both added and removed
+		String addedKey = putRemoteService(sessionKey);
+		server.remove(removedKey);
+		server.remove(putRemoteService(sessionKey));
+		long index = server.getIndex();
+		server.clearEventIndex();
+		assertTrue(events.await(5, TimeUnit.SECONDS));
+		// watches again from the index of the resync get
+		waitForWatch();
+		assertEquals(index + 1, server.getLastWaitIndex());
+		assertEquals(1, container.getWatchResyncCount());
+		assertTrue(container.getEventDispatcher().awaitIdle(5000));
+		// only the net change is fired
+		assertEquals(1, discovered.size());
+		assertEquals(1, undiscovered.size());
+		assertEquals(2, container.getServices().length);
+		assertTrue(addedKey.endsWith(discovered.get(0).getServiceName()));
+		assertTrue(removedKey.endsWith(undiscovered.get(0).getServiceName()));
+	}
+
+	public void testRegisterServiceThrowsWhenSetFails() throws Exception {
+		EtcdDiscoveryContainer container = connect(createConfig());
+		IServiceInfo serviceInfo = createServiceInfo(UUID.randomUUID().toString());
+		// etcd can no longer be reached
+		server.close();
+		try {
+			container.registerService(serviceInfo);
+			fail();
+		} catch (RuntimeException e) {
+			// expected
+		}
+		// not announced
+		assertNull(container.getServiceInfo(serviceInfo.getServiceID()));
+		assertEquals(0, container.getServices().length);
+	}
+}
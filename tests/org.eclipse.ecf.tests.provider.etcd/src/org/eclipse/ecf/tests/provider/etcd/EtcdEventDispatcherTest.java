@@ -0,0 +1,196 @@
+package org.eclipse.ecf.tests.provider.etcd;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+import org.eclipse.ecf.provider.etcd.EtcdEventDispatcher;
+
+public class EtcdEventDispatcherTest extends TestCase {
+
+	private ExecutorService executor;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		executor = Executors.newFixedThreadPool(4);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		executor.shutdownNow();
+		super.tearDown();
+	}
+
+	private Runnable record(final List<Integer> received, final int value) {
+		return new Runnable() {
+			public void run() {
+				received.add(Integer.valueOf(value));
+			}
+		};
+	}
+
+	private Runnable await(final CountDownLatch latch) {
+		return new Runnable() {
+			public void run() {
+				try {
+					latch.await(10, TimeUnit.SECONDS);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		};
+	}
+
+	public void testDeliveredInOrderPerListener() throws Exception {
+		EtcdEventDispatcher dispatcher = new EtcdEventDispatcher(executor, 1000,
+				EtcdEventDispatcher.OVERFLOW_BLOCK);
+		Object listener1 = new Object();
+		Object listener2 = new Object();
+		List<Integer> received1 = Collections.synchronizedList(new ArrayList<Integer>());
+		List<Integer> received2 = Collections.synchronizedList(new ArrayList<Integer>());
+		List<Integer> expected = new ArrayList<Integer>();
+		for (int i = 0; i < 500; i++) {
+			dispatcher.dispatch(listener1, record(received1, i));
+			dispatcher.dispatch(listener2, record(received2, i));
+			expected.add(Integer.valueOf(i));
+		}
+		assertTrue(dispatcher.awaitIdle(10000));
+		assertEquals(expected, received1);
+		assertEquals(expected, received2);
+		assertEquals(1000, dispatcher.getDeliveredCount());
+		assertEquals(0, dispatcher.getDroppedCount());
+		assertEquals(0, dispatcher.getPendingCount());
+	}
+
+	public void testSlowListenerDoesNotDelayOthers() throws Exception {
+		EtcdEventDispatcher dispatcher = new EtcdEventDispatcher(executor, 10,
+				EtcdEventDispatcher.OVERFLOW_BLOCK);
+		CountDownLatch release = new CountDownLatch(1);
+		final CountDownLatch fastDelivered = new CountDownLatch(1);
+		dispatcher.dispatch(new Object(), await(release));
+		dispatcher.dispatch(new Object(), new Runnable() {
+			public void run() {
+				fastDelivered.countDown();
+			}
+		});
+		assertTrue(fastDelivered.await(5, TimeUnit.SECONDS));
+		release.countDown();
+		assertTrue(dispatcher.awaitIdle(10000));
+	}
+
+	public void testDropNewest() throws Exception {
+		EtcdEventDispatcher dispatcher = new EtcdEventDispatcher(executor, 2,
+				EtcdEventDispatcher.OVERFLOW_DROP_NEWEST);
+		Object listener = new Object();
+		CountDownLatch release = new CountDownLatch(1);
+		List<Integer> received = Collections.synchronizedList(new ArrayList<Integer>());
+		dispatcher.dispatch(listener, await(release));
+		// wait for the blocking event to be taken off the queue
+		while (dispatcher.getPendingCount() > 0)
+			Thread.sleep(10);
+		for (int i = 0; i < 5; i++)
+			dispatcher.dispatch(listener, record(received, i));
+		release.countDown();
+		assertTrue(dispatcher.awaitIdle(10000));
+		assertEquals(3, dispatcher.getDroppedCount());
+		assertEquals(2, received.size());
+		assertEquals(Integer.valueOf(0), received.get(0));
+		assertEquals(Integer.valueOf(1), received.get(1));
+	}
+
+	public void testDropOldest() throws Exception {
+		EtcdEventDispatcher dispatcher = new EtcdEventDispatcher(executor, 2,
+				EtcdEventDispatcher.OVERFLOW_DROP_OLDEST);
+		Object listener = new Object();
+		CountDownLatch release = new CountDownLatch(1);
+		List<Integer> received = Collections.synchronizedList(new ArrayList<Integer>());
+		dispatcher.dispatch(listener, await(release));
+		while (dispatcher.getPendingCount() > 0)
+			Thread.sleep(10);
+		for (int i = 0; i < 5; i++)
+			dispatcher.dispatch(listener, record(received, i));
+		release.countDown();
+		assertTrue(dispatcher.awaitIdle(10000));
+		assertEquals(3, dispatcher.getDroppedCount());
+		assertEquals(2, received.size());
+		assertEquals(Integer.valueOf(3), received.get(0));
+		assertEquals(Integer.valueOf(4), received.get(1));
+	}
+
+	public void testBlockAppliesBackpressure() throws Exception {
+		final EtcdEventDispatcher dispatcher = new EtcdEventDispatcher(executor, 1,
+				EtcdEventDispatcher.OVERFLOW_BLOCK);
+		final Object listener = new Object();
+		CountDownLatch release = new CountDownLatch(1);
+		final List<Integer> received = Collections.synchronizedList(new ArrayList<Integer>());
+		dispatcher.dispatch(listener, await(release));
+		while (dispatcher.getPendingCount() > 0)
+			Thread.sleep(10);
+		dispatcher.dispatch(listener, record(received, 0));
+		// queue is full, so this dispatch waits for the listener
+		final CountDownLatch dispatched = new CountDownLatch(1);
+		Thread producer = new Thread(new Runnable() {
+			public void run() {
+				dispatcher.dispatch(listener, record(received, 1));
+				dispatched.countDown();
+			}
+		});
+		producer.start();
+		assertFalse(dispatched.await(200, TimeUnit.MILLISECONDS));
+		release.countDown();
+		assertTrue(dispatched.await(5, TimeUnit.SECONDS));
+		assertTrue(dispatcher.awaitIdle(10000));
+		assertEquals(0, dispatcher.getDroppedCount());
+		assertTrue(dispatcher.getBlockedCount() > 0);
+		assertEquals(2, received.size());
+	}
+
+	public void testBatchIsOneDelivery() throws Exception {
+		EtcdEventDispatcher dispatcher = new EtcdEventDispatcher(executor, 1,
+				EtcdEventDispatcher.OVERFLOW_DROP_NEWEST);
+		Object listener = new Object();
+		CountDownLatch release = new CountDownLatch(1);
+		final List<Integer> received = Collections.synchronizedList(new ArrayList<Integer>());
+		dispatcher.dispatch(listener, await(release));
+		while (dispatcher.getPendingCount() > 0)
+			Thread.sleep(10);
+		List<Runnable> batch = new ArrayList<Runnable>();
+		batch.add(record(received, 0));
+		batch.add(new Runnable() {
+			public void run() {
+				throw new IllegalStateException();
+			}
+		});
+		batch.add(record(received, 1));
+		// the batch takes one place in the queue, so it is not dropped
+		dispatcher.dispatch(listener, batch);
+		release.countDown();
+		assertTrue(dispatcher.awaitIdle(10000));
+		assertEquals(0, dispatcher.getDroppedCount());
+		assertEquals(1, dispatcher.getFailedCount());
+		assertEquals(2, received.size());
+		assertEquals(Integer.valueOf(0), received.get(0));
+		assertEquals(Integer.valueOf(1), received.get(1));
+	}
+
+	public void testSynchronousWithoutExecutor() throws Exception {
+		EtcdEventDispatcher dispatcher = new EtcdEventDispatcher(null, 1, EtcdEventDispatcher.OVERFLOW_BLOCK);
+		final Thread caller = Thread.currentThread();
+		final List<Thread> threads = new ArrayList<Thread>();
+		dispatcher.dispatch(new Object(), new Runnable() {
+			public void run() {
+				threads.add(Thread.currentThread());
+			}
+		});
+		assertFalse(dispatcher.isAsynchronous());
+		assertEquals(1, threads.size());
+		assertSame(caller, threads.get(0));
+	}
+}
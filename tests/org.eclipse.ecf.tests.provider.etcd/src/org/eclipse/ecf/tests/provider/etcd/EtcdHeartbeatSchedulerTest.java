@@ -0,0 +1,121 @@
+package org.eclipse.ecf.tests.provider.etcd;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+import org.eclipse.ecf.internal.provider.etcd.protocol.EtcdHeartbeatScheduler;
+
+@SuppressWarnings("restriction")
+public class EtcdHeartbeatSchedulerTest extends TestCase {
+
+	private EtcdHeartbeatScheduler scheduler;
+
+	protected void setUp() throws Exception {
+		super.setUp();
+		scheduler = new EtcdHeartbeatScheduler(50, 100, 200);
+	}
+
+	protected void tearDown() throws Exception {
+		scheduler.shutdown();
+		super.tearDown();
+	}
+
+	class CountingHeartbeat implements EtcdHeartbeatScheduler.Heartbeat {
+		final long delay;
+		final List<Thread> threads = Collections.synchronizedList(new ArrayList<Thread>());
+
+		CountingHeartbeat(long delay) {
+			this.delay = delay;
+		}
+
+		public long beat() {
+			threads.add(Thread.currentThread());
+			return delay;
+		}
+	}
+
+	private void waitFor(CountingHeartbeat heartbeat, int beats) throws InterruptedException {
+		long end = System.currentTimeMillis() + 5000;
+		while (heartbeat.threads.size() < beats && System.currentTimeMillis() < end)
+			Thread.sleep(10);
+		assertTrue("beats=" + heartbeat.threads.size(), heartbeat.threads.size() >= beats);
+	}
+
+	public void testBeatsWhenDue() throws Exception {
+		CountingHeartbeat heartbeat = new CountingHeartbeat(100);
+		long start = System.currentTimeMillis();
+		EtcdHeartbeatScheduler.Registration registration = scheduler.schedule(heartbeat, 100);
+		waitFor(heartbeat, 3);
+		assertTrue(System.currentTimeMillis() - start >= 250);
+		registration.cancel();
+		int beats = heartbeat.threads.size();
+		Thread.sleep(300);
+		assertEquals(beats, heartbeat.threads.size());
+		assertEquals(0, scheduler.getScheduledCount());
+	}
+
+	public void testCoalescesBeatsDueTogether() throws Exception {
+		CountingHeartbeat first = new CountingHeartbeat(-1);
+		CountingHeartbeat second = new CountingHeartbeat(-1);
+		scheduler.schedule(first, 100);
+		scheduler.schedule(second, 130);
+		waitFor(first, 1);
+		waitFor(second, 1);
+		// handed to one worker together, and run back to back
+		assertEquals(1, scheduler.getRunCount());
+		assertSame(first.threads.get(0), second.threads.get(0));
+		assertEquals(0, scheduler.getHandoffCount());
+	}
+
+	public void testBlockedBeatDoesNotDelayOthers() throws Exception {
+		final CountDownLatch release = new CountDownLatch(1);
+		final CountDownLatch blocked = new CountDownLatch(1);
+		EtcdHeartbeatScheduler.Registration blocking = scheduler.schedule(new EtcdHeartbeatScheduler.Heartbeat() {
+			public long beat() {
+				blocked.countDown();
+				try {
+					release.await(10, TimeUnit.SECONDS);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				return -1;
+			}
+		}, 50);
+		// due in the same batch, after the blocking one
+		CountingHeartbeat heartbeat = new CountingHeartbeat(20);
+		EtcdHeartbeatScheduler.Registration registration = scheduler.schedule(heartbeat, 70);
+		assertTrue(blocked.await(5, TimeUnit.SECONDS));
+		waitFor(heartbeat, 3);
+		assertEquals(1, release.getCount());
+		// handed to another worker after the blocked threshold
+		assertEquals(1, scheduler.getHandoffCount());
+		registration.cancel();
+		release.countDown();
+		// waits for the beat being run
+		blocking.cancel();
+		assertEquals(0, scheduler.getScheduledCount());
+	}
+
+	public void testExpedite() throws Exception {
+		CountingHeartbeat heartbeat = new CountingHeartbeat(-1);
+		EtcdHeartbeatScheduler.Registration registration = scheduler.schedule(heartbeat, 60000);
+		registration.expedite(0);
+		waitFor(heartbeat, 1);
+		assertEquals(0, scheduler.getScheduledCount());
+	}
+
+	public void testNoThreadWhenIdle() throws Exception {
+		CountingHeartbeat heartbeat = new CountingHeartbeat(-1);
+		scheduler.schedule(heartbeat, 0);
+		waitFor(heartbeat, 1);
+		long end = System.currentTimeMillis() + 5000;
+		while (scheduler.getThreadCount() > 0 && System.currentTimeMillis() < end)
+			Thread.sleep(50);
+		assertEquals(0, scheduler.getThreadCount());
+	}
+}
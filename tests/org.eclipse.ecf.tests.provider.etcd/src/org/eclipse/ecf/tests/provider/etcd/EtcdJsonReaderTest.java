@@ -0,0 +1,148 @@
+package org.eclipse.ecf.tests.provider.etcd;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.util.Enumeration;
+
+import junit.framework.TestCase;
+
+import org.eclipse.ecf.internal.provider.etcd.protocol.EtcdErrorResponse;
+import org.eclipse.ecf.internal.provider.etcd.protocol.EtcdJsonReader;
+import org.eclipse.ecf.internal.provider.etcd.protocol.EtcdNode;
+import org.eclipse.ecf.internal.provider.etcd.protocol.EtcdSuccessResponse;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+@SuppressWarnings("restriction")
+public class EtcdJsonReaderTest extends TestCase {
+
+	static final String RESPONSE = "{\"action\":\"get\",\"node\":{\"key\":\"/dir\",\"dir\":true,\"nodes\":["
+			+ "{\"key\":\"/dir/a\",\"value\":\"caf\\u00e9 \\\"q\\\" \u00fc\\n\",\"modifiedIndex\":7,\"createdIndex\":5},"
+			+ "{\"key\":\"/dir/sub\",\"dir\":true,\"ttl\":30,\"expiration\":\"2014-01-01T00:00:00Z\",\"nodes\":[]},"
+			+ "{\"key\":\"/dir/b\",\"value\":null,\"unknown\":{\"x\":[1,2.5e3,true,null,\"}\"]}}"
+			+ "],\"modifiedIndex\":3,\"createdIndex\":3},\"prevNode\":null}\n";
+
+	private EtcdJsonReader reader(String json) throws Exception {
+		return new EtcdJsonReader(new ByteArrayInputStream(json.getBytes("UTF-8")));
+	}
+
+	private void assertSameNode(EtcdNode expected, EtcdNode actual) {
+		assertEquals(expected.getKey(), actual.getKey());
+		assertEquals(expected.getValue(), actual.getValue());
+		assertEquals(expected.isDirectory(), actual.isDirectory());
+		assertEquals(expected.getCreatedIndex(), actual.getCreatedIndex());
+		assertEquals(expected.getModifiedIndex(), actual.getModifiedIndex());
+		assertEquals(expected.getTtl(), actual.getTtl());
+		assertEquals(expected.getExpiration(), actual.getExpiration());
+		if (expected.getNodes() == null)
+			assertNull(actual.getNodes());
+		else {
+			assertEquals(expected.getNodes().length, actual.getNodes().length);
+			for (int i = 0; i < expected.getNodes().length; i++)
+				assertSameNode(expected.getNodes()[i], actual.getNodes()[i]);
+		}
+	}
+
+	public void testSuccessResponse() throws Exception {
+		EtcdJsonReader reader = reader(RESPONSE);
+		EtcdSuccessResponse response = new EtcdSuccessResponse(reader, null);
+		reader.endDocument();
+		assertEquals("get", response.getAction());
+		assertNull(response.getPreviousNode());
+		EtcdNode node = response.getNode();
+		assertEquals(3, node.getNodes().length);
+		assertEquals("caf\u00e9 \"q\" \u00fc\n", node.getNodes()[0].getValue());
+		// same result as the org.json based decoding
+		assertSameNode(new EtcdNode(new JSONObject(RESPONSE.replace("\"value\":null,", "")).getJSONObject("node")),
+				node);
+	}
+
+	public void testLazyNodes() throws Exception {
+		byte[] data = RESPONSE.getBytes("UTF-8");
+		EtcdJsonReader reader = new EtcdJsonReader(data);
+		EtcdNode node = new EtcdSuccessResponse(reader, null).getNode();
+		reader.endDocument();
+		// metadata is decoded, children are not
+		assertEquals("/dir", node.getKey());
+		assertEquals(3, node.getModifiedIndex());
+		assertTrue(node.isDirectory());
+		assertTrue(node.isLazy());
+		assertTrue(node.toString().indexOf("<undecoded>") != -1);
+		EtcdNode[] children = node.getNodes();
+		assertFalse(node.isLazy());
+		assertEquals(3, children.length);
+		EtcdNode a = children[0];
+		assertEquals("/dir/a", a.getKey());
+		assertEquals(7, a.getModifiedIndex());
+		assertTrue(a.isLazy());
+		assertEquals("caf\u00e9 \"q\" \u00fc\n", a.getValue());
+		assertFalse(a.isLazy());
+		// null value is not lazy
+		assertFalse(children[2].isLazy());
+		assertSameNode(new EtcdSuccessResponse(reader(RESPONSE), null).getNode(),
+				new EtcdSuccessResponse(new EtcdJsonReader(data), null).getNode());
+	}
+
+	public void testErrorResponse() throws Exception {
+		EtcdJsonReader reader = reader("{\"errorCode\":100,\"message\":\"Key not found\",\"cause\":\"/x\",\"index\":12}");
+		EtcdErrorResponse response = new EtcdErrorResponse(reader, null);
+		reader.endDocument();
+		assertEquals(100, response.getErrorCode());
+		assertEquals("Key not found", response.getMessage());
+		assertEquals("/x", response.getCause());
+		assertEquals(12, response.getIndex());
+	}
+
+	public void testMalformed() throws Exception {
+		String[] malformed = new String[] { "{\"action\":\"get\"", "{\"action\" \"get\"}", "{\"node\":{\"key\":\"/a}}",
+				"{\"action\":\"get\",\"node\":{}} x" };
+		for (String json : malformed) {
+			try {
+				EtcdJsonReader reader = reader(json);
+				new EtcdSuccessResponse(reader, null);
+				reader.endDocument();
+				fail("Expected parse error for " + json);
+			} catch (JSONException e) {
+				// expected
+			}
+		}
+	}
+
+	public void testLargeDirectory() throws Exception {
+		final int count = 20000;
+		// streamed in pieces, so values span buffer boundaries
+		Enumeration<InputStream> parts = new Enumeration<InputStream>() {
+			int i = -1;
+
+			public boolean hasMoreElements() {
+				return i <= count;
+			}
+
+			public InputStream nextElement() {
+				String s;
+				if (i == -1)
+					s = "{\"action\":\"get\",\"node\":{\"key\":\"/dir\",\"dir\":true,\"nodes\":[";
+				else if (i == count)
+					s = "]}}";
+				else
+					s = ((i > 0) ? "," : "") + "{\"key\":\"/dir/" + i + "\",\"value\":\"" + i + "\u00e9\",\"modifiedIndex\":"
+							+ i + "}";
+				i++;
+				try {
+					return new ByteArrayInputStream(s.getBytes("UTF-8"));
+				} catch (Exception e) {
+					throw new RuntimeException(e);
+				}
+			}
+		};
+		EtcdJsonReader reader = new EtcdJsonReader(new SequenceInputStream(parts));
+		EtcdNode node = new EtcdSuccessResponse(reader, null).getNode();
+		reader.endDocument();
+		assertEquals(count, node.getNodes().length);
+		assertEquals("/dir/12345", node.getNodes()[12345].getKey());
+		assertEquals("12345\u00e9", node.getNodes()[12345].getValue());
+		assertEquals(12345, node.getNodes()[12345].getModifiedIndex());
+	}
+
+}
@@ -0,0 +1,200 @@
+package org.eclipse.ecf.tests.provider.etcd;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.eclipse.ecf.internal.provider.etcd.protocol.EtcdConnectionPool;
+import org.eclipse.ecf.internal.provider.etcd.protocol.EtcdGetRequest;
+import org.eclipse.ecf.internal.provider.etcd.protocol.EtcdHttpResponse;
+import org.eclipse.ecf.internal.provider.etcd.protocol.EtcdPooledTransport;
+import org.eclipse.ecf.internal.provider.etcd.protocol.EtcdRequest;
+import org.eclipse.ecf.internal.provider.etcd.protocol.EtcdV3LeaseRequest;
+
+@SuppressWarnings("restriction")
+public class EtcdPooledTransportTest extends TestCase {
+
+	static final String OK = "HTTP/1.1 200 OK\r\nContent-Length: 2\r\n\r\n{}";
+	static final String BAD_LENGTH = "HTTP/1.1 200 OK\r\nContent-Length: x\r\n\r\n{}";
+	// closes the connection without response
+	static final String CLOSE = null;
+
+	/**
+	 * Server answering the n-th request (over all connections) with the n-th
+	 * scripted response.
+	 */
+	static class ScriptedServer implements Runnable {
+
+		private final ServerSocket serverSocket;
+		private final List<String> script;
+		private int requests;
+		private int connections;
+
+		ScriptedServer(String... script) throws IOException {
+			this.script = new ArrayList<String>(Arrays.asList(script));
+			serverSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+			Thread t = new Thread(this, "ScriptedServer");
+			t.setDaemon(true);
+			t.start();
+		}
+
+		URL getUrl() throws IOException {
+			return new URL("http://127.0.0.1:" + serverSocket.getLocalPort() + "/v3/kv/range");
+		}
+
+		synchronized int getRequestCount() {
+			return requests;
+		}
+
+		synchronized int getConnectionCount() {
+			return connections;
+		}
+
+		void close() throws IOException {
+			serverSocket.close();
+		}
+
+		public void run() {
+			while (!serverSocket.isClosed())
+				try {
+					final Socket s = serverSocket.accept();
+					synchronized (this) {
+						connections++;
+					}
+					Thread t = new Thread(new Runnable() {
+						public void run() {
+							handle(s);
+						}
+					}, "ScriptedServer connection");
+					t.setDaemon(true);
+					t.start();
+				} catch (IOException e) {
+					// closed
+				}
+		}
+
+		void handle(Socket s) {
+			try {
+				InputStream in = new BufferedInputStream(s.getInputStream());
+				OutputStream out = s.getOutputStream();
+				while (true) {
+					int length = 0;
+					String line = readLine(in);
+					if (line == null)
+						break;
+					while ((line = readLine(in)) != null && line.length() > 0)
+						if (line.toLowerCase().startsWith("content-length:"))
+							length = Integer.parseInt(line.substring(15).trim());
+					for (int i = 0; i < length; i++)
+						in.read();
+					String response;
+					synchronized (this) {
+						response = (requests < script.size()) ? script.get(requests) : OK;
+						requests++;
+					}
+					if (response == CLOSE)
+						break;
+					out.write(response.getBytes("ISO-8859-1"));
+					out.flush();
+				}
+			} catch (IOException e) {
+				// closed
+			} finally {
+				try {
+					s.close();
+				} catch (IOException e) {
+					// ignore
+				}
+			}
+		}
+
+		private String readLine(InputStream in) throws IOException {
+			StringBuilder buf = new StringBuilder();
+			int c;
+			while ((c = in.read()) != -1 && c != '\n')
+				if (c != '\r')
+					buf.append((char) c);
+			return (c == -1 && buf.length() == 0) ? null : buf.toString();
+		}
+	}
+
+	private ScriptedServer server;
+	private EtcdPooledTransport transport;
+
+	@Override
+	protected void tearDown() throws Exception {
+		if (transport != null)
+			transport.close();
+		if (server != null)
+			server.close();
+		super.tearDown();
+	}
+
+	private void execute(EtcdRequest request) throws IOException {
+		EtcdHttpResponse response = transport.execute(request, server.getUrl());
+		InputStream body = response.getBody();
+		while (body.read() != -1) {
+			// read to the end, to reuse the connection
+		}
+		response.close();
+	}
+
+	public void testRetryIdempotentOnStaleConnection() throws Exception {
+		server = new ScriptedServer(OK, CLOSE, OK);
+		transport = new EtcdPooledTransport();
+		execute(new EtcdGetRequest(server.getUrl().toString()));
+		execute(new EtcdGetRequest(server.getUrl().toString()));
+		assertEquals(3, server.getRequestCount());
+		assertEquals(2, server.getConnectionCount());
+	}
+
+	public void testNoRetryOfNonIdempotent() throws Exception {
+		server = new ScriptedServer(OK, CLOSE, OK);
+		transport = new EtcdPooledTransport();
+		String baseUrl = "http://127.0.0.1:" + server.getUrl().getPort() + "/v3";
+		execute(EtcdV3LeaseRequest.grant(baseUrl, 30));
+		try {
+			execute(EtcdV3LeaseRequest.grant(baseUrl, 30));
+			fail();
+		} catch (IOException e) {
+			// expected: the first grant may have been applied
+		}
+		assertEquals(2, server.getRequestCount());
+		assertEquals(0, transport.getRequestPool().getLeasedCount());
+	}
+
+	public void testReleaseOnRuntimeException() throws Exception {
+		server = new ScriptedServer(BAD_LENGTH);
+		transport = new EtcdPooledTransport();
+		try {
+			execute(new EtcdGetRequest(server.getUrl().toString()));
+			fail();
+		} catch (RuntimeException e) {
+			// expected
+		}
+		assertEquals(0, transport.getRequestPool().getLeasedCount());
+	}
+
+	public void testIdleConnectionsEvicted() throws Exception {
+		server = new ScriptedServer(OK);
+		transport = new EtcdPooledTransport(new EtcdConnectionPool("requests", 8, 100),
+				new EtcdConnectionPool("watches", 8, 100));
+		execute(new EtcdGetRequest(server.getUrl().toString()));
+		assertEquals(1, transport.getRequestPool().getIdleCount());
+		// evicted without the pool being used again
+		long deadline = System.currentTimeMillis() + 5000;
+		while (transport.getRequestPool().getIdleCount() > 0 && System.currentTimeMillis() < deadline)
+			Thread.sleep(50);
+		assertEquals(0, transport.getRequestPool().getIdleCount());
+	}
+}
@@ -0,0 +1,78 @@
+package org.eclipse.ecf.tests.provider.etcd;
+
+import junit.framework.TestCase;
+
+import org.eclipse.ecf.provider.etcd.EtcdRetryPolicy;
+
+public class EtcdRetryPolicyTest extends TestCase {
+
+	public void testBackoffWithJitter() throws Exception {
+		EtcdRetryPolicy policy = new EtcdRetryPolicy(1000, 4000, 10);
+		assertTrue(policy.allowRequest());
+		assertTrue(policy.failure());
+		long delay = policy.getRetryDelay();
+		assertTrue(String.valueOf(delay), delay >= 400 && delay <= 1000);
+		assertFalse(policy.allowRequest());
+		assertFalse(policy.isRetryDue());
+		// further failures are not to be logged
+		assertFalse(policy.failure());
+		delay = policy.getRetryDelay();
+		assertTrue(String.valueOf(delay), delay >= 900 && delay <= 2000);
+		policy.failure();
+		policy.failure();
+		// capped by the maximum delay
+		delay = policy.getRetryDelay();
+		assertTrue(String.valueOf(delay), delay >= 1900 && delay <= 4000);
+		assertEquals(4, policy.getConsecutiveFailures());
+		assertEquals(EtcdRetryPolicy.STATE_CLOSED, policy.getState());
+	}
+
+	public void testCircuitOpensAndProbes() throws Exception {
+		EtcdRetryPolicy policy = new EtcdRetryPolicy(20, 40, 2);
+		assertTrue(policy.failure());
+		assertEquals(EtcdRetryPolicy.STATE_CLOSED, policy.getState());
+		// opening the circuit is to be logged
+		assertTrue(policy.failure());
+		assertEquals(EtcdRetryPolicy.STATE_OPEN, policy.getState());
+		assertEquals(1, policy.getCircuitOpenCount());
+		while (policy.getRetryDelay() > 0)
+			Thread.sleep(5);
+		// a single probe, not for callers that do not probe
+		assertFalse(policy.isRetryDue());
+		assertTrue(policy.allowRequest());
+		assertEquals(EtcdRetryPolicy.STATE_HALF_OPEN, policy.getState());
+		assertFalse(policy.allowRequest());
+		// failed probe opens the circuit again
+		assertFalse(policy.failure());
+		assertEquals(EtcdRetryPolicy.STATE_OPEN, policy.getState());
+		while (policy.getRetryDelay() > 0)
+			Thread.sleep(5);
+		assertTrue(policy.allowRequest());
+		policy.success();
+		assertEquals(EtcdRetryPolicy.STATE_CLOSED, policy.getState());
+		assertEquals(0, policy.getConsecutiveFailures());
+		assertTrue(policy.isRetryDue());
+		assertEquals(3, policy.getFailureCount());
+	}
+
+	public void testSuccessWakesWaiters() throws Exception {
+		final EtcdRetryPolicy policy = new EtcdRetryPolicy(60000, 60000, 1);
+		policy.failure();
+		assertEquals(EtcdRetryPolicy.STATE_OPEN, policy.getState());
+		Thread prober = new Thread(new Runnable() {
+			public void run() {
+				try {
+					Thread.sleep(100);
+				} catch (InterruptedException e) {
+					return;
+				}
+				policy.success();
+			}
+		});
+		prober.start();
+		long start = System.currentTimeMillis();
+		policy.await(10000);
+		assertTrue(System.currentTimeMillis() - start < 5000);
+		assertTrue(policy.isRetryDue());
+	}
+}
@@ -0,0 +1,229 @@
+package org.eclipse.ecf.tests.provider.etcd;
+
+import java.net.URI;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.eclipse.ecf.discovery.IServiceInfo;
+import org.eclipse.ecf.discovery.identity.IServiceTypeID;
+import org.eclipse.ecf.discovery.identity.ServiceIDFactory;
+import org.eclipse.ecf.provider.etcd.EtcdDiscoveryContainer;
+import org.eclipse.ecf.provider.etcd.EtcdDiscoveryContainer.EtcdServiceInfoKey;
+import org.eclipse.ecf.provider.etcd.EtcdDiscoveryContainerConfig;
+import org.eclipse.ecf.provider.etcd.EtcdServiceInfo;
+import org.eclipse.ecf.provider.etcd.EtcdServiceRegistry;
+import org.eclipse.ecf.provider.etcd.EtcdServiceSnapshot;
+import org.eclipse.ecf.provider.etcd.identity.EtcdNamespace;
+
+public class EtcdServiceRegistryTest extends TestCase {
+
+	private EtcdDiscoveryContainer container;
+	private EtcdServiceRegistry registry;
+	private IServiceTypeID type1;
+	private IServiceTypeID type2;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		new EtcdNamespace();
+		// EtcdServiceInfoKey is an inner class, the container is never connected
+		container = new EtcdDiscoveryContainer(new EtcdDiscoveryContainerConfig(getName(), "http://localhost:2379"));
+		registry = new EtcdServiceRegistry();
+		type1 = createType("test1");
+		type2 = createType("test2");
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		container.dispose();
+		super.tearDown();
+	}
+
+	private EtcdServiceInfoKey createKey(String sessionId, String serviceInfoId) {
+		return container.new EtcdServiceInfoKey(sessionId, serviceInfoId);
+	}
+
+	private IServiceTypeID createType(String service) {
+		return ServiceIDFactory.getDefault().createServiceTypeID(EtcdNamespace.INSTANCE, new String[] { service },
+				new String[] { "default" }, new String[] { "tcp" }, "iana");
+	}
+
+	private EtcdServiceInfo createServiceInfo(String name, IServiceTypeID type) {
+		return new EtcdServiceInfo(URI.create("ecftcp://localhost:3282/" + name), name, type);
+	}
+
+	public void testPutAndRemove() throws Exception {
+		EtcdServiceInfoKey key = createKey("session1", "service1");
+		EtcdServiceInfo serviceInfo = createServiceInfo("service1", type1);
+		assertNull(registry.put(key, serviceInfo, 3));
+		assertEquals(1, registry.size());
+		assertSame(serviceInfo, registry.get(key));
+		assertTrue(registry.isCurrent(key, 3));
+		assertFalse(registry.isCurrent(key, 4));
+		assertSame(serviceInfo, registry.getSnapshot().getServiceInfo(serviceInfo.getServiceID()));
+
+		assertSame(serviceInfo, registry.remove(key));
+		assertEquals(0, registry.size());
+		assertNull(registry.get(key));
+		assertNull(registry.findKey(serviceInfo.getServiceID(), "session1"));
+		assertTrue(registry.getSessionServices("session1").isEmpty());
+		assertTrue(registry.getTypeEntries(type1.getName()).isEmpty());
+		assertNull(registry.getSnapshot().getServiceInfo(serviceInfo.getServiceID()));
+		assertNull(registry.remove(key));
+	}
+
+	public void testRemoveOnlyIfUnchanged() throws Exception {
+		EtcdServiceInfoKey key = createKey("session1", "service1");
+		EtcdServiceInfo serviceInfo = createServiceInfo("service1", type1);
+		registry.put(key, serviceInfo, 3);
+		assertFalse(registry.remove(key, createServiceInfo("service1", type1)));
+		assertSame(serviceInfo, registry.get(key));
+		assertTrue(registry.remove(key, serviceInfo));
+		assertNull(registry.get(key));
+	}
+
+	public void testPutIfAbsent() throws Exception {
+		EtcdServiceInfoKey key = createKey("session1", "service1");
+		EtcdServiceInfo serviceInfo = createServiceInfo("service1", type1);
+		assertTrue(registry.putIfAbsent(key, serviceInfo));
+		assertTrue(registry.isCurrent(key, -1));
+		assertFalse(registry.putIfAbsent(key, createServiceInfo("service1", type1)));
+		assertSame(serviceInfo, registry.get(key));
+	}
+
+	public void testFindKey() throws Exception {
+		EtcdServiceInfo serviceInfo = createServiceInfo("service1", type1);
+		EtcdServiceInfoKey key1 = createKey("session1", "service1");
+		EtcdServiceInfoKey key2 = createKey("session2", "service1");
+		// the same service registered by two sessions
+		registry.put(key1, serviceInfo, 1);
+		registry.put(key2, serviceInfo, 2);
+		assertSame(key1, registry.findKey(serviceInfo.getServiceID(), "session1"));
+		assertSame(key2, registry.findKey(serviceInfo.getServiceID(), "session2"));
+		assertNull(registry.findKey(serviceInfo.getServiceID(), "session3"));
+		assertNull(registry.findKey(createServiceInfo("service2", type1).getServiceID(), "session1"));
+
+		registry.remove(key1);
+		assertNull(registry.findKey(serviceInfo.getServiceID(), "session1"));
+		assertSame(key2, registry.findKey(serviceInfo.getServiceID(), "session2"));
+	}
+
+	public void testSessionIndex() throws Exception {
+		EtcdServiceInfoKey key1 = createKey("session1", "service1");
+		EtcdServiceInfoKey key2 = createKey("session1", "service2");
+		EtcdServiceInfoKey key3 = createKey("session2", "service3");
+		EtcdServiceInfo serviceInfo1 = createServiceInfo("service1", type1);
+		EtcdServiceInfo serviceInfo2 = createServiceInfo("service2", type2);
+		EtcdServiceInfo serviceInfo3 = createServiceInfo("service3", type1);
+		registry.put(key1, serviceInfo1, 1);
+		registry.put(key2, serviceInfo2, 2);
+		registry.put(key3, serviceInfo3, 3);
+
+		List<EtcdServiceInfo> sessionServices = registry.getSessionServices("session1");
+		assertEquals(2, sessionServices.size());
+		assertTrue(sessionServices.contains(serviceInfo1));
+		assertTrue(sessionServices.contains(serviceInfo2));
+		Map<EtcdServiceInfoKey, EtcdServiceInfo> entries = registry.getEntries("session2");
+		assertEquals(1, entries.size());
+		assertSame(serviceInfo3, entries.get(key3));
+		assertEquals(3, registry.getEntries(null).size());
+		assertTrue(registry.getSessionServices("session3").isEmpty());
+
+		Map<EtcdServiceInfoKey, EtcdServiceInfo> removed = registry.removeSession("session1");
+		assertEquals(2, removed.size());
+		assertSame(serviceInfo1, removed.get(key1));
+		assertSame(serviceInfo2, removed.get(key2));
+		assertTrue(registry.getSessionServices("session1").isEmpty());
+		assertEquals(1, registry.size());
+		// the type indexes are updated too
+		assertTrue(registry.getTypeEntries(type2.getName()).isEmpty());
+		assertEquals(1, registry.getTypeEntries(type1.getName()).size());
+		EtcdServiceSnapshot snapshot = registry.getSnapshot();
+		assertEquals(1, snapshot.size());
+		assertTrue(snapshot.getServices(type2).isEmpty());
+	}
+
+	public void testTypeIndex() throws Exception {
+		EtcdServiceInfoKey key1 = createKey("session1", "service1");
+		EtcdServiceInfoKey key2 = createKey("session2", "service2");
+		EtcdServiceInfoKey key3 = createKey("session2", "service3");
+		EtcdServiceInfo serviceInfo1 = createServiceInfo("service1", type1);
+		EtcdServiceInfo serviceInfo2 = createServiceInfo("service2", type1);
+		EtcdServiceInfo serviceInfo3 = createServiceInfo("service3", type2);
+		registry.put(key1, serviceInfo1, 1);
+		registry.put(key2, serviceInfo2, 2);
+		registry.put(key3, serviceInfo3, 3);
+
+		Map<EtcdServiceInfoKey, EtcdServiceInfo> typeEntries = registry.getTypeEntries(type1.getName());
+		assertEquals(2, typeEntries.size());
+		assertSame(serviceInfo1, typeEntries.get(key1));
+		assertSame(serviceInfo2, typeEntries.get(key2));
+		typeEntries = registry.getTypeEntries(type2.getName());
+		assertEquals(1, typeEntries.size());
+		assertSame(serviceInfo3, typeEntries.get(key3));
+		assertTrue(registry.getTypeEntries(createType("test3").getName()).isEmpty());
+
+		EtcdServiceSnapshot snapshot = registry.getSnapshot();
+		assertEquals(2, snapshot.getServiceTypes().size());
+		List<IServiceInfo> typeServices = snapshot.getServices(type1);
+		assertEquals(2, typeServices.size());
+		assertTrue(typeServices.contains(serviceInfo1));
+		assertTrue(typeServices.contains(serviceInfo2));
+		assertEquals(1, snapshot.getServices(type2).size());
+	}
+
+	public void testPutChangedType() throws Exception {
+		EtcdServiceInfoKey key = createKey("session1", "service1");
+		EtcdServiceInfo serviceInfo1 = createServiceInfo("service1", type1);
+		registry.put(key, serviceInfo1, 1);
+		// the same key, now of another type
+		EtcdServiceInfo serviceInfo2 = createServiceInfo("service1", type2);
+		assertSame(serviceInfo1, registry.put(key, serviceInfo2, 2));
+		assertEquals(1, registry.size());
+		assertTrue(registry.getTypeEntries(type1.getName()).isEmpty());
+		assertSame(serviceInfo2, registry.getTypeEntries(type2.getName()).get(key));
+		assertNull(registry.findKey(serviceInfo1.getServiceID(), "session1"));
+		assertSame(key, registry.findKey(serviceInfo2.getServiceID(), "session1"));
+		assertEquals(1, registry.getSessionServices("session1").size());
+
+		EtcdServiceSnapshot snapshot = registry.getSnapshot();
+		assertEquals(1, snapshot.size());
+		assertTrue(snapshot.getServices(type1).isEmpty());
+		assertEquals(1, snapshot.getServices(type2).size());
+		assertEquals(1, snapshot.getServiceTypes().size());
+		assertTrue(snapshot.getServiceTypes().contains(type2));
+	}
+
+	public void testBatchPublishedAtEnd() throws Exception {
+		EtcdServiceInfoKey key1 = createKey("session1", "service1");
+		EtcdServiceInfoKey key2 = createKey("session1", "service2");
+		EtcdServiceSnapshot before = registry.getSnapshot();
+		registry.beginBatch();
+		assertTrue(registry.isBatching());
+		registry.put(key1, createServiceInfo("service1", type1), 1);
+		registry.put(key2, createServiceInfo("service2", type2), 2);
+		// indexes are up to date, the snapshot is not published yet
+		assertEquals(2, registry.size());
+		assertEquals(1, registry.getTypeEntries(type2.getName()).size());
+		assertSame(before, registry.getSnapshot());
+		registry.endBatch(7);
+		assertFalse(registry.isBatching());
+		EtcdServiceSnapshot snapshot = registry.getSnapshot();
+		assertEquals(2, snapshot.size());
+		assertEquals(7, snapshot.getIndex());
+	}
+
+	public void testClear() throws Exception {
+		EtcdServiceInfoKey key = createKey("session1", "service1");
+		EtcdServiceInfo serviceInfo = createServiceInfo("service1", type1);
+		registry.put(key, serviceInfo, 1);
+		registry.clear();
+		assertEquals(0, registry.size());
+		assertNull(registry.findKey(serviceInfo.getServiceID(), "session1"));
+		assertTrue(registry.getSessionServices("session1").isEmpty());
+		assertTrue(registry.getTypeEntries(type1.getName()).isEmpty());
+		assertEquals(0, registry.getSnapshot().size());
+	}
+}
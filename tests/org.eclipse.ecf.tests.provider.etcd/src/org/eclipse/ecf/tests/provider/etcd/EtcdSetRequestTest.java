@@ -0,0 +1,145 @@
+package org.eclipse.ecf.tests.provider.etcd;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.eclipse.ecf.internal.provider.etcd.protocol.EtcdDeleteRequest;
+import org.eclipse.ecf.internal.provider.etcd.protocol.EtcdRequest;
+import org.eclipse.ecf.internal.provider.etcd.protocol.EtcdResponse;
+import org.eclipse.ecf.internal.provider.etcd.protocol.EtcdSetRequest;
+import org.eclipse.ecf.internal.provider.etcd.protocol.EtcdURLConnectionTransport;
+
+@SuppressWarnings("restriction")
+public class EtcdSetRequestTest extends TestCase {
+
+	static final String RESPONSE = "{\"action\":\"set\",\"node\":{\"key\":\"/a\",\"value\":\"v\",\"modifiedIndex\":2,\"createdIndex\":2}}";
+
+	/**
+	 * Server answering each request with RESPONSE, recording request line
+	 * and body.
+	 */
+	class CaptureServer extends Thread {
+		final ServerSocket serverSocket;
+		final List<String> requestLines = new ArrayList<String>();
+		final List<String> bodies = new ArrayList<String>();
+
+		CaptureServer() throws IOException {
+			serverSocket = new ServerSocket(0);
+			setDaemon(true);
+			start();
+		}
+
+		String getUrl() {
+			return "http://127.0.0.1:" + serverSocket.getLocalPort();
+		}
+
+		private String readLine(InputStream in) throws IOException {
+			ByteArrayOutputStream line = new ByteArrayOutputStream();
+			int c;
+			while ((c = in.read()) != -1 && c != '\n')
+				if (c != '\r')
+					line.write(c);
+			return line.toString("ISO-8859-1");
+		}
+
+		public void run() {
+			while (true) {
+				try {
+					Socket s = serverSocket.accept();
+					InputStream in = s.getInputStream();
+					String requestLine = readLine(in);
+					int length = 0;
+					String header;
+					while ((header = readLine(in)).length() > 0)
+						if (header.toLowerCase().startsWith("content-length:"))
+							length = Integer.parseInt(header.substring(15).trim());
+					byte[] body = new byte[length];
+					for (int read = 0; read < length;)
+						read += in.read(body, read, length - read);
+					synchronized (this) {
+						requestLines.add(requestLine);
+						bodies.add(new String(body, "UTF-8"));
+					}
+					byte[] response = RESPONSE.getBytes("UTF-8");
+					OutputStream out = s.getOutputStream();
+					out.write(("HTTP/1.1 200 OK\r\nContent-Type: application/json\r\nX-Etcd-Index: 42\r\nContent-Length: "
+							+ response.length + "\r\nConnection: close\r\n\r\n").getBytes("ISO-8859-1"));
+					out.write(response);
+					out.flush();
+					s.close();
+				} catch (IOException e) {
+					return;
+				}
+			}
+		}
+	}
+
+	private CaptureServer server;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		server = new CaptureServer();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		server.serverSocket.close();
+		super.tearDown();
+	}
+
+	private void assertSetRequest(EtcdRequest request, String value) throws Exception {
+		EtcdResponse response = request.execute();
+		assertFalse(response.isError());
+		synchronized (server) {
+			String requestLine = server.requestLines.get(server.requestLines.size() - 1);
+			String body = server.bodies.get(server.bodies.size() - 1);
+			// params only in the body
+			assertEquals("PUT /dir/key HTTP/1.1", requestLine);
+			assertTrue(body, body.startsWith("value=" + URLEncoder.encode(value, "UTF-8")) || body.contains("&value="
+					+ URLEncoder.encode(value, "UTF-8")));
+			assertTrue(body, body.contains("ttl=30"));
+			assertFalse(body, body.startsWith("?"));
+		}
+	}
+
+	public void testSetParamsInBodyOnly() throws Exception {
+		StringBuilder value = new StringBuilder("{\"json\":\"caf\u00e9 & = + %\"}");
+		// larger than usual url length limits
+		for (int i = 0; i < 2000; i++)
+			value.append("0123456789");
+		assertSetRequest(new EtcdSetRequest(server.getUrl() + "/dir/key", value.toString(), 30), value.toString());
+		EtcdRequest request = new EtcdSetRequest(server.getUrl() + "/dir/key", value.toString(), 30);
+		request.setTransport(new EtcdURLConnectionTransport());
+		assertSetRequest(request, value.toString());
+	}
+
+	public void testEtcdIndexHeader() throws Exception {
+		EtcdResponse response = new EtcdSetRequest(server.getUrl() + "/dir/key", "v", 30).execute();
+		assertFalse(response.isError());
+		assertEquals(42, response.getEtcdIndex());
+		EtcdRequest request = new EtcdSetRequest(server.getUrl() + "/dir/key", "v", 30);
+		request.setTransport(new EtcdURLConnectionTransport());
+		assertEquals(42, request.execute().getEtcdIndex());
+	}
+
+	public void testDeleteParamsInQuery() throws Exception {
+		assertFalse(new EtcdDeleteRequest(server.getUrl() + "/dir/key", true).execute().isError());
+		synchronized (server) {
+			String requestLine = server.requestLines.get(0);
+			assertTrue(requestLine, requestLine.startsWith("DELETE /dir/key?"));
+			assertTrue(requestLine, requestLine.contains("recursive=true"));
+			assertEquals("", server.bodies.get(0));
+		}
+	}
+
+}
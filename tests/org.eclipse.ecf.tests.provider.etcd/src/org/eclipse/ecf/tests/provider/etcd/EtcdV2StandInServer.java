@@ -0,0 +1,366 @@
+package org.eclipse.ecf.tests.provider.etcd;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Minimal in-memory stand-in for the etcd v2 keys api, supporting get
+ * (recursive), set (of values and directories, with ttl and prevExist) and
+ * delete. The cluster is quiet: watches (wait=true) are not answered until
+ * the client closes the connection, unless the event history is cleared.
+ */
+public class EtcdV2StandInServer implements Runnable {
+
+	static final String KEYS_PATH = "/v2/keys";
+
+	static class Node {
+		String key;
+		String value;
+		boolean dir;
+		int ttl;
+		long createdIndex;
+		long modifiedIndex;
+	}
+
+	private final ServerSocket serverSocket;
+	private final TreeMap<String, Node> store = new TreeMap<String, Node>();
+	private final List<Socket> sockets = new ArrayList<Socket>();
+	private long index = 1;
+	private int watchCount;
+	private int requestCount;
+	// changed to answer the waiting watches with error 401
+	private int clearCount;
+	private long lastWaitIndex = -1;
+
+	public EtcdV2StandInServer() throws IOException {
+		serverSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+		Thread t = new Thread(this, "EtcdV2StandInServer");
+		t.setDaemon(true);
+		t.start();
+	}
+
+	public String getBaseUrl() {
+		return "http://127.0.0.1:" + serverSocket.getLocalPort() + KEYS_PATH;
+	}
+
+	public synchronized Node get(String key) {
+		return store.get(key);
+	}
+
+	/**
+	 * Set a value, or create a directory if value is <code>null</code>.
+	 */
+	public synchronized void put(String key, String value) {
+		index++;
+		Node node = new Node();
+		node.key = key;
+		node.dir = value == null;
+		node.value = value;
+		node.createdIndex = index;
+		node.modifiedIndex = index;
+		store.put(key, node);
+	}
+
+	/**
+	 * Remove a key, and all keys below it, as if it expired. Watches are not
+	 * told.
+	 */
+	public synchronized void remove(String key) {
+		index++;
+		store.remove(key);
+		String prefix = key + "/";
+		while (true) {
+			String next = store.ceilingKey(prefix);
+			if (next == null || !next.startsWith(prefix))
+				break;
+			store.remove(next);
+		}
+	}
+
+	/**
+	 * @return number of watches waiting
+	 */
+	public synchronized int getWatchCount() {
+		return watchCount;
+	}
+
+	public synchronized int getRequestCount() {
+		return requestCount;
+	}
+
+	/**
+	 * @return the current etcd index, as sent in X-Etcd-Index
+	 */
+	public synchronized long getIndex() {
+		return index;
+	}
+
+	/**
+	 * @return waitIndex of the last watch, or -1 if it had none
+	 */
+	public synchronized long getLastWaitIndex() {
+		return lastWaitIndex;
+	}
+
+	/**
+	 * Answer the waiting watches with error 401, as etcd does once the events
+	 * since their index are no longer kept.
+	 */
+	public synchronized void clearEventIndex() {
+		clearCount++;
+	}
+
+	public void close() {
+		try {
+			serverSocket.close();
+		} catch (IOException e) {
+			// ignore
+		}
+		synchronized (this) {
+			for (Socket s : sockets)
+				try {
+					s.close();
+				} catch (IOException e) {
+					// ignore
+				}
+		}
+	}
+
+	public void run() {
+		while (!serverSocket.isClosed()) {
+			try {
+				final Socket s = serverSocket.accept();
+				synchronized (this) {
+					sockets.add(s);
+				}
+				Thread t = new Thread(new Runnable() {
+					public void run() {
+						handleConnection(s);
+					}
+				}, "EtcdV2StandInServer connection");
+				t.setDaemon(true);
+				t.start();
+			} catch (IOException e) {
+				return;
+			}
+		}
+	}
+
+	void handleConnection(Socket s) {
+		try {
+			InputStream in = new BufferedInputStream(s.getInputStream());
+			OutputStream out = s.getOutputStream();
+			while (true) {
+				String requestLine = readLine(in);
+				if (requestLine == null || requestLine.length() == 0)
+					return;
+				int contentLength = 0;
+				String line;
+				while ((line = readLine(in)) != null && line.length() > 0)
+					if (line.toLowerCase().startsWith("content-length:"))
+						contentLength = Integer.parseInt(line.substring(15).trim());
+				byte[] body = new byte[contentLength];
+				int read = 0;
+				while (read < contentLength)
+					read += in.read(body, read, contentLength - read);
+				String[] parts = requestLine.split(" ");
+				String method = parts[0];
+				String path = parts[1];
+				Map<String, String> params = new HashMap<String, String>();
+				int query = path.indexOf('?');
+				if (query >= 0) {
+					parseParams(path.substring(query + 1), params);
+					path = path.substring(0, query);
+				}
+				parseParams(new String(body, "ISO-8859-1"), params);
+				String key = URLDecoder.decode(path.substring(KEYS_PATH.length()), "UTF-8");
+				if (key.length() > 1 && key.endsWith("/"))
+					key = key.substring(0, key.length() - 1);
+				int[] status = new int[] { 200 };
+				JSONObject response;
+				if ("true".equals(params.get("wait"))) {
+					int cleared;
+					synchronized (this) {
+						requestCount++;
+						watchCount++;
+						lastWaitIndex = params.containsKey("waitIndex") ? Long.parseLong(params.get("waitIndex")) : -1;
+						cleared = clearCount;
+					}
+					try {
+						// no changes, until the client gives up or the history
+						// is cleared
+						s.setSoTimeout(50);
+						while (true) {
+							synchronized (this) {
+								if (clearCount != cleared)
+									break;
+							}
+							try {
+								if (in.read() == -1)
+									return;
+							} catch (SocketTimeoutException e) {
+								// check again
+							}
+						}
+						s.setSoTimeout(0);
+					} finally {
+						synchronized (this) {
+							watchCount--;
+						}
+					}
+					synchronized (this) {
+						response = error(401, "The event in requested index is outdated and cleared", key, status,
+								400);
+					}
+				} else
+					response = handle(method, key, params, status);
+				long currentIndex;
+				synchronized (this) {
+					currentIndex = index;
+				}
+				byte[] responseBytes = response.toString().getBytes("UTF-8");
+				out.write(("HTTP/1.1 " + status[0] + " OK\r\nContent-Type: application/json\r\nX-Etcd-Index: "
+						+ currentIndex + "\r\nContent-Length: " + responseBytes.length + "\r\n\r\n")
+						.getBytes("ISO-8859-1"));
+				out.write(responseBytes);
+				out.flush();
+			}
+		} catch (Exception e) {
+			// connection closed
+		} finally {
+			try {
+				s.close();
+			} catch (IOException e) {
+				// ignore
+			}
+		}
+	}
+
+	private void parseParams(String s, Map<String, String> params) throws IOException {
+		for (String param : s.split("&")) {
+			int eq = param.indexOf('=');
+			if (eq > 0)
+				params.put(URLDecoder.decode(param.substring(0, eq), "UTF-8"),
+						URLDecoder.decode(param.substring(eq + 1), "UTF-8"));
+		}
+	}
+
+	private String readLine(InputStream in) throws IOException {
+		StringBuffer buf = new StringBuffer();
+		int b;
+		while ((b = in.read()) != -1) {
+			if (b == '\n')
+				return buf.toString();
+			if (b != '\r')
+				buf.append((char) b);
+		}
+		return (buf.length() == 0) ? null : buf.toString();
+	}
+
+	private JSONObject error(int errorCode, String message, String key, int[] status, int httpStatus)
+			throws JSONException {
+		status[0] = httpStatus;
+		return new JSONObject().put("errorCode", errorCode).put("message", message).put("cause", key)
+				.put("index", index);
+	}
+
+	private JSONObject toJSON(Node node, boolean recursive, boolean children) throws JSONException {
+		JSONObject result = new JSONObject().put("key", node.key).put("createdIndex", node.createdIndex)
+				.put("modifiedIndex", node.modifiedIndex);
+		if (node.ttl > 0)
+			result.put("ttl", node.ttl);
+		if (!node.dir) {
+			result.put("value", node.value);
+			return result;
+		}
+		result.put("dir", true);
+		if (children) {
+			JSONArray nodes = new JSONArray();
+			for (Node child : getChildren(node.key))
+				nodes.put(toJSON(child, recursive, recursive));
+			if (nodes.length() > 0)
+				result.put("nodes", nodes);
+		}
+		return result;
+	}
+
+	private List<Node> getChildren(String key) {
+		String prefix = key.equals("/") ? "/" : key + "/";
+		List<Node> results = new ArrayList<Node>();
+		for (Node node : store.tailMap(prefix).values()) {
+			if (!node.key.startsWith(prefix))
+				break;
+			if (node.key.indexOf('/', prefix.length()) < 0)
+				results.add(node);
+		}
+		return results;
+	}
+
+	private synchronized JSONObject handle(String method, String key, Map<String, String> params, int[] status)
+			throws JSONException {
+		requestCount++;
+		Node node = store.get(key);
+		if ("GET".equals(method)) {
+			if (node == null && !key.equals("/"))
+				return error(100, "Key not found", key, status, 404);
+			if (node == null) {
+				node = new Node();
+				node.key = "/";
+				node.dir = true;
+			}
+			return new JSONObject().put("action", "get").put("node",
+					toJSON(node, "true".equals(params.get("recursive")), true));
+		} else if ("PUT".equals(method)) {
+			String prevExist = params.get("prevExist");
+			if (node != null && "false".equals(prevExist))
+				return error(105, "Key already exists", key, status, 412);
+			if (node == null && "true".equals(prevExist))
+				return error(100, "Key not found", key, status, 404);
+			index++;
+			boolean create = node == null;
+			if (create) {
+				node = new Node();
+				node.key = key;
+				node.createdIndex = index;
+				store.put(key, node);
+			}
+			node.dir = "true".equals(params.get("dir"));
+			node.value = params.get("value");
+			node.ttl = params.containsKey("ttl") ? Integer.parseInt(params.get("ttl")) : 0;
+			node.modifiedIndex = index;
+			status[0] = create ? 201 : 200;
+			return new JSONObject().put("action", create ? "create" : "set").put("node", toJSON(node, false, false));
+		} else if ("DELETE".equals(method)) {
+			if (node == null)
+				return error(100, "Key not found", key, status, 404);
+			index++;
+			String prefix = key + "/";
+			while (true) {
+				String next = store.ceilingKey(prefix);
+				if (next == null || !next.startsWith(prefix))
+					break;
+				store.remove(next);
+			}
+			store.remove(key);
+			node.modifiedIndex = index;
+			return new JSONObject().put("action", "delete").put("node", toJSON(node, false, false));
+		}
+		return error(400, "Unsupported method " + method, key, status, 405);
+	}
+}
@@ -0,0 +1,177 @@
+package org.eclipse.ecf.tests.provider.etcd;
+
+import junit.framework.TestCase;
+
+import org.eclipse.ecf.internal.provider.etcd.protocol.EtcdNode;
+import org.eclipse.ecf.internal.provider.etcd.protocol.EtcdProtocol;
+import org.eclipse.ecf.internal.provider.etcd.protocol.EtcdResponse;
+import org.eclipse.ecf.internal.provider.etcd.protocol.EtcdV3Backend;
+import org.eclipse.ecf.internal.provider.etcd.protocol.IEtcdWatch;
+
+@SuppressWarnings("restriction")
+public class EtcdV3BackendTest extends TestCase {
+
+	static final String DIR = "/" + EtcdV3BackendTest.class.getName() + "/";
+	static final String SESSION = DIR + "session1";
+
+	private EtcdV3StandInServer server;
+	private EtcdV3Backend backend;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		server = new EtcdV3StandInServer();
+		backend = new EtcdV3Backend(server.getBaseUrl());
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		server.close();
+		super.tearDown();
+	}
+
+	private EtcdNode getChild(EtcdNode dir, String key) {
+		if (dir.getNodes() != null)
+			for (EtcdNode n : dir.getNodes())
+				if (key.equals(n.getKey()))
+					return n;
+		return null;
+	}
+
+	public void testSessionLifecycle() throws Exception {
+		EtcdResponse response = backend.createDirectoryRequest(SESSION, 30, false).execute();
+		assertFalse(response.isError());
+		assertEquals(EtcdProtocol.ACTION_CREATE, response.getSuccessResponse().getAction());
+		assertEquals(1, server.getLeaseCount());
+
+		response = backend.createSetRequest(SESSION + "/service1", "value1", 0).execute();
+		assertFalse(response.isError());
+		// key is attached to the session lease
+		assertEquals(server.get(SESSION + "/").lease, server.get(SESSION + "/service1").lease);
+		assertTrue(server.get(SESSION + "/service1").lease != 0);
+
+		response = backend.createGetRequest(DIR, true).execute();
+		assertFalse(response.isError());
+		EtcdNode dir = response.getSuccessResponse().getNode();
+		assertTrue(dir.isDirectory());
+		EtcdNode session = getChild(dir, SESSION);
+		assertNotNull(session);
+		assertTrue(session.isDirectory());
+		EtcdNode service = getChild(dir, SESSION + "/service1");
+		assertNotNull(service);
+		assertFalse(service.isDirectory());
+		assertEquals("value1", service.getValue());
+
+		// ttl refresh is a lease keep alive
+		response = backend.createDirectoryRequest(SESSION, 30, true).execute();
+		assertFalse(response.isError());
+		assertEquals(30, response.getSuccessResponse().getNode().getTtl().intValue());
+
+		response = backend.createDeleteRequest(SESSION, true).execute();
+		assertFalse(response.isError());
+		assertEquals(0, server.getKeyCount());
+		assertEquals(0, server.getLeaseCount());
+	}
+
+	public void testCreateExistingSession() throws Exception {
+		assertFalse(backend.createDirectoryRequest(SESSION, 30, false).execute().isError());
+		EtcdResponse response = new EtcdV3Backend(server.getBaseUrl()).createDirectoryRequest(SESSION, 30, false)
+				.execute();
+		assertTrue(response.isError());
+		assertEquals(105, response.getErrorResponse().getErrorCode());
+		// lease granted for failed create is revoked again
+		assertEquals(1, server.getLeaseCount());
+	}
+
+	public void testSessionDirectoriesShareLease() throws Exception {
+		assertFalse(backend.createDirectoryRequest(SESSION, 30, false).execute().isError());
+		String typeSession = DIR + "types/type1/session1";
+		EtcdResponse response = backend.createSessionDirectoryRequest(typeSession, SESSION, 30).execute();
+		assertFalse(response.isError());
+		assertFalse(backend.createSetRequest(typeSession + "/service1", "value1", 0).execute().isError());
+		// one lease, kept alive with the session
+		assertEquals(1, server.getLeaseCount());
+		assertEquals(server.get(SESSION + "/").lease, server.get(typeSession + "/service1").lease);
+
+		// deleting the type's directory leaves the session's lease
+		assertFalse(backend.createDeleteRequest(typeSession, true).execute().isError());
+		assertNull(server.get(typeSession + "/service1"));
+		assertEquals(1, server.getLeaseCount());
+
+		assertFalse(backend.createDeleteRequest(SESSION, true).execute().isError());
+		assertEquals(0, server.getLeaseCount());
+	}
+
+	public void testGetMissingKey() throws Exception {
+		EtcdResponse response = backend.createGetRequest(DIR + "missing", false).execute();
+		assertTrue(response.isError());
+		assertEquals(100, response.getErrorResponse().getErrorCode());
+		response = backend.createGetRequest(DIR, true).execute();
+		assertFalse(response.isError());
+		assertNull(response.getSuccessResponse().getNode().getNodes());
+	}
+
+	public void testWatch() throws Exception {
+		assertFalse(backend.createDirectoryRequest(SESSION, 30, false).execute().isError());
+		IEtcdWatch watch = backend.createWatch(DIR, server.getRevision() + 1);
+		try {
+			assertFalse(backend.createSetRequest(SESSION + "/service1", "value1", 0).execute().isError());
+			assertFalse(backend.createSetRequest(SESSION + "/service1", "value2", 0).execute().isError());
+
+			EtcdResponse[] responses = watch.next();
+			assertEquals(1, responses.length);
+			assertEquals(EtcdProtocol.ACTION_CREATE, responses[0].getSuccessResponse().getAction());
+			assertEquals(SESSION + "/service1", responses[0].getSuccessResponse().getNode().getKey());
+			assertEquals("value1", responses[0].getSuccessResponse().getNode().getValue());
+
+			responses = watch.next();
+			assertEquals(1, responses.length);
+			assertEquals(EtcdProtocol.ACTION_SET, responses[0].getSuccessResponse().getAction());
+			assertEquals("value2", responses[0].getSuccessResponse().getNode().getValue());
+
+			// session delete removes marker and service in one revision
+			assertFalse(backend.createDeleteRequest(SESSION, true).execute().isError());
+			responses = watch.next();
+			assertEquals(2, responses.length);
+			for (EtcdResponse r : responses)
+				assertEquals(EtcdProtocol.ACTION_DELETE, r.getSuccessResponse().getAction());
+			assertTrue(responses[0].getSuccessResponse().getNode().isDirectory());
+			assertEquals(SESSION, responses[0].getSuccessResponse().getNode().getKey());
+		} finally {
+			watch.close();
+		}
+	}
+
+	public void testWatchFromEarlierRevision() throws Exception {
+		long start = server.getRevision() + 1;
+		assertFalse(backend.createSetRequest(DIR + "key1", "value1", 0).execute().isError());
+		IEtcdWatch watch = backend.createWatch(DIR, start);
+		try {
+			EtcdResponse[] responses = watch.next();
+			assertEquals(DIR + "key1", responses[0].getSuccessResponse().getNode().getKey());
+		} finally {
+			watch.close();
+		}
+	}
+
+	public void testWatchClose() throws Exception {
+		final IEtcdWatch watch = backend.createWatch(DIR, server.getRevision() + 1);
+		final Exception[] result = new Exception[1];
+		Thread t = new Thread(new Runnable() {
+			public void run() {
+				try {
+					watch.next();
+				} catch (Exception e) {
+					result[0] = e;
+				}
+			}
+		});
+		t.start();
+		Thread.sleep(500);
+		watch.close();
+		t.join(5000);
+		assertFalse(t.isAlive());
+		assertNotNull(result[0]);
+	}
+
+}
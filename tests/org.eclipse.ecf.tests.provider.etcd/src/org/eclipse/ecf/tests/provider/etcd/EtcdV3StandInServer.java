@@ -0,0 +1,375 @@
+package org.eclipse.ecf.tests.provider.etcd;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.eclipse.ecf.core.util.Base64;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Minimal in-memory stand-in for the etcd v3 json gateway, supporting range,
+ * put, deleterange, txn (create_revision compare only), lease grant,
+ * keepalive, revoke and watch (streamed with chunked encoding).
+ */
+public class EtcdV3StandInServer implements Runnable {
+
+	static class KeyValue {
+		String key;
+		String value;
+		long createRevision;
+		long modRevision;
+		long lease;
+	}
+
+	class Watcher {
+		final String start;
+		final String end;
+		final OutputStream out;
+
+		Watcher(String start, String end, OutputStream out) {
+			this.start = start;
+			this.end = end;
+			this.out = out;
+		}
+	}
+
+	private final ServerSocket serverSocket;
+	private final TreeMap<String, KeyValue> store = new TreeMap<String, KeyValue>();
+	private final Map<Long, Long> leases = new HashMap<Long, Long>();
+	private final List<JSONObject> history = new ArrayList<JSONObject>();
+	private final List<Watcher> watchers = new ArrayList<Watcher>();
+	private final List<Socket> sockets = new ArrayList<Socket>();
+	private long revision = 1;
+	private long nextLeaseId = 1000;
+	private int requestCount;
+
+	public EtcdV3StandInServer() throws IOException {
+		serverSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+		Thread t = new Thread(this, "EtcdV3StandInServer");
+		t.setDaemon(true);
+		t.start();
+	}
+
+	public String getBaseUrl() {
+		return "http://127.0.0.1:" + serverSocket.getLocalPort() + "/v3";
+	}
+
+	public synchronized long getRevision() {
+		return revision;
+	}
+
+	public synchronized KeyValue get(String key) {
+		return store.get(key);
+	}
+
+	public synchronized int getKeyCount() {
+		return store.size();
+	}
+
+	public synchronized int getLeaseCount() {
+		return leases.size();
+	}
+
+	public synchronized int getRequestCount() {
+		return requestCount;
+	}
+
+	public void close() {
+		try {
+			serverSocket.close();
+		} catch (IOException e) {
+			// ignore
+		}
+		synchronized (this) {
+			for (Socket s : sockets)
+				try {
+					s.close();
+				} catch (IOException e) {
+					// ignore
+				}
+		}
+	}
+
+	public void run() {
+		while (!serverSocket.isClosed()) {
+			try {
+				final Socket s = serverSocket.accept();
+				synchronized (this) {
+					sockets.add(s);
+				}
+				Thread t = new Thread(new Runnable() {
+					public void run() {
+						handleConnection(s);
+					}
+				}, "EtcdV3StandInServer connection");
+				t.setDaemon(true);
+				t.start();
+			} catch (IOException e) {
+				return;
+			}
+		}
+	}
+
+	void handleConnection(Socket s) {
+		try {
+			InputStream in = new BufferedInputStream(s.getInputStream());
+			OutputStream out = s.getOutputStream();
+			while (true) {
+				String requestLine = readLine(in);
+				if (requestLine == null || requestLine.length() == 0)
+					return;
+				int contentLength = 0;
+				String line;
+				while ((line = readLine(in)) != null && line.length() > 0)
+					if (line.toLowerCase().startsWith("content-length:"))
+						contentLength = Integer.parseInt(line.substring(15).trim());
+				byte[] body = new byte[contentLength];
+				int read = 0;
+				while (read < contentLength)
+					read += in.read(body, read, contentLength - read);
+				String path = requestLine.split(" ")[1];
+				JSONObject request = new JSONObject(new String(body, "UTF-8"));
+				if (path.equals("/v3/watch")) {
+					handleWatch(request, out);
+					// stream stays open until the client closes the connection
+					while (in.read() != -1)
+						;
+					return;
+				}
+				int status = 200;
+				JSONObject response;
+				try {
+					response = handle(path, request);
+				} catch (IllegalStateException e) {
+					status = 400;
+					response = new JSONObject().put("error", e.getMessage()).put("code", 5)
+							.put("message", e.getMessage());
+				}
+				byte[] responseBytes = response.toString().getBytes("UTF-8");
+				out.write(("HTTP/1.1 " + status + " OK\r\nContent-Type: application/json\r\nContent-Length: "
+						+ responseBytes.length + "\r\n\r\n").getBytes("ISO-8859-1"));
+				out.write(responseBytes);
+				out.flush();
+			}
+		} catch (Exception e) {
+			// connection closed
+		} finally {
+			try {
+				s.close();
+			} catch (IOException e) {
+				// ignore
+			}
+		}
+	}
+
+	private String readLine(InputStream in) throws IOException {
+		StringBuffer buf = new StringBuffer();
+		int b;
+		while ((b = in.read()) != -1) {
+			if (b == '\n')
+				return buf.toString();
+			if (b != '\r')
+				buf.append((char) b);
+		}
+		return (buf.length() == 0) ? null : buf.toString();
+	}
+
+	static String decode(String s) throws IOException {
+		return (s == null) ? null : new String(Base64.decode(s), "ISO-8859-1");
+	}
+
+	static String encode(String s) throws IOException {
+		return new String(Base64.encode(s.getBytes("ISO-8859-1")));
+	}
+
+	private JSONObject header() throws JSONException {
+		return new JSONObject().put("revision", String.valueOf(revision));
+	}
+
+	private JSONObject toJSON(KeyValue kv) throws JSONException, IOException {
+		JSONObject result = new JSONObject().put("key", encode(kv.key))
+				.put("create_revision", String.valueOf(kv.createRevision))
+				.put("mod_revision", String.valueOf(kv.modRevision)).put("value", encode(kv.value));
+		if (kv.lease != 0)
+			result.put("lease", String.valueOf(kv.lease));
+		return result;
+	}
+
+	private List<KeyValue> range(JSONObject request) throws IOException {
+		String key = decode(request.optString("key"));
+		String end = decode(request.optString("range_end", null));
+		List<KeyValue> result = new ArrayList<KeyValue>();
+		if (end == null) {
+			KeyValue kv = store.get(key);
+			if (kv != null)
+				result.add(kv);
+		} else
+			result.addAll(store.subMap(key, end).values());
+		return result;
+	}
+
+	private synchronized JSONObject handle(String path, JSONObject request) throws Exception {
+		requestCount++;
+		if (path.equals("/v3/kv/range")) {
+			JSONObject response = new JSONObject().put("header", header());
+			List<KeyValue> kvs = range(request);
+			if (!kvs.isEmpty()) {
+				JSONArray array = new JSONArray();
+				for (KeyValue kv : kvs)
+					array.put(toJSON(kv));
+				response.put("kvs", array).put("count", String.valueOf(kvs.size()));
+			}
+			return response;
+		} else if (path.equals("/v3/kv/put")) {
+			put(request);
+			return new JSONObject().put("header", header());
+		} else if (path.equals("/v3/kv/deleterange")) {
+			List<KeyValue> kvs = range(request);
+			deleteAll(kvs);
+			JSONObject response = new JSONObject().put("header", header());
+			if (!kvs.isEmpty())
+				response.put("deleted", String.valueOf(kvs.size()));
+			return response;
+		} else if (path.equals("/v3/kv/txn")) {
+			JSONObject compare = request.getJSONArray("compare").getJSONObject(0);
+			if (!"CREATE".equals(compare.getString("target")))
+				throw new IllegalStateException("unsupported compare target");
+			KeyValue kv = store.get(decode(compare.getString("key")));
+			long createRevision = (kv == null) ? 0 : kv.createRevision;
+			boolean succeeded = createRevision == Long.parseLong(compare.optString("create_revision", "0"));
+			JSONArray ops = request.optJSONArray(succeeded ? "success" : "failure");
+			if (ops != null)
+				for (int i = 0; i < ops.length(); i++)
+					put(ops.getJSONObject(i).getJSONObject("request_put"));
+			JSONObject response = new JSONObject().put("header", header());
+			if (succeeded)
+				response.put("succeeded", true);
+			return response;
+		} else if (path.equals("/v3/lease/grant")) {
+			long id = nextLeaseId++;
+			long ttl = Long.parseLong(request.getString("TTL"));
+			leases.put(Long.valueOf(id), Long.valueOf(ttl));
+			return new JSONObject().put("header", header()).put("ID", String.valueOf(id)).put("TTL",
+					String.valueOf(ttl));
+		} else if (path.equals("/v3/lease/keepalive")) {
+			Long id = Long.valueOf(request.getString("ID"));
+			JSONObject result = new JSONObject().put("header", header()).put("ID", id.toString());
+			Long ttl = leases.get(id);
+			if (ttl != null)
+				result.put("TTL", ttl.toString());
+			return new JSONObject().put("result", result);
+		} else if (path.equals("/v3/lease/revoke")) {
+			Long id = Long.valueOf(request.getString("ID"));
+			if (leases.remove(id) == null)
+				throw new IllegalStateException("etcdserver: requested lease not found");
+			List<KeyValue> kvs = new ArrayList<KeyValue>();
+			for (KeyValue kv : store.values())
+				if (kv.lease == id.longValue())
+					kvs.add(kv);
+			deleteAll(kvs);
+			return new JSONObject().put("header", header());
+		}
+		throw new IllegalStateException("unsupported path " + path);
+	}
+
+	private void put(JSONObject put) throws Exception {
+		String key = decode(put.getString("key"));
+		long lease = Long.parseLong(put.optString("lease", "0"));
+		if (lease != 0 && !leases.containsKey(Long.valueOf(lease)))
+			throw new IllegalStateException("etcdserver: requested lease not found");
+		revision++;
+		KeyValue kv = store.get(key);
+		if (kv == null) {
+			kv = new KeyValue();
+			kv.key = key;
+			kv.createRevision = revision;
+			store.put(key, kv);
+		}
+		kv.value = decode(put.optString("value", ""));
+		kv.modRevision = revision;
+		kv.lease = lease;
+		JSONArray events = new JSONArray();
+		// type is omitted for PUT
+		events.put(new JSONObject().put("kv", toJSON(kv)));
+		notifyWatchers(key, events);
+	}
+
+	private void deleteAll(List<KeyValue> kvs) throws Exception {
+		if (kvs.isEmpty())
+			return;
+		revision++;
+		JSONArray events = new JSONArray();
+		for (KeyValue kv : kvs) {
+			store.remove(kv.key);
+			events.put(new JSONObject().put("type", "DELETE").put("kv",
+					new JSONObject().put("key", encode(kv.key)).put("mod_revision", String.valueOf(revision))));
+		}
+		// all deletes of a single revision are sent in one message
+		notifyWatchers(kvs.get(0).key, events);
+	}
+
+	private void notifyWatchers(String key, JSONArray events) throws Exception {
+		JSONObject message = new JSONObject().put("result",
+				new JSONObject().put("header", header()).put("events", events));
+		history.add(message);
+		for (Iterator<Watcher> i = watchers.iterator(); i.hasNext();) {
+			Watcher w = i.next();
+			if (key.compareTo(w.start) >= 0 && key.compareTo(w.end) < 0) {
+				try {
+					writeChunk(w.out, message.toString() + "\n");
+				} catch (IOException e) {
+					i.remove();
+				}
+			}
+		}
+	}
+
+	private void writeChunk(OutputStream out, String s) throws IOException {
+		byte[] bytes = s.getBytes("UTF-8");
+		out.write((Integer.toHexString(bytes.length) + "\r\n").getBytes("ISO-8859-1"));
+		out.write(bytes);
+		out.write("\r\n".getBytes("ISO-8859-1"));
+		out.flush();
+	}
+
+	private void handleWatch(JSONObject request, OutputStream out) throws Exception {
+		JSONObject create = request.getJSONObject("create_request");
+		String start = decode(create.getString("key"));
+		String end = decode(create.getString("range_end"));
+		long startRevision = Long.parseLong(create.optString("start_revision", "0"));
+		synchronized (this) {
+			requestCount++;
+			out.write("HTTP/1.1 200 OK\r\nContent-Type: application/json\r\nTransfer-Encoding: chunked\r\n\r\n"
+					.getBytes("ISO-8859-1"));
+			writeChunk(out, new JSONObject().put("result", new JSONObject().put("header", header()).put("created",
+					true)).toString()
+					+ "\n");
+			// replay history from start revision
+			if (startRevision > 0) {
+				for (JSONObject message : history) {
+					JSONObject result = message.getJSONObject("result");
+					long rev = Long.parseLong(result.getJSONObject("header").getString("revision"));
+					String key = decode(result.getJSONArray("events").getJSONObject(0).getJSONObject("kv")
+							.getString("key"));
+					if (rev >= startRevision && key.compareTo(start) >= 0 && key.compareTo(end) < 0)
+						writeChunk(out, message.toString() + "\n");
+				}
+			}
+			watchers.add(new Watcher(start, end, out));
+		}
+	}
+
+}
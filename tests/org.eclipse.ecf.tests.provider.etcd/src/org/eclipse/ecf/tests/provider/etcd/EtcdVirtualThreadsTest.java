@@ -0,0 +1,94 @@
+package org.eclipse.ecf.tests.provider.etcd;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import org.eclipse.core.runtime.IProgressMonitor;
+import org.eclipse.ecf.internal.provider.etcd.protocol.EtcdRequestExecutor;
+import org.eclipse.ecf.internal.provider.etcd.protocol.EtcdVirtualThreads;
+import org.eclipse.equinox.concurrent.future.IFuture;
+import org.eclipse.equinox.concurrent.future.IProgressRunnable;
+
+@SuppressWarnings("restriction")
+public class EtcdVirtualThreadsTest extends TestCase {
+
+	private static boolean hasVirtualThreads() {
+		try {
+			Thread.class.getMethod("ofVirtual");
+			return true;
+		} catch (NoSuchMethodException e) {
+			return false;
+		}
+	}
+
+	public void testEnabledWhereAvailable() throws Exception {
+		assertEquals(hasVirtualThreads() && EtcdVirtualThreads.VIRTUALTHREADS_DEFAULT,
+				EtcdVirtualThreads.isEnabled());
+		if (!EtcdVirtualThreads.isEnabled()) {
+			try {
+				EtcdVirtualThreads.start("test", new Runnable() {
+					public void run() {
+					}
+				});
+				fail();
+			} catch (UnsupportedOperationException e) {
+			}
+			return;
+		}
+		final CountDownLatch ran = new CountDownLatch(1);
+		Thread t = EtcdVirtualThreads.start("test", new Runnable() {
+			public void run() {
+				ran.countDown();
+			}
+		});
+		assertTrue(ran.await(5, TimeUnit.SECONDS));
+		assertEquals("test", t.getName());
+		assertEquals(Boolean.TRUE, Thread.class.getMethod("isVirtual").invoke(t));
+	}
+
+	public void testDisabledByDefault() throws Exception {
+		if (System.getProperty(EtcdVirtualThreads.VIRTUALTHREADS_PROP) == null)
+			assertFalse(EtcdVirtualThreads.isEnabled());
+	}
+
+	private void assertBounded(EtcdRequestExecutor executor, int threads) throws Exception {
+		final AtomicInteger running = new AtomicInteger();
+		final AtomicInteger maxRunning = new AtomicInteger();
+		try {
+			List<IFuture<String>> futures = new ArrayList<IFuture<String>>();
+			for (int i = 0; i < 20; i++)
+				futures.add(executor.execute(new IProgressRunnable<String>() {
+					public String run(IProgressMonitor monitor) throws Exception {
+						int r = running.incrementAndGet();
+						synchronized (maxRunning) {
+							maxRunning.set(Math.max(maxRunning.get(), r));
+						}
+						Thread.sleep(20);
+						running.decrementAndGet();
+						return "done";
+					}
+				}, null));
+			for (IFuture<String> future : futures)
+				assertEquals("done", future.get());
+		} finally {
+			executor.shutdown();
+		}
+		assertEquals(threads, maxRunning.get());
+	}
+
+	public void testRequestExecutorBound() throws Exception {
+		assertBounded(new EtcdRequestExecutor(2), 2);
+	}
+
+	public void testRequestExecutorBoundOnVirtualThreads() throws Exception {
+		if (!EtcdVirtualThreads.isEnabled())
+			return;
+		// a virtual thread per task, but no more than 2 running at a time
+		assertBounded(new EtcdRequestExecutor(2, true), 2);
+	}
+}
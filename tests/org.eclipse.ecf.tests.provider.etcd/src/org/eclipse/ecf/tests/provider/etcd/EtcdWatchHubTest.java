@@ -0,0 +1,113 @@
+package org.eclipse.ecf.tests.provider.etcd;
+
+import junit.framework.TestCase;
+
+import org.eclipse.ecf.internal.provider.etcd.protocol.EtcdResponse;
+import org.eclipse.ecf.internal.provider.etcd.protocol.EtcdV3Backend;
+import org.eclipse.ecf.internal.provider.etcd.protocol.EtcdWatchHub;
+import org.eclipse.ecf.internal.provider.etcd.protocol.IEtcdWatch;
+
+@SuppressWarnings("restriction")
+public class EtcdWatchHubTest extends TestCase {
+
+	static final String DIR = "/" + EtcdWatchHubTest.class.getName() + "/";
+
+	private EtcdV3StandInServer server;
+	private EtcdV3Backend backend;
+	private EtcdWatchHub hub;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		server = new EtcdV3StandInServer();
+		backend = new EtcdV3Backend(server.getBaseUrl());
+		hub = new EtcdWatchHub(server.getBaseUrl(), backend);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		server.close();
+		super.tearDown();
+	}
+
+	private void set(String key) throws Exception {
+		assertFalse(backend.createSetRequest(DIR + key, "value", 0).execute().isError());
+	}
+
+	private void assertKeys(EtcdResponse[] responses, String... keys) {
+		assertEquals(keys.length, responses.length);
+		for (int i = 0; i < keys.length; i++)
+			assertEquals(DIR + keys[i], responses[i].getSuccessResponse().getNode().getKey());
+	}
+
+	public void testSharedWatch() throws Exception {
+		long start = server.getRevision() + 1;
+		IEtcdWatch a = hub.createWatch(DIR + "a/", start);
+		IEtcdWatch b = hub.createWatch(DIR + "b", start);
+		try {
+			set("a/k1");
+			set("c/k2");
+			set("b/k3");
+			set("a/k4");
+			assertKeys(a.next(), "a/k1");
+			assertKeys(b.next(), "b/k3");
+			assertKeys(a.next(), "a/k4");
+			// one watch, on the common parent
+			assertEquals(1, hub.getWatchCount());
+		} finally {
+			a.close();
+			b.close();
+		}
+		assertEquals(0, hub.getSubscriptionCount());
+	}
+
+	public void testLowerIndexRestartsWatch() throws Exception {
+		long start = server.getRevision() + 1;
+		set("b/k1");
+		set("a/k2");
+		IEtcdWatch a = hub.createWatch(DIR + "a/", start);
+		IEtcdWatch b = null;
+		try {
+			assertKeys(a.next(), "a/k2");
+			b = hub.createWatch(DIR + "b/", start);
+			assertKeys(b.next(), "b/k1");
+			assertEquals(2, hub.getWatchCount());
+			// changes seen before are not delivered again
+			set("a/k3");
+			assertKeys(a.next(), "a/k3");
+		} finally {
+			a.close();
+			if (b != null)
+				b.close();
+		}
+	}
+
+	public void testCloseReleasesPoller() throws Exception {
+		long start = server.getRevision() + 1;
+		final IEtcdWatch a = hub.createWatch(DIR + "a/", start);
+		IEtcdWatch b = hub.createWatch(DIR + "b/", start);
+		final Exception[] result = new Exception[1];
+		Thread t = new Thread(new Runnable() {
+			public void run() {
+				try {
+					a.next();
+				} catch (Exception e) {
+					result[0] = e;
+				}
+			}
+		});
+		try {
+			t.start();
+			Thread.sleep(500);
+			a.close();
+			t.join(5000);
+			assertFalse(t.isAlive());
+			assertNotNull(result[0]);
+			// the other subscription polls a new watch
+			set("b/k1");
+			assertKeys(b.next(), "b/k1");
+		} finally {
+			b.close();
+		}
+	}
+}